@@ -24,6 +24,7 @@ public class Menu {
 				+ "       8999 can be any port number,"
 				+ "       ./testfile.xml can be any relative or absolute file name and \n"
 				+ "       '5' is the delay between messags in ms)\n"
+				+ "(add 'persistent' after the delay to send all messages on one connection as length delimited messages)\n"
 				+ "\n"
 				+ "This jar also contains tests to generate a default pmatrix configuration from received TCP performance data from OpenNMS\n"
 				+ "The intention of this configuration is to make it easier to create a working table for a given OpenNMS performance feed.\n"
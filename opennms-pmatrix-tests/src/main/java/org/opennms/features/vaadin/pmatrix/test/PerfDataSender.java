@@ -41,8 +41,16 @@ import org.opennms.core.utils.InetAddressUtils;
 import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos;
 import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos.PerformanceDataReading;
 
+import com.google.protobuf.CodedOutputStream;
+
 /**
  * <p>RrdOutputSocket class.</p>
+ * 
+ * By default each writeData() opens a new connection, writes one message and closes the connection 
+ * as the OpenNMS TCP RRD strategy does. If persistentConnection is true the sender keeps one 
+ * connection open and writes each flush as a length delimited message (varint length followed by 
+ * the message). The connection opens with an empty message so that the pmatrix nio listener accepts 
+ * the stream on its one shot port as well as on its delimited port. Call close() when finished.
  *
  * @author ranger
  * @version $Id: $
@@ -56,6 +64,17 @@ public class PerfDataSender {
     private final PerformanceDataProtos.PerformanceDataReadings.Builder m_messages;
     private int m_messageCount = 0;
 
+    /**
+     * a persistent connection idle for longer than this (ms) is reopened before writing so that 
+     * the messages are not written to a connection the listener has already closed as idle
+     */
+    public static final long MAX_IDLE_TIME=30000;
+
+    private final boolean m_persistentConnection;
+    private Socket m_socket = null;
+    private CodedOutputStream m_codedOut = null;
+    private long m_lastWrite = 0;
+
     /**
      * <p>Constructor for RrdOutputSocket.</p>
      *
@@ -63,8 +82,18 @@ public class PerfDataSender {
      * @param port a int.
      */
     public PerfDataSender(String host, int port) {
+        this(host, port, false);
+    }
+
+    /**
+     * @param host a {@link java.lang.String} object.
+     * @param port a int.
+     * @param persistentConnection if true keep one connection open and send length delimited messages
+     */
+    public PerfDataSender(String host, int port, boolean persistentConnection) {
         m_host = host;
         m_port = port;
+        m_persistentConnection = persistentConnection;
         m_messages = PerformanceDataProtos.PerformanceDataReadings.newBuilder();
     }
 
@@ -92,6 +121,10 @@ public class PerfDataSender {
      * <p>writeData</p>
      */
     public void writeData() {
+        if (m_persistentConnection) {
+            writeDelimitedData();
+            return;
+        }
         Socket socket = null;
         try {
             //socket = new Socket(InetAddressUtils.addr(m_host), m_port);
@@ -121,4 +154,48 @@ public class PerfDataSender {
         }
     };
 
+    /**
+     * writes the added messages as one length delimited message on the persistent connection 
+     * and clears them so that the sender can be reused for the next flush
+     */
+    private void writeDelimitedData() {
+        PerformanceDataProtos.PerformanceDataReadings messages = m_messages.build();
+        try {
+            if (m_socket != null && System.currentTimeMillis() - m_lastWrite > MAX_IDLE_TIME) close();
+            if (m_socket == null) {
+                m_socket = new Socket();
+                m_socket.setTcpNoDelay(true);
+                m_socket.connect(new InetSocketAddress(InetAddressUtils.addr(m_host), m_port));
+                m_codedOut = CodedOutputStream.newInstance(m_socket.getOutputStream());
+                // empty message identifies the stream on the one shot port
+                m_codedOut.writeRawVarint32(0);
+            }
+            m_codedOut.writeRawVarint32(messages.getSerializedSize());
+            messages.writeTo(m_codedOut);
+            m_codedOut.flush();
+            m_lastWrite = System.currentTimeMillis();
+        } catch (Throwable e) {
+            LOG.warn("Error when trying to write to connection to {}:{}, dropping {} performance messages: {}", m_host, m_port, m_messageCount, e.getMessage());
+            close();
+        } finally {
+            m_messages.clear();
+            m_messageCount = 0;
+        }
+    }
+
+    /**
+     * closes the persistent connection if it is open. It is reopened by the next writeData()
+     */
+    public void close() {
+        if (m_socket != null) {
+            try { 
+                m_socket.close(); 
+            } catch (IOException e) {
+                LOG.warn("IOException when closing TCP performance data socket: {}", e.getMessage());
+            }
+        }
+        m_socket = null;
+        m_codedOut = null;
+    }
+
 }
@@ -50,6 +50,7 @@ public class PerfTestDataSender {
 		int port = 8999;
 		String hostname="localhost";
 		String fileLocation = "src/test/resources/testfile.xml";
+		boolean persistentConnection=false;
 
 		System.out.println(
 				  "****************************\n"
@@ -57,7 +58,8 @@ public class PerfTestDataSender {
 				+ "****************************\n");
 		if (args.length < 3) {
 			System.out.println("Takes data from an xml file and sends it as if coming from an opennms performance output stream\n"
-							+ "To change defaults supply arguments: hostname port filename (optional) messageInterval (in ms).\n"
+							+ "To change defaults supply arguments: hostname port filename (optional) messageInterval (in ms) (optional) persistent.\n"
+							+ "'persistent' sends every message on one connection as length delimited messages instead of one connection per message.\n"
 							+ "e.g. java -cp opennms-pmatrix-tests-<version>-jar-with-dependencies.jar "+ PerfTestDataSender.class.getName()+" localhost 8999 testfile.xml 5");
 		} else {
 			hostname=args[0];
@@ -66,6 +68,9 @@ public class PerfTestDataSender {
 			if (args.length > 3 ){
 				messageInterval = Integer.valueOf(args[3]);
 			}
+			if (args.length > 4 ){
+				persistentConnection = "persistent".equals(args[4]);
+			}
 			
 		}
 
@@ -73,13 +78,16 @@ public class PerfTestDataSender {
 				+ hostname
 				+ " Port:"+ String.valueOf(port)
 				+ "\nFrom supplied input test file name:" + fileLocation + " message interval:"+messageInterval
-						+ " ms ...");
+						+ " ms persistent connection:"+persistentConnection+" ...");
 
 		File file = new File(fileLocation);
 		System.out.println("Absolute input file location:" + file.getAbsolutePath());
 		
 		BufferedInputStream testfile=null;
 		
+		// a persistent sender is reused for every message
+		PerfDataSender persistentSender = persistentConnection ? new PerfDataSender(hostname, port, true) : null;
+
 		try {
 			// speeds up access
 			final int BUFFERED_SIZE=16000;
@@ -94,7 +102,7 @@ public class PerfTestDataSender {
 						+ "') timestamp:'"+tmd.getTimestamp()+"' owner:'"+tmd.getOwner()+"' path:'"+tmd.getPath()+"' values:'"+tmd.getValues()+"'");
 				
 				// note could pack more messages into each protocol buffer but here just sending one message at a time
-				PerfDataSender pds = new PerfDataSender(hostname, port); 				
+				PerfDataSender pds = persistentConnection ? persistentSender : new PerfDataSender(hostname, port); 				
 				pds.addData(tmd.getPath(), tmd.getOwner(), tmd.getTimestamp(), tmd.getValues());
 				pds.writeData();
 				try {
@@ -121,6 +129,8 @@ public class PerfTestDataSender {
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			if (persistentSender!=null) persistentSender.close();
 		}
 
 
@@ -0,0 +1,462 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.ui;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opennms.features.vaadin.pmatrix.engine.CellChangeBroadcaster;
+import org.opennms.features.vaadin.pmatrix.engine.CellChangeBroadcaster.Subscriber;
+import org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Server sent event stream of the cell changes of a pmatrix table.
+ * 
+ * GET &lt;mapping&gt;/&lt;pmatrixName&gt; streams a 'cell' event each time the values of a cell change
+ * GET &lt;mapping&gt;/&lt;pmatrixName&gt;?minSeverity=&lt;range&gt; streams only cells whose latestDataValueRange is at least range
+ * 
+ * The first event of a stream and any event sent after the client has fallen behind is a 'resync' event 
+ * carrying the version of the table. The client should then load the table from the JSON view. 
+ * The id of each cell event is the version in which the cell changed.
+ * 
+ * Streams are asynchronous so they do not hold container threads. Events are written by a small pool 
+ * of writer threads. Cells are delivered when the DataPointMapDao updates the tables, so 
+ * pmatrix.config.tableUpdate.changeDelay should be set for sub-second latency.
+ * 
+ * The servlet 3.0 api has no non blocking writes so a client which stops reading blocks the writer 
+ * thread writing its stream. A blocking write cannot be interrupted, so a stream whose write has not 
+ * completed within writeTimeout is closed to further events and the blocked thread is left dedicated 
+ * to it while another writer thread is started for the other streams. The blocked thread is only 
+ * released when the write fails, normally when the container's connection idle timeout closes the 
+ * connection, so that timeout should be set on the connector serving this servlet. The stream is 
+ * completed by its own writer thread once the write has returned.
+ * 
+ * init-params: bufferSize (events queued per stream before resync, default 1000), 
+ * heartbeatInterval (ms between keepalive comments, default 15000), writerThreads (default 2), 
+ * writeTimeout (ms a write may block before the stream is closed, default 10000. 0 disables)
+ */
+@SuppressWarnings("serial")
+public class PmatrixEventStreamServlet extends HttpServlet {
+	private static final Logger LOG = LoggerFactory.getLogger(PmatrixEventStreamServlet.class);
+
+	private static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream;charset=UTF-8";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * time in ms a client waits before reconnecting
+	 */
+	private static final byte[] RETRY = "retry: 5000\n\n".getBytes(UTF8);
+
+	private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(UTF8);
+
+	private DataPointMapDao dataPointMapDao;
+
+	private int bufferSize=1000;
+
+	private long heartbeatInterval=15000;
+
+	private int writerThreads=2;
+
+	private long writeTimeout=10000;
+
+	/**
+	 * broadcaster of each table shared by all of the streams of the table. Key is the pmatrixName
+	 */
+	private final ConcurrentMap<String,CellChangeBroadcaster> broadcasters = new ConcurrentHashMap<String,CellChangeBroadcaster>();
+
+	private final Set<EventStreamConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<EventStreamConnection,Boolean>());
+
+	private ThreadPoolExecutor writerExecutor;
+
+	private ScheduledExecutorService heartbeatExecutor;
+
+	@Override
+	public void init() throws ServletException {
+		dataPointMapDao= WebApplicationContextUtils.getRequiredWebApplicationContext(getServletContext())
+				.getBean("dataPointMapDao", DataPointMapDao.class);
+
+		try {
+			if (getInitParameter("bufferSize")!=null) bufferSize=Integer.parseInt(getInitParameter("bufferSize"));
+			if (getInitParameter("heartbeatInterval")!=null) heartbeatInterval=Long.parseLong(getInitParameter("heartbeatInterval"));
+			if (getInitParameter("writerThreads")!=null) writerThreads=Integer.parseInt(getInitParameter("writerThreads"));
+			if (getInitParameter("writeTimeout")!=null) writeTimeout=Long.parseLong(getInitParameter("writeTimeout"));
+		} catch (NumberFormatException e){
+			throw new ServletException("PmatrixEventStreamServlet init-param is not a number: "+e.getMessage(), e);
+		}
+		if (writerThreads<1) writerThreads=1;
+
+		// each connection is queued at most once so the queue is bounded by the number of connections
+		writerExecutor = new ThreadPoolExecutor(writerThreads, writerThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PmatrixEventStreamWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		writerExecutor.allowCoreThreadTimeOut(true);
+
+		heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PmatrixEventStreamHeartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (heartbeatInterval>0) {
+			heartbeatExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for (EventStreamConnection connection : connections) {
+						connection.heartbeatDue=true;
+						connection.schedule();
+					}
+				}
+			}, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+		}
+		if (writeTimeout>0) {
+			long checkInterval=Math.max(writeTimeout/4, 100);
+			heartbeatExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					long now=System.currentTimeMillis();
+					for (EventStreamConnection connection : connections) {
+						connection.checkWriteTimeout(now);
+					}
+				}
+			}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		}
+		LOG.info("started pmatrix event stream with bufferSize="+bufferSize+" heartbeatInterval="+heartbeatInterval
+				+" ms writerThreads="+writerThreads+" writeTimeout="+writeTimeout+" ms");
+	}
+
+	@Override
+	public void destroy() {
+		if (heartbeatExecutor!=null) heartbeatExecutor.shutdownNow();
+		for (EventStreamConnection connection : connections) {
+			connection.close();
+		}
+		if (writerExecutor!=null) writerExecutor.shutdownNow();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+		String pmatrixName=request.getPathInfo();
+		if (pmatrixName!=null && pmatrixName.startsWith("/")) pmatrixName=pmatrixName.substring(1);
+		if (pmatrixName==null || "".equals(pmatrixName)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "pmatrixName must be given in the path");
+			return;
+		}
+
+		PmatrixSpecification pmatrixSpecification = findSpecification(pmatrixName);
+		if (pmatrixSpecification==null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "no pmatrix table with pmatrixName '"+pmatrixName+"'");
+			return;
+		}
+
+		int minSeverity=0;
+		String minSeverityStr=request.getParameter("minSeverity");
+		if (minSeverityStr!=null) {
+			try {
+				minSeverity=Integer.parseInt(minSeverityStr);
+			} catch (NumberFormatException e){
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "minSeverity parameter must be a number: '"+minSeverityStr+"'");
+				return;
+			}
+		}
+
+		response.setContentType(EVENT_STREAM_CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-cache");
+
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0);
+
+		CellChangeBroadcaster broadcaster = broadcasters.get(pmatrixName);
+		if (broadcaster==null) {
+			broadcaster = new CellChangeBroadcaster(pmatrixSpecification, dataPointMapDao);
+			CellChangeBroadcaster existing = broadcasters.putIfAbsent(pmatrixName, broadcaster);
+			if (existing!=null) broadcaster=existing;
+		}
+
+		EventStreamConnection connection = new EventStreamConnection(asyncContext, broadcaster, minSeverity);
+		asyncContext.addListener(connection);
+		connections.add(connection);
+		broadcaster.addSubscriber(connection.subscriber);
+		if(LOG.isDebugEnabled()) LOG.debug("opened event stream of pmatrix table '"+pmatrixName+"' minSeverity="+minSeverity
+				+ " - "+broadcaster.getSubscriberCount()+" streams of this table");
+
+		// writes the retry interval and the first resync event
+		connection.schedule();
+	}
+
+	/**
+	 * adds or removes a writer thread. Threads are added while writes are blocked by stalled clients 
+	 * so that the other streams keep writerThreads threads
+	 */
+	private void resizeWriterPool(int change){
+		synchronized(writerExecutor){
+			if (change>0) {
+				writerExecutor.setMaximumPoolSize(writerExecutor.getMaximumPoolSize()+change);
+				writerExecutor.setCorePoolSize(writerExecutor.getCorePoolSize()+change);
+			} else {
+				writerExecutor.setCorePoolSize(writerExecutor.getCorePoolSize()+change);
+				writerExecutor.setMaximumPoolSize(writerExecutor.getMaximumPoolSize()+change);
+			}
+		}
+		if(LOG.isDebugEnabled()) LOG.debug("event stream writer pool resized to "+writerExecutor.getMaximumPoolSize()+" threads");
+	}
+
+	private PmatrixSpecification findSpecification(String pmatrixName){
+		if (dataPointMapDao.getPmatrixSpecificationList()==null 
+				|| dataPointMapDao.getPmatrixSpecificationList().getPmatrixSpecificationList()==null) return null;
+		for (PmatrixSpecification pms : dataPointMapDao.getPmatrixSpecificationList().getPmatrixSpecificationList()){
+			if(pmatrixName.equals(pms.getPmatrixName())) return pms;
+		}
+		return null;
+	}
+
+	/**
+	 * one open event stream. Runs on a writer thread to write the events queued for the stream
+	 */
+	private class EventStreamConnection implements Runnable, AsyncListener {
+
+		private final AsyncContext asyncContext;
+
+		private final CellChangeBroadcaster broadcaster;
+
+		private final Subscriber subscriber;
+
+		/**
+		 * true while the connection is waiting for a writer thread
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private volatile boolean heartbeatDue=false;
+
+		/**
+		 * time in ms when the current run started writing or 0 when the stream is not being written. Guarded by writerLock
+		 */
+		private long writeStarted=0;
+
+		/**
+		 * thread writing the stream or null. Guarded by writerLock
+		 */
+		private Thread writer=null;
+
+		/**
+		 * true once checkWriteTimeout() has given the writer pool a thread to replace the blocked writer. Guarded by writerLock
+		 */
+		private boolean writeTimedOut=false;
+
+		/**
+		 * true once asyncContext.complete() has been called. Guarded by writerLock
+		 */
+		private boolean completed=false;
+
+		private final Object writerLock = new Object();
+
+		/**
+		 * Guarded by this
+		 */
+		private boolean started=false;
+
+		private EventStreamConnection(AsyncContext asyncContext, CellChangeBroadcaster broadcaster, int minSeverity){
+			this.asyncContext=asyncContext;
+			this.broadcaster=broadcaster;
+			this.subscriber=new Subscriber(minSeverity, bufferSize, new Runnable() {
+				@Override
+				public void run() {
+					schedule();
+				}
+			});
+		}
+
+		/**
+		 * queues the connection for a writer thread if it is not already queued
+		 */
+		private void schedule(){
+			if (closed.get() || !scheduled.compareAndSet(false, true)) return;
+			try {
+				writerExecutor.execute(this);
+			} catch (RejectedExecutionException e){
+				// servlet destroyed
+				close();
+			}
+		}
+
+		@Override
+		public void run() {
+			if (closed.get()) return;
+			// a run scheduled while another is writing waits so that the stream is written by one thread at a time
+			synchronized(this){
+				synchronized(writerLock){
+					writer=Thread.currentThread();
+					writeStarted=System.currentTimeMillis();
+				}
+				try {
+					OutputStream out = asyncContext.getResponse().getOutputStream();
+					// cleared before draining so that events queued while writing schedule another run
+					scheduled.set(false);
+					boolean written=false;
+					if (!started) {
+						out.write(RETRY);
+						out.write(broadcaster.resyncEvent());
+						started=true;
+						written=true;
+					}
+					List<byte[]> events = broadcaster.drain(subscriber);
+					for (byte[] event : events) {
+						out.write(event);
+					}
+					if (!events.isEmpty()) written=true;
+					if (heartbeatDue) {
+						heartbeatDue=false;
+						if (!written) {
+							out.write(HEARTBEAT);
+							written=true;
+						}
+					}
+					if (written) out.flush();
+				} catch (IOException e){
+					if(LOG.isDebugEnabled()) LOG.debug("closing event stream which could not be written: "+e.getMessage());
+					close();
+				} catch (IllegalStateException e){
+					// request already completed by the container
+					close();
+				} finally {
+					boolean complete=false;
+					boolean releaseThread=false;
+					synchronized(writerLock){
+						writer=null;
+						writeStarted=0;
+						releaseThread=writeTimedOut;
+						writeTimedOut=false;
+						// a stream closed while it was being written is completed here once the write has returned
+						if (closed.get() && !completed) {
+							completed=true;
+							complete=true;
+						}
+					}
+					if (releaseThread) resizeWriterPool(-1);
+					if (complete) complete();
+				}
+			}
+		}
+
+		/**
+		 * closes the stream if a write has been blocked for longer than writeTimeout. The blocked write 
+		 * cannot be interrupted so a writer thread is added to the pool in its place until the write returns
+		 * @param now current time in ms
+		 */
+		private void checkWriteTimeout(long now){
+			synchronized(writerLock){
+				if (writer==null || writeTimedOut || now-writeStarted<writeTimeout) return;
+				writeTimedOut=true;
+				LOG.warn("closing event stream which has not accepted a write for "+(now-writeStarted)
+						+" ms. Its writer thread stays blocked until the connection is closed");
+				// resized while holding writerLock so that the pool grows before the writer can shrink it
+				resizeWriterPool(1);
+			}
+			close();
+		}
+
+		private void close(){
+			if (!closed.compareAndSet(false, true)) return;
+			connections.remove(this);
+			broadcaster.removeSubscriber(subscriber);
+			if(LOG.isDebugEnabled()) LOG.debug("closed event stream - "+broadcaster.getSubscriberCount()+" streams of this table. "
+					+subscriber.getEventsDropped()+" events were dropped for this stream");
+			synchronized(writerLock){
+				// the writer completes the stream when its write returns so that complete() never runs during a write
+				if (writer!=null || completed) return;
+				completed=true;
+			}
+			complete();
+		}
+
+		private void complete(){
+			try {
+				asyncContext.complete();
+			} catch (IllegalStateException e){
+				// already completed by the container
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.ui;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opennms.features.vaadin.pmatrix.engine.CellValuesJson;
+import org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao;
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixRenderModel;
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixRenderModel.CellValues;
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixRenderModel.RenderedCell;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Read only JSON view of the pmatrix tables for wallboards and scripts which do not need the Vaadin UI.
+ * 
+ * GET &lt;mapping&gt;/ returns the names of the tables
+ * GET &lt;mapping&gt;/&lt;pmatrixName&gt; returns the values of every cell of the table
+ * GET &lt;mapping&gt;/&lt;pmatrixName&gt;?since=&lt;version&gt; returns only the cells which changed after version
+ * 
+ * Each table response carries the version of the table as an ETag. The version only changes when 
+ * the values of a cell change so a client polling with If-None-Match receives 304 Not Modified 
+ * without a body until the table changes. The values are read from the render model shared with 
+ * the UI sessions so polling clients do not add calculations per request.
+ * 
+ * The update sequences behind the version restart from 0 when the application restarts so the 
+ * version is written as &lt;epoch&gt;-&lt;sequence&gt; where the epoch is fixed when the application starts 
+ * (see CellValuesJson.versionToken()). An If-None-Match or since value from another epoch is ignored 
+ * and the full table is returned.
+ */
+@SuppressWarnings("serial")
+public class PmatrixJsonServlet extends HttpServlet {
+	private static final Logger LOG = LoggerFactory.getLogger(PmatrixJsonServlet.class);
+
+	private static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+
+	private DataPointMapDao dataPointMapDao;
+
+	@Override
+	public void init() throws ServletException {
+		dataPointMapDao= WebApplicationContextUtils.getRequiredWebApplicationContext(getServletContext())
+				.getBean("dataPointMapDao", DataPointMapDao.class);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+		String pmatrixName=request.getPathInfo();
+		if (pmatrixName!=null && pmatrixName.startsWith("/")) pmatrixName=pmatrixName.substring(1);
+
+		response.setHeader("Cache-Control", "no-cache");
+
+		if (pmatrixName==null || "".equals(pmatrixName)) {
+			writeTableNames(response);
+			return;
+		}
+
+		PmatrixSpecification pmatrixSpecification = findSpecification(pmatrixName);
+		if (pmatrixSpecification==null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "no pmatrix table with pmatrixName '"+pmatrixName+"'");
+			return;
+		}
+
+		long since=-1;
+		String sinceStr=request.getParameter("since");
+		if (sinceStr!=null) {
+			try {
+				// a version from before a restart may be higher or lower than the current sequence so all cells are returned
+				since=CellValuesJson.parseVersionToken(sinceStr);
+				if(since<0 && LOG.isDebugEnabled()) LOG.debug("since parameter '"+sinceStr+"' is not from epoch "
+						+CellValuesJson.VERSION_EPOCH+". Returning all cells");
+			} catch (NumberFormatException e){
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "since parameter must be a version returned by this service: '"+sinceStr+"'");
+				return;
+			}
+		}
+
+		PmatrixRenderModel renderModel = dataPointMapDao.getRenderModel(pmatrixSpecification);
+		// cells of a later update may not all be rendered yet so the version is not above the sequence rendered here.
+		// Cells changed after it are still written so a client may receive a cell twice but never misses one
+		long renderedSequence=renderModel.refreshCells();
+		String version=CellValuesJson.versionToken(Math.min(renderModel.getVersion(), renderedSequence));
+
+		String etag="\""+version+"\"";
+		response.setHeader("ETag", etag);
+		String ifNoneMatch=request.getHeader("If-None-Match");
+		if (ifNoneMatch!=null && (ifNoneMatch.equals(etag) || ifNoneMatch.equals("W/"+etag))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		if(LOG.isDebugEnabled()) LOG.debug("writing pmatrix table '"+pmatrixName+"' version="+version+" since="+since);
+
+		response.setContentType(JSON_CONTENT_TYPE);
+		PrintWriter writer = response.getWriter();
+		StringBuilder json = new StringBuilder(4096);
+		json.append("{\"name\":");
+		CellValuesJson.appendString(json, pmatrixSpecification.getPmatrixName());
+		json.append(",\"title\":");
+		CellValuesJson.appendString(json, pmatrixSpecification.getPmatrixTitle());
+		json.append(",\"version\":");
+		CellValuesJson.appendString(json, version);
+		json.append(",\"cells\":[");
+		boolean first=true;
+		List<DataPointDefinition> dpdList = pmatrixSpecification.getDatapointDefinitions();
+		if (dpdList!=null) {
+			for (DataPointDefinition dpd : dpdList) {
+				RenderedCell cell = renderModel.getCell(dpd);
+				if (cell==null) continue;
+				CellValues values = cell.getValues();
+				if (values==null || values.getChangedSequence()<=since) continue;
+				if (!first) json.append(',');
+				first=false;
+				CellValuesJson.appendCell(json, dpd, values);
+			}
+		}
+		json.append("]}");
+		writer.write(json.toString());
+		writer.flush();
+	}
+
+	private PmatrixSpecification findSpecification(String pmatrixName){
+		if (dataPointMapDao.getPmatrixSpecificationList()==null 
+				|| dataPointMapDao.getPmatrixSpecificationList().getPmatrixSpecificationList()==null) return null;
+		for (PmatrixSpecification pms : dataPointMapDao.getPmatrixSpecificationList().getPmatrixSpecificationList()){
+			if(pmatrixName.equals(pms.getPmatrixName())) return pms;
+		}
+		return null;
+	}
+
+	private void writeTableNames(HttpServletResponse response) throws IOException {
+		StringBuilder json = new StringBuilder("{\"tables\":[");
+		if (dataPointMapDao.getPmatrixSpecificationList()!=null 
+				&& dataPointMapDao.getPmatrixSpecificationList().getPmatrixSpecificationList()!=null) {
+			boolean first=true;
+			for (PmatrixSpecification pms : dataPointMapDao.getPmatrixSpecificationList().getPmatrixSpecificationList()){
+				if (!first) json.append(',');
+				first=false;
+				json.append("{\"name\":");
+				CellValuesJson.appendString(json, pms.getPmatrixName());
+				json.append(",\"title\":");
+				CellValuesJson.appendString(json, pms.getPmatrixTitle());
+				json.append('}');
+			}
+		}
+		json.append("]}");
+		response.setContentType(JSON_CONTENT_TYPE);
+		PrintWriter writer = response.getWriter();
+		writer.write(json.toString());
+		writer.flush();
+	}
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.ui;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opennms.features.vaadin.pmatrix.engine.CellValuesJson;
+import org.opennms.features.vaadin.pmatrix.engine.SpaceSavingTopK;
+import org.opennms.features.vaadin.pmatrix.engine.UnmatchedPathTracker;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * JSON view of the received performance readings whose path is not in the pmatrix configuration.
+ * 
+ * GET &lt;mapping&gt; returns the estimated number of distinct unmatched paths and owners and the 
+ * most frequent of each. ?limit=&lt;n&gt; limits the length of the top lists.
+ * 
+ * Each top list entry has the estimated count and the maximum error of the count. A path whose 
+ * count minus error is high is certainly received often and is a candidate for the configuration.
+ */
+@SuppressWarnings("serial")
+public class PmatrixUnmatchedPathsServlet extends HttpServlet {
+
+	private static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+
+	private UnmatchedPathTracker unmatchedPathTracker;
+
+	@Override
+	public void init() throws ServletException {
+		unmatchedPathTracker= WebApplicationContextUtils.getRequiredWebApplicationContext(getServletContext())
+				.getBean("unmatchedPathTracker", UnmatchedPathTracker.class);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+		int limit=unmatchedPathTracker.getTopK();
+		String limitStr=request.getParameter("limit");
+		if (limitStr!=null) {
+			try {
+				limit=Integer.parseInt(limitStr);
+			} catch (NumberFormatException e){
+				limit=-1;
+			}
+			if (limit<0) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit parameter must be a positive number: '"+limitStr+"'");
+				return;
+			}
+		}
+
+		response.setHeader("Cache-Control", "no-cache");
+
+		StringBuilder json = new StringBuilder(4096);
+		json.append("{\"enabled\":").append(unmatchedPathTracker.getEnabled());
+		json.append(",\"resetTime\":").append(unmatchedPathTracker.getResetTime());
+		json.append(",\"unmatchedReadings\":").append(unmatchedPathTracker.getUnmatchedReadings());
+		json.append(",\"distinctPaths\":").append(unmatchedPathTracker.getDistinctUnmatchedPaths());
+		json.append(",\"distinctOwners\":").append(unmatchedPathTracker.getDistinctUnmatchedOwners());
+		json.append(",\"topPaths\":");
+		appendEntries(json, unmatchedPathTracker.getTopPaths(limit));
+		json.append(",\"topOwners\":");
+		appendEntries(json, unmatchedPathTracker.getTopOwners(limit));
+		json.append('}');
+
+		response.setContentType(JSON_CONTENT_TYPE);
+		PrintWriter writer = response.getWriter();
+		writer.write(json.toString());
+		writer.flush();
+	}
+
+	private static void appendEntries(StringBuilder json, List<SpaceSavingTopK.Entry> entries){
+		json.append('[');
+		boolean first=true;
+		for (SpaceSavingTopK.Entry entry : entries){
+			if (!first) json.append(',');
+			first=false;
+			json.append("{\"key\":");
+			CellValuesJson.appendString(json, entry.getKey());
+			json.append(",\"count\":").append(entry.getCount());
+			json.append(",\"error\":").append(entry.getError());
+			json.append('}');
+		}
+		json.append(']');
+	}
+}
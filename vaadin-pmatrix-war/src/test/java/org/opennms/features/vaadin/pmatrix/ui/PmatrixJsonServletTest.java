@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.ui;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorSimpleMovingAvgImpl;
+import org.opennms.features.vaadin.pmatrix.engine.CellValuesJson;
+import org.opennms.features.vaadin.pmatrix.engine.DataPointMapDaoImpl;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinitionImpl;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecificationImpl;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecificationListImpl;
+import org.springframework.context.ApplicationContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the ETag and 304 Not Modified responses of the JSON view and that since=&lt;version&gt; 
+ * returns only the cells which changed after the version
+ */
+public class PmatrixJsonServletTest extends TestCase {
+
+	private static final String[] PATHS = {
+		"/opt/opennms/share/rrd/snmp/1/ifInOctets", 
+		"/opt/opennms/share/rrd/snmp/1/ifOutOctets", 
+		"/opt/opennms/share/rrd/snmp/2/ifInOctets"};
+
+	private DataPointMapDaoImpl dataPointMapDao;
+
+	private PmatrixJsonServlet servlet;
+
+	@Override
+	protected void setUp() throws Exception {
+		PmatrixSpecificationImpl pmatrixSpecification = new PmatrixSpecificationImpl();
+		pmatrixSpecification.setPmatrixName("table");
+		pmatrixSpecification.setPmatrixTitle("Table");
+		List<DataPointDefinition> datapointDefinitions = new ArrayList<DataPointDefinition>();
+		for (String filePath : PATHS) {
+			DataPointDefinitionImpl dpd = new DataPointDefinitionImpl();
+			dpd.setFilePath(filePath);
+			dpd.setRowName(filePath);
+			dpd.setColName("value");
+			datapointDefinitions.add(dpd);
+		}
+		pmatrixSpecification.setDatapointDefinitions(datapointDefinitions);
+		List<PmatrixSpecification> specificationList = new ArrayList<PmatrixSpecification>();
+		specificationList.add(pmatrixSpecification);
+
+		// application context which only supplies new calculators
+		ApplicationContext applicationContext = (ApplicationContext) Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[]{ApplicationContext.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("getBean".equals(method.getName())) return new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+
+		dataPointMapDao = new DataPointMapDaoImpl();
+		setField(DataPointMapDaoImpl.class, dataPointMapDao, "applicationContext", applicationContext);
+		dataPointMapDao.setPmatrixSpecificationList(new PmatrixSpecificationListImpl(specificationList));
+		dataPointMapDao.addPmatrixSpecifications();
+
+		servlet = new PmatrixJsonServlet();
+		setField(PmatrixJsonServlet.class, servlet, "dataPointMapDao", dataPointMapDao);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dataPointMapDao.shutdown();
+	}
+
+	public void testTableNames() throws Exception {
+		RecordedResponse response = get("/", null, null);
+		assertEquals(200, response.status);
+		assertEquals("{\"tables\":[{\"name\":\"table\",\"title\":\"Table\"}]}", response.body());
+	}
+
+	public void testUnknownTable() throws Exception {
+		assertEquals(HttpServletResponse.SC_NOT_FOUND, get("/noSuchTable", null, null).status);
+	}
+
+	public void testInvalidSince() throws Exception {
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, get("/table", "notAVersion", null).status);
+	}
+
+	public void testNotModifiedUntilTableChanges() throws Exception {
+		RecordedResponse response = get("/table", null, null);
+		assertEquals(200, response.status);
+		String etag = response.headers.get("ETag");
+		assertEquals("\""+CellValuesJson.versionToken(dataPointMapDao.getUpdateSequence())+"\"", etag);
+		assertEquals(PATHS.length, countCells(response.body()));
+
+		response = get("/table", null, etag);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		assertEquals("", response.body());
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, get("/table", null, "W/"+etag).status);
+
+		updateCell(PATHS[1], 10d);
+		response = get("/table", null, etag);
+		assertEquals(200, response.status);
+		assertFalse(etag.equals(response.headers.get("ETag")));
+		assertEquals(PATHS.length, countCells(response.body()));
+	}
+
+	public void testSinceReturnsOnlyChangedCells() throws Exception {
+		String version = versionOf(get("/table", null, null));
+		assertEquals(0, countCells(get("/table", version, null).body()));
+
+		updateCell(PATHS[1], 10d);
+		RecordedResponse response = get("/table", version, null);
+		assertEquals(1, countCells(response.body()));
+		assertTrue(response.body().contains("\"row\":\""+PATHS[1]+"\""));
+		assertTrue(response.body().contains("\"value\":10.0"));
+		// the cell carries the version of the table in which it changed
+		assertTrue(response.body().contains("\"version\":\""+versionOf(response)+"\"}]}"));
+
+		// nothing changed after the new version
+		assertEquals(0, countCells(get("/table", versionOf(response), null).body()));
+	}
+
+	public void testSinceFromAnotherEpochReturnsAllCells() throws Exception {
+		String version = versionOf(get("/table", null, null));
+		updateCell(PATHS[1], 10d);
+		String otherEpoch = "x"+version;
+		assertEquals(PATHS.length, countCells(get("/table", otherEpoch, null).body()));
+	}
+
+	private void updateCell(String filePath, double value){
+		int pathId = dataPointMapDao.getPathDictionary().getId(filePath);
+		PmatrixDpdCalculator calculator = dataPointMapDao.getCalculator(pathId);
+		synchronized(calculator){
+			calculator.updateCalculation(value, System.currentTimeMillis());
+			calculator.markUpdated();
+		}
+		dataPointMapDao.notifyChange(pathId);
+		dataPointMapDao.runUpdate();
+	}
+
+	private static String versionOf(RecordedResponse response){
+		String etag = response.headers.get("ETag");
+		return etag.substring(1, etag.length()-1);
+	}
+
+	private static int countCells(String json){
+		int count=0;
+		int index=0;
+		while ((index=json.indexOf("{\"row\":", index))>=0){
+			count++;
+			index++;
+		}
+		return count;
+	}
+
+	private RecordedResponse get(String pathInfo, String since, String ifNoneMatch) throws Exception {
+		Map<String,String> parameters = new HashMap<String,String>();
+		if (since!=null) parameters.put("since", since);
+		Map<String,String> headers = new HashMap<String,String>();
+		if (ifNoneMatch!=null) headers.put("If-None-Match", ifNoneMatch);
+		RecordedResponse response = new RecordedResponse();
+		servlet.doGet(request(pathInfo, parameters, headers), response.proxy());
+		return response;
+	}
+
+	private static HttpServletRequest request(final String pathInfo, final Map<String,String> parameters, final Map<String,String> headers){
+		return (HttpServletRequest) Proxy.newProxyInstance(PmatrixJsonServletTest.class.getClassLoader(), 
+				new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("getPathInfo".equals(method.getName())) return pathInfo;
+				if ("getParameter".equals(method.getName())) return parameters.get(args[0]);
+				if ("getHeader".equals(method.getName())) return headers.get(args[0]);
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	/**
+	 * records the status, headers and body written by the servlet
+	 */
+	private static class RecordedResponse implements InvocationHandler {
+		private int status=200;
+		private final Map<String,String> headers = new HashMap<String,String>();
+		private final StringWriter body = new StringWriter();
+
+		HttpServletResponse proxy(){
+			return (HttpServletResponse) Proxy.newProxyInstance(PmatrixJsonServletTest.class.getClassLoader(), 
+					new Class<?>[]{HttpServletResponse.class}, this);
+		}
+
+		String body(){
+			return body.toString();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if ("setHeader".equals(name)) {
+				headers.put((String) args[0], (String) args[1]);
+			} else if ("setStatus".equals(name) || "sendError".equals(name)) {
+				status = (Integer) args[0];
+			} else if ("getWriter".equals(name)) {
+				return new PrintWriter(body);
+			} else if (!"setContentType".equals(name)) {
+				throw new UnsupportedOperationException(name);
+			}
+			return null;
+		}
+	}
+
+	private static void setField(Class<?> clazz, Object target, String fieldName, Object value) throws Exception {
+		Field field = clazz.getDeclaredField(fieldName);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+}
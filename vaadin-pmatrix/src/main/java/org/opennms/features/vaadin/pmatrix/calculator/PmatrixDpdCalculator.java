@@ -28,8 +28,17 @@
 
 package org.opennms.features.vaadin.pmatrix.calculator;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import javax.xml.bind.annotation.XmlTransient;
 
@@ -71,15 +80,69 @@ public abstract class PmatrixDpdCalculator {
 	 * @return updates the given data point definition with the result of the latest calculation
 	 * and sets MouseOverText text to latestValue and latestTimestamp and other calculated values.
 	 */
-	public abstract DataPointDefinition updateDpd(DataPointDefinition dpd);
+	public DataPointDefinition updateDpd(DataPointDefinition dpd) {
+		return updateDpd(dpd, true);
+	}
+
+	/**
+	 * updates the given data point definition with the result of the latest calculation
+	 * @param dpd
+	 * @param includeMouseOverText if false the mouse over text is neither rendered nor copied into the definition. 
+	 * Used when descriptions are fetched on demand with getMouseOverText()
+	 * @return the updated definition
+	 */
+	public abstract DataPointDefinition updateDpd(DataPointDefinition dpd, boolean includeMouseOverText);
 
 	/**
 	 * Updates the running calculations using the latestValue and latestTimestamp
-	 * This method should be overridden for new algorithms
+	 * This method should be overridden for new algorithms and must not allocate objects 
+	 * since it is called for every value received.
 	 * @param latestValue
 	 * @param latestTimestamp
 	 */
-	public abstract void updateCalculation(Double latestValue, Long latestTimestamp);
+	public abstract void updateCalculation(double latestValue, long latestTimestamp);
+
+	/**
+	 * Boxed form of updateCalculation(double latestValue, long latestTimestamp)
+	 * @param latestValue
+	 * @param latestTimestamp
+	 * @throws IllegalStateException if either value is null
+	 */
+	public void updateCalculation(Double latestValue, Long latestTimestamp) {
+		if ((latestValue==null)||(latestTimestamp==null)){
+			throw new IllegalStateException("updateCalculation() cannot have null values: latestTimestamp:"
+					+latestTimestamp+" latestDataValue: "+latestValue);
+		}
+		updateCalculation(latestValue.doubleValue(), latestTimestamp.longValue());
+	}
+
+	/**
+	 * Value held by primitive timestamp fields which have not been set.
+	 * The boxed getters return null for this value
+	 */
+	protected static final long NO_TIMESTAMP=Long.MIN_VALUE;
+
+	/**
+	 * Value held by primitive range fields which have not been set.
+	 * The boxed getters return null for this value
+	 */
+	protected static final int NO_RANGE=Integer.MIN_VALUE;
+
+	protected static Long boxTimestamp(long timestamp) {
+		return (timestamp==NO_TIMESTAMP) ? null : Long.valueOf(timestamp);
+	}
+
+	protected static long unboxTimestamp(Long timestamp) {
+		return (timestamp==null) ? NO_TIMESTAMP : timestamp.longValue();
+	}
+
+	protected static Integer boxRange(int range) {
+		return (range==NO_RANGE) ? null : Integer.valueOf(range);
+	}
+
+	protected static int unboxRange(Integer range) {
+		return (range==null) ? NO_RANGE : range.intValue();
+	}
 
 	/**
 	 * Sets the name value pair list of configuration parameters to be passed to the PmatrixDpdCalculator
@@ -247,5 +310,208 @@ public abstract class PmatrixDpdCalculator {
 	 */
 	public abstract String dataToCSV();
 
+	/**
+	 * incremented each time the calculator is updated. Not persisted.
+	 * Written only while synchronized on the calculator but read without locking.
+	 */
+	private volatile long updateVersion=0;
+
+	/**
+	 * Records that the calculator state has changed since it was last persisted.
+	 * Callers must synchronize on this calculator.
+	 */
+	public void markUpdated() {
+		updateVersion++;
+	}
+
+	/**
+	 * @return number which changes each time markUpdated() is called. Used to find calculators
+	 * which need to be written to the persistence journal
+	 */
+	public long getUpdateVersion() {
+		return updateVersion;
+	}
+
+	/**
+	 * JAXB contexts used by the default snapshot() and writeState() implementations, cached per calculator class
+	 */
+	private static final ConcurrentMap<Class<?>, JAXBContext> jaxbContexts = new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+	private JAXBContext jaxbContext() throws JAXBException {
+		JAXBContext jaxbContext = jaxbContexts.get(getClass());
+		if (jaxbContext==null) {
+			jaxbContext = JAXBContext.newInstance(getClass());
+			jaxbContexts.putIfAbsent(getClass(), jaxbContext);
+		}
+		return jaxbContext;
+	}
+
+	/**
+	 * Returns a copy of the persisted state of this calculator. The copy can be marshalled 
+	 * while this calculator continues to be updated. 
+	 * Callers must synchronize on this calculator so that the copy is not taken part way through an updateCalculation.
+	 * 
+	 * The default implementation copies the calculator by marshalling it through JAXB. 
+	 * Implementations should override this with a direct copy of their state.
+	 * @return independent copy of this calculator
+	 */
+	public PmatrixDpdCalculator snapshot() {
+		try {
+			JAXBContext jaxbContext = jaxbContext();
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			jaxbContext.createMarshaller().marshal(this, os);
+			return (PmatrixDpdCalculator) jaxbContext.createUnmarshaller().unmarshal(new ByteArrayInputStream(os.toByteArray()));
+		} catch (JAXBException e) {
+			throw new IllegalStateException("cannot create snapshot of calculator "+getClass().getName(), e);
+		}
+	}
+
+	/**
+	 * If true writeState() writes a compact binary state which is restored by readState(). 
+	 * If false the state written by writeState() is stored in binary archives and the journal 
+	 * as a JAXB XML fragment which is restored by unmarshalling a new calculator.
+	 * @return false unless overridden together with writeState() and readState()
+	 */
+	public boolean isBinaryStateSupported() {
+		return false;
+	}
+
+	/**
+	 * Writes the persisted state of this calculator for binary archives and the journal. 
+	 * The default implementation writes the calculator as a JAXB XML fragment. Implementations which 
+	 * return true from isBinaryStateSupported() write their state (excluding their configuration) 
+	 * in binary form, which must be the exact inverse of readState()
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			jaxbContext().createMarshaller().marshal(this, os);
+			out.write(os.toByteArray());
+		} catch (JAXBException e) {
+			throw new IOException("cannot marshal calculator "+getClass().getName()+": "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Restores the binary state written by writeState() into this newly created calculator 
+	 * if isBinaryStateSupported() is true. The configuration will already have been set.
+	 * The XML state written by the default writeState() is restored by unmarshalling a new calculator 
+	 * so the default implementation is never called.
+	 * @param in
+	 * @throws IOException
+	 */
+	public void readState(DataInput in) throws IOException {
+		throw new UnsupportedOperationException("binary state not supported by "+getClass().getName());
+	}
+
+	/**
+	 * writes the state held through the PmatrixDpdCalculator getters in binary form. 
+	 * Used by writeState() implementations before writing their own calculation state. 
+	 * The mouse over text is not rendered or written. It is rendered from the restored values when next requested.
+	 * @param out
+	 * @throws IOException
+	 */
+	protected void writeCommonState(DataOutput out) throws IOException {
+		writeNullableDouble(out, getLatestDataValue());
+		writeNullableLong(out, getLatestTimestamp());
+		writeNullableString(out, null); // mouse over text
+		writeNullableInteger(out, getLatestDataValueRange());
+		writeNullableDouble(out, getSecondaryValue());
+		writeNullableInteger(out, getSecondaryValueRange());
+		writeNullableString(out, getLeftTrendArrow());
+		writeNullableString(out, getRightTrendArrow());
+		writeNullableDouble(out, getPrevDataValue());
+		writeNullableLong(out, getPreviousTimestamp());
+	}
+
+	/**
+	 * reads the state written by writeCommonState(). Archives written by earlier versions may contain mouse over text
+	 * @param in
+	 * @throws IOException
+	 */
+	protected void readCommonState(DataInput in) throws IOException {
+		setLatestDataValue(readNullableDouble(in));
+		setLatestTimestamp(readNullableLong(in));
+		setMouseOverText(readNullableString(in));
+		setLatestDataValueRange(readNullableInteger(in));
+		setSecondaryValue(readNullableDouble(in));
+		setSecondaryValueRange(readNullableInteger(in));
+		setLeftTrendArrow(readNullableString(in));
+		setRightTrendArrow(readNullableString(in));
+		setPrevDataValue(readNullableDouble(in));
+		setPreviousTimestamp(readNullableLong(in));
+	}
+
+	protected static void writeNullableDouble(DataOutput out, Double value) throws IOException {
+		out.writeBoolean(value!=null);
+		if (value!=null) out.writeDouble(value);
+	}
+
+	protected static Double readNullableDouble(DataInput in) throws IOException {
+		return in.readBoolean() ? Double.valueOf(in.readDouble()) : null;
+	}
+
+	protected static void writeNullableLong(DataOutput out, Long value) throws IOException {
+		out.writeBoolean(value!=null);
+		if (value!=null) out.writeLong(value);
+	}
+
+	protected static Long readNullableLong(DataInput in) throws IOException {
+		return in.readBoolean() ? Long.valueOf(in.readLong()) : null;
+	}
+
+	protected static void writeNullableInteger(DataOutput out, Integer value) throws IOException {
+		out.writeBoolean(value!=null);
+		if (value!=null) out.writeInt(value);
+	}
+
+	protected static Integer readNullableInteger(DataInput in) throws IOException {
+		return in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+	}
+
+	/**
+	 * strings are written as a length followed by UTF-8 bytes so that they are not limited 
+	 * to the 64k of DataOutput.writeUTF(). A length of -1 indicates null
+	 */
+	protected static void writeNullableString(DataOutput out, String value) throws IOException {
+		if (value==null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	protected static String readNullableString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length<0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * copies the state held through the PmatrixDpdCalculator getters and setters into the copy. 
+	 * Used by snapshot() implementations before copying their own calculation state. 
+	 * The mouse over text is not copied so that taking a snapshot does not force it to be rendered
+	 * @param copy
+	 */
+	protected void copyCommonState(PmatrixDpdCalculator copy){
+		copy.setConfiguration(getConfiguration());
+		copy.setLatestDataValue(getLatestDataValue());
+		copy.setLatestTimestamp(getLatestTimestamp());
+		copy.setMouseOverText(null);
+		copy.setLatestDataValueRange(getLatestDataValueRange());
+		copy.setSecondaryValue(getSecondaryValue());
+		copy.setSecondaryValueRange(getSecondaryValueRange());
+		copy.setLeftTrendArrow(getLeftTrendArrow());
+		copy.setRightTrendArrow(getRightTrendArrow());
+		copy.setPrevDataValue(getPrevDataValue());
+		copy.setPreviousTimestamp(getPreviousTimestamp());
+	}
+
 
 }
@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.calculator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import org.opennms.features.vaadin.pmatrix.model.NameValuePair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the calculator map of a PmatrixDpdCalculatorRepository in a compact versioned binary format.
+ * 
+ * The file contains:
+ * <pre>
+ *  int     MAGIC
+ *  int     VERSION
+ *  long    date persisted (-1 if null)
+ *  int     number of paths followed by each path
+ *  int     number of calculator class names followed by each class name
+ *  int     number of distinct configurations followed by, for each configuration, 
+ *          its long fingerprint, the number of properties and each property name and value
+ *  int     number of calculators followed by, for each calculator, 
+ *          int path index, int class index, int configuration index, byte state encoding, 
+ *          int state length and the state bytes
+ * </pre>
+ * Calculator state is written with writeState(). Calculators which support binary state are stored with the 
+ * STATE_BINARY encoding and restored with readState(). Any other calculator writes a JAXB XML fragment 
+ * which is stored with the STATE_XML encoding and unmarshalled. Because each state is length prefixed, a calculator 
+ * which cannot be read is skipped without affecting the rest of the file. An index which does not 
+ * refer to an entry in its dictionary means the file is damaged and stops the read.
+ * The live calculators are written one at a time, each synchronized on itself only while its 
+ * state is serialized, so no copy of the calculator map is needed.
+ * All strings are written as an int length followed by UTF-8 bytes.
+ */
+class PmatrixDpdCalculatorBinaryFormat {
+	private static final Logger LOG = LoggerFactory.getLogger(PmatrixDpdCalculatorBinaryFormat.class);
+
+	/**
+	 * first four bytes of a binary archive file ("PMXH")
+	 */
+	static final int MAGIC=0x504D5848;
+
+	static final int VERSION=1;
+
+	static final byte STATE_BINARY=1;
+	static final byte STATE_XML=2;
+
+	private static final int BUFFER_SIZE=64*1024;
+
+	private PmatrixDpdCalculatorBinaryFormat(){
+	}
+
+	/**
+	 * @return true if the file starts with the binary archive magic number
+	 */
+	static boolean isBinaryArchive(File file) throws IOException {
+		if (file.length() < 4) return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt()==MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * writes the calculator map to file
+	 * @param dataPointMap map of path to live calculator. Calculators may continue to be updated while being written
+	 * @param datePersisted
+	 * @param file
+	 * @param writtenVersions if not null, receives the update version of each calculator at the time it was written
+	 * @return number of calculators written
+	 * @throws IOException
+	 */
+	static int write(Map<String, PmatrixDpdCalculator> dataPointMap, Date datePersisted, File file, Map<String, Long> writtenVersions) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			return write(dataPointMap, datePersisted, out, writtenVersions);
+		} finally {
+			out.close();
+		}
+	}
+
+	static int write(Map<String, PmatrixDpdCalculator> dataPointMap, Date datePersisted, DataOutputStream out, Map<String, Long> writtenVersions) throws IOException {
+
+		// build dictionaries
+		List<String> paths = new ArrayList<String>(dataPointMap.size());
+		Map<String,Integer> classIndex = new HashMap<String, Integer>();
+		List<String> classNames = new ArrayList<String>();
+		Map<String,Integer> configIndex = new HashMap<String, Integer>();
+		List<List<NameValuePair>> configs = new ArrayList<List<NameValuePair>>();
+
+		int[] calculatorClass = new int[dataPointMap.size()];
+		int[] calculatorConfig = new int[dataPointMap.size()];
+		List<PmatrixDpdCalculator> calculators = new ArrayList<PmatrixDpdCalculator>(dataPointMap.size());
+
+		for (Entry<String, PmatrixDpdCalculator> entry : dataPointMap.entrySet()){
+			PmatrixDpdCalculator calculator = entry.getValue();
+			if (entry.getKey()==null || calculator==null) continue;
+			int n = paths.size();
+			paths.add(entry.getKey());
+			calculators.add(calculator);
+
+			String className = calculator.getClass().getName();
+			Integer ci = classIndex.get(className);
+			if (ci==null){
+				ci=classNames.size();
+				classNames.add(className);
+				classIndex.put(className, ci);
+			}
+			calculatorClass[n]=ci;
+
+			List<NameValuePair> configuration = (calculator.getConfiguration()==null) ? new ArrayList<NameValuePair>() : calculator.getConfiguration();
+			String configKey=configurationKey(configuration);
+			Integer cfi = configIndex.get(configKey);
+			if (cfi==null){
+				cfi=configs.size();
+				configs.add(configuration);
+				configIndex.put(configKey, cfi);
+			}
+			calculatorConfig[n]=cfi;
+		}
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong((datePersisted==null) ? -1 : datePersisted.getTime());
+
+		out.writeInt(paths.size());
+		for (String path : paths) PmatrixDpdCalculator.writeNullableString(out, path);
+
+		out.writeInt(classNames.size());
+		for (String className : classNames) PmatrixDpdCalculator.writeNullableString(out, className);
+
+		out.writeInt(configs.size());
+		for (List<NameValuePair> configuration : configs){
+			out.writeLong(fingerprint(configuration));
+			out.writeInt(configuration.size());
+			for (NameValuePair nvp : configuration){
+				PmatrixDpdCalculator.writeNullableString(out, nvp.getName());
+				PmatrixDpdCalculator.writeNullableString(out, nvp.getValue());
+			}
+		}
+
+		// each calculator state is written to a reused buffer so that it can be length prefixed
+		ByteArrayOutputStream stateBytes = new ByteArrayOutputStream(8192);
+		DataOutputStream stateOut = new DataOutputStream(stateBytes);
+
+		out.writeInt(calculators.size());
+		for (int i = 0; i < calculators.size(); i++){
+			PmatrixDpdCalculator calculator = calculators.get(i);
+			stateBytes.reset();
+			byte encoding;
+			// lock only this calculator while its state is serialized so that it is not written part way through an update
+			synchronized(calculator){
+				encoding = calculator.isBinaryStateSupported() ? STATE_BINARY : STATE_XML;
+				calculator.writeState(stateOut);
+				stateOut.flush();
+				if (writtenVersions!=null) writtenVersions.put(paths.get(i), calculator.getUpdateVersion());
+			}
+			out.writeInt(i);
+			out.writeInt(calculatorClass[i]);
+			out.writeInt(calculatorConfig[i]);
+			out.writeByte(encoding);
+			out.writeInt(stateBytes.size());
+			stateBytes.writeTo(out);
+		}
+		out.flush();
+		return calculators.size();
+	}
+
+	/**
+	 * reads a calculator map from file
+	 * @param file
+	 * @param dataPointMap map into which the calculators are read
+	 * @return date the file was persisted or null if not recorded
+	 * @throws IOException if the file is not a valid binary archive
+	 */
+	static Date read(File file, Map<String, PmatrixDpdCalculator> dataPointMap) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try {
+			return read(in, dataPointMap);
+		} finally {
+			in.close();
+		}
+	}
+
+	static Date read(DataInputStream in, Map<String, PmatrixDpdCalculator> dataPointMap) throws IOException {
+		if (in.readInt()!=MAGIC) throw new IOException("not a pmatrix binary history archive");
+		int version = in.readInt();
+		if (version!=VERSION) throw new IOException("unsupported pmatrix binary history archive version "+version);
+		long date = in.readLong();
+
+		String[] paths = new String[in.readInt()];
+		for (int i = 0; i < paths.length; i++) paths[i]=PmatrixDpdCalculator.readNullableString(in);
+
+		String[] classNames = new String[in.readInt()];
+		for (int i = 0; i < classNames.length; i++) classNames[i]=PmatrixDpdCalculator.readNullableString(in);
+
+		List<List<NameValuePair>> configs = new ArrayList<List<NameValuePair>>();
+		int configCount = in.readInt();
+		for (int i = 0; i < configCount; i++){
+			long fingerprint = in.readLong();
+			int size = in.readInt();
+			List<NameValuePair> configuration = new ArrayList<NameValuePair>(size);
+			for (int j = 0; j < size; j++){
+				String name = PmatrixDpdCalculator.readNullableString(in);
+				String value = PmatrixDpdCalculator.readNullableString(in);
+				configuration.add(new NameValuePair(name, value));
+			}
+			if (fingerprint(configuration)!=fingerprint) throw new IOException("configuration "+i+" does not match its fingerprint");
+			configs.add(configuration);
+		}
+
+		Map<Class<?>,JAXBContext> jaxbContexts = new HashMap<Class<?>, JAXBContext>();
+		byte[] stateBytes = new byte[8192];
+
+		int calculatorCount = in.readInt();
+		for (int i = 0; i < calculatorCount; i++){
+			String path = paths[readIndex(in, paths.length, "path")];
+			String className = classNames[readIndex(in, classNames.length, "class")];
+			List<NameValuePair> configuration = configs.get(readIndex(in, configs.size(), "configuration"));
+			byte encoding = in.readByte();
+			int length = in.readInt();
+			if (length<0) throw new IOException("invalid state length "+length+" for calculator "+i);
+			if (stateBytes.length < length) stateBytes = new byte[length];
+			in.readFully(stateBytes, 0, length);
+
+			try {
+				PmatrixDpdCalculator calculator;
+				Class<?> calculatorClass = Class.forName(className, true, PmatrixDpdCalculator.class.getClassLoader());
+				if (encoding==STATE_BINARY){
+					calculator = (PmatrixDpdCalculator) calculatorClass.newInstance();
+					calculator.setConfiguration(new ArrayList<NameValuePair>(configuration));
+					calculator.readState(new DataInputStream(new ByteArrayInputStream(stateBytes, 0, length)));
+				} else if (encoding==STATE_XML){
+					InputStream is = new ByteArrayInputStream(stateBytes, 0, length);
+					calculator = (PmatrixDpdCalculator) jaxbContext(jaxbContexts, calculatorClass).createUnmarshaller().unmarshal(is);
+				} else throw new IOException("unknown state encoding "+encoding);
+				dataPointMap.put(path, calculator);
+			} catch (Exception e) {
+				LOG.warn("cannot restore calculator "+className+" for path '"+path+"' from binary history archive. Skipping.", e);
+			}
+		}
+		return (date<0) ? null : new Date(date);
+	}
+
+	/**
+	 * reads an index into a dictionary of the archive
+	 * @throws IOException if the index does not refer to an entry in the dictionary
+	 */
+	private static int readIndex(DataInputStream in, int dictionarySize, String dictionary) throws IOException {
+		int index = in.readInt();
+		if (index<0 || index>=dictionarySize) throw new IOException("invalid "+dictionary+" index "+index+" in binary history archive");
+		return index;
+	}
+
+	private static JAXBContext jaxbContext(Map<Class<?>,JAXBContext> jaxbContexts, Class<?> calculatorClass) throws JAXBException {
+		JAXBContext jaxbContext = jaxbContexts.get(calculatorClass);
+		if (jaxbContext==null) {
+			jaxbContext = JAXBContext.newInstance(calculatorClass);
+			jaxbContexts.put(calculatorClass, jaxbContext);
+		}
+		return jaxbContext;
+	}
+
+	/**
+	 * @return string which is equal for configurations containing the same properties in any order
+	 */
+	private static String configurationKey(List<NameValuePair> configuration){
+		List<NameValuePair> sorted = new ArrayList<NameValuePair>(configuration);
+		Collections.sort(sorted, new Comparator<NameValuePair>() {
+			@Override
+			public int compare(NameValuePair o1, NameValuePair o2) {
+				String n1 = (o1.getName()==null) ? "" : o1.getName();
+				String n2 = (o2.getName()==null) ? "" : o2.getName();
+				return n1.compareTo(n2);
+			}
+		});
+		StringBuilder key = new StringBuilder();
+		for (NameValuePair nvp : sorted){
+			key.append(nvp.getName()).append('=').append(nvp.getValue()).append('\n');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return 64 bit FNV-1a hash of the configuration properties in name order
+	 */
+	static long fingerprint(List<NameValuePair> configuration){
+		String key = configurationKey(configuration);
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++){
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
@@ -1,5 +1,8 @@
 package org.opennms.features.vaadin.pmatrix.calculator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -8,6 +11,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.bind.Marshaller;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -41,23 +45,25 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	@XmlElement(name="property")
 	private List<NameValuePair> configuration=new ArrayList<NameValuePair>();
 
-	@XmlElement
-	private Double latestDataValue=null;
+	/*
+	 * calculation state is held in primitive fields so that updateCalculation() does not allocate.
+	 * Values which may be unset use a flag or NO_TIMESTAMP / NO_RANGE. These fields are persisted 
+	 * through their boxed getters and setters which return null when the value is unset.
+	 */
+	private double latestDataValue;
+	private boolean latestDataValueSet=false;
 
-	@XmlElement
-	private Long latestTimestamp=null;
+	private long latestTimestamp=NO_TIMESTAMP;
 
 	@XmlElement
 	private String mouseOverText="Value Statistics:<BR>   No Data Received"; //default value
 
-	@XmlElement
-	private Integer latestDataValueRange=null;
+	private int latestDataValueRange=NO_RANGE;
 
-	@XmlElement
-	private Double secondaryValue=null;
+	private double secondaryValue;
+	private boolean secondaryValueSet=false;
 
-	@XmlElement
-	private Integer secondaryValueRange=null;
+	private int secondaryValueRange=NO_RANGE;
 
 	@XmlElement
 	private String leftTrendArrow=null;
@@ -68,14 +74,13 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	/**
 	 * previous data value
 	 */
-	@XmlElement
-	private Double prevDataValue; 
+	private double prevDataValue; 
+	private boolean prevDataValueSet=false;
 
 	/**
 	 * time when the previous data value was collected
 	 */
-	@XmlElement
-	private Long previousTimestamp;
+	private long previousTimestamp=NO_TIMESTAMP;
 
 	/**
 	 *  the sample timeout value set for this calculator in milliseconds
@@ -180,33 +185,37 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	}
 
 	@Override
+	@XmlElement
 	public Integer getLatestDataValueRange() {
-		return latestDataValueRange;
+		return boxRange(latestDataValueRange);
 	}
 
 	@Override
 	public void setLatestDataValueRange(Integer latestDataValueRange) {
-		this.latestDataValueRange = latestDataValueRange;
+		this.latestDataValueRange = unboxRange(latestDataValueRange);
 	}
 
 	@Override
+	@XmlElement
 	public Double getSecondaryValue() {
-		return secondaryValue;
+		return secondaryValueSet ? Double.valueOf(secondaryValue) : null;
 	}
 
 	@Override
 	public void setSecondaryValue(Double secondaryValue) {
-		this.secondaryValue = secondaryValue;
+		this.secondaryValueSet = (secondaryValue!=null);
+		if (secondaryValue!=null) this.secondaryValue = secondaryValue;
 	}
 
 	@Override
+	@XmlElement
 	public Integer getSecondaryValueRange() {
-		return secondaryValueRange;
+		return boxRange(secondaryValueRange);
 	}
 
 	@Override
 	public void setSecondaryValueRange(Integer secondaryValueRange) {
-		this.secondaryValueRange = secondaryValueRange;
+		this.secondaryValueRange = unboxRange(secondaryValueRange);
 	}
 
 	@Override
@@ -231,26 +240,34 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 
 	@Override
 	public void setLatestDataValue(Double latestDataValue) {
-		this.latestDataValue = latestDataValue;
+		this.latestDataValueSet = (latestDataValue!=null);
+		if (latestDataValue!=null) this.latestDataValue = latestDataValue;
 	}
 
 	@Override
+	@XmlElement
 	public Double getLatestDataValue() {
-		return latestDataValue;
+		return latestDataValueSet ? Double.valueOf(latestDataValue) : null;
 	}
 
 	@Override
+	@XmlElement
 	public Long getLatestTimestamp() {
-		return latestTimestamp;
+		return boxTimestamp(latestTimestamp);
 	}
 
 	@Override
 	public void setLatestTimestamp(Long latestTimestamp) {
-		this.latestTimestamp = latestTimestamp;
+		this.latestTimestamp = unboxTimestamp(latestTimestamp);
 	}
 
+	/**
+	 * mouseOverText is rendered from the current values the first time it is requested after 
+	 * an update and cached until the next update
+	 */
 	@Override
-	public String getMouseOverText() {
+	public synchronized String getMouseOverText() {
+		if (mouseOverText==null && latestTimestamp!=NO_TIMESTAMP) mouseOverText=renderMouseOverText();
 		return mouseOverText;
 	}
 
@@ -260,36 +277,42 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	}
 
 	@Override
+	@XmlElement
 	public Double getPrevDataValue() {
-		return prevDataValue;
+		return prevDataValueSet ? Double.valueOf(prevDataValue) : null;
 	}
 
 	@Override
 	public void setPrevDataValue(Double prevDataValue) {
-		this.prevDataValue = prevDataValue;
+		this.prevDataValueSet = (prevDataValue!=null);
+		if (prevDataValue!=null) this.prevDataValue = prevDataValue;
 	}
 
 	@Override
+	@XmlElement
 	public Long getPreviousTimestamp() {
-		return previousTimestamp;
+		return boxTimestamp(previousTimestamp);
 	}
 
 	@Override
 	public void setPreviousTimestamp(Long previousTimestamp) {
-		this.previousTimestamp = previousTimestamp;
+		this.previousTimestamp = unboxTimestamp(previousTimestamp);
 	}
 
 	@Override
-	public DataPointDefinition updateDpd(DataPointDefinition dpd) {
+	public DataPointDefinition updateDpd(DataPointDefinition dpd, boolean includeMouseOverText) {
 		// only change values if local values not null
 		// the local values only change if updateCalculation has been called
-		if (latestDataValue!=null) dpd.setLatestDataValue(latestDataValue);
-		if (latestTimestamp!=null) dpd.setLatestTimestamp(latestTimestamp);
-		if (mouseOverText!=null) dpd.setMouseOverText(mouseOverText);
+		if (latestDataValueSet) dpd.setLatestDataValue(latestDataValue);
+		if (latestTimestamp!=NO_TIMESTAMP) dpd.setLatestTimestamp(latestTimestamp);
+		if (includeMouseOverText) {
+			String mouseOverText=getMouseOverText();
+			if (mouseOverText!=null) dpd.setMouseOverText(mouseOverText);
+		}
 
-		if (latestDataValueRange!=null) dpd.setLatestDataValueRange(latestDataValueRange);
-		if (secondaryValue!=null) dpd.setSecondaryValue(secondaryValue);
-		if (secondaryValueRange!=null) dpd.setSecondaryValueRange(secondaryValueRange);
+		if (latestDataValueRange!=NO_RANGE) dpd.setLatestDataValueRange(latestDataValueRange);
+		if (secondaryValueSet) dpd.setSecondaryValue(secondaryValue);
+		if (secondaryValueRange!=NO_RANGE) dpd.setSecondaryValueRange(secondaryValueRange);
 		if (leftTrendArrow!=null) dpd.setLeftTrendArrow(leftTrendArrow);
 		if (rightTrendArrow!=null) dpd.setRightTrendArrow(rightTrendArrow);
 		
@@ -307,32 +330,21 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	}
 
 	@Override
-	public void updateCalculation(Double latestDataValue, Long latestTimestamp) {
-		if ((latestDataValue==null)||(latestTimestamp==null)){
-			throw new IllegalStateException("updateCalculation() cannot have null values: latestTimestamp:"
-					+latestTimestamp+" latestDataValue: "+latestDataValue);
-		}
+	public void updateCalculation(double latestDataValue, long latestTimestamp) {
 
 		// this sets the last real time this calculator has been updated
-		this.realUpdateTime=new Date().getTime();
+		this.realUpdateTime=System.currentTimeMillis();
 
 		this.latestDataValue= latestDataValue;
+		this.latestDataValueSet=true;
 		this.latestTimestamp=latestTimestamp;
-		if (previousTimestamp==null) previousTimestamp=latestTimestamp;
-
-		// calculate basic mouseover text. You Can replace this with a better example
-		Date date = new Date(latestTimestamp);
-		Date prevDate=new Date(previousTimestamp);
-		SimpleDateFormat df = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS");
-		mouseOverText="Value Statistics:"
-				+ "<BR>\n  Latest Data Value: "+latestDataValue
-				+ "<BR>\n  Latest Timestamp:"+latestTimestamp+" ("+df.format(date)+")"
-				+ "<BR>\n  Previous DataValue: "+prevDataValue
-				+ "<BR>\n  Previous Timestamp "+previousTimestamp+" ("+df.format(prevDate)+")"
-				;
+		if (previousTimestamp==NO_TIMESTAMP) previousTimestamp=latestTimestamp;
 
 		//calculate left arrow - absolute change in value
-		if (prevDataValue==null) prevDataValue=latestDataValue;
+		if (!prevDataValueSet) {
+			prevDataValue=latestDataValue;
+			prevDataValueSet=true;
+		}
 		if (latestDataValue>prevDataValue) {
 			this.leftTrendArrow=DataPointDefinition.TREND_UP;
 		} else if (latestDataValue<prevDataValue){
@@ -355,26 +367,23 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	 * ( e.g. it becomes smoother, but less reactive to new samples ).
 	 * Defaults to 0.2 but may need trimmed for sampling period
 	 */
-	@XmlElement
-	private Double alpha = 0.2d;  
+	private double alpha = 0.2d;  
 
 	/**
 	 * current moving average  value
 	 */
-
-	@XmlElement
-	private Double movingAverage; 
+	private double movingAverage; 
+	private boolean movingAverageSet=false;
 
 	/**
 	 * current moving variance value
 	 */
-
-	@XmlElement
-	private Double movingVariance =0d;
+	private double movingVariance =0d;
 
 
 
 
+	@XmlElement
 	public Double getAlpha() {
 		return alpha;
 	}
@@ -383,14 +392,17 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 		this.alpha = alpha;
 	}
 
+	@XmlElement
 	public Double getMovingAverage() {
-		return movingAverage;
+		return movingAverageSet ? Double.valueOf(movingAverage) : null;
 	}
 
 	public void setMovingAverage(Double movingAverage) {
-		this.movingAverage = movingAverage;
+		this.movingAverageSet = (movingAverage!=null);
+		if (movingAverage!=null) this.movingAverage = movingAverage;
 	}
 
+	@XmlElement
 	public Double getMovingVariance() {
 		return movingVariance;
 	}
@@ -400,7 +412,39 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	}
 
 
-	private void localUpdateCalculation(Double latestValue, Long latestTimestamp) {
+	@Override
+	public PmatrixDpdCalculator snapshot() {
+		PmatrixDpdCalculatorEmaImpl copy = new PmatrixDpdCalculatorEmaImpl();
+		copyCommonState(copy);
+		copy.alpha=alpha;
+		copy.movingAverage=movingAverage;
+		copy.movingAverageSet=movingAverageSet;
+		copy.movingVariance=movingVariance;
+		return copy;
+	}
+
+	@Override
+	public boolean isBinaryStateSupported() {
+		return true;
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		writeCommonState(out);
+		writeNullableDouble(out, getAlpha());
+		writeNullableDouble(out, getMovingAverage());
+		writeNullableDouble(out, getMovingVariance());
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		readCommonState(in);
+		setAlpha(readNullableDouble(in));
+		setMovingAverage(readNullableDouble(in));
+		setMovingVariance(readNullableDouble(in));
+	}
+
+	private void localUpdateCalculation(double latestValue, long latestTimestamp) {
 		this.latestDataValue=latestValue;
 		this.latestTimestamp=latestTimestamp;
 
@@ -408,25 +452,40 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 
 		//Double ema = exponentialMovingAverageIrregular();
 		exponentialMovingAverage();
-		Double ema =movingAverage;
 
-		Double sqrRootMovingVariance=Math.sqrt(movingVariance);
+		// mouseover text is rendered from the new values the next time it is requested
+		this.mouseOverText=null;
+		if (LOG.isDebugEnabled()) LOG.debug("updateCalculation result:"+getMouseOverText());
 
-		// update mouseOverText to reflect moving average
+	}
+
+	/**
+	 * builds the mouseover text from the moving average values set by the latest update
+	 * @return mouseover text
+	 */
+	private String renderMouseOverText() {
 		DecimalFormat decimalFormat = new DecimalFormat("####.##");
 		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS");
 
+		double ema = movingAverageSet ? movingAverage : latestDataValue;
+		double sqrRootMovingVariance=Math.sqrt(movingVariance);
+
 		Date date = new Date(latestTimestamp);
 		String txt="Value Statistics:<BR>\n"
-				+ "Latest Value:"+decimalFormat.format(latestValue)+"<BR>\n"
+				+ "Latest Value:"+decimalFormat.format(latestDataValue)+"<BR>\n"
 				+ "Average (EMA):"+decimalFormat.format(ema)+"<BR>\n"
 				+ "Variance:"+decimalFormat.format(movingVariance)+"<BR>\n"
 				+ "sqare root Variance:"+decimalFormat.format(sqrRootMovingVariance)+"<BR>\n"
 				+ "Timestamp:"+decimalFormat.format(latestTimestamp)+" ("+dateFormat.format(date)+")\n";
-		this.mouseOverText=txt;
-
-		LOG.debug("updateCalculation result:"+txt);
+		return txt;
+	}
 
+	/**
+	 * JAXB callback. Renders mouseOverText so that it is persisted
+	 * @param marshaller
+	 */
+	void beforeMarshal(Marshaller marshaller) {
+		getMouseOverText();
 	}
 
 
@@ -434,17 +493,19 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	 * calculation of exponential moving average for irregular time series. 
 	 * See  http://oroboro.com/irregular-ema/
 	 */
-	private Double exponentialMovingAverageIrregular(){
+	private double exponentialMovingAverageIrregular(){
 
-		Double emaNext=null;
+		double emaNext;
 
 
 		// if we do not have previous sample and calculation values
 		// then set the previous values to the current values for the next calculation
-		if(prevDataValue==null || previousTimestamp==null || movingAverage==null ){
+		if(!prevDataValueSet || previousTimestamp==NO_TIMESTAMP || !movingAverageSet ){
 			movingAverage=latestDataValue;
+			movingAverageSet=true;
 			emaNext=latestDataValue;
 			prevDataValue=latestDataValue;
+			prevDataValueSet=true;
 		} else {
 			// calculate the exponential moving average
 			double deltaTime = latestTimestamp - previousTimestamp;
@@ -478,15 +539,16 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	 * See  http://stackoverflow.com/questions/9200874/implementing-exponential-moving-average-in-java
 	 */
 	private void exponentialMovingAverage() {
-		Double movingAverageNext=null;
-
-		if (movingAverage == null) {
+		if (!movingAverageSet) {
 			prevDataValue = latestDataValue;
+			prevDataValueSet = true;
 			movingAverage=latestDataValue;
+			movingAverageSet=true;
 		} else {
-			movingAverageNext = movingAverage + alpha * (latestDataValue - movingAverage);
+			double movingAverageNext = movingAverage + alpha * (latestDataValue - movingAverage);
 
 			this.secondaryValue=movingAverageNext;
+			this.secondaryValueSet=true;
 			//calculate right arrow
 			if (movingAverageNext>movingAverage) {
 				this.rightTrendArrow=DataPointDefinition.TREND_UP;
@@ -514,7 +576,7 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 			double diff = latestDataValue - movingAverage;
 			double incr = alpha * diff;
 			double mean = movingAverage + incr;
-			Double movingVarianceNext = (1 - alpha) * (movingVariance + diff * incr);
+			double movingVarianceNext = (1 - alpha) * (movingVariance + diff * incr);
 			movingVariance = movingVarianceNext;
 
 			prevDataValue = latestDataValue;
@@ -529,7 +591,7 @@ public class PmatrixDpdCalculatorEmaImpl extends PmatrixDpdCalculator {
 	@Override
 	public String dataToCSV(){
 		StringBuffer sb= new StringBuffer();
-		sb.append(latestDataValue.toString());
+		sb.append(getLatestDataValue());
 
 		return sb.toString();
 	}
@@ -1,5 +1,9 @@
 package org.opennms.features.vaadin.pmatrix.calculator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -8,6 +12,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.bind.Marshaller;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -44,23 +49,32 @@ public class PmatrixDpdCalculatorImpl extends PmatrixDpdCalculator {
 	@XmlElement(name="property")
 	private List<NameValuePair> configuration=new ArrayList<NameValuePair>();
 
-	@XmlElement
-	private Double latestDataValue=null;
+	/*
+	 * calculation state is held in primitive fields so that updateCalculation() does not allocate.
+	 * Values which may be unset use a flag or NO_TIMESTAMP / NO_RANGE. These fields are persisted 
+	 * through their boxed getters and setters which return null when the value is unset.
+	 */
+	private double latestDataValue;
+	private boolean latestDataValueSet=false;
 
-	@XmlElement
-	private Long latestTimestamp=null;
+	private long latestTimestamp=NO_TIMESTAMP;
 
 	@XmlElement
 	private String mouseOverText="Value Statistics:<BR>   No Data Received"; //default value
 
-	@XmlElement
-	private Integer latestDataValueRange=null;
+	/**
+	 * previous value and timestamp before the latest update. Used to render mouseOverText
+	 */
+	private double mouseOverPrevDataValue;
+	private boolean mouseOverPrevDataValueSet=false;
+	private long mouseOverPrevTimestamp=NO_TIMESTAMP;
 
-	@XmlElement
-	private Double secondaryValue=null;
+	private int latestDataValueRange=NO_RANGE;
 
-	@XmlElement
-	private Integer secondaryValueRange=null;
+	private double secondaryValue;
+	private boolean secondaryValueSet=false;
+
+	private int secondaryValueRange=NO_RANGE;
 
 	@XmlElement
 	private String leftTrendArrow=null;
@@ -71,14 +85,13 @@ public class PmatrixDpdCalculatorImpl extends PmatrixDpdCalculator {
 	/**
 	 * previous data value
 	 */
-	@XmlElement
-	private Double prevDataValue; 
+	private double prevDataValue; 
+	private boolean prevDataValueSet=false;
 
 	/**
 	 * time when the previous data value was collected
 	 */
-	@XmlElement
-	private Long previousTimestamp;
+	private long previousTimestamp=NO_TIMESTAMP;
 	
 	/**
 	 *  the sample timeout value set for this calculator in milliseconds
@@ -172,33 +185,37 @@ public class PmatrixDpdCalculatorImpl extends PmatrixDpdCalculator {
 	}
 
 	@Override
+	@XmlElement
 	public Integer getLatestDataValueRange() {
-		return latestDataValueRange;
+		return boxRange(latestDataValueRange);
 	}
 
 	@Override
 	public void setLatestDataValueRange(Integer latestDataValueRange) {
-		this.latestDataValueRange = latestDataValueRange;
+		this.latestDataValueRange = unboxRange(latestDataValueRange);
 	}
 
 	@Override
+	@XmlElement
 	public Double getSecondaryValue() {
-		return secondaryValue;
+		return secondaryValueSet ? Double.valueOf(secondaryValue) : null;
 	}
 
 	@Override
 	public void setSecondaryValue(Double secondaryValue) {
-		this.secondaryValue = secondaryValue;
+		this.secondaryValueSet = (secondaryValue!=null);
+		if (secondaryValue!=null) this.secondaryValue = secondaryValue;
 	}
 
 	@Override
+	@XmlElement
 	public Integer getSecondaryValueRange() {
-		return secondaryValueRange;
+		return boxRange(secondaryValueRange);
 	}
 
 	@Override
 	public void setSecondaryValueRange(Integer secondaryValueRange) {
-		this.secondaryValueRange = secondaryValueRange;
+		this.secondaryValueRange = unboxRange(secondaryValueRange);
 	}
 
 	@Override
@@ -223,26 +240,34 @@ public class PmatrixDpdCalculatorImpl extends PmatrixDpdCalculator {
 
 	@Override
 	public void setLatestDataValue(Double latestDataValue) {
-		this.latestDataValue = latestDataValue;
+		this.latestDataValueSet = (latestDataValue!=null);
+		if (latestDataValue!=null) this.latestDataValue = latestDataValue;
 	}
 
 	@Override
+	@XmlElement
 	public Double getLatestDataValue() {
-		return latestDataValue;
+		return latestDataValueSet ? Double.valueOf(latestDataValue) : null;
 	}
 
 	@Override
+	@XmlElement
 	public Long getLatestTimestamp() {
-		return latestTimestamp;
+		return boxTimestamp(latestTimestamp);
 	}
 
 	@Override
 	public void setLatestTimestamp(Long latestTimestamp) {
-		this.latestTimestamp = latestTimestamp;
+		this.latestTimestamp = unboxTimestamp(latestTimestamp);
 	}
 
+	/**
+	 * mouseOverText is rendered from the current values the first time it is requested after 
+	 * an update and cached until the next update
+	 */
 	@Override
-	public String getMouseOverText() {
+	public synchronized String getMouseOverText() {
+		if (mouseOverText==null && latestTimestamp!=NO_TIMESTAMP) mouseOverText=renderMouseOverText();
 		return mouseOverText;
 	}
 
@@ -252,36 +277,68 @@ public class PmatrixDpdCalculatorImpl extends PmatrixDpdCalculator {
 	}
 
 	@Override
+	@XmlElement
 	public Double getPrevDataValue() {
-		return prevDataValue;
+		return prevDataValueSet ? Double.valueOf(prevDataValue) : null;
 	}
 
 	@Override
 	public void setPrevDataValue(Double prevDataValue) {
-		this.prevDataValue = prevDataValue;
+		this.prevDataValueSet = (prevDataValue!=null);
+		if (prevDataValue!=null) this.prevDataValue = prevDataValue;
 	}
 
 	@Override
+	@XmlElement
 	public Long getPreviousTimestamp() {
-		return previousTimestamp;
+		return boxTimestamp(previousTimestamp);
 	}
 
 	@Override
 	public void setPreviousTimestamp(Long previousTimestamp) {
-		this.previousTimestamp = previousTimestamp;
+		this.previousTimestamp = unboxTimestamp(previousTimestamp);
+	}
+
+	/**
+	 * @return previous value shown in the mouse over text. Persisted so that the text rendered 
+	 * after a restore is the same as before it
+	 */
+	@XmlElement
+	public Double getMouseOverPrevDataValue() {
+		return mouseOverPrevDataValueSet ? Double.valueOf(mouseOverPrevDataValue) : null;
+	}
+
+	public void setMouseOverPrevDataValue(Double mouseOverPrevDataValue) {
+		this.mouseOverPrevDataValueSet = (mouseOverPrevDataValue!=null);
+		if (mouseOverPrevDataValue!=null) this.mouseOverPrevDataValue = mouseOverPrevDataValue;
+	}
+
+	/**
+	 * @return previous timestamp shown in the mouse over text
+	 */
+	@XmlElement
+	public Long getMouseOverPrevTimestamp() {
+		return boxTimestamp(mouseOverPrevTimestamp);
+	}
+
+	public void setMouseOverPrevTimestamp(Long mouseOverPrevTimestamp) {
+		this.mouseOverPrevTimestamp = unboxTimestamp(mouseOverPrevTimestamp);
 	}
 
 	@Override
-	public DataPointDefinition updateDpd(DataPointDefinition dpd) {
+	public DataPointDefinition updateDpd(DataPointDefinition dpd, boolean includeMouseOverText) {
 		// only change values if local values not null
 		// the local values only change if updateCalculation has been called
-		if (latestDataValue!=null) dpd.setLatestDataValue(latestDataValue);
-		if (latestTimestamp!=null) dpd.setLatestTimestamp(latestTimestamp);
-		if (mouseOverText!=null) dpd.setMouseOverText(mouseOverText);
+		if (latestDataValueSet) dpd.setLatestDataValue(latestDataValue);
+		if (latestTimestamp!=NO_TIMESTAMP) dpd.setLatestTimestamp(latestTimestamp);
+		if (includeMouseOverText) {
+			String mouseOverText=getMouseOverText();
+			if (mouseOverText!=null) dpd.setMouseOverText(mouseOverText);
+		}
 
-		if (latestDataValueRange!=null) dpd.setLatestDataValueRange(latestDataValueRange);
-		if (secondaryValue!=null) dpd.setSecondaryValue(secondaryValue);
-		if (secondaryValueRange!=null) dpd.setSecondaryValueRange(secondaryValueRange);
+		if (latestDataValueRange!=NO_RANGE) dpd.setLatestDataValueRange(latestDataValueRange);
+		if (secondaryValueSet) dpd.setSecondaryValue(secondaryValue);
+		if (secondaryValueRange!=NO_RANGE) dpd.setSecondaryValueRange(secondaryValueRange);
 		if (leftTrendArrow!=null) dpd.setLeftTrendArrow(leftTrendArrow);
 		if (rightTrendArrow!=null) dpd.setRightTrendArrow(rightTrendArrow);
 		
@@ -299,32 +356,24 @@ public class PmatrixDpdCalculatorImpl extends PmatrixDpdCalculator {
 	}
 
 	@Override
-	public void updateCalculation(Double latestDataValue, Long latestTimestamp) {
-		if ((latestDataValue==null)||(latestTimestamp==null)){
-			throw new IllegalStateException("updateCalculation() cannot have null values: latestTimestamp:"
-					+latestTimestamp+" latestDataValue: "+latestDataValue);
-		}
+	public void updateCalculation(double latestDataValue, long latestTimestamp) {
 		
 		// this sets the last real time this calculator has been updated
-		this.realUpdateTime=new Date().getTime();
+		this.realUpdateTime=System.currentTimeMillis();
 		
 		this.latestDataValue= latestDataValue;
+		this.latestDataValueSet=true;
 		this.latestTimestamp=latestTimestamp;
-		if (previousTimestamp==null) previousTimestamp=latestTimestamp;
+		if (previousTimestamp==NO_TIMESTAMP) previousTimestamp=latestTimestamp;
 
-		// calculate basic mouseover text. You Can replace this with a better example
-		Date date = new Date(latestTimestamp);
-		Date prevDate=new Date(previousTimestamp);
-		SimpleDateFormat df = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS");
-		mouseOverText="Value Statistics:"
-				+ "<BR>\n  Latest Data Value: "+latestDataValue
-				+ "<BR>\n  Latest Timestamp:"+latestTimestamp+" ("+df.format(date)+")"
-				+ "<BR>\n  Previous DataValue: "+prevDataValue
-				+ "<BR>\n  Previous Timestamp "+previousTimestamp+" ("+df.format(prevDate)+")"
-				;
+		// keep the previous values for the mouseover text which is rendered on demand
+		mouseOverPrevDataValue=prevDataValue;
+		mouseOverPrevDataValueSet=prevDataValueSet;
+		mouseOverPrevTimestamp=previousTimestamp;
+		mouseOverText=null;
 
 		//calculate left arrow - absolute change in value
-		if (prevDataValue==null) prevDataValue=latestDataValue;
+		if (!prevDataValueSet) prevDataValue=latestDataValue;
 		if (latestDataValue>prevDataValue) {
 			this.leftTrendArrow=DataPointDefinition.TREND_UP;
 		} else if (latestDataValue<prevDataValue){
@@ -336,16 +385,76 @@ public class PmatrixDpdCalculatorImpl extends PmatrixDpdCalculator {
 		//TODO ADD FULL CALCULATION METHODS HERE IN EXTENDED CLASS
 		
 		// finish by updating previous timestamp values
-		LOG.debug("updateCalculation result:"+mouseOverText);
+		if (LOG.isDebugEnabled()) LOG.debug("updateCalculation result:"+getMouseOverText());
 		previousTimestamp=latestTimestamp;
 		prevDataValue=latestDataValue;
+		prevDataValueSet=true;
+
+	}
 
+	/**
+	 * builds the mouseover text from the values set by the latest update
+	 * @return mouseover text
+	 */
+	private String renderMouseOverText() {
+		long prevTimestamp= (mouseOverPrevTimestamp==NO_TIMESTAMP) ? latestTimestamp : mouseOverPrevTimestamp;
+		String prevDataValueStr= mouseOverPrevDataValueSet ? Double.toString(mouseOverPrevDataValue) : "null";
+		SimpleDateFormat df = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS");
+		return "Value Statistics:"
+				+ "<BR>\n  Latest Data Value: "+latestDataValue
+				+ "<BR>\n  Latest Timestamp:"+latestTimestamp+" ("+df.format(new Date(latestTimestamp))+")"
+				+ "<BR>\n  Previous DataValue: "+prevDataValueStr
+				+ "<BR>\n  Previous Timestamp "+prevTimestamp+" ("+df.format(new Date(prevTimestamp))+")"
+				;
+	}
+
+	/**
+	 * JAXB callback. Renders mouseOverText so that it is persisted
+	 * @param marshaller
+	 */
+	void beforeMarshal(Marshaller marshaller) {
+		getMouseOverText();
+	}
+
+	@Override
+	public PmatrixDpdCalculator snapshot() {
+		PmatrixDpdCalculatorImpl copy = new PmatrixDpdCalculatorImpl();
+		copyCommonState(copy);
+		copy.setMouseOverPrevDataValue(getMouseOverPrevDataValue());
+		copy.setMouseOverPrevTimestamp(getMouseOverPrevTimestamp());
+		return copy;
+	}
+
+	@Override
+	public boolean isBinaryStateSupported() {
+		return true;
+	}
+
+	/**
+	 * writes the common state followed by the previous values of the mouse over text
+	 */
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		writeCommonState(out);
+		writeNullableDouble(out, getMouseOverPrevDataValue());
+		writeNullableLong(out, getMouseOverPrevTimestamp());
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		readCommonState(in);
+		try {
+			setMouseOverPrevDataValue(readNullableDouble(in));
+			setMouseOverPrevTimestamp(readNullableLong(in));
+		} catch (EOFException e) {
+			// state written before the previous values of the mouse over text were kept
+		}
 	}
 
 	@Override
 	public String dataToCSV(){
 		StringBuffer sb= new StringBuffer();
-		sb.append(latestDataValue.toString());
+		sb.append(getLatestDataValue());
 
 		return sb.toString();
 	}
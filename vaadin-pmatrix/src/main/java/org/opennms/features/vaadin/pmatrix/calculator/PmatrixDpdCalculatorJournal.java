@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only journal of calculator deltas written between full archive snapshots.
+ * 
+ * The journal is a sequence of segment files named &lt;archiveFileName&gt;.journal.&lt;sequence number&gt; 
+ * in the archive directory. Each segment starts with JOURNAL_MAGIC and JOURNAL_VERSION followed by blocks of
+ * <pre>
+ *  int     block length
+ *  long    CRC32 of block
+ *  byte[]  calculators changed since the previous block in PmatrixDpdCalculatorBinaryFormat
+ * </pre>
+ * A new segment is started when the current segment exceeds segmentMaxSize or when rotate() is called 
+ * before a full archive is written, so that the segments covered by the archive can be deleted once it is in place. 
+ * On replay the blocks are applied in order so later states replace earlier ones. Blocks dated at or before 
+ * the date of the loaded archive are skipped because the archive already contains newer state.
+ * A block which was only partly written when the application stopped fails its length or CRC check 
+ * and is ignored together with the rest of its segment.
+ */
+class PmatrixDpdCalculatorJournal {
+	private static final Logger LOG = LoggerFactory.getLogger(PmatrixDpdCalculatorJournal.class);
+
+	/**
+	 * first four bytes of a journal segment file ("PMXJ")
+	 */
+	static final int JOURNAL_MAGIC=0x504D584A;
+
+	static final int JOURNAL_VERSION=1;
+
+	/**
+	 * inserted between the archive file name and the segment sequence number
+	 */
+	static final String JOURNAL_SUFFIX=".journal.";
+
+	private final File directory;
+	private final String archiveFileName;
+	private final long segmentMaxSize;
+
+	private File currentSegment=null;
+	private long currentSegmentSize=0;
+	private long nextSequence=1;
+
+	/**
+	 * bytes in the journal segments not yet covered by a full archive
+	 */
+	private long journalSize=0;
+
+	PmatrixDpdCalculatorJournal(File directory, String archiveFileName, long segmentMaxSize){
+		this.directory=directory;
+		this.archiveFileName=archiveFileName;
+		this.segmentMaxSize=segmentMaxSize;
+		File[] segments = listSegments();
+		for (File segment : segments) journalSize=journalSize+segment.length();
+		if (segments.length>0) nextSequence=sequenceOf(segments[segments.length-1])+1;
+	}
+
+	/**
+	 * appends a block containing the calculators to the journal and forces it to disk
+	 * @param calculators map of path to live calculator. Each is locked only while its state is written
+	 * @param date time at which the block was started
+	 * @param writtenVersions if not null, receives the update version of each calculator written
+	 * @return number of bytes appended
+	 * @throws IOException
+	 */
+	synchronized long append(Map<String, PmatrixDpdCalculator> calculators, Date date, Map<String, Long> writtenVersions) throws IOException {
+		ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(64*1024);
+		DataOutputStream blockOut = new DataOutputStream(blockBytes);
+		PmatrixDpdCalculatorBinaryFormat.write(calculators, date, blockOut, writtenVersions);
+		blockOut.flush();
+
+		CRC32 crc = new CRC32();
+		byte[] block = blockBytes.toByteArray();
+		crc.update(block);
+
+		if (currentSegment==null || currentSegmentSize>=segmentMaxSize){
+			startSegment();
+		}
+
+		FileOutputStream fos = new FileOutputStream(currentSegment, true);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(block.length);
+			out.writeLong(crc.getValue());
+			out.write(block);
+			out.flush();
+			fos.getChannel().force(false);
+		} finally {
+			fos.close();
+		}
+		long written = 4+8+block.length;
+		currentSegmentSize=currentSegmentSize+written;
+		journalSize=journalSize+written;
+		return written;
+	}
+
+	private void startSegment() throws IOException {
+		directory.mkdirs();
+		currentSegment = new File(directory, archiveFileName+JOURNAL_SUFFIX+String.format("%010d", nextSequence));
+		nextSequence++;
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(currentSegment));
+		try {
+			out.writeInt(JOURNAL_MAGIC);
+			out.writeInt(JOURNAL_VERSION);
+		} finally {
+			out.close();
+		}
+		currentSegmentSize=currentSegment.length();
+		journalSize=journalSize+currentSegmentSize;
+		LOG.debug("started new journal segment "+currentSegment.getAbsolutePath());
+	}
+
+	/**
+	 * applies the journal blocks written after the archive in order to the dataPointMap
+	 * @param dataPointMap
+	 * @param archiveDate date the loaded archive was persisted. Blocks dated at or before this are skipped. 
+	 * If null every block is applied
+	 * @return number of blocks replayed
+	 */
+	synchronized int replay(Map<String, PmatrixDpdCalculator> dataPointMap, Date archiveDate){
+		int blocks=0;
+		int skippedBlocks=0;
+		Map<String, PmatrixDpdCalculator> blockCalculators = new HashMap<String, PmatrixDpdCalculator>();
+		for (File segment : listSegments()){
+			DataInputStream in=null;
+			try {
+				in = new DataInputStream(new FileInputStream(segment));
+				if (in.readInt()!=JOURNAL_MAGIC || in.readInt()!=JOURNAL_VERSION){
+					LOG.warn("ignoring journal segment with unknown header: "+segment.getAbsolutePath());
+					continue;
+				}
+				while (true) {
+					int length;
+					try {
+						length = in.readInt();
+					} catch (EOFException e) {
+						break; // end of segment
+					}
+					long expectedCrc = in.readLong();
+					if (length<0 || length>segment.length()) throw new IOException("invalid block length "+length);
+					byte[] block = new byte[length];
+					in.readFully(block);
+					CRC32 crc = new CRC32();
+					crc.update(block);
+					if (crc.getValue()!=expectedCrc) throw new IOException("block checksum does not match");
+					blockCalculators.clear();
+					Date blockDate = PmatrixDpdCalculatorBinaryFormat.read(new DataInputStream(new ByteArrayInputStream(block)), blockCalculators);
+					if (archiveDate!=null && (blockDate==null || !blockDate.after(archiveDate))){
+						// left behind when the archive was written but the segment was not deleted
+						skippedBlocks++;
+						continue;
+					}
+					dataPointMap.putAll(blockCalculators);
+					blocks++;
+				}
+			} catch (IOException e) {
+				LOG.warn("journal segment "+segment.getAbsolutePath()+" ends with an incomplete or damaged block which has been ignored: "+e.getMessage());
+			} finally {
+				if (in!=null) try {
+					in.close();
+				} catch (IOException e) {
+					LOG.error("problem closing journal segment "+segment.getAbsolutePath(), e);
+				}
+			}
+		}
+		if (skippedBlocks>0) LOG.info("skipped "+skippedBlocks+" journal blocks which are older than the historical data archive");
+		return blocks;
+	}
+
+	/**
+	 * Ends the current segment so that the next block is appended to a new segment. 
+	 * Called before a full archive is written.
+	 * @return sequence number of the last segment which may contain blocks written before this call
+	 */
+	synchronized long rotate(){
+		currentSegment=null;
+		currentSegmentSize=0;
+		return nextSequence-1;
+	}
+
+	/**
+	 * deletes the journal segments up to and including sequence. Called once a full archive containing 
+	 * all the changes in those segments has been written. A segment which cannot be deleted is 
+	 * skipped on replay because its blocks are older than the archive
+	 * @param sequence returned by rotate() before the archive was written
+	 */
+	synchronized void deleteSegments(long sequence){
+		long remainingSize=0;
+		for (File segment : listSegments()){
+			if (sequenceOf(segment)<=sequence){
+				if (!segment.delete()) LOG.warn("cannot delete journal segment "+segment.getAbsolutePath());
+			} else remainingSize=remainingSize+segment.length();
+		}
+		journalSize=remainingSize;
+	}
+
+	/**
+	 * @return bytes in the journal segments not yet covered by a full archive
+	 */
+	synchronized long getJournalSize() {
+		return journalSize;
+	}
+
+	synchronized int getSegmentCount() {
+		return listSegments().length;
+	}
+
+	/**
+	 * @return journal segment files in sequence order
+	 */
+	private File[] listSegments(){
+		final String prefix = archiveFileName+JOURNAL_SUFFIX;
+		File[] segments = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				if (!name.startsWith(prefix)) return false;
+				try {
+					Long.parseLong(name.substring(prefix.length()));
+					return true;
+				} catch (NumberFormatException e){
+					return false;
+				}
+			}
+		});
+		if (segments==null) return new File[0];
+		Arrays.sort(segments); // zero padded sequence numbers sort by name
+		return segments;
+	}
+
+	private long sequenceOf(File segment){
+		return Long.parseLong(segment.getName().substring((archiveFileName+JOURNAL_SUFFIX).length()));
+	}
+}
@@ -35,8 +35,12 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.PostConstruct;
 import javax.xml.bind.JAXBContext;
@@ -54,10 +58,31 @@ import org.slf4j.LoggerFactory;
 import org.springframework.context.ResourceLoaderAware;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 /**
  * PmatrixDpdCalculatorRepository is used to persist a dataPointMap of historic calculations
+ * 
+ * persist() does not lock the whole dataPointMap. Binary archives and journal blocks are written one 
+ * calculator at a time, synchronized on that calculator only while its state is serialized, so that 
+ * calculators continue to be updated while the file is written and no copy of the map is held in memory. 
+ * XML archives are marshalled from a snapshot copy of each calculator taken in the same way.
+ * 
+ * The archive is written as XML (the default) or in the compact binary format of PmatrixDpdCalculatorBinaryFormat 
+ * depending on archiveFileFormat. Either format is recognised when loading, so an existing XML archive 
+ * copied to the new archiveFileName is imported when the format is changed to binary. So that an XML archive 
+ * is never replaced by a binary file of the same name, archives whose archiveFileName ends in .xml are 
+ * always written as XML.
+ * 
+ * If journalEnabled is true, journal() should be called every few seconds. It appends only the calculators
+ * updated since they were last written to a PmatrixDpdCalculatorJournal. When the journal grows beyond 
+ * journalCompactionSize it is compacted by writing a new full archive using persist() on a separate thread. 
+ * persist() rotates the journal before the archive is written and afterwards deletes only the segments the 
+ * archive covers, so journal() continues to append changes while the archive is being written. 
+ * load() replays the journal blocks dated after the full archive over it.
  */
+@ManagedResource
 @XmlRootElement
 @XmlAccessorType(XmlAccessType.NONE)
 @XmlType(name="PmatrixDpdCalculatorRepository", propOrder={"datePersisted","dataPointMap"})
@@ -66,6 +91,16 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 
 	static final String dateFormatString="yyyymmddhhmmss"; 
 
+	/**
+	 * archiveFileFormat value to persist history as JAXB XML
+	 */
+	public static final String ARCHIVE_FORMAT_XML="xml";
+
+	/**
+	 * archiveFileFormat value to persist history in compact binary format
+	 */
+	public static final String ARCHIVE_FORMAT_BINARY="binary";
+
 	/**
 	 *  used by Spring ResourceLoaderAware interface
 	 */
@@ -87,6 +122,11 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 	 */
 	private String archiveFileName=null;
 
+	/**
+	 * format used to write the archive file. ARCHIVE_FORMAT_XML or ARCHIVE_FORMAT_BINARY
+	 */
+	private String archiveFileFormat=ARCHIVE_FORMAT_XML;
+
 	/**
 	 * if false no data history will be used
 	 * if true historic date will be loaded on startup from pmatrix.archive.fileName and saved by running application
@@ -103,6 +143,70 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 
 	private Date datePersisted;
 
+	/**
+	 * if true calculators updated between calls to persist() are appended to a journal by journal()
+	 */
+	private boolean journalEnabled=false;
+
+	/**
+	 * size in bytes at which a new journal segment file is started
+	 */
+	private long journalSegmentMaxSize=16*1024*1024;
+
+	/**
+	 * size in bytes of the journal at which journal() compacts it into a new full archive
+	 */
+	private long journalCompactionSize=64*1024*1024;
+
+	/**
+	 * journal of changes since the last full archive. Created when first used
+	 */
+	private PmatrixDpdCalculatorJournal journal=null;
+
+	/**
+	 * update version of each calculator when it was last written to the archive or journal.
+	 * Only accessed while synchronized on this repository
+	 */
+	private final Map<String, Long> persistedVersions = new HashMap<String, Long>();
+
+	/**
+	 * held by persist() while a full archive is written so that only one archive is written at a time. 
+	 * The repository itself is only locked briefly before and after the write so that journal() is not blocked
+	 */
+	private final Object persistLock = new Object();
+
+	/**
+	 * true while persist() is writing a full archive. Only accessed while synchronized on this repository
+	 */
+	private boolean persisting=false;
+
+	/**
+	 * date of the last archive started by persist(). Journal blocks are always dated after it so that 
+	 * they are not skipped on replay. Only accessed while synchronized on this repository
+	 */
+	private long lastArchiveTime=0;
+
+	/**
+	 * paths journaled while a full archive is being written. The archive may hold a newer state of these 
+	 * calculators than the journal so they keep their journaled version and are journaled again when next changed. 
+	 * Only accessed while synchronized on this repository
+	 */
+	private final Set<String> journaledDuringPersist = new HashSet<String>();
+
+	/**
+	 * true while a journal compaction is running on its own thread
+	 */
+	private final AtomicBoolean compactionRunning = new AtomicBoolean(false);
+
+	// persistence statistics for jmx
+	private volatile long lastSnapshotDuration=0;
+	private volatile long lastPersistDuration=0;
+	private volatile long lastPersistBytesWritten=0;
+	private volatile long lastSnapshotSize=0;
+	private volatile long lastJournalDuration=0;
+	private volatile long lastJournalSize=0;
+	private volatile long journalBytesWritten=0;
+
 	/**
 	 * used by Spring ResourceLoaderAware interface to inject resource loader into bean
 	 */
@@ -126,6 +230,23 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 		this.archiveFileName = archiveFileName;
 	}
 
+	/**
+	 * @return the format used to write the archive file
+	 */
+	public String getArchiveFileFormat() {
+		return archiveFileFormat;
+	}
+
+	/**
+	 * @param archiveFileFormat ARCHIVE_FORMAT_XML or ARCHIVE_FORMAT_BINARY
+	 */
+	public void setArchiveFileFormat(String archiveFileFormat) {
+		if (!ARCHIVE_FORMAT_XML.equals(archiveFileFormat) && !ARCHIVE_FORMAT_BINARY.equals(archiveFileFormat)){
+			throw new IllegalArgumentException("archiveFileFormat must be '"+ARCHIVE_FORMAT_XML+"' or '"+ARCHIVE_FORMAT_BINARY+"' but was '"+archiveFileFormat+"'");
+		}
+		this.archiveFileFormat = archiveFileFormat;
+	}
+
 	/**
 	 * gets the location of the directory where the archive files are stored
 	 * @return the archiveFileDirectoryLocation
@@ -171,6 +292,48 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 		this.persistHistoricData = persistHistoricData;
 	}
 
+	/**
+	 * @return true if changes between full archives are written to a journal
+	 */
+	public boolean isJournalEnabled() {
+		return journalEnabled;
+	}
+
+	/**
+	 * @param journalEnabled if true journal() appends changed calculators to a journal
+	 */
+	public void setJournalEnabled(boolean journalEnabled) {
+		this.journalEnabled = journalEnabled;
+	}
+
+	/**
+	 * @return size in bytes at which a new journal segment file is started
+	 */
+	public long getJournalSegmentMaxSize() {
+		return journalSegmentMaxSize;
+	}
+
+	/**
+	 * @param journalSegmentMaxSize size in bytes at which a new journal segment file is started
+	 */
+	public void setJournalSegmentMaxSize(long journalSegmentMaxSize) {
+		this.journalSegmentMaxSize = journalSegmentMaxSize;
+	}
+
+	/**
+	 * @return size in bytes of the journal at which it is compacted into a new full archive
+	 */
+	public long getJournalCompactionSize() {
+		return journalCompactionSize;
+	}
+
+	/**
+	 * @param journalCompactionSize size in bytes of the journal at which it is compacted into a new full archive
+	 */
+	public void setJournalCompactionSize(long journalCompactionSize) {
+		this.journalCompactionSize = journalCompactionSize;
+	}
+
 	/**
 	 * Returns true if the repository loaded the archive file successfully
 	 * @return the repositoryLoaded
@@ -207,11 +370,185 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 
 
 	/**
-	 * Causes the dataPointMap to be persisted to a file
-	 * @param file file definition to persist the data set to
+	 * Copies each calculator in the dataPointMap for marshalling as XML. Each calculator is locked only 
+	 * while it is being copied so that updates to the rest of the map can continue.
+	 * @param snapshotVersions if not null, the update version of each copied calculator is put in this map
+	 * @return map of calculator snapshots
+	 */
+	Map<String, PmatrixDpdCalculator> createSnapshot(Map<String, Long> snapshotVersions){
+		Map<String, PmatrixDpdCalculator> snapshotMap = new HashMap<String, PmatrixDpdCalculator>(dataPointMap.size()*4/3+1);
+		for (Entry<String, PmatrixDpdCalculator> entry : dataPointMap.entrySet()){
+			PmatrixDpdCalculator calculator = entry.getValue();
+			if (calculator==null) continue;
+			synchronized(calculator){
+				snapshotMap.put(entry.getKey(), calculator.snapshot());
+				if (snapshotVersions!=null) snapshotVersions.put(entry.getKey(), calculator.getUpdateVersion());
+			}
+		}
+		return snapshotMap;
+	}
+
+	/**
+	 * @return the live calculators whose update version differs from the version last persisted. 
+	 * The calculators are not copied.
+	 */
+	private Map<String, PmatrixDpdCalculator> changedCalculators(){
+		Map<String, PmatrixDpdCalculator> changed = new HashMap<String, PmatrixDpdCalculator>();
+		for (Entry<String, PmatrixDpdCalculator> entry : dataPointMap.entrySet()){
+			PmatrixDpdCalculator calculator = entry.getValue();
+			if (calculator==null) continue;
+			if (calculator.getUpdateVersion()!=persistedVersion(entry.getKey())) changed.put(entry.getKey(), calculator);
+		}
+		return changed;
+	}
+
+	/**
+	 * @param path
+	 * @return update version of the calculator when it was last written to the archive or journal
+	 */
+	private long persistedVersion(String path){
+		Long version = persistedVersions.get(path);
+		return (version==null) ? 0 : version.longValue();
+	}
+
+	/**
+	 * Appends the calculators updated since they were last persisted to the journal. 
+	 * Starts a compaction of the journal into a new full archive on a separate thread once the journal 
+	 * is larger than journalCompactionSize.
+	 * Should be called every few seconds when journalEnabled is true. Does nothing otherwise.
+	 * @return true if the journal is up to date
+	 */
+	public synchronized boolean journal(){
+		if (!journalEnabled || !persistHistoricData) return false;
+
+		PmatrixDpdCalculatorJournal currentJournal = getJournal();
+		if (currentJournal==null) return false;
+
+		if (currentJournal.getJournalSize() > journalCompactionSize) startCompaction(currentJournal.getJournalSize());
+
+		long journalStartTime=System.currentTimeMillis();
+		Map<String, Long> snapshotVersions = new HashMap<String, Long>();
+		Map<String, PmatrixDpdCalculator> changedCalculators = changedCalculators();
+		if (changedCalculators.isEmpty()) return true;
+
+		try {
+			long blockTime = Math.max(System.currentTimeMillis(), lastArchiveTime+1);
+			long written = currentJournal.append(changedCalculators, new Date(blockTime), snapshotVersions);
+			journalBytesWritten=journalBytesWritten+written;
+		} catch (Exception e) {
+			LOG.error("problem writing journal of changed calculators: ", e);
+			return false;
+		}
+		persistedVersions.putAll(snapshotVersions);
+		if (persisting) journaledDuringPersist.addAll(snapshotVersions.keySet());
+
+		lastJournalSize=changedCalculators.size();
+		lastJournalDuration=System.currentTimeMillis()-journalStartTime;
+		if(LOG.isDebugEnabled()) LOG.debug("journaled "+lastJournalSize+" changed calculators in "+lastJournalDuration+" ms");
+		return true;
+	}
+
+	/**
+	 * @return journal in the archive directory or null if the directory cannot be resolved
+	 */
+	private PmatrixDpdCalculatorJournal getJournal(){
+		if (journal==null){
+			if (archiveFileName==null || archiveFileDirectoryLocation==null) {
+				LOG.error("cannot use journal as incorrect file location:"
+						+ " archiveFileDirectoryLocation="+archiveFileDirectoryLocation
+						+ " archiveFileName="+archiveFileName );
+				return null;
+			}
+			try {
+				Resource directoryResource =resourceLoader.getResource(archiveFileDirectoryLocation);
+				File directory = new File(directoryResource.getURL().getFile());
+				journal = new PmatrixDpdCalculatorJournal(directory, archiveFileName, journalSegmentMaxSize);
+			} catch (IOException e) {
+				LOG.error("cannot use journal in archiveFileDirectoryLocation='"+archiveFileDirectoryLocation+"' due to error:",e);
+				return null;
+			}
+		}
+		return journal;
+	}
+
+	/**
+	 * compacts the journal by writing a new full archive on its own thread unless a compaction is already running
+	 * @param journalSize
+	 */
+	private void startCompaction(final long journalSize){
+		if (!compactionRunning.compareAndSet(false, true)) return;
+		Thread compactionThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					LOG.info("compacting journal of "+journalSize+" bytes into new historical data archive");
+					if (!persist()) LOG.warn("journal compaction failed. Continuing to append changes to the journal");
+				} catch (Exception e) {
+					LOG.error("problem compacting journal: ", e);
+				} finally {
+					compactionRunning.set(false);
+				}
+			}
+		}, "PmatrixJournalCompaction");
+		compactionThread.setDaemon(true);
+		compactionThread.start();
+	}
+
+	/**
+	 * Causes the dataPointMap to be persisted to a file. 
+	 * The journal is rotated before the file is written and the journal segments it covers are deleted 
+	 * once the file is in place. journal() is not blocked while the file is written.
 	 * @return true if dataPointMap persisted correctly, false if not
 	 */
 	public boolean persist(){
+		synchronized(persistLock){
+			Date persistDate;
+			long coveredSegment=-1;
+			synchronized(this){
+				// journal blocks written after this point are dated after the archive and are kept
+				PmatrixDpdCalculatorJournal currentJournal = (journalEnabled) ? getJournal() : null;
+				if (currentJournal!=null) coveredSegment=currentJournal.rotate();
+				persistDate = new Date();
+				lastArchiveTime=persistDate.getTime();
+				persisting=true;
+				journaledDuringPersist.clear();
+			}
+
+			Map<String, Long> snapshotVersions = new HashMap<String, Long>();
+			boolean persisted=false;
+			try {
+				persisted=persistArchive(snapshotVersions, persistDate);
+			} finally {
+				synchronized(this){
+					persisting=false;
+					if (persisted){
+						// calculators journaled during the write keep their journaled version so that 
+						// their latest state is journaled again rather than relying on the archive copy
+						for (String path : journaledDuringPersist){
+							Long version = persistedVersions.get(path);
+							if (version!=null) snapshotVersions.put(path, version);
+						}
+						persistedVersions.clear();
+						persistedVersions.putAll(snapshotVersions);
+						if (coveredSegment>=0){
+							journal.deleteSegments(coveredSegment);
+							journalBytesWritten=journal.getJournalSize();
+						}
+					}
+					journaledDuringPersist.clear();
+				}
+			}
+			return persisted;
+		}
+	}
+
+	/**
+	 * writes a full archive of the dataPointMap
+	 * @param snapshotVersions receives the update version of each calculator written
+	 * @param persistDate date recorded in the archive
+	 * @return true if dataPointMap persisted correctly, false if not
+	 */
+	private boolean persistArchive(Map<String, Long> snapshotVersions, Date persistDate){
 		File currentArchiveFile=null;
 		File tmpCurrentArchiveFile=null;
 		Resource tmpResource=null;
@@ -228,8 +565,10 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 			return false;
 		}
 
+		long persistStartTime=System.currentTimeMillis();
+
 		// set the date on which this file was persisted
-		datePersisted = new Date();
+		datePersisted = persistDate;
 
 		// used to get file name suffix
 		SimpleDateFormat dateFormatter = new SimpleDateFormat(dateFormatString);
@@ -260,21 +599,45 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 			writer = new PrintWriter(tmpCurrentArchiveFile, "UTF-8");
 			writer.close();
 
-			// see http://stackoverflow.com/questions/1043109/why-cant-jaxb-find-my-jaxb-index-when-running-inside-apache-felix
-			// need to provide bundles class loader
-			ClassLoader cl = org.opennms.features.vaadin.pmatrix.model.DataPointDefinition.class.getClassLoader();
-			JAXBContext jaxbContext = JAXBContext.newInstance("org.opennms.features.vaadin.pmatrix.model:org.opennms.features.vaadin.pmatrix.calculator", cl);
-
-			//JAXBContext jaxbContext = JAXBContext.newInstance("org.opennms.features.vaadin.pmatrix.model:org.opennms.features.vaadin.pmatrix.calculator");
-
-			Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-			jaxbMarshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
-
-			// TODO CHANGE output pretty printed
-			jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+			boolean binaryFormat=ARCHIVE_FORMAT_BINARY.equals(archiveFileFormat);
+			if (binaryFormat && archiveFileName.toLowerCase().endsWith(".xml")){
+				LOG.error("writing archive as xml because archiveFileFormat="+ARCHIVE_FORMAT_BINARY
+						+ " needs an archiveFileName which does not end in .xml. archiveFileName="+archiveFileName);
+				binaryFormat=false;
+			}
+			if (binaryFormat){
+				// each live calculator is locked only while its state is written so no copy is needed
+				lastSnapshotDuration=0;
+				lastSnapshotSize=PmatrixDpdCalculatorBinaryFormat.write(dataPointMap, datePersisted, tmpCurrentArchiveFile, snapshotVersions);
+			} else {
+				// take consistent copy of calculators and marshal the copy while the live calculators continue to be updated
+				long snapshotStartTime=System.currentTimeMillis();
+				PmatrixDpdCalculatorRepository snapshotRepository = new PmatrixDpdCalculatorRepository();
+				snapshotRepository.setDatePersisted(datePersisted);
+				snapshotRepository.setDataPointMap(createSnapshot(snapshotVersions));
+				lastSnapshotDuration=System.currentTimeMillis()-snapshotStartTime;
+				lastSnapshotSize=snapshotRepository.getDataPointMap().size();
+				if(LOG.isDebugEnabled()) LOG.debug("snapshot of "+lastSnapshotSize+" calculators taken in "+lastSnapshotDuration+" ms");
+
+				// see http://stackoverflow.com/questions/1043109/why-cant-jaxb-find-my-jaxb-index-when-running-inside-apache-felix
+				// need to provide bundles class loader
+				ClassLoader cl = org.opennms.features.vaadin.pmatrix.model.DataPointDefinition.class.getClassLoader();
+				JAXBContext jaxbContext = JAXBContext.newInstance("org.opennms.features.vaadin.pmatrix.model:org.opennms.features.vaadin.pmatrix.calculator", cl);
+
+				Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
+				jaxbMarshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+
+				// TODO CHANGE output pretty printed
+				jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+
+				// marshal the snapshot of this Data Repository
+				jaxbMarshaller.marshal(snapshotRepository, tmpCurrentArchiveFile);
+			}
 
-			// marshal this Data Repository
-			jaxbMarshaller.marshal(this, tmpCurrentArchiveFile);
+			lastPersistBytesWritten=tmpCurrentArchiveFile.length();
+			lastPersistDuration=System.currentTimeMillis()-persistStartTime;
+			LOG.info("historical data snapshot of "+lastSnapshotSize+" calculators ("+lastPersistBytesWritten+" bytes) written in "
+					+ lastPersistDuration+" ms (snapshot took "+lastSnapshotDuration+" ms)");
 
 			marshalledCorrectly=true;
 		} catch (JAXBException e) {
@@ -326,6 +689,7 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 						filename = listOfFiles[i].getName();
 						if ((!filename.equals(archiveFileName))
 								&& (!filename.equals(tmpArchiveFileName)) 
+								&& (!filename.startsWith(archiveFileName+PmatrixDpdCalculatorJournal.JOURNAL_SUFFIX)) 
 								&& (filename.startsWith(archiveFileName))){
 							String beforeTimeString=archiveFileName+".";
 							String timeSuffix=filename.substring(beforeTimeString.length());
@@ -406,7 +770,10 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 			Resource resource = resourceLoader.getResource(archiveFileLocation);
 			if(!resource.exists()){
 				LOG.warn("cannot load historical data as file at archiveFileLocation='"+archiveFileLocation+"' does not exist");
-				return false;
+				dataPointMap = new HashMap<String, PmatrixDpdCalculator>();
+				datePersisted = null;
+				if (replayJournal()>0) repositoryLoaded=true;
+				return repositoryLoaded;
 			}
 
 			archiveFile = new File(resource.getURL().getFile());
@@ -419,6 +786,18 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 		}			
 
 		try {
+			// binary archives are recognised by their magic number. Anything else is treated as XML
+			if (PmatrixDpdCalculatorBinaryFormat.isBinaryArchive(archiveFile)){
+				Map<String, PmatrixDpdCalculator> loadedDataPointMap = new HashMap<String, PmatrixDpdCalculator>();
+				long loadStartTime=System.currentTimeMillis();
+				datePersisted = PmatrixDpdCalculatorBinaryFormat.read(archiveFile, loadedDataPointMap);
+				dataPointMap = loadedDataPointMap;
+				LOG.info("successfully loaded "+dataPointMap.size()+" calculators from binary historical pmatrix data file location:" 
+						+ archiveFile.getAbsolutePath()+" in "+(System.currentTimeMillis()-loadStartTime)+" ms");
+				replayJournal();
+				repositoryLoaded=true;
+				return true;
+			}
 
 			//TODO CHANGE TO PACKAGE
 			//			JAXBContext jaxbContext = JAXBContext.newInstance(
@@ -442,8 +821,10 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 			if (unmarshalledObject instanceof PmatrixDpdCalculatorRepository ){
 				PmatrixDpdCalculatorRepository pdcr= (PmatrixDpdCalculatorRepository) unmarshalledObject;
 				dataPointMap = pdcr.getDataPointMap();
+				datePersisted = pdcr.getDatePersisted();
 
 				LOG.info("successfully unmarshalled historical pmatrix data from file location:" + archiveFile.getAbsolutePath());
+				replayJournal();
 				repositoryLoaded=true;
 				return true;
 			} else {
@@ -458,4 +839,85 @@ public class PmatrixDpdCalculatorRepository implements ResourceLoaderAware{
 		return false;
 
 	}
+
+	/**
+	 * applies any journal written since the archive file to the loaded dataPointMap. 
+	 * Blocks dated at or before datePersisted are already contained in the archive and are skipped
+	 * @return number of journal blocks replayed
+	 */
+	private int replayJournal(){
+		if (!journalEnabled) return 0;
+		PmatrixDpdCalculatorJournal currentJournal = getJournal();
+		if (currentJournal==null) return 0;
+		if (datePersisted!=null) lastArchiveTime=datePersisted.getTime();
+		long replayStartTime=System.currentTimeMillis();
+		int blocks = currentJournal.replay(dataPointMap, datePersisted);
+		if (blocks>0) LOG.info("replayed "+blocks+" journal blocks of changes since historical data archive in "
+				+(System.currentTimeMillis()-replayStartTime)+" ms");
+		return blocks;
+	}
+
+	/**
+	 * @return time in ms taken to copy the calculators during the last XML persist. 0 for binary archives which are not copied
+	 */
+	@ManagedAttribute(description="time in ms taken to copy the calculators during the last persist. Always 0 for binary archives which are written without a copy")
+	public long getLastSnapshotDuration() {
+		return lastSnapshotDuration;
+	}
+
+	/**
+	 * @return total time in ms taken by the last persist including writing the file
+	 */
+	@ManagedAttribute(description="total time in ms taken by the last persist including writing the file")
+	public long getLastPersistDuration() {
+		return lastPersistDuration;
+	}
+
+	/**
+	 * @return size in bytes of the last archive file written
+	 */
+	@ManagedAttribute(description="size in bytes of the last archive file written")
+	public long getLastPersistBytesWritten() {
+		return lastPersistBytesWritten;
+	}
+
+	/**
+	 * @return number of calculators written by the last persist
+	 */
+	@ManagedAttribute(description="number of calculators written by the last persist")
+	public long getLastSnapshotSize() {
+		return lastSnapshotSize;
+	}
+
+	/**
+	 * @return time in ms taken to write the last journal block
+	 */
+	@ManagedAttribute(description="time in ms taken to write the last journal block")
+	public long getLastJournalDuration() {
+		return lastJournalDuration;
+	}
+
+	/**
+	 * @return number of changed calculators in the last journal block
+	 */
+	@ManagedAttribute(description="number of changed calculators in the last journal block")
+	public long getLastJournalSize() {
+		return lastJournalSize;
+	}
+
+	/**
+	 * @return bytes written to the journal since the last full archive
+	 */
+	@ManagedAttribute(description="bytes written to the journal since the last full archive")
+	public long getJournalBytesWritten() {
+		return journalBytesWritten;
+	}
+
+	/**
+	 * @return true while the journal is being compacted into a new full archive
+	 */
+	@ManagedAttribute(description="true while the journal is being compacted into a new full archive")
+	public boolean isCompactionRunning() {
+		return compactionRunning.get();
+	}
 }
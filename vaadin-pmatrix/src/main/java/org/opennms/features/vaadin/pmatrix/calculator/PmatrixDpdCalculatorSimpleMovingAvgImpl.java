@@ -1,17 +1,20 @@
 package org.opennms.features.vaadin.pmatrix.calculator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -48,23 +51,32 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 	@XmlElement(name="property")
 	private List<NameValuePair> configuration=new ArrayList<NameValuePair>();
 
-	@XmlElement
-	private Double latestDataValue=null;
+	/*
+	 * calculation state is held in primitive fields so that updateCalculation() does not allocate.
+	 * Values which may be unset use a flag or NO_TIMESTAMP / NO_RANGE. These fields are persisted 
+	 * through their boxed getters and setters which return null when the value is unset.
+	 */
+	private double latestDataValue;
+	private boolean latestDataValueSet=false;
 
-	@XmlElement
-	private Long latestTimestamp=null;
+	private long latestTimestamp=NO_TIMESTAMP;
 
 	@XmlElement
 	private String mouseOverText="Value Statistics:<BR>   No Data Received"; //default value
 
-	@XmlElement
-	private Integer latestDataValueRange=null;
+	/**
+	 * previous value and timestamp before the latest update. Used to render mouseOverText
+	 */
+	private double mouseOverPrevDataValue;
+	private boolean mouseOverPrevDataValueSet=false;
+	private long mouseOverPrevTimestamp=NO_TIMESTAMP;
 
-	@XmlElement
-	private Double secondaryValue=null;
+	private int latestDataValueRange=NO_RANGE;
 
-	@XmlElement
-	private Integer secondaryValueRange=null;
+	private double secondaryValue;
+	private boolean secondaryValueSet=false;
+
+	private int secondaryValueRange=NO_RANGE;
 
 	@XmlElement
 	private String leftTrendArrow=null;
@@ -75,14 +87,13 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 	/**
 	 * previous data value
 	 */
-	@XmlElement
-	private Double prevDataValue; 
+	private double prevDataValue; 
+	private boolean prevDataValueSet=false;
 
 	/**
 	 * time when the previous data value was collected
 	 */
-	@XmlElement
-	private Long previousTimestamp;
+	private long previousTimestamp=NO_TIMESTAMP;
 
 	/**
 	 *  the sample timeout value set for this calculator in milliseconds
@@ -193,33 +204,37 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 	}
 
 	@Override
+	@XmlElement
 	public Integer getLatestDataValueRange() {
-		return latestDataValueRange;
+		return boxRange(latestDataValueRange);
 	}
 
 	@Override
 	public void setLatestDataValueRange(Integer latestDataValueRange) {
-		this.latestDataValueRange = latestDataValueRange;
+		this.latestDataValueRange = unboxRange(latestDataValueRange);
 	}
 
 	@Override
+	@XmlElement
 	public Double getSecondaryValue() {
-		return secondaryValue;
+		return secondaryValueSet ? Double.valueOf(secondaryValue) : null;
 	}
 
 	@Override
 	public void setSecondaryValue(Double secondaryValue) {
-		this.secondaryValue = secondaryValue;
+		this.secondaryValueSet = (secondaryValue!=null);
+		if (secondaryValue!=null) this.secondaryValue = secondaryValue;
 	}
 
 	@Override
+	@XmlElement
 	public Integer getSecondaryValueRange() {
-		return secondaryValueRange;
+		return boxRange(secondaryValueRange);
 	}
 
 	@Override
 	public void setSecondaryValueRange(Integer secondaryValueRange) {
-		this.secondaryValueRange = secondaryValueRange;
+		this.secondaryValueRange = unboxRange(secondaryValueRange);
 	}
 
 	@Override
@@ -244,26 +259,34 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 
 	@Override
 	public void setLatestDataValue(Double latestDataValue) {
-		this.latestDataValue = latestDataValue;
+		this.latestDataValueSet = (latestDataValue!=null);
+		if (latestDataValue!=null) this.latestDataValue = latestDataValue;
 	}
 
 	@Override
+	@XmlElement
 	public Double getLatestDataValue() {
-		return latestDataValue;
+		return latestDataValueSet ? Double.valueOf(latestDataValue) : null;
 	}
 
 	@Override
+	@XmlElement
 	public Long getLatestTimestamp() {
-		return latestTimestamp;
+		return boxTimestamp(latestTimestamp);
 	}
 
 	@Override
 	public void setLatestTimestamp(Long latestTimestamp) {
-		this.latestTimestamp = latestTimestamp;
+		this.latestTimestamp = unboxTimestamp(latestTimestamp);
 	}
 
+	/**
+	 * mouseOverText is rendered from the current values the first time it is requested after 
+	 * an update and cached until the next update
+	 */
 	@Override
-	public String getMouseOverText() {
+	public synchronized String getMouseOverText() {
+		if (mouseOverText==null && latestTimestamp!=NO_TIMESTAMP) mouseOverText=renderMouseOverText();
 		return mouseOverText;
 	}
 
@@ -273,36 +296,68 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 	}
 
 	@Override
+	@XmlElement
 	public Double getPrevDataValue() {
-		return prevDataValue;
+		return prevDataValueSet ? Double.valueOf(prevDataValue) : null;
 	}
 
 	@Override
 	public void setPrevDataValue(Double prevDataValue) {
-		this.prevDataValue = prevDataValue;
+		this.prevDataValueSet = (prevDataValue!=null);
+		if (prevDataValue!=null) this.prevDataValue = prevDataValue;
 	}
 
 	@Override
+	@XmlElement
 	public Long getPreviousTimestamp() {
-		return previousTimestamp;
+		return boxTimestamp(previousTimestamp);
 	}
 
 	@Override
 	public void setPreviousTimestamp(Long previousTimestamp) {
-		this.previousTimestamp = previousTimestamp;
+		this.previousTimestamp = unboxTimestamp(previousTimestamp);
+	}
+
+	/**
+	 * @return previous value shown in the mouse over text. Persisted so that the text rendered 
+	 * after a restore is the same as before it
+	 */
+	@XmlElement
+	public Double getMouseOverPrevDataValue() {
+		return mouseOverPrevDataValueSet ? Double.valueOf(mouseOverPrevDataValue) : null;
+	}
+
+	public void setMouseOverPrevDataValue(Double mouseOverPrevDataValue) {
+		this.mouseOverPrevDataValueSet = (mouseOverPrevDataValue!=null);
+		if (mouseOverPrevDataValue!=null) this.mouseOverPrevDataValue = mouseOverPrevDataValue;
+	}
+
+	/**
+	 * @return previous timestamp shown in the mouse over text
+	 */
+	@XmlElement
+	public Long getMouseOverPrevTimestamp() {
+		return boxTimestamp(mouseOverPrevTimestamp);
+	}
+
+	public void setMouseOverPrevTimestamp(Long mouseOverPrevTimestamp) {
+		this.mouseOverPrevTimestamp = unboxTimestamp(mouseOverPrevTimestamp);
 	}
 
 	@Override
-	public DataPointDefinition updateDpd(DataPointDefinition dpd) {
+	public DataPointDefinition updateDpd(DataPointDefinition dpd, boolean includeMouseOverText) {
 		// only change values if local values not null
 		// the local values only change if updateCalculation has been called
-		if (latestDataValue!=null) dpd.setLatestDataValue(latestDataValue);
-		if (latestTimestamp!=null) dpd.setLatestTimestamp(latestTimestamp);
-		if (mouseOverText!=null) dpd.setMouseOverText(mouseOverText);
+		if (latestDataValueSet) dpd.setLatestDataValue(latestDataValue);
+		if (latestTimestamp!=NO_TIMESTAMP) dpd.setLatestTimestamp(latestTimestamp);
+		if (includeMouseOverText) {
+			String mouseOverText=getMouseOverText();
+			if (mouseOverText!=null) dpd.setMouseOverText(mouseOverText);
+		}
 
-		if (latestDataValueRange!=null) dpd.setLatestDataValueRange(latestDataValueRange);
-		if (secondaryValue!=null) dpd.setSecondaryValue(secondaryValue);
-		if (secondaryValueRange!=null) dpd.setSecondaryValueRange(secondaryValueRange);
+		if (latestDataValueRange!=NO_RANGE) dpd.setLatestDataValueRange(latestDataValueRange);
+		if (secondaryValueSet) dpd.setSecondaryValue(secondaryValue);
+		if (secondaryValueRange!=NO_RANGE) dpd.setSecondaryValueRange(secondaryValueRange);
 		if (leftTrendArrow!=null) dpd.setLeftTrendArrow(leftTrendArrow);
 		if (rightTrendArrow!=null) dpd.setRightTrendArrow(rightTrendArrow);
 		
@@ -320,40 +375,26 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 	}
 
 	@Override
-	public void updateCalculation(Double latestDataValue, Long latestTimestamp) {
-		if ((latestDataValue==null)||(latestTimestamp==null)){
-			throw new IllegalStateException("updateCalculation() cannot have null values: latestTimestamp:"
-					+latestTimestamp+" latestDataValue: "+latestDataValue);
-		}
+	public void updateCalculation(double latestDataValue, long latestTimestamp) {
 
-		StringBuffer thresholdMouseTxtBuff = new StringBuffer();
-		StringBuffer mouseOverTextBuff = new StringBuffer();
 		// this sets the last real time this calculator has been updated
-		this.realUpdateTime=new Date().getTime();
+		this.realUpdateTime=System.currentTimeMillis();
 
 		this.latestDataValue= latestDataValue;
+		this.latestDataValueSet=true;
 		this.latestTimestamp=latestTimestamp;
-		if (previousTimestamp==null) previousTimestamp=latestTimestamp;
+		if (previousTimestamp==NO_TIMESTAMP) previousTimestamp=latestTimestamp;
 
 		// set color normal range
 		latestDataValueRange=DataPointDefinition.RANGE_NORMAL;
 
-		// calculate basic mouseover text. You Can replace this with a better example
-		Date date = new Date(latestTimestamp);
-		Date prevDate=new Date(previousTimestamp);
-
-		DecimalFormat decimalFormat = new DecimalFormat("#.###");
-		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS");
-		String prevDateStr= (prevDataValue==null) ? "null" : Double.toString(prevDataValue);
-		mouseOverTextBuff.append("Value Statistics:")
-				.append("<BR>\n  Latest Data Value: ").append(decimalFormat.format(latestDataValue))
-				.append("<BR>\n  Latest Timestamp: " ).append(latestTimestamp).append(" (").append(dateFormat.format(date)).append(")")
-				.append("<BR>\n  Previous DataValue: ").append(prevDateStr)
-				.append("<BR>\n  Previous Timestamp: ").append(previousTimestamp).append(" (").append(dateFormat.format(prevDate)).append(")")
-				;
+		// keep the previous values for the mouseover text which is rendered on demand
+		mouseOverPrevDataValue=prevDataValue;
+		mouseOverPrevDataValueSet=prevDataValueSet;
+		mouseOverPrevTimestamp=previousTimestamp;
 
 		//calculate left arrow - absolute change in value
-		if (prevDataValue==null) prevDataValue=latestDataValue;
+		if (!prevDataValueSet) prevDataValue=latestDataValue;
 		if (latestDataValue>prevDataValue) {
 			this.leftTrendArrow=DataPointDefinition.TREND_UP;
 		} else if (latestDataValue<prevDataValue){
@@ -366,103 +407,19 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 
 		// work out average, variance, std deviation
 		add(latestDataValue);
-		Double average = this.getAverage();
-		Double variance = this.getVariance();
-		Double stdDeviation = Math.sqrt(variance);
-		Double absoluteDifferenceFromAverage = Math.sqrt((latestDataValue-average)*(latestDataValue-average));
-
-		// add additional information to mouseOverText
-		mouseOverTextBuff.append("<BR>\n  Average: ").append(decimalFormat.format(average)).append(" over ").append(persistwindow.size()).append(" samples (of max window size ").append(maxNoOfSamples).append(")")
-				.append("<BR>\n  Std Deviation: ").append(decimalFormat.format(stdDeviation))
-				.append(" (Variance: ").append(decimalFormat.format(variance)).append(")")
-				.append("<BR>\n  Absolute Difference from Average: ").append(decimalFormat.format(absoluteDifferenceFromAverage))
-				.append("<BR>\n  Lowest Value: ").append(decimalFormat.format(lowWaterMark)).append("  Highest Value: ").append(decimalFormat.format(hiWaterMark));
+		double average = average();
+		double variance = variance();
+		double stdDeviation = Math.sqrt(variance);
+		double absoluteDifferenceFromAverage = Math.sqrt((latestDataValue-average)*(latestDataValue-average));
 
 		// define threshold type configuration
+		configureThresholds();
 
-		// update configuration if thresholdType is not yet defined
-		if(thresholdType==null) {
-			thresholdType= getConfig().get(THRESHOLD_TYPE_PROPERTY_NAME);
-			if (thresholdType==null) {
-				thresholdType=THRESHOLD_TYPE_STANDARD_DEVIATION;
-				LOG.warn("Threshold value not set in configuration. Defaulting to use "+thresholdType);
-			}
-
-			String warningThresholdStr=getConfig().get(WARNING_THRESHOLD_MULTIPLIER);
-			String minorThresholdStr=getConfig().get(MINOR_THRESHOLD_MULTIPLIER);
-			String majorThresholdStr=getConfig().get(MAJOR_THRESHOLD_MULTIPLIER);
-			String criticalThresholdStr=getConfig().get(CRITICAL_THRESHOLD_MULTIPLIER);
-
-			if(criticalThresholdStr==null){
-				LOG.warn("configuration property "+CRITICAL_THRESHOLD_MULTIPLIER+" is undefined");
-			} else 	try {
-				criticalThresholdMultiplier=Double.valueOf(criticalThresholdStr);
-			} catch (Exception e) {
-				LOG.error("unable to parse configuration property "+CRITICAL_THRESHOLD_MULTIPLIER+":"+criticalThresholdStr);
-			}
-			if(majorThresholdStr==null){
-				LOG.warn("configuration property "+MAJOR_THRESHOLD_MULTIPLIER+" is undefined");
-			} else try {
-				majorThresholdMultiplier=Double.valueOf(majorThresholdStr);
-			} catch (Exception e) {
-				LOG.error("unable to parse configuration property "+MAJOR_THRESHOLD_MULTIPLIER+":"+majorThresholdStr);
-			}
-			if(minorThresholdStr==null){
-				LOG.warn("configuration property "+MINOR_THRESHOLD_MULTIPLIER+" is undefined");
-			} else try {
-				minorThresholdMultiplier=Double.valueOf(minorThresholdStr);
-			} catch (Exception e) {
-				LOG.error("unable to parse configuration property "+MINOR_THRESHOLD_MULTIPLIER+":"+minorThresholdStr);
-			}
-			if(warningThresholdStr==null){
-				LOG.warn("configuration property "+WARNING_THRESHOLD_MULTIPLIER+" is undefined");
-			} else try {
-				warningThresholdMultiplier=Double.valueOf(warningThresholdStr);
-			} catch (Exception e) {
-				LOG.error("unable to parse configuration property "+WARNING_THRESHOLD_MULTIPLIER+":"+warningThresholdStr);
-			}
-
-			LOG.debug("Using the following property values for thresholds. Threshold type:"+thresholdType+"\n"
-					+ "   Warning Threshold Multiplier String:"+warningThresholdStr+"\n"
-					+ "   Minor Threshold Multiplier String:"+minorThresholdStr+"\n"
-					+ "   Major Threshold Multiplier String:"+majorThresholdStr+"\n"
-					+ "   Critical Threshold Multiplier String:"+criticalThresholdStr+"\n");
-
-			// check threshold string
-			if(THRESHOLD_TYPE_ABSOLUTE.equals(thresholdType)) {
-				// this is text to include in mouseover text if absolute thresholds
-				thresholdMouseTxtBuff.append("<BR>\n  Threshold Type:").append(THRESHOLD_TYPE_ABSOLUTE)
-						.append("<BR>\n")
-						.append(" Absolute Thresholds: Warn:").append(warningThresholdMultiplier)
-						.append(" Minor:").append(minorThresholdMultiplier)
-						.append(" Major:").append(majorThresholdMultiplier)
-						.append(" Critical:").append(criticalThresholdMultiplier).append("\n");
-			} else {
-				if ( THRESHOLD_TYPE_STANDARD_DEVIATION.equals(thresholdType)
-						|| THRESHOLD_TYPE_AVERAGE.equals(thresholdType)){
-					// do nothing - recognised values
-				}
-				else {
-					LOG.error("unknown threshold type defined for property name:'"+THRESHOLD_TYPE_PROPERTY_NAME
-							+ "' Value='"+thresholdType+"' Defaulting to stdDeviation");
-				}
-				// this is text to include in mouseover text
-				thresholdMouseTxtBuff.append("<BR>\n  Threshold Type:").append(thresholdType)
-						.append("<BR>\n")
-						.append(" Threshold Multipliers: Warn:").append(warningThresholdMultiplier)
-						.append(" Minor:").append(minorThresholdMultiplier)
-						.append(" Major:").append(majorThresholdMultiplier)
-						.append(" Critical:").append(criticalThresholdMultiplier).append("\n");
-
-			}
-		}
-		mouseOverTextBuff.append(thresholdMouseTxtBuff);
-
-		Double warningThresholdValue=null;
-		Double minorThresholdValue=null;
-		Double majorThresholdValue=null;
-		Double criticalThresholdValue=null;
-		Double thresholdValue=null;
+		double warningThresholdValue;
+		double minorThresholdValue;
+		double majorThresholdValue;
+		double criticalThresholdValue;
+		double thresholdValue;
 
 		if(THRESHOLD_TYPE_ABSOLUTE.equals(thresholdType)){
 			// the threshold value is absolute
@@ -501,24 +458,25 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 
 		// define secondaryValue
 		String secondValSelector = getConfig().get(SECOND_VALUE_PROPERTY_NAME);
-		Double newSecondaryValue=null;
+		double newSecondaryValue=0;
+		boolean newSecondaryValueSet=true;
 		if (SECOND_VALUE_AVERAGE.equals(secondValSelector)){
 			newSecondaryValue=average;
 		} else if (SECOND_VALUE_HI.equals(secondValSelector)){
 			newSecondaryValue=hiWaterMark;
 		} else if (SECOND_VALUE_LOW.equals(secondValSelector)){
 			newSecondaryValue=lowWaterMark;
-		} else if (SECOND_VALUE_NONE.equals(secondValSelector)){
-			// newSecondaryValue == null so not rendered
+		} else {
+			// SECOND_VALUE_NONE so secondary value not rendered
 			// also not rendered if unrecognized selector
+			newSecondaryValueSet=false;
 		} 
-		Double tmpSecondaryValue=newSecondaryValue;
 
 		//calculate right arrow - using absolute change in value
-		if (newSecondaryValue==null){
+		if (!newSecondaryValueSet){
 			this.rightTrendArrow=null; // do not render if no secondary value
 		} else {
-			if (secondaryValue==null) secondaryValue=newSecondaryValue;
+			if (!secondaryValueSet) secondaryValue=newSecondaryValue;
 			if (newSecondaryValue>secondaryValue) {
 				this.rightTrendArrow=DataPointDefinition.TREND_UP;
 			} else if (newSecondaryValue<secondaryValue){
@@ -527,21 +485,128 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 				this.rightTrendArrow=DataPointDefinition.TREND_LEVEL;
 			}
 		}
-		secondaryValue=tmpSecondaryValue;
+		secondaryValue=newSecondaryValue;
+		secondaryValueSet=newSecondaryValueSet;
 
 		// set color normal range
 		secondaryValueRange=DataPointDefinition.RANGE_NORMAL;
 
 		//TODO END
 		
-		// return mouseover text 
-		mouseOverText=mouseOverTextBuff.toString();
+		// mouseover text is rendered from the new values the next time it is requested
+		mouseOverText=null;
+		if (LOG.isDebugEnabled()) LOG.debug("updateCalculation result:"+getMouseOverText());
 
 		// finish by updating previous timestamp values
-		LOG.debug("updateCalculation result:"+mouseOverText);
 		previousTimestamp=latestTimestamp;
 		prevDataValue=latestDataValue;
+		prevDataValueSet=true;
+
+	}
+
+	/**
+	 * sets thresholdType and the threshold multipliers from the configuration if thresholdType is not yet defined
+	 */
+	private void configureThresholds() {
+		if (thresholdType!=null) return;
+		thresholdType= getConfig().get(THRESHOLD_TYPE_PROPERTY_NAME);
+		if (thresholdType==null) {
+			thresholdType=THRESHOLD_TYPE_STANDARD_DEVIATION;
+			LOG.warn("Threshold value not set in configuration. Defaulting to use "+thresholdType);
+		}
+
+		String warningThresholdStr=getConfig().get(WARNING_THRESHOLD_MULTIPLIER);
+		String minorThresholdStr=getConfig().get(MINOR_THRESHOLD_MULTIPLIER);
+		String majorThresholdStr=getConfig().get(MAJOR_THRESHOLD_MULTIPLIER);
+		String criticalThresholdStr=getConfig().get(CRITICAL_THRESHOLD_MULTIPLIER);
+
+		if(criticalThresholdStr==null){
+			LOG.warn("configuration property "+CRITICAL_THRESHOLD_MULTIPLIER+" is undefined");
+		} else 	try {
+			criticalThresholdMultiplier=Double.valueOf(criticalThresholdStr);
+		} catch (Exception e) {
+			LOG.error("unable to parse configuration property "+CRITICAL_THRESHOLD_MULTIPLIER+":"+criticalThresholdStr);
+		}
+		if(majorThresholdStr==null){
+			LOG.warn("configuration property "+MAJOR_THRESHOLD_MULTIPLIER+" is undefined");
+		} else try {
+			majorThresholdMultiplier=Double.valueOf(majorThresholdStr);
+		} catch (Exception e) {
+			LOG.error("unable to parse configuration property "+MAJOR_THRESHOLD_MULTIPLIER+":"+majorThresholdStr);
+		}
+		if(minorThresholdStr==null){
+			LOG.warn("configuration property "+MINOR_THRESHOLD_MULTIPLIER+" is undefined");
+		} else try {
+			minorThresholdMultiplier=Double.valueOf(minorThresholdStr);
+		} catch (Exception e) {
+			LOG.error("unable to parse configuration property "+MINOR_THRESHOLD_MULTIPLIER+":"+minorThresholdStr);
+		}
+		if(warningThresholdStr==null){
+			LOG.warn("configuration property "+WARNING_THRESHOLD_MULTIPLIER+" is undefined");
+		} else try {
+			warningThresholdMultiplier=Double.valueOf(warningThresholdStr);
+		} catch (Exception e) {
+			LOG.error("unable to parse configuration property "+WARNING_THRESHOLD_MULTIPLIER+":"+warningThresholdStr);
+		}
 
+		LOG.debug("Using the following property values for thresholds. Threshold type:"+thresholdType+"\n"
+				+ "   Warning Threshold Multiplier String:"+warningThresholdStr+"\n"
+				+ "   Minor Threshold Multiplier String:"+minorThresholdStr+"\n"
+				+ "   Major Threshold Multiplier String:"+majorThresholdStr+"\n"
+				+ "   Critical Threshold Multiplier String:"+criticalThresholdStr+"\n");
+
+		// check threshold string
+		if(!THRESHOLD_TYPE_ABSOLUTE.equals(thresholdType)
+				&& !THRESHOLD_TYPE_STANDARD_DEVIATION.equals(thresholdType)
+				&& !THRESHOLD_TYPE_AVERAGE.equals(thresholdType)){
+			LOG.error("unknown threshold type defined for property name:'"+THRESHOLD_TYPE_PROPERTY_NAME
+					+ "' Value='"+thresholdType+"' Defaulting to stdDeviation");
+		}
+	}
+
+	/**
+	 * builds the mouseover text from the values set by the latest update
+	 * @return mouseover text
+	 */
+	private String renderMouseOverText() {
+		// a calculator restored from an archive recalculates its statistics from the samples before its first update
+		configureWindow();
+		initialiseStatistics();
+		configureThresholds();
+
+		DecimalFormat decimalFormat = new DecimalFormat("#.###");
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd HH:mm:ss:SSS");
+
+		double average = average();
+		double variance = variance();
+		double stdDeviation = Math.sqrt(variance);
+		double absoluteDifferenceFromAverage = Math.sqrt((latestDataValue-average)*(latestDataValue-average));
+		String prevDateStr= mouseOverPrevDataValueSet ? Double.toString(mouseOverPrevDataValue) : "null";
+		long prevTimestamp= (mouseOverPrevTimestamp==NO_TIMESTAMP) ? latestTimestamp : mouseOverPrevTimestamp;
+
+		StringBuffer mouseOverTextBuff = new StringBuffer();
+		mouseOverTextBuff.append("Value Statistics:")
+				.append("<BR>\n  Latest Data Value: ").append(decimalFormat.format(latestDataValue))
+				.append("<BR>\n  Latest Timestamp: " ).append(latestTimestamp).append(" (").append(dateFormat.format(new Date(latestTimestamp))).append(")")
+				.append("<BR>\n  Previous DataValue: ").append(prevDateStr)
+				.append("<BR>\n  Previous Timestamp: ").append(prevTimestamp).append(" (").append(dateFormat.format(new Date(prevTimestamp))).append(")")
+				.append("<BR>\n  Average: ").append(decimalFormat.format(average)).append(" over ").append(sampleCount).append(" samples (of max window size ").append(maxNoOfSamples).append(")")
+				.append("<BR>\n  Std Deviation: ").append(decimalFormat.format(stdDeviation))
+				.append(" (Variance: ").append(decimalFormat.format(variance)).append(")")
+				.append("<BR>\n  Absolute Difference from Average: ").append(decimalFormat.format(absoluteDifferenceFromAverage))
+				.append("<BR>\n  Lowest Value: ").append(decimalFormat.format(lowWaterMark)).append("  Highest Value: ").append(decimalFormat.format(hiWaterMark));
+
+		if(thresholdType!=null) {
+			// this is text to include in mouseover text
+			String thresholdLabel = THRESHOLD_TYPE_ABSOLUTE.equals(thresholdType) ? " Absolute Thresholds: Warn:" : " Threshold Multipliers: Warn:";
+			mouseOverTextBuff.append("<BR>\n  Threshold Type:").append(thresholdType)
+					.append("<BR>\n")
+					.append(thresholdLabel).append(warningThresholdMultiplier)
+					.append(" Minor:").append(minorThresholdMultiplier)
+					.append(" Major:").append(majorThresholdMultiplier)
+					.append(" Critical:").append(criticalThresholdMultiplier).append("\n");
+		}
+		return mouseOverTextBuff.toString();
 	}
 
 	/*
@@ -552,42 +617,238 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 
 
 	/**
-	 *  persistwindow is the circular store of values used for calculations. The the storing class
-	 *  must implement the Queue interface. We are using ArrayDeque because it is 
-	 *  more memory efficient than LinkedList
+	 *  samples is the circular store of values used for calculations. It is a primitive ring buffer
+	 *  holding sampleCount values starting at index sampleStart (the oldest value) so that adding a 
+	 *  sample does not allocate. Its length is maxNoOfSamples once the first sample has been added.
+	 */
+	private double[] samples = new double[0];
+	private int sampleStart=0;
+	private int sampleCount=0;
+
+	/**
+	 *  persistwindow is the JAXB view of the samples. It is only filled while the calculator
+	 *  is being marshalled or unmarshalled so that the persisted XML is unchanged
 	 */
 	@XmlElementWrapper(name="data")
 	@XmlElement(name="x")
-	private Collection<Double> persistwindow = new ArrayDeque<Double>();
+	private List<Double> persistwindow = null;
+
+	/**
+	 * JAXB callback. Renders mouseOverText and copies the samples into persistwindow
+	 * @param marshaller
+	 */
+	void beforeMarshal(Marshaller marshaller) {
+		getMouseOverText();
+		persistwindow=samplesToList();
+	}
 
 	/**
-	 * @return the persistwindow
+	 * JAXB callback. Releases persistwindow
+	 * @param marshaller
+	 */
+	void afterMarshal(Marshaller marshaller) {
+		persistwindow=null;
+	}
+
+	/**
+	 * JAXB callback. Copies the unmarshalled persistwindow into the samples
+	 * @param unmarshaller
+	 * @param parent
+	 */
+	void afterUnmarshal(Unmarshaller unmarshaller, Object parent) {
+		if (persistwindow!=null) setPersistwindow(persistwindow);
+		persistwindow=null;
+	}
+
+	/**
+	 * @return a copy of the samples in the window, oldest first
 	 */
 	public Collection<Double> getPersistwindow() {
-		return persistwindow;
+		return samplesToList();
 	}
 
 	/**
-	 * @param persistwindow the persistwindow to set
+	 * replaces the samples in the window. The running statistics are recalculated on the next update
+	 * @param persistwindow the samples to set, oldest first
 	 */
 	public void setPersistwindow(Collection<Double> persistwindow) {
-		this.persistwindow = persistwindow;
+		double[] newSamples = new double[persistwindow.size()];
+		int i=0;
+		for (Double sample : persistwindow) newSamples[i++]=sample;
+		setSamples(newSamples, persistwindow.size());
+	}
+
+	private List<Double> samplesToList(){
+		List<Double> window = new ArrayList<Double>(sampleCount);
+		for (int i = 0; i < sampleCount; i++) window.add(sample(i));
+		return window;
+	}
+
+	/**
+	 * @param index 0 is the oldest sample
+	 * @return sample at index
+	 */
+	private double sample(int index){
+		int i = sampleStart+index;
+		if (i>=samples.length) i=i-samples.length;
+		return samples[i];
+	}
+
+	/**
+	 * replaces the samples. The ring buffer is resized to maxNoOfSamples and the
+	 * running statistics are recalculated on the next update
+	 * @param newSamples ring buffer containing count samples starting at index 0
+	 * @param count
+	 */
+	private void setSamples(double[] newSamples, int count){
+		samples=newSamples;
+		sampleStart=0;
+		sampleCount=count;
+		maxNoOfSamples=null;
+		statisticsInitialised=false;
+	}
+
+	/**
+	 * @param capacity new length of the ring buffer. Must not be less than sampleCount
+	 */
+	private void resizeSamples(int capacity){
+		double[] newSamples = new double[capacity];
+		for (int i = 0; i < sampleCount; i++) newSamples[i]=sample(i);
+		samples=newSamples;
+		sampleStart=0;
+	}
+
+	/**
+	 * copies the persisted state only. The running sums and water marks are
+	 * recalculated from the samples when the copy is next updated
+	 */
+	@Override
+	public PmatrixDpdCalculator snapshot() {
+		PmatrixDpdCalculatorSimpleMovingAvgImpl copy = new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+		copyCommonState(copy);
+		copy.setMouseOverPrevDataValue(getMouseOverPrevDataValue());
+		copy.setMouseOverPrevTimestamp(getMouseOverPrevTimestamp());
+		double[] copySamples = new double[sampleCount];
+		for (int i = 0; i < sampleCount; i++) copySamples[i]=sample(i);
+		copy.setSamples(copySamples, sampleCount);
+		return copy;
+	}
+
+	@Override
+	public boolean isBinaryStateSupported() {
+		return true;
+	}
+
+	/**
+	 * writes the common state followed by the sample window as a count and primitive doubles 
+	 * and the previous values of the mouse over text
+	 */
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		writeCommonState(out);
+		out.writeInt(sampleCount);
+		for (int i = 0; i < sampleCount; i++) out.writeDouble(sample(i));
+		writeNullableDouble(out, getMouseOverPrevDataValue());
+		writeNullableLong(out, getMouseOverPrevTimestamp());
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		readCommonState(in);
+		int size = in.readInt();
+		double[] newSamples = new double[size];
+		for (int i = 0; i < size; i++) newSamples[i]=in.readDouble();
+		setSamples(newSamples, size);
+		try {
+			setMouseOverPrevDataValue(readNullableDouble(in));
+			setMouseOverPrevTimestamp(readNullableLong(in));
+		} catch (EOFException e) {
+			// state written before the previous values of the mouse over text were kept
+		}
 	}
 
 
 
 	private Integer maxNoOfSamples=null; //must be a positive integer
-	private Double sum = null;
-	private Double sumOfSquares = null;
 
-	private Double lowWaterMark=null;
-	private Double hiWaterMark=null;
+	/**
+	 * false until sum, sumOfSquares and the water marks have been calculated from the samples
+	 */
+	private boolean statisticsInitialised=false;
+	private double sum = 0;
+	private double sumOfSquares = 0;
+
+	private double lowWaterMark=0;
+	private double hiWaterMark=0;
+
+	/**
+	 * positions in samples of the candidates for the lowest and highest value in the window
+	 */
+	private final RollingExtreme rollingMinimum = new RollingExtreme(false);
+	private final RollingExtreme rollingMaximum = new RollingExtreme(true);
+
+	/**
+	 * Monotonic deque of positions in the samples ring buffer used to find the lowest (or highest) 
+	 * value in the window in amortized O(1) time per sample. Each position is followed only by positions
+	 * of later samples with higher (or lower) values, so the front is always the position of the extreme value.
+	 * The deque is itself a ring buffer of the same length as samples.
+	 */
+	private static final class RollingExtreme {
+		private final boolean maximum;
+		private int[] positions = new int[0];
+		private int head=0;
+		private int size=0;
+
+		RollingExtreme(boolean maximum){
+			this.maximum=maximum;
+		}
+
+		void clear(int capacity){
+			if (positions.length!=capacity) positions = new int[capacity];
+			head=0;
+			size=0;
+		}
+
+		/**
+		 * adds the sample at position after removing the samples it supersedes
+		 */
+		void add(double[] samples, int position){
+			double value=samples[position];
+			while (size>0){
+				int last = head+size-1;
+				if (last>=positions.length) last=last-positions.length;
+				double lastValue=samples[positions[last]];
+				if (maximum ? lastValue>value : lastValue<value) break;
+				size--;
+			}
+			int end = head+size;
+			if (end>=positions.length) end=end-positions.length;
+			positions[end]=position;
+			size++;
+		}
+
+		/**
+		 * called before the oldest sample at position is overwritten. 
+		 * If it is still a candidate it must be at the front of the deque
+		 */
+		void evict(int position){
+			if (size>0 && positions[head]==position){
+				head++;
+				if (head==positions.length) head=0;
+				size--;
+			}
+		}
+
+		double value(double[] samples){
+			return samples[positions[head]];
+		}
+	}
 
 	//default values for thresholds
-	private Double criticalThresholdMultiplier=3d;
-	private Double majorThresholdMultiplier=2d;
-	private Double minorThresholdMultiplier=1.5d;
-	private Double warningThresholdMultiplier=1d;
+	private double criticalThresholdMultiplier=3d;
+	private double majorThresholdMultiplier=2d;
+	private double minorThresholdMultiplier=1.5d;
+	private double warningThresholdMultiplier=1d;
 
 	private String thresholdType=null;
 
@@ -628,11 +889,45 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 	 */
 	public static final Integer DEFAULT_MAX_NO_OF_SAMPLES=100;
 
-	private void add(Double latestSample) {
+	private void add(double latestSample) {
+		configureWindow();
+		initialiseStatistics();
 
+		sum = sum+latestSample;
+		sumOfSquares=sumOfSquares+latestSample*latestSample;
+
+		int position;
+		if (sampleCount<samples.length) {
+			position = sampleStart+sampleCount;
+			if (position>=samples.length) position=position-samples.length;
+			sampleCount++;
+		} else {
+			// window is full so the latest sample replaces the oldest
+			position=sampleStart;
+			double endValue=samples[sampleStart];
+			rollingMinimum.evict(position);
+			rollingMaximum.evict(position);
+			sampleStart++;
+			if (sampleStart==samples.length) sampleStart=0;
+
+			sum = sum - endValue;
+			sumOfSquares=sumOfSquares-endValue*endValue;
+		}
+		samples[position]=latestSample;
+		rollingMinimum.add(samples, position);
+		rollingMaximum.add(samples, position);
+
+		lowWaterMark=rollingMinimum.value(samples);
+		hiWaterMark=rollingMaximum.value(samples);
+	}
+
+	/**
+	 * reads maxNoOfSamples from the configuration and sizes the ring buffer if not already done
+	 */
+	private void configureWindow() {
 		// check configuration
-		// if max number of samples maxNoOfSamples > current sample list size , resize ArrayDeque
-		// if loaded persistwindow.size() > maxNoOfSamples, issue warning but don't change size of queue
+		// if max number of samples maxNoOfSamples > current sample list size , resize the ring buffer
+		// if loaded sample list size > maxNoOfSamples, issue warning but don't change size of buffer
 		// This allows us to load persisted data into a larger sample buffer and not loose persisted data 
 		// if sample buffer is reduced in size
 		if (maxNoOfSamples==null) {
@@ -651,83 +946,66 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 						+ "' for calculator '"+this.getClass().getSimpleName()+"'. Using default value:"+DEFAULT_MAX_NO_OF_SAMPLES);
 
 			}
-			if (persistwindow.size()>maxNoOfSamples){
-				LOG.warn("The actual size of the persisted sample list ("+persistwindow.size()+") is > max number of samples ("
+			if (maxNoOfSamples<1){
+				LOG.warn("maximum number of samples ("+maxNoOfSamples+") defined using configuration property name:'"+MAX_SAMPLE_NO_PROPERTY_NAME
+						+ "' for calculator '"+this.getClass().getSimpleName()+"' must be a positive integer. Using 1");
+				maxNoOfSamples=1;
+			}
+			if (sampleCount>maxNoOfSamples){
+				LOG.warn("The actual size of the persisted sample list ("+sampleCount+") is > max number of samples ("
 						+maxNoOfSamples+ ") defined using configuration property name:"+MAX_SAMPLE_NO_PROPERTY_NAME
 						+ "for calculator "+this.getClass().getSimpleName()+". We will use the size of the larger persisted list as the size");
 				//TODO note alternative option would be to reduce size of list
-				maxNoOfSamples=persistwindow.size();
-			} else {
-				ArrayDeque<Double> newpersistwindow = new ArrayDeque<Double>(maxNoOfSamples);
-				newpersistwindow.addAll(persistwindow);
-				persistwindow=newpersistwindow;
+				maxNoOfSamples=sampleCount;
 			}
+			if (samples.length!=maxNoOfSamples) resizeSamples(maxNoOfSamples);
 		}
+	}
 
-		// Initialize sum, sumOfSquares low and high water marks if not set
-		if(sum==null){
+	/**
+	 * Initialize sum, sumOfSquares and the rolling low and high water marks from the samples if not set
+	 */
+	private void initialiseStatistics() {
+		if(!statisticsInitialised){
 			sum = 0d;
 			sumOfSquares=0d;
 
-			lowWaterMark=Double.MAX_VALUE;
-			hiWaterMark=Double.MIN_VALUE;
+			rollingMinimum.clear(samples.length);
+			rollingMaximum.clear(samples.length);
 
-			for (Double sample: persistwindow)	{
+			for (int i = 0; i < sampleCount; i++)	{
+				int position = sampleStart+i;
+				if (position>=samples.length) position=position-samples.length;
+				double sample=samples[position];
 				sum=sum+sample;
 				sumOfSquares=sumOfSquares+sample*sample;
 
-				if(sample>hiWaterMark) hiWaterMark=sample;
-				if(sample<lowWaterMark) lowWaterMark=sample;
+				rollingMinimum.add(samples, position);
+				rollingMaximum.add(samples, position);
 			}
-
-		}
-
-		Queue<Double> window = (Queue<Double>) persistwindow;
-
-		if(latestSample>hiWaterMark){
-			hiWaterMark=latestSample;
-		}
-
-		if(latestSample<lowWaterMark){
-			lowWaterMark=latestSample;
-		}
-
-		sum = sum+latestSample;
-		sumOfSquares=sumOfSquares+latestSample*latestSample;
-		window.add(latestSample);
-		if (window.size() > maxNoOfSamples) {
-			Double endValue=window.remove();
-
-			sum = sum - endValue;
-			sumOfSquares=sumOfSquares-endValue*endValue;
-
-			// recalculate low and hi water marks only if removed sample is low or hi water mark
-			// this is inefficient but hopefully only occasional
-			// note >= and <= to catch any rounding issues
-			if(endValue<=lowWaterMark){
-				lowWaterMark=Double.MAX_VALUE;
-				for (Double sample: persistwindow)	{
-					if(sample<lowWaterMark) lowWaterMark=sample;
-				}
-			} else if(endValue>=hiWaterMark){ 
-				hiWaterMark=Double.MIN_VALUE;
-				for (Double sample: persistwindow)	{
-					if(sample>hiWaterMark) hiWaterMark=sample;
-				}
+			if (sampleCount>0){
+				lowWaterMark=rollingMinimum.value(samples);
+				hiWaterMark=rollingMaximum.value(samples);
 			}
+			statisticsInitialised=true;
 		}
 	}
 
 	public Double getAverage() {
-		Queue<Double> window = (Queue<Double>) persistwindow;
+		return average();
+	}
 
-		if (window.isEmpty()||sum==null) return 0d; // technically the average is undefined
-		Double n = Double.valueOf(window.size());
-		return sum / n;
+	public Double getVariance(){
+		return variance();
 	}
 
+	private double average() {
+		if (sampleCount==0||!statisticsInitialised) return 0d; // technically the average is undefined
+		double n = sampleCount;
+		return sum / n;
+	}
 
-	public Double getVariance(){
+	private double variance(){
 		//http://www.dsprelated.com/showmessage/97276/1.php
 
 		//Calculate Moving Average: (done in getAverage)
@@ -735,22 +1013,19 @@ public class PmatrixDpdCalculatorSimpleMovingAvgImpl extends PmatrixDpdCalculato
 
 		// Calculating Moving Variance
 		// V = (N * SX2 - (SX1 * SX1)) / (N * (N - 1))
-		Queue<Double> window = (Queue<Double>) persistwindow;
-		double average = getAverage();
-		double n = Double.valueOf(window.size());
-		if (window.isEmpty()||sumOfSquares==null) return 0d; // technically the variance is undefined
-		double variance= (n * sumOfSquares - average*average) / (n*(n-1));
-		return variance;
+		double n = sampleCount;
+		if (sampleCount<2||!statisticsInitialised) return 0d; // technically the variance is undefined
+		double variance= (n * sumOfSquares - sum*sum) / (n*(n-1));
+		// rounding can leave a tiny negative value when all samples are equal
+		return (variance<0) ? 0d : variance;
 	}
 
 	@Override
 	public String dataToCSV(){
 		StringBuffer sb= new StringBuffer();
-		Iterator<Double> it = persistwindow.iterator();
-
-		while(it.hasNext()){
-			sb.append(it.next());
-			if (it.hasNext()) sb.append(',');
+		for (int i = 0; i < sampleCount; i++){
+			if (i!=0) sb.append(',');
+			sb.append(sample(i));
 		}
 		return sb.toString();
 	}
@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixRenderModel.CellValues;
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixRenderModel.RenderedCell;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Broadcasts the cell changes of one pmatrix table to event stream subscribers.
+ * 
+ * The broadcaster is registered with the DataPointMapDao as a single update listener while it has 
+ * subscribers. Each changed cell is serialized once as a server sent event and the same bytes are 
+ * queued for every subscriber whose minimum severity it passes. Each subscriber has a bounded queue. 
+ * If a subscriber falls behind its queued events are dropped and it is sent a resync event instead 
+ * so that it can reload the table from the JSON view.
+ */
+public class CellChangeBroadcaster implements DataPointMapUpdateListener {
+	private static final Logger LOG = LoggerFactory.getLogger(CellChangeBroadcaster.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final PmatrixSpecification pmatrixSpecification;
+
+	private final DataPointMapDao dataPointMapDao;
+
+	private final PmatrixRenderModel renderModel;
+
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+	/**
+	 * values of each cell last broadcast. Guarded by itself
+	 */
+	private final Map<DataPointDefinition,CellValues> broadcastValues = new IdentityHashMap<DataPointDefinition,CellValues>();
+
+	/**
+	 * true while registered with the DataPointMapDao. Guarded by this
+	 */
+	private boolean registered=false;
+
+	/**
+	 * number of cell events broadcast since start up
+	 */
+	private final AtomicLong eventsBroadcast = new AtomicLong(0);
+
+	public CellChangeBroadcaster(PmatrixSpecification pmatrixSpecification, DataPointMapDao dataPointMapDao) {
+		this.pmatrixSpecification=pmatrixSpecification;
+		this.dataPointMapDao=dataPointMapDao;
+		this.renderModel=dataPointMapDao.getRenderModel(pmatrixSpecification);
+	}
+
+	/**
+	 * Receiver of the events of one event stream. The queue is bounded so that a slow consumer 
+	 * can not hold on to an unbounded number of events.
+	 */
+	public static class Subscriber {
+
+		private final int minSeverity;
+
+		private final int bufferSize;
+
+		private final Runnable eventsAvailable;
+
+		/**
+		 * serialized events waiting to be written. Guarded by this
+		 */
+		private final ArrayDeque<byte[]> events = new ArrayDeque<byte[]>();
+
+		/**
+		 * true if events have been dropped since the last drain. No further events are queued 
+		 * until the subscriber has drained the resync event. Guarded by this
+		 */
+		private boolean resync=false;
+
+		private long eventsDropped=0;
+
+		/**
+		 * @param minSeverity only cells whose latestDataValueRange is at least this value are sent. 
+		 * Cells with no range are sent only if minSeverity is 0 or less
+		 * @param bufferSize maximum number of events queued for the subscriber before it is resynchronised
+		 * @param eventsAvailable called after events are queued. Must not block
+		 */
+		public Subscriber(int minSeverity, int bufferSize, Runnable eventsAvailable){
+			this.minSeverity=minSeverity;
+			this.bufferSize=(bufferSize < 1) ? 1 : bufferSize;
+			this.eventsAvailable=eventsAvailable;
+		}
+
+		private boolean accepts(Integer severity){
+			if (minSeverity<=0) return true;
+			return severity!=null && severity.intValue()>=minSeverity;
+		}
+
+		private synchronized void offer(byte[] event){
+			if (resync) return;
+			if (events.size()>=bufferSize){
+				eventsDropped=eventsDropped+events.size()+1;
+				events.clear();
+				resync=true;
+				return;
+			}
+			events.add(event);
+		}
+
+		/**
+		 * @return true if events have been dropped because the subscriber fell behind 
+		 * and the resync event has not yet been drained
+		 */
+		public synchronized boolean isResync(){
+			return resync;
+		}
+
+		/**
+		 * @return number of events dropped for this subscriber because it fell behind
+		 */
+		public synchronized long getEventsDropped(){
+			return eventsDropped;
+		}
+	}
+
+	/**
+	 * adds a subscriber and registers the broadcaster with the DataPointMapDao if it is the first
+	 */
+	public synchronized void addSubscriber(Subscriber subscriber){
+		subscribers.add(subscriber);
+		if (!registered) {
+			if (pmatrixSpecification.getDatapointDefinitions()!=null) {
+				synchronized(broadcastValues){
+					broadcastValues.clear();
+					for (DataPointDefinition dpd : pmatrixSpecification.getDatapointDefinitions()) {
+						// cells are only broadcast if they change after the stream starts
+						RenderedCell cell = renderModel.getCell(dpd);
+						if (cell!=null) broadcastValues.put(dpd, cell.getValues());
+					}
+				}
+				for (DataPointDefinition dpd : pmatrixSpecification.getDatapointDefinitions()) {
+					dataPointMapDao.subscribe(this, dpd);
+				}
+			}
+			dataPointMapDao.addDataPointMapUpdateListener(this);
+			registered=true;
+			if(LOG.isDebugEnabled()) LOG.debug("event stream of pmatrix table '"+pmatrixSpecification.getPmatrixName()+"' registered with DataPointMapDao");
+		}
+	}
+
+	/**
+	 * removes a subscriber and unregisters the broadcaster from the DataPointMapDao if it was the last
+	 */
+	public synchronized void removeSubscriber(Subscriber subscriber){
+		subscribers.remove(subscriber);
+		if (registered && subscribers.isEmpty()) {
+			dataPointMapDao.removeDataPointMapUpdateListener(this);
+			dataPointMapDao.unsubscribe(this);
+			registered=false;
+			if(LOG.isDebugEnabled()) LOG.debug("event stream of pmatrix table '"+pmatrixSpecification.getPmatrixName()+"' unregistered from DataPointMapDao");
+		}
+	}
+
+	/**
+	 * @return the number of subscribers to this table
+	 */
+	public int getSubscriberCount(){
+		return subscribers.size();
+	}
+
+	/**
+	 * @return the number of cell events broadcast since start up
+	 */
+	public long getEventsBroadcast(){
+		return eventsBroadcast.get();
+	}
+
+	/**
+	 * @return a serialized resync event carrying the current version of the table. A client receiving it should 
+	 * reload the table from the JSON view, optionally with since= the version of the last event it received
+	 */
+	public byte[] resyncEvent(){
+		// the version is not above the sequence every cell has been rendered up to (see PmatrixJsonServlet)
+		long renderedSequence=renderModel.refreshCells();
+		StringBuilder json = new StringBuilder(64);
+		json.append("{\"name\":");
+		CellValuesJson.appendString(json, pmatrixSpecification.getPmatrixName());
+		json.append(",\"version\":");
+		CellValuesJson.appendString(json, CellValuesJson.versionToken(Math.min(renderModel.getVersion(), renderedSequence)));
+		json.append('}');
+		return serializeEvent("resync", null, json);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapUpdateListener#dataPointMapUpdated(java.util.Collection)
+	 */
+	@Override
+	public void dataPointMapUpdated(Collection<DataPointDefinition> updatedCells) {
+		if (subscribers.isEmpty()) return;
+		int broadcast=0;
+		synchronized(broadcastValues){
+			for (DataPointDefinition dpd : updatedCells) {
+				RenderedCell cell = renderModel.refreshCell(dpd);
+				if (cell==null) continue;
+				CellValues values = cell.getValues();
+				// the calculator may have been notified without its displayed values changing
+				if (values==null || values==broadcastValues.get(dpd)) continue;
+				broadcastValues.put(dpd, values);
+
+				StringBuilder json = new StringBuilder(256);
+				CellValuesJson.appendCell(json, dpd, values);
+				byte[] event = serializeEvent("cell", CellValuesJson.versionToken(values.getChangedSequence()), json);
+				for (Subscriber subscriber : subscribers) {
+					if (subscriber.accepts(values.getLatestDataValueRange())) subscriber.offer(event);
+				}
+				broadcast++;
+			}
+		}
+		if (broadcast==0) return;
+		eventsBroadcast.addAndGet(broadcast);
+		for (Subscriber subscriber : subscribers) {
+			try {
+				subscriber.eventsAvailable.run();
+			} catch (RuntimeException e){
+				LOG.error("Problem notifying event stream subscriber of pmatrix table '"+pmatrixSpecification.getPmatrixName()+"': ", e);
+			}
+		}
+		if(LOG.isDebugEnabled()) LOG.debug("broadcast "+broadcast+" cell events of pmatrix table '"
+				+pmatrixSpecification.getPmatrixName()+"' to "+subscribers.size()+" subscribers");
+	}
+
+	/**
+	 * removes the events queued for a subscriber. If events have been dropped because the subscriber fell 
+	 * behind the first event returned is a resync event carrying the current version of the table
+	 * @return the events to write in order. Empty if there are none
+	 */
+	public List<byte[]> drain(Subscriber subscriber){
+		synchronized(subscriber){
+			List<byte[]> drained = new ArrayList<byte[]>(subscriber.events.size()+1);
+			if (subscriber.resync) {
+				drained.add(resyncEvent());
+				subscriber.resync=false;
+			}
+			drained.addAll(subscriber.events);
+			subscriber.events.clear();
+			return drained;
+		}
+	}
+
+	private static byte[] serializeEvent(String eventName, String id, CharSequence data){
+		StringBuilder event = new StringBuilder(data.length()+40);
+		if (id!=null) event.append("id: ").append(id).append('\n');
+		event.append("event: ").append(eventName).append('\n');
+		event.append("data: ").append(data).append("\n\n");
+		return event.toString().getBytes(UTF8);
+	}
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Formats cell values in the layout of new DecimalFormat("####.##") (at most two fraction 
+ * digits, no grouping) but without creating a DecimalFormat or any intermediate objects 
+ * for ordinary values.
+ * <p>
+ * Rounding is HALF_EVEN applied to the exact binary value of the double, so 0.015 
+ * (stored as 0.01499...) is shown as 0.01 and 2.675 (stored as 2.67499...) as 2.67. 
+ * This is what DecimalFormat does on JDK 8 and later. The JDK 6/7 DecimalFormat rounds 
+ * the shortest decimal representation instead and shows these values as 0.02 and 2.68, 
+ * so values at .5 boundaries can differ from the output of DecimalFormat on those JDKs. 
+ * The result of this class does not depend on the JDK it runs on.
+ * <p>
+ * The decimal separator and minus sign are those of the default locale, as they were with 
+ * DecimalFormat("####.##"). The symbols are read once when this class is loaded.
+ * <p>
+ * NaN, infinities and values of magnitude 1e13 or more are rare and are still formatted 
+ * by DecimalFormat("####.##") with the same symbols. Locales which do not use the digits 0-9 
+ * are also formatted by DecimalFormat.
+ */
+public final class CellValueFormat {
+
+	/**
+	 * values at or above this magnitude are formatted with DecimalFormat
+	 */
+	private static final double MAX_FAST_VALUE=1e13;
+
+	/**
+	 * symbols of the default locale
+	 */
+	private static final DecimalFormatSymbols DEFAULT_SYMBOLS=DecimalFormatSymbols.getInstance();
+
+	private CellValueFormat() {
+	}
+
+	/**
+	 * @param value
+	 * @return the formatted value
+	 */
+	public static String format(double value) {
+		return append(new StringBuilder(16), value).toString();
+	}
+
+	/**
+	 * appends the formatted value to the StringBuilder
+	 * @param sb
+	 * @param value
+	 * @return sb
+	 */
+	public static StringBuilder append(StringBuilder sb, double value) {
+		return append(sb, value, DEFAULT_SYMBOLS);
+	}
+
+	/**
+	 * appends the value formatted with the decimal separator and minus sign of symbols
+	 * @param sb
+	 * @param value
+	 * @param symbols
+	 * @return sb
+	 */
+	static StringBuilder append(StringBuilder sb, double value, DecimalFormatSymbols symbols) {
+		if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_FAST_VALUE 
+				|| symbols.getZeroDigit() != '0') {
+			return sb.append(new DecimalFormat("####.##", symbols).format(value));
+		}
+
+		// DecimalFormat shows the sign of negative values which round to zero (and of -0.0)
+		boolean negative = value < 0 || (value == 0 && 1/value < 0);
+
+		double scaled = Math.abs(value) * 100;
+		double rounded = Math.rint(scaled);
+		long hundredths;
+		if (Math.abs(Math.abs(scaled - rounded) - 0.5) < 1e-6) {
+			// the multiplication may have moved the value onto or off a tie so round the exact binary value
+			hundredths = new BigDecimal(Math.abs(value)).setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+		} else {
+			hundredths = (long) rounded;
+		}
+
+		if (negative) sb.append(symbols.getMinusSign());
+		sb.append(hundredths / 100);
+		int fraction = (int) (hundredths % 100);
+		if (fraction != 0) {
+			sb.append(symbols.getDecimalSeparator()).append((char) ('0' + fraction / 10));
+			if (fraction % 10 != 0) sb.append((char) ('0' + fraction % 10));
+		}
+		return sb;
+	}
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixRenderModel.CellValues;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+
+/**
+ * Writes the values of pmatrix cells as compact JSON for the JSON view and the event stream of the tables.
+ * Written by hand so that no JSON library is needed in the OSGi bundle.
+ */
+public final class CellValuesJson {
+
+	/**
+	 * prefix of the table versions given to clients. The update sequences behind the versions restart 
+	 * from 0 when the application restarts so a version from before a restart must not be compared 
+	 * with the current sequences
+	 */
+	public static final String VERSION_EPOCH=Long.toString(System.currentTimeMillis(), 36);
+
+	private CellValuesJson(){
+	}
+
+	/**
+	 * @param sequence DataPointMapDao update sequence
+	 * @return the version given to clients for the update sequence
+	 */
+	public static String versionToken(long sequence){
+		return VERSION_EPOCH+"-"+sequence;
+	}
+
+	/**
+	 * @param token version returned by versionToken()
+	 * @return the update sequence of the version or -1 if the version is from another epoch
+	 * @throws NumberFormatException if the token is not a version
+	 */
+	public static long parseVersionToken(String token){
+		int separator=token.lastIndexOf('-');
+		long sequence=Long.parseLong(token.substring(separator+1));
+		if (separator<=0 || !VERSION_EPOCH.equals(token.substring(0, separator))) return -1;
+		return sequence;
+	}
+
+	/**
+	 * appends the values of one cell as a JSON object
+	 * @param json builder to append to
+	 * @param dpd definition of the cell
+	 * @param values values of the cell
+	 */
+	public static void appendCell(StringBuilder json, DataPointDefinition dpd, CellValues values){
+		json.append("{\"row\":");
+		appendString(json, dpd.getRowName());
+		json.append(",\"col\":");
+		appendString(json, dpd.getColName());
+		json.append(",\"value\":");
+		appendNumber(json, values.getLatestDataValue());
+		json.append(",\"range\":");
+		appendNumber(json, values.getLatestDataValueRange());
+		json.append(",\"secondary\":");
+		appendNumber(json, values.getSecondaryValue());
+		json.append(",\"secondaryRange\":");
+		appendNumber(json, values.getSecondaryValueRange());
+		json.append(",\"leftArrow\":");
+		appendString(json, values.getLeftTrendArrow());
+		json.append(",\"rightArrow\":");
+		appendString(json, values.getRightTrendArrow());
+		json.append(",\"timestamp\":");
+		appendNumber(json, values.getLatestTimestamp());
+		json.append(",\"version\":");
+		appendString(json, versionToken(values.getChangedSequence()));
+		json.append('}');
+	}
+
+	/**
+	 * appends a number or null. NaN and infinite values are not valid JSON so are written as null
+	 */
+	public static void appendNumber(StringBuilder json, Number number){
+		if (number==null 
+				|| (number instanceof Double && (((Double) number).isNaN() || ((Double) number).isInfinite()))) {
+			json.append("null");
+		} else json.append(number);
+	}
+
+	/**
+	 * appends a quoted and escaped string or null
+	 */
+	public static void appendString(StringBuilder json, String str){
+		if (str==null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i=0; i<str.length(); i++){
+			char c=str.charAt(i);
+			switch (c) {
+			case '"': json.append("\\\""); break;
+			case '\\': json.append("\\\\"); break;
+			case '\n': json.append("\\n"); break;
+			case '\r': json.append("\\r"); break;
+			case '\t': json.append("\\t"); break;
+			default:
+				if (c<0x20 || c=='<') {
+					// escape '<' so that the json can not close a script tag if embedded in a page
+					json.append(String.format("\\u%04x", (int) c));
+				} else json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
@@ -28,9 +28,13 @@
 
 package org.opennms.features.vaadin.pmatrix.engine;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 
 import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
 import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecificationList;
 
 public interface DataPointMapDao {
@@ -56,6 +60,18 @@ public interface DataPointMapDao {
 	 * key in each message from OpenNMS which identifies uniquely the message
 	 */
 	public ConcurrentMap<String, PmatrixDpdCalculator> getDataPointMap();
+
+	/**
+	 * @return the dictionary assigning a dense int id to the filePath of each data point in the dataPointMap.
+	 * The ids are used instead of the filePath strings by the ingest and update paths
+	 */
+	public PathDictionary getPathDictionary();
+
+	/**
+	 * @param pathId id of the filePath in the path dictionary
+	 * @return the calculator of the data point with this path id or null if there is none
+	 */
+	public PmatrixDpdCalculator getCalculator(int pathId);
 	
 	/**
 	 * Adds a DataPointMapUpdateListener to the DataPointMapDao. 
@@ -74,19 +90,75 @@ public interface DataPointMapDao {
 	public boolean removeDataPointMapUpdateListener(
 			DataPointMapUpdateListener dataPointMapUpdateListener);
 	
+	/**
+	 * Adds a cell displayed by a DataPointMapUpdateListener to the reverse index from filePath to subscribed cells.
+	 * Updates for the listener only include its subscribed cells. 
+	 * @param dataPointMapUpdateListener
+	 * @param dataPointDefinition the listener's definition of the cell. The filePath must not be null
+	 */
+	public void subscribe(DataPointMapUpdateListener dataPointMapUpdateListener, DataPointDefinition dataPointDefinition);
+
+	/**
+	 * Removes all of the cells subscribed by a DataPointMapUpdateListener. 
+	 * This is also done when the listener is removed with removeDataPointMapUpdateListener()
+	 * @param dataPointMapUpdateListener
+	 */
+	public void unsubscribe(DataPointMapUpdateListener dataPointMapUpdateListener);
+
+	/**
+	 * @param dataPointMapUpdateListener
+	 * @return the cells subscribed by the listener. Empty if there are none
+	 */
+	public Collection<DataPointDefinition> getSubscribedCells(DataPointMapUpdateListener dataPointMapUpdateListener);
+
+	/**
+	 * @param filePath
+	 * @return the cells in all listeners which display the data point with this filePath. Empty if there are none
+	 */
+	public List<DataPointSubscription> getSubscriptions(String filePath);
+
 	/**
 	 * Used to signal the DataPointMapUpdateListeners registered with this class using addDataPointMapUpdateListener()
-	 * that the dao data has changed. When this is called, the dataPointMapUpdated() call back methods in 
-	 * all of the registered DataPointMapUpdateListener objects are called.
-	 * (This method is synchronised so that it can be used to force an update by the heartbeat process and the data listener process)
+	 * that all of their cells should be refreshed. On the next runUpdate(), the dataPointMapUpdated() call back methods in 
+	 * all of the registered DataPointMapUpdateListener objects are called with all of their subscribed cells.
+	 * (This is used by the heartbeat process so that cells which have timed out are redisplayed)
 	 */
 	public void notifyChange();
+
+	/**
+	 * Used to signal that the data point with this filePath has changed. On the next runUpdate() only the
+	 * DataPointMapUpdateListeners subscribed to this data point are called, with only their changed cells.
+	 * This is cheap enough to call for every reading received.
+	 * @param filePath
+	 */
+	public void notifyChange(String filePath);
+
+	/**
+	 * Used to signal that the data point with this path id has changed. Equivalent to notifyChange(filePath)
+	 * without the path lookup.
+	 * @param pathId id of the filePath in the path dictionary
+	 */
+	public void notifyChange(int pathId);
 	
 	/**
-	 * This method checks if there have been any changes notified and then runs an update to all of the registered
-	 * pmatrix tables. This must be scheduled externally in a thread (by spring)
+	 * This method checks if there have been any changes notified and then runs an update to the registered
+	 * pmatrix tables which display changed cells. This must be scheduled externally in a thread (by spring)
 	 */
 	public void runUpdate();
+
+	/**
+	 * @return sequence number which is incremented each time runUpdate() finds changed data points or 
+	 * changes still to be delivered to the DataPointMapUpdateListeners
+	 */
+	public long getUpdateSequence();
+
+	/**
+	 * Returns the render model shared by all of the sessions displaying the table with this specification,
+	 * creating it if necessary.
+	 * @param pmatrixSpecification
+	 * @return the shared render model for the table
+	 */
+	public PmatrixRenderModel getRenderModel(PmatrixSpecification pmatrixSpecification);
 	
 	/**
 	 * used to tell the DataPointMapDao to persist itself. 
@@ -29,16 +29,37 @@
 package org.opennms.features.vaadin.pmatrix.engine;
 
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
 import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorRepository;
@@ -53,6 +74,8 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 @ManagedResource
 public class DataPointMapDaoImpl implements DataPointMapDao {
 	private static final Logger LOG = LoggerFactory.getLogger(DataPointMapDaoImpl.class);
@@ -70,11 +93,39 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 	@Autowired 
 	private PmatrixDpdCalculatorRepository pmatrixDpdCalculatorRepository=null;
 
+	/**
+	 * write ahead log of performance data received since the repository was last persisted.
+	 * If not null it is replayed at startup and checkpointed each time the repository is persisted
+	 */
+	private PerfDataWriteAheadLog writeAheadLog=null;
+
 	/**
 	 * Used to store listeners for updates to the datapoint map
 	 */
 	private CopyOnWriteArrayList<DataPointMapUpdateListener> dataPointMapUpdateListeners = new CopyOnWriteArrayList<DataPointMapUpdateListener>();
 
+	/**
+	 * dictionary assigning an int id to the filePath of each data point in the dataPointMap. 
+	 * Built when the pmatrix specifications are loaded
+	 */
+	private volatile PathDictionary pathDictionary = new PathDictionary(Collections.<String>emptyList());
+
+	/**
+	 * calculators in the dataPointMap indexed by path id
+	 */
+	private volatile PmatrixDpdCalculator[] calculatorsById = new PmatrixDpdCalculator[0];
+
+	/**
+	 * reverse index from path id to the cells of each listener which display that data point
+	 */
+	private volatile AtomicReferenceArray<CopyOnWriteArrayList<DataPointSubscription>> subscriptionsById = 
+			new AtomicReferenceArray<CopyOnWriteArrayList<DataPointSubscription>>(0);
+
+	/**
+	 * cells subscribed by each listener
+	 */
+	private ConcurrentMap<DataPointMapUpdateListener,CopyOnWriteArrayList<DataPointDefinition>> subscribedCellsByListener = new ConcurrentHashMap<DataPointMapUpdateListener,CopyOnWriteArrayList<DataPointDefinition>>();
+
 	/**
 	 * Used to store data point definitions for update by key where key is the filePath
 	 */
@@ -86,10 +137,115 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 	private PmatrixSpecificationList pmatrixSpecificationList=null;
 
 	/**
-	 * used to notify the table update process that a change has happened to data in the dataPointMapDao
+	 * used to notify the table update process that all subscribed cells should be refreshed
+	 * (e.g. by the heartbeat so that timed out values are shown)
 	 */
 	private AtomicBoolean changeNotified= new AtomicBoolean(false);
 
+	/**
+	 * bit set of the path ids of data points which have changed since the last runUpdate()
+	 */
+	private volatile AtomicLongArray changedPathIds = new AtomicLongArray(0);
+
+	/**
+	 * number of bits set in changedPathIds
+	 */
+	private AtomicInteger changedPathCount = new AtomicInteger(0);
+
+	/**
+	 * changed cells not yet delivered to each listener. Only accessed in runUpdate()
+	 */
+	private HashMap<DataPointMapUpdateListener,Set<DataPointDefinition>> pendingCellsByListener = new HashMap<DataPointMapUpdateListener,Set<DataPointDefinition>>();
+
+	/**
+	 * sequence number incremented each time runUpdate() finds changed data points or changes to deliver
+	 */
+	private AtomicLong updateSequence = new AtomicLong(0);
+
+	/**
+	 * number of changed cells delivered to listeners since start up
+	 */
+	private AtomicLong cellsDelivered = new AtomicLong(0);
+
+	/**
+	 * render model of each table shared by all sessions displaying the table. Key is the pmatrixName
+	 */
+	private ConcurrentMap<String,PmatrixRenderModel> renderModels = new ConcurrentHashMap<String,PmatrixRenderModel>();
+
+	/**
+	 * maximum number of listener updates waiting for an update thread
+	 */
+	private static final int LISTENER_UPDATE_QUEUE_LENGTH=1000;
+
+	/**
+	 * number of threads used to update listeners in parallel
+	 */
+	private int listenerUpdateThreads=4;
+
+	/**
+	 * time in ms runUpdate() waits for each listener update to complete
+	 */
+	private long listenerUpdateTimeout=10000;
+
+	/**
+	 * bounded executor which updates listeners. Created on first use by runUpdate()
+	 */
+	private ThreadPoolExecutor listenerUpdateExecutor=null;
+
+	/**
+	 * update statistics and update in progress for each listener
+	 */
+	private ConcurrentMap<DataPointMapUpdateListener,ListenerUpdateStatistics> listenerUpdateStatistics = new ConcurrentHashMap<DataPointMapUpdateListener,ListenerUpdateStatistics>();
+
+	/**
+	 * number of listener updates completed since start up
+	 */
+	private AtomicLong listenerUpdatesCompleted = new AtomicLong(0);
+
+	/**
+	 * total time in ms of listener updates completed since start up
+	 */
+	private AtomicLong listenerUpdateTotalTime = new AtomicLong(0);
+
+	/**
+	 * number of listener updates skipped because the previous update of the listener had not completed
+	 */
+	private AtomicLong listenerUpdatesSkipped = new AtomicLong(0);
+
+	/**
+	 * number of listener updates which had not completed within listenerUpdateTimeout
+	 */
+	private AtomicLong listenerUpdatesTimedOut = new AtomicLong(0);
+
+	/**
+	 * time in ms after a change is notified that runUpdate() is called by the change update thread.
+	 * Changes notified within this time are delivered together. If 0 runUpdate() is only called by the scheduler
+	 */
+	private long changeUpdateDelay=0;
+
+	/**
+	 * if true the render models do not render the cell descriptions on each update. 
+	 * The descriptions are fetched from the calculators when they are requested
+	 */
+	private boolean lazyCellDescriptions=false;
+
+	/**
+	 * true if runUpdate() has been scheduled by a change and has not yet started
+	 */
+	private AtomicBoolean changeUpdateScheduled= new AtomicBoolean(false);
+
+	/**
+	 * number of times runUpdate() has been called by the change update thread
+	 */
+	private AtomicLong changeUpdates = new AtomicLong(0);
+
+	/**
+	 * thread which calls runUpdate() after a change. Created on first use
+	 */
+	private ScheduledExecutorService changeUpdateExecutor=null;
+
+	private final Object changeUpdateExecutorLock = new Object();
+
 	/* (non-Javadoc)
 	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#getDataPointMap()
 	 */
@@ -98,6 +254,24 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 		return dataPointMap;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#getPathDictionary()
+	 */
+	@Override
+	public PathDictionary getPathDictionary() {
+		return pathDictionary;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#getCalculator(int)
+	 */
+	@Override
+	public PmatrixDpdCalculator getCalculator(int pathId) {
+		PmatrixDpdCalculator[] calculators = calculatorsById;
+		if (pathId<0 || pathId>=calculators.length) return null;
+		return calculators[pathId];
+	}
+
 	/* (non-Javadoc)
 	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#addDataPointMapUpdateListener()
 	 */
@@ -124,6 +298,8 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 	public boolean removeDataPointMapUpdateListener(DataPointMapUpdateListener dataPointMapUpdateListener) {
 		if (dataPointMapUpdateListener==null) throw new IllegalArgumentException("dataPointMapUpdateListener must not be null");
 		boolean updateListenerRemoved=dataPointMapUpdateListeners.remove(dataPointMapUpdateListener);
+		unsubscribe(dataPointMapUpdateListener);
+		listenerUpdateStatistics.remove(dataPointMapUpdateListener);
 		if(LOG.isDebugEnabled()) {
 			StringBuffer msg = new StringBuffer("removeDataPointMapUpdateListener() ");
 			if(updateListenerRemoved) {
@@ -138,12 +314,170 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 	}
 
 
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#subscribe()
+	 */
+	@Override
+	public void subscribe(DataPointMapUpdateListener dataPointMapUpdateListener, DataPointDefinition dataPointDefinition) {
+		DataPointSubscription subscription = new DataPointSubscription(dataPointMapUpdateListener, dataPointDefinition);
+
+		// a path without a calculator never changes so is only refreshed by notifyChange()
+		int pathId = pathDictionary.getId(subscription.getFilePath());
+		AtomicReferenceArray<CopyOnWriteArrayList<DataPointSubscription>> index = subscriptionsById;
+		if (pathId!=PathDictionary.NOT_FOUND && pathId<index.length()) {
+			CopyOnWriteArrayList<DataPointSubscription> subscriptions = index.get(pathId);
+			if (subscriptions==null) {
+				index.compareAndSet(pathId, null, new CopyOnWriteArrayList<DataPointSubscription>());
+				subscriptions = index.get(pathId);
+			}
+			subscriptions.add(subscription);
+		}
+
+		CopyOnWriteArrayList<DataPointDefinition> cells = subscribedCellsByListener.get(dataPointMapUpdateListener);
+		if (cells==null) {
+			cells = new CopyOnWriteArrayList<DataPointDefinition>();
+			CopyOnWriteArrayList<DataPointDefinition> existing = subscribedCellsByListener.putIfAbsent(dataPointMapUpdateListener, cells);
+			if (existing!=null) cells=existing;
+		}
+		cells.add(dataPointDefinition);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#unsubscribe()
+	 */
+	@Override
+	public void unsubscribe(DataPointMapUpdateListener dataPointMapUpdateListener) {
+		if (dataPointMapUpdateListener==null) throw new IllegalArgumentException("dataPointMapUpdateListener must not be null");
+		CopyOnWriteArrayList<DataPointDefinition> cells = subscribedCellsByListener.remove(dataPointMapUpdateListener);
+		if (cells==null) return;
+		AtomicReferenceArray<CopyOnWriteArrayList<DataPointSubscription>> index = subscriptionsById;
+		for (DataPointDefinition dpd : cells) {
+			int pathId = pathDictionary.getId(dpd.getFilePath());
+			if (pathId==PathDictionary.NOT_FOUND || pathId>=index.length()) continue;
+			CopyOnWriteArrayList<DataPointSubscription> subscriptions = index.get(pathId);
+			if (subscriptions==null) continue;
+			for (DataPointSubscription subscription : subscriptions) {
+				if (subscription.getDataPointMapUpdateListener()==dataPointMapUpdateListener) subscriptions.remove(subscription);
+			}
+			// empty lists are left in the index since the same paths are usually subscribed again by the next display
+		}
+		if(LOG.isDebugEnabled()) LOG.debug("unsubscribed "+cells.size()+" cells for update listener object "+dataPointMapUpdateListener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#getSubscribedCells()
+	 */
+	@Override
+	public Collection<DataPointDefinition> getSubscribedCells(DataPointMapUpdateListener dataPointMapUpdateListener) {
+		CopyOnWriteArrayList<DataPointDefinition> cells = subscribedCellsByListener.get(dataPointMapUpdateListener);
+		if (cells==null) return Collections.emptyList();
+		return Collections.unmodifiableList(cells);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#getSubscriptions()
+	 */
+	@Override
+	public List<DataPointSubscription> getSubscriptions(String filePath) {
+		return getSubscriptions(pathDictionary.getId(filePath));
+	}
+
+	/**
+	 * @param pathId
+	 * @return the cells in all listeners which display the data point with this path id. Empty if there are none
+	 */
+	private List<DataPointSubscription> getSubscriptions(int pathId) {
+		AtomicReferenceArray<CopyOnWriteArrayList<DataPointSubscription>> index = subscriptionsById;
+		if (pathId==PathDictionary.NOT_FOUND || pathId>=index.length()) return Collections.emptyList();
+		CopyOnWriteArrayList<DataPointSubscription> subscriptions = index.get(pathId);
+		if (subscriptions==null) return Collections.emptyList();
+		return Collections.unmodifiableList(subscriptions);
+	}
+
 	/* (non-Javadoc)
 	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#notifyChange()
 	 */
 	@Override
 	public void notifyChange() {
 		changeNotified.set(true);
+		scheduleChangeUpdate();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#notifyChange(java.lang.String)
+	 */
+	@Override
+	public void notifyChange(String filePath) {
+		if (filePath==null) throw new IllegalArgumentException("filePath must not be null");
+		int pathId = pathDictionary.getId(filePath);
+		// a path without a calculator can not have changed
+		if (pathId!=PathDictionary.NOT_FOUND) notifyChange(pathId);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#notifyChange(int)
+	 */
+	@Override
+	public void notifyChange(int pathId) {
+		AtomicLongArray changed = changedPathIds;
+		if (pathId<0 || (pathId>>>6)>=changed.length()) throw new IllegalArgumentException("pathId "+pathId+" is not in the path dictionary");
+		int word = pathId>>>6;
+		long bit = 1L << (pathId & 63);
+		long bits;
+		do {
+			bits = changed.get(word);
+			// already notified since the last update
+			if ((bits & bit)!=0) return;
+		} while (!changed.compareAndSet(word, bits, bits | bit));
+		changedPathCount.incrementAndGet();
+		scheduleChangeUpdate();
+	}
+
+	/**
+	 * schedules runUpdate() changeUpdateDelay ms after a change if it is not already scheduled
+	 * so that the changes are delivered without waiting for the scheduler. 
+	 */
+	private void scheduleChangeUpdate(){
+		if (changeUpdateDelay<=0) return;
+		if (!changeUpdateScheduled.compareAndSet(false, true)) return;
+		try{
+			getChangeUpdateExecutor().schedule(new Runnable() {
+				@Override
+				public void run() {
+					// cleared first so that changes notified during the update schedule a further update
+					changeUpdateScheduled.set(false);
+					try{
+						changeUpdates.incrementAndGet();
+						runUpdate();
+					} catch (Exception e){
+						LOG.error("Problem running DataPointMapDao update after change: " , e);
+					}
+				}
+			}, changeUpdateDelay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e){
+			// shut down. changes are left for the scheduler
+			changeUpdateScheduled.set(false);
+		}
+	}
+
+	/**
+	 * @return the executor which runs updates after changes, creating it if necessary
+	 */
+	private ScheduledExecutorService getChangeUpdateExecutor(){
+		synchronized(changeUpdateExecutorLock){
+			if (changeUpdateExecutor==null){
+				changeUpdateExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "PmatrixChangeUpdate");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				LOG.info("started pmatrix change update thread with changeUpdateDelay="+changeUpdateDelay+" ms");
+			}
+			return changeUpdateExecutor;
+		}
 	}
 
 
@@ -152,23 +486,244 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 	 */
 	@Override
 	public synchronized void runUpdate(){
-		if (LOG.isDebugEnabled()) LOG.debug("runUpdate called by scheduler");
-		if (changeNotified.compareAndSet(true, false)) {
-			int size=dataPointMapUpdateListeners.size();
-			if (LOG.isDebugEnabled()) LOG.debug("runUpdate changeNotified is true - updating "+size+ " pmatrix table instances");
+		if (LOG.isDebugEnabled()) LOG.debug("runUpdate called by "+Thread.currentThread().getName());
+
+		boolean refreshAll = changeNotified.compareAndSet(true, false);
+
+		// paths changed while draining are either taken now or left for the next update
+		int changedPaths=0;
+		AtomicLongArray changed = changedPathIds;
+		for (int word=0; word<changed.length(); word++){
+			if (changed.get(word)==0) continue;
+			long bits = changed.getAndSet(word, 0);
+			while (bits!=0){
+				int pathId = (word<<6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits-1;
+				changedPathCount.decrementAndGet();
+				changedPaths++;
+				if (!refreshAll) {
+					for (DataPointSubscription subscription : getSubscriptions(pathId)){
+						pendingCells(subscription.getDataPointMapUpdateListener()).add(subscription.getDataPointDefinition());
+					}
+				}
+			}
+		}
+		if (refreshAll) {
+			for (DataPointMapUpdateListener dpmudl : dataPointMapUpdateListeners){
+				pendingCells(dpmudl).addAll(getSubscribedCells(dpmudl));
+			}
+		}
+
+		if (changedPaths==0 && !refreshAll && pendingCellsByListener.isEmpty()) return;
+
+		// the sequence is incremented even if no table is displayed so that readers of the render models see the changes
+		long sequence = updateSequence.incrementAndGet();
+		int size=dataPointMapUpdateListeners.size();
+		if (LOG.isDebugEnabled()) LOG.debug("runUpdate sequence "+sequence+" refreshAll:"+refreshAll+" changed paths:"+changedPaths
+				+ " - updating "+pendingCellsByListener.size()+" of "+size+ " pmatrix table instances");
+
+		if (pendingCellsByListener.isEmpty()) return;
+
+		// each listener is updated in parallel so that one slow vaadin session does not hold up the others
+		ThreadPoolExecutor executor = getListenerUpdateExecutor();
+		List<ListenerUpdateStatistics> dispatched = new ArrayList<ListenerUpdateStatistics>();
+		int skipped=0;
+		Iterator<DataPointMapUpdateListener> dpmudlIterator = dataPointMapUpdateListeners.iterator(); 
+		while (dpmudlIterator.hasNext()){
+			final DataPointMapUpdateListener dpmudl = dpmudlIterator.next();
+			final Set<DataPointDefinition> cells = pendingCellsByListener.get(dpmudl);
+			if (cells==null || cells.isEmpty()) continue;
+
+			final ListenerUpdateStatistics statistics = getListenerUpdateStatistics(dpmudl);
+			if (statistics.isBusy()){
+				// the cells are left pending and are delivered with any further changes once the listener is free
+				skipped++;
+				continue;
+			}
+			pendingCellsByListener.remove(dpmudl);
 			try{
-				Iterator<DataPointMapUpdateListener> dpmudlIterator = dataPointMapUpdateListeners.iterator(); 
-				while (dpmudlIterator.hasNext()){
-					DataPointMapUpdateListener dpmudl = dpmudlIterator.next();
-					dpmudl.dataPointMapUpdated();
+				final long submitTime=System.currentTimeMillis();
+				statistics.inProgress = executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try{
+							dpmudl.dataPointMapUpdated(cells);
+							cellsDelivered.addAndGet(cells.size());
+						} catch (Exception e){
+							LOG.error("Problem updating changes in DataPointMapDao to DataPointMapUpdateListener "+dpmudl+": " , e);
+						} finally {
+							long latency=System.currentTimeMillis()-submitTime;
+							statistics.updateCompleted(latency);
+							listenerUpdatesCompleted.incrementAndGet();
+							listenerUpdateTotalTime.addAndGet(latency);
+						}
+					}
+				});
+				dispatched.add(statistics);
+			} catch (RejectedExecutionException e){
+				pendingCellsByListener.put(dpmudl, cells);
+				skipped++;
+			}
+		}
+		listenerUpdatesSkipped.addAndGet(skipped);
+
+		// cells pending for listeners which have since been removed are discarded
+		pendingCellsByListener.keySet().retainAll(dataPointMapUpdateListeners);
+
+		// wait for the listeners to complete so that the scheduler does not start the next update early.
+		// listeners which are still running when they time out are skipped until they complete
+		long deadline=System.currentTimeMillis()+listenerUpdateTimeout;
+		int timedOut=0;
+		for (ListenerUpdateStatistics statistics : dispatched){
+			Future<?> inProgress = statistics.inProgress;
+			if (inProgress==null) continue;
+			try {
+				inProgress.get(Math.max(deadline-System.currentTimeMillis(),0), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				timedOut++;
+			} catch (ExecutionException e) {
+				LOG.error("Problem updating changes in DataPointMapDao to DataPointMapUpdateListener "+statistics.listenerName+": " , e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		listenerUpdatesTimedOut.addAndGet(timedOut);
+		if (timedOut>0 || skipped>0) LOG.warn("runUpdate sequence "+sequence+" "+timedOut+" pmatrix table updates did not complete within "
+				+ listenerUpdateTimeout+" ms and "+skipped+" busy pmatrix tables were skipped");
+
+		if (LOG.isDebugEnabled()) LOG.debug("runUpdate finished sequence "+sequence);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#getRenderModel()
+	 */
+	@Override
+	public PmatrixRenderModel getRenderModel(PmatrixSpecification pmatrixSpecification) {
+		if (pmatrixSpecification==null || pmatrixSpecification.getPmatrixName()==null) throw new IllegalArgumentException("pmatrixSpecification pmatrixName must not be null");
+		PmatrixRenderModel renderModel = renderModels.get(pmatrixSpecification.getPmatrixName());
+		if (renderModel==null || renderModel.getPmatrixSpecification()!=pmatrixSpecification) {
+			renderModel = new PmatrixRenderModel(pmatrixSpecification, this, lazyCellDescriptions);
+			PmatrixRenderModel existing = renderModels.putIfAbsent(pmatrixSpecification.getPmatrixName(), renderModel);
+			if (existing!=null && existing.getPmatrixSpecification()==pmatrixSpecification) {
+				renderModel=existing;
+			} else if (existing!=null) {
+				// the specification has been replaced so the old model is discarded
+				renderModels.put(pmatrixSpecification.getPmatrixName(), renderModel);
+			}
+			if(LOG.isDebugEnabled()) LOG.debug("using shared render model for pmatrixName:"+pmatrixSpecification.getPmatrixName());
+		}
+		return renderModel;
+	}
+
+	/**
+	 * @return the executor used to update listeners, creating it if necessary
+	 */
+	private ThreadPoolExecutor getListenerUpdateExecutor(){
+		if (listenerUpdateExecutor==null){
+			int threads = (listenerUpdateThreads < 1) ? 1 : listenerUpdateThreads;
+			listenerUpdateExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(LISTENER_UPDATE_QUEUE_LENGTH), new ThreadFactory() {
+				private final AtomicInteger threadNumber = new AtomicInteger(0);
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PmatrixTableUpdate-"+threadNumber.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
 				}
-			} catch (Exception e){
-				LOG.error("Problem updating changes in DataPointMapDao to DataPointMapUpdateListeners: " , e);
+			});
+			listenerUpdateExecutor.allowCoreThreadTimeOut(true);
+			LOG.info("started "+threads+" pmatrix table update threads");
+		}
+		return listenerUpdateExecutor;
+	}
+
+	/**
+	 * @return the update statistics for the listener, creating them if necessary
+	 */
+	private ListenerUpdateStatistics getListenerUpdateStatistics(DataPointMapUpdateListener dataPointMapUpdateListener){
+		ListenerUpdateStatistics statistics = listenerUpdateStatistics.get(dataPointMapUpdateListener);
+		if (statistics==null){
+			statistics = new ListenerUpdateStatistics(dataPointMapUpdateListener.toString());
+			ListenerUpdateStatistics existing = listenerUpdateStatistics.putIfAbsent(dataPointMapUpdateListener, statistics);
+			if (existing!=null) statistics=existing;
+		}
+		return statistics;
+	}
+
+	/**
+	 * stops the listener update threads
+	 */
+	@PreDestroy
+	public synchronized void shutdown(){
+		if (listenerUpdateExecutor!=null){
+			LOG.info("stopping pmatrix table update threads");
+			listenerUpdateExecutor.shutdownNow();
+			listenerUpdateExecutor=null;
+		}
+		synchronized(changeUpdateExecutorLock){
+			if (changeUpdateExecutor!=null){
+				// the executor is not released so that later changes are rejected rather than starting a new thread
+				LOG.info("stopping pmatrix change update thread");
+				changeUpdateExecutor.shutdownNow();
 			}
-			if (LOG.isDebugEnabled()) LOG.debug("runUpdate finished updating "+size+ " pmatrix table instances");
 		}
 	}
 
+	/**
+	 * update in progress and latency of the updates to one listener
+	 */
+	private static class ListenerUpdateStatistics {
+
+		final String listenerName;
+
+		volatile Future<?> inProgress=null;
+
+		volatile long lastLatency=0;
+
+		volatile long maxLatency=0;
+
+		volatile long updates=0;
+
+		ListenerUpdateStatistics(String listenerName){
+			this.listenerName=listenerName;
+		}
+
+		/**
+		 * @return true if the previous update of the listener has not completed
+		 */
+		boolean isBusy(){
+			Future<?> update=inProgress;
+			return update!=null && !update.isDone();
+		}
+
+		/**
+		 * only called by the update thread of the listener
+		 */
+		void updateCompleted(long latency){
+			lastLatency=latency;
+			if (latency>maxLatency) maxLatency=latency;
+			updates++;
+		}
+
+		@Override
+		public String toString(){
+			return listenerName+" updates:"+updates+" last latency:"+lastLatency+" ms max latency:"+maxLatency+" ms"+(isBusy() ? " BUSY" : "");
+		}
+	}
+
+	/**
+	 * @return the changed cells waiting to be delivered to the listener
+	 */
+	private Set<DataPointDefinition> pendingCells(DataPointMapUpdateListener dataPointMapUpdateListener){
+		Set<DataPointDefinition> cells = pendingCellsByListener.get(dataPointMapUpdateListener);
+		if (cells==null) {
+			cells = new LinkedHashSet<DataPointDefinition>();
+			pendingCellsByListener.put(dataPointMapUpdateListener, cells);
+		}
+		return cells;
+	}
+
 
 	/**
 	 * Adds all of the data point definitions described in the pmatrixSpecification to the DataPointMapDao
@@ -336,6 +891,11 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 				}
 			}
 		}
+		buildPathDictionary();
+
+		// apply data received after the history was last persisted
+		replayWriteAheadLog();
+
 		// save the list
 		if(pmatrixDpdCalculatorRepository!=null){
 			// attach the newly loaded dataPointMap to the persister
@@ -348,13 +908,76 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 
 	}
 
+	/**
+	 * Assigns an id to the filePath of every calculator in the dataPointMap and builds the 
+	 * structures indexed by path id. Called once the pmatrix specifications are loaded and before 
+	 * any table subscribes.
+	 */
+	private void buildPathDictionary(){
+		PathDictionary dictionary = new PathDictionary(new TreeSet<String>(dataPointMap.keySet()));
+		PmatrixDpdCalculator[] calculators = new PmatrixDpdCalculator[dictionary.size()];
+		for (int pathId=0; pathId<calculators.length; pathId++){
+			calculators[pathId]=dataPointMap.get(dictionary.getPath(pathId));
+		}
+		calculatorsById=calculators;
+		subscriptionsById=new AtomicReferenceArray<CopyOnWriteArrayList<DataPointSubscription>>(dictionary.size());
+		changedPathIds=new AtomicLongArray((dictionary.size()+63)>>>6);
+		changedPathCount.set(0);
+		pathDictionary=dictionary;
+		LOG.info("built path dictionary of "+dictionary.size()+" data point filePaths");
+	}
+
+	/**
+	 * Applies the performance data in the write ahead log to the data point map. 
+	 * Readings which are not newer than a calculator's latest timestamp are already included in its history and are ignored.
+	 */
+	private void replayWriteAheadLog(){
+		if (writeAheadLog==null) return;
+		final long[] readingsApplied = new long[]{0};
+		long replayStartTime=System.currentTimeMillis();
+		final PerfDataFrameDecoder decoder = new PerfDataFrameDecoder(pathDictionary);
+		final PerfDataFrameDecoder.ReadingHandler readingHandler = new PerfDataFrameDecoder.ReadingHandler() {
+			@Override
+			public void handleReading(int pathId, long timestamp, double[] values, int valueCount) {
+				PmatrixDpdCalculator pmatrixDpdCalculator = calculatorsById[pathId];
+				synchronized(pmatrixDpdCalculator){
+					Long latestTimestamp = pmatrixDpdCalculator.getLatestTimestamp();
+					if (latestTimestamp!=null && timestamp<=latestTimestamp.longValue()) return;
+					for (int i = 0; i < valueCount; i++){
+						pmatrixDpdCalculator.updateCalculation(values[i], timestamp);
+					}
+					pmatrixDpdCalculator.markUpdated();
+				}
+				readingsApplied[0]++;
+			}
+
+			@Override
+			public void handleUnknownPath(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength) {
+			}
+		};
+		int framesReplayed = writeAheadLog.replay(new PerfDataWriteAheadLog.FrameHandler() {
+			@Override
+			public void handleFrame(byte[] frame) {
+				try {
+					decoder.decode(frame, readingHandler);
+				} catch (InvalidProtocolBufferException e) {
+					LOG.error("problem parsing performance message buffer from write ahead log:", e);
+				}
+			}
+		});
+		if (framesReplayed>0) LOG.info("replayed "+framesReplayed+" message buffers from write ahead log applying "+readingsApplied[0]
+				+ " readings newer than the persisted history in "+(System.currentTimeMillis()-replayStartTime)+" ms");
+	}
+
 	@Override
 	public synchronized boolean persist(){
 		if(pmatrixDpdCalculatorRepository==null) {
 			if(LOG.isDebugEnabled()) LOG.debug("data point map has not been persisted because the pmatrixDpdCalculatorRepository is null");
 			return false;
 		}
+		if (writeAheadLog!=null) writeAheadLog.startCheckpoint();
 		if (pmatrixDpdCalculatorRepository.persist()){
+			if (writeAheadLog!=null) writeAheadLog.completeCheckpoint();
 			if(LOG.isDebugEnabled()) LOG.debug("data point map has been persisted");
 			return true;
 		} else return false;
@@ -382,6 +1005,123 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 		return dataPointMapUpdateListeners.size();
 	}
 
+	@ManagedAttribute(description="Count of table cells subscribed for updates by all pmatrix displays.")
+	public int getSubscribedCellsCount(){
+		int count=0;
+		for (CopyOnWriteArrayList<DataPointDefinition> cells : subscribedCellsByListener.values()){
+			count=count+cells.size();
+		}
+		return count;
+	}
+
+	@ManagedAttribute(description="Count of table render models shared by the pmatrix displays.")
+	public int getRenderModelsCount(){
+		return renderModels.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opennms.features.vaadin.pmatrix.engine.DataPointMapDao#getUpdateSequence()
+	 */
+	@ManagedAttribute(description="number of times runUpdate() has found changed data points or pending table updates")
+	@Override
+	public long getUpdateSequence(){
+		return updateSequence.get();
+	}
+
+	/**
+	 * @return number of changed cells delivered to the pmatrix tables since start up
+	 */
+	@ManagedAttribute
+	public long getCellsDelivered(){
+		return cellsDelivered.get();
+	}
+
+	/**
+	 * @return number of data points changed since the last update of the pmatrix tables
+	 */
+	@ManagedAttribute
+	public int getChangedFilePathsCount(){
+		return changedPathCount.get();
+	}
+
+	/**
+	 * @return number of data point paths in the path dictionary
+	 */
+	@ManagedAttribute
+	public int getPathDictionarySize(){
+		return pathDictionary.size();
+	}
+
+	/**
+	 * @return number of pmatrix table updates completed since start up
+	 */
+	@ManagedAttribute
+	public long getListenerUpdatesCompleted(){
+		return listenerUpdatesCompleted.get();
+	}
+
+	/**
+	 * @return average time in ms from dispatch to completion of the pmatrix table updates
+	 */
+	@ManagedAttribute
+	public long getListenerUpdateAverageLatency(){
+		long completed=listenerUpdatesCompleted.get();
+		return (completed==0) ? 0 : listenerUpdateTotalTime.get()/completed;
+	}
+
+	/**
+	 * @return number of pmatrix table updates skipped because the previous update had not completed
+	 */
+	@ManagedAttribute
+	public long getListenerUpdatesSkipped(){
+		return listenerUpdatesSkipped.get();
+	}
+
+	/**
+	 * @return number of pmatrix table updates which did not complete within the listenerUpdateTimeout
+	 */
+	@ManagedAttribute
+	public long getListenerUpdatesTimedOut(){
+		return listenerUpdatesTimedOut.get();
+	}
+
+	/**
+	 * @return number of pmatrix table updates waiting for an update thread
+	 */
+	@ManagedAttribute
+	public int getListenerUpdateQueueLength(){
+		ThreadPoolExecutor executor=listenerUpdateExecutor;
+		return (executor==null) ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * @return number of pmatrix table updates run after a change rather than by the scheduler
+	 */
+	@ManagedAttribute
+	public long getChangeUpdates(){
+		return changeUpdates.get();
+	}
+
+	/**
+	 * @return time in ms after a change that the pmatrix tables are updated. 0 if only updated by the scheduler
+	 */
+	@ManagedAttribute
+	public long getChangeUpdateDelay(){
+		return changeUpdateDelay;
+	}
+
+	/**
+	 * @return update count and latency of each registered pmatrix table
+	 */
+	@ManagedAttribute
+	public String[] getListenerUpdateLatencies(){
+		List<String> latencies = new ArrayList<String>();
+		for (ListenerUpdateStatistics statistics : listenerUpdateStatistics.values()){
+			latencies.add(statistics.toString());
+		}
+		return latencies.toArray(new String[latencies.size()]);
+	}
+
 	/**
 	 * @param pmatrixDpdCalculatorRepository the pmatrixDpdCalculatorRepository to set
 	 */
@@ -390,5 +1130,51 @@ public class DataPointMapDaoImpl implements DataPointMapDao {
 		this.pmatrixDpdCalculatorRepository = pmatrixDpdCalculatorRepository;
 	}
 
+	/**
+	 * @param writeAheadLog the write ahead log replayed at startup and checkpointed on persist
+	 */
+	public void setWriteAheadLog(PerfDataWriteAheadLog writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+	}
+
+	/**
+	 * @param listenerUpdateThreads number of threads used to update the pmatrix tables in parallel
+	 */
+	public void setListenerUpdateThreads(int listenerUpdateThreads) {
+		this.listenerUpdateThreads = listenerUpdateThreads;
+	}
+
+	/**
+	 * @param listenerUpdateTimeout time in ms runUpdate() waits for each pmatrix table update to complete.
+	 * Tables still updating are skipped by the following updates until they complete
+	 */
+	public void setListenerUpdateTimeout(long listenerUpdateTimeout) {
+		this.listenerUpdateTimeout = listenerUpdateTimeout;
+	}
+
+	/**
+	 * @param changeUpdateDelay time in ms after a change is notified that the pmatrix tables are updated.
+	 * All changes notified within this time are delivered in one update. 
+	 * If 0 the tables are only updated when runUpdate() is called by the scheduler
+	 */
+	public void setChangeUpdateDelay(long changeUpdateDelay) {
+		this.changeUpdateDelay = changeUpdateDelay;
+	}
+
+	/**
+	 * @return true if the cell descriptions are rendered only when they are requested
+	 */
+	public boolean getLazyCellDescriptions() {
+		return lazyCellDescriptions;
+	}
+
+	/**
+	 * @param lazyCellDescriptions if true the render models do not render the cell descriptions on each update. 
+	 * Must match the lazyCellDescriptions of the PmatrixDataSources
+	 */
+	public void setLazyCellDescriptions(boolean lazyCellDescriptions) {
+		this.lazyCellDescriptions = lazyCellDescriptions;
+	}
+
 
 }
@@ -28,11 +28,17 @@
 
 package org.opennms.features.vaadin.pmatrix.engine;
 
+import java.util.Collection;
+
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+
 public interface DataPointMapUpdateListener {
 	
 	/**
 	 * method called when a data point map is updated
+	 * @param updatedCells the cells subscribed by this listener using DataPointMapDao.subscribe() 
+	 * which have changed since the last call and are to be refreshed from the data point map
 	 */
-	public void dataPointMapUpdated();
+	public void dataPointMapUpdated(Collection<DataPointDefinition> updatedCells);
 
 }
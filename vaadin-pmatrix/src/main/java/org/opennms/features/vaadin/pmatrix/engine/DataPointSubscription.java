@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+
+/**
+ * Entry in the DataPointMapDao reverse index from a data point filePath to the cells which display it.
+ * The dataPointDefinition is the listener's own copy of the cell definition and so carries the 
+ * row and column of the cell in the listener's table.
+ */
+public class DataPointSubscription {
+
+	private final DataPointMapUpdateListener dataPointMapUpdateListener;
+
+	private final DataPointDefinition dataPointDefinition;
+
+	public DataPointSubscription(DataPointMapUpdateListener dataPointMapUpdateListener, DataPointDefinition dataPointDefinition) {
+		if (dataPointMapUpdateListener==null) throw new IllegalArgumentException("dataPointMapUpdateListener must not be null");
+		if (dataPointDefinition==null || dataPointDefinition.getFilePath()==null) throw new IllegalArgumentException("dataPointDefinition filePath must not be null");
+		this.dataPointMapUpdateListener = dataPointMapUpdateListener;
+		this.dataPointDefinition = dataPointDefinition;
+	}
+
+	/**
+	 * @return the listener which subscribed to the cell
+	 */
+	public DataPointMapUpdateListener getDataPointMapUpdateListener() {
+		return dataPointMapUpdateListener;
+	}
+
+	/**
+	 * @return the listener's definition of the subscribed cell
+	 */
+	public DataPointDefinition getDataPointDefinition() {
+		return dataPointDefinition;
+	}
+
+	/**
+	 * @return the filePath of the data point displayed in the cell
+	 */
+	public String getFilePath() {
+		return dataPointDefinition.getFilePath();
+	}
+
+}
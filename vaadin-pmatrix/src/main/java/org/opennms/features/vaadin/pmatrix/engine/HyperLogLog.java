@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog estimate of the number of distinct values offered, in a fixed 2^precision bytes. 
+ * With the default precision of 12 the standard error of the estimate is about 1.6% (1.04/sqrt(4096)).
+ * 
+ * Values are offered as their 64 bit hash so that a caller which also needs the hash for another 
+ * structure only computes it once. Use hash64() to hash encoded bytes without creating a String.
+ * 
+ * Not thread safe.
+ */
+public final class HyperLogLog {
+
+	public static final int DEFAULT_PRECISION=12;
+
+	private final int precision;
+
+	private final byte[] registers;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param precision number of hash bits used to select a register (4-16)
+	 */
+	public HyperLogLog(int precision) {
+		if (precision<4 || precision>16) throw new IllegalArgumentException("precision must be between 4 and 16: "+precision);
+		this.precision=precision;
+		this.registers=new byte[1<<precision];
+	}
+
+	/**
+	 * records a value
+	 * @param hash well distributed 64 bit hash of the value
+	 */
+	public void offer(long hash){
+		int index = (int) (hash>>>(64-precision));
+		// the set bit limits the rank if the remaining bits are all zero
+		long remaining = (hash<<precision) | (1L<<(precision-1));
+		int rank = Long.numberOfLeadingZeros(remaining)+1;
+		if (rank>registers[index]) registers[index]=(byte) rank;
+	}
+
+	/**
+	 * @return the estimated number of distinct values offered since construction or clear()
+	 */
+	public long cardinality(){
+		int m = registers.length;
+		double sum=0;
+		int zeroRegisters=0;
+		for (byte register : registers){
+			sum+= 1.0/(1L<<register);
+			if (register==0) zeroRegisters++;
+		}
+		double estimate = alpha(m)*m*m/sum;
+		// linear counting is more accurate for small cardinalities
+		if (estimate<=2.5*m && zeroRegisters>0) estimate = m*Math.log((double) m/zeroRegisters);
+		return Math.round(estimate);
+	}
+
+	private static double alpha(int m){
+		switch (m) {
+		case 16: return 0.673;
+		case 32: return 0.697;
+		case 64: return 0.709;
+		default: return 0.7213/(1+1.079/m);
+		}
+	}
+
+	public void clear(){
+		Arrays.fill(registers, (byte) 0);
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the bytes followed by the MurmurHash3 finalizer so that both the high bits 
+	 * used to select a register and the low bits used by hash tables are well distributed
+	 */
+	public static long hash64(byte[] buffer, int offset, int length){
+		long hash=0xcbf29ce484222325L;
+		for (int i=offset; i<offset+length; i++){
+			hash ^= buffer[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash>>>33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash>>>33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash>>>33;
+		return hash;
+	}
+}
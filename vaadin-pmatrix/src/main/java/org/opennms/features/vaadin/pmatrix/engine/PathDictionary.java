@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Dictionary of the data point filePaths of the configuration which assigns each path a dense int id.
+ * The ids index the arrays which replace maps keyed by the path string in the ingest and update paths.
+ * 
+ * Paths can be looked up from their UTF-8 bytes in a received message buffer without creating a String.
+ * The dictionary is immutable once built and so can be shared by any number of threads.
+ */
+public final class PathDictionary {
+
+	/**
+	 * id returned for a path which is not in the dictionary
+	 */
+	public static final int NOT_FOUND=-1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String[] paths;
+
+	/**
+	 * UTF-8 encoding of each path indexed by id
+	 */
+	private final byte[][] pathBytes;
+
+	private final HashMap<String,Integer> idsByPath;
+
+	/**
+	 * open addressing hash table of id+1 indexed by the hash of the path bytes. 0 is an empty slot
+	 */
+	private final int[] table;
+
+	private final int mask;
+
+	/**
+	 * shortest and longest encoded path in bytes. Lengths outside these bounds are rejected without hashing
+	 */
+	private final int minPathLength;
+	private final int maxPathLength;
+
+	/**
+	 * builds a dictionary assigning ids in iteration order. Null and duplicate paths are ignored
+	 * @param paths
+	 */
+	public PathDictionary(Collection<String> paths) {
+		idsByPath = new HashMap<String,Integer>();
+		List<String> uniquePaths = new ArrayList<String>(paths.size());
+		for (String path : paths) {
+			if (path==null || idsByPath.containsKey(path)) continue;
+			idsByPath.put(path, uniquePaths.size());
+			uniquePaths.add(path);
+		}
+		this.paths = uniquePaths.toArray(new String[uniquePaths.size()]);
+		this.pathBytes = new byte[this.paths.length][];
+
+		// table is kept at most half full so that probe sequences stay short
+		int capacity=2;
+		while (capacity < this.paths.length*2) capacity=capacity<<1;
+		table = new int[capacity];
+		mask = capacity-1;
+
+		int minLength=Integer.MAX_VALUE;
+		int maxLength=-1;
+		for (int id=0; id<this.paths.length; id++){
+			byte[] bytes = this.paths[id].getBytes(UTF8);
+			pathBytes[id]=bytes;
+			if (bytes.length<minLength) minLength=bytes.length;
+			if (bytes.length>maxLength) maxLength=bytes.length;
+			int slot = hash(bytes, 0, bytes.length) & mask;
+			while (table[slot]!=0) slot=(slot+1) & mask;
+			table[slot]=id+1;
+		}
+		minPathLength=minLength;
+		maxPathLength=maxLength;
+	}
+
+	/**
+	 * @return the number of paths in the dictionary. Ids are 0 to size()-1
+	 */
+	public int size() {
+		return paths.length;
+	}
+
+	/**
+	 * @return the path with this id
+	 */
+	public String getPath(int id) {
+		return paths[id];
+	}
+
+	/**
+	 * @return the id of the path or NOT_FOUND
+	 */
+	public int getId(String path) {
+		if (path==null) return NOT_FOUND;
+		Integer id = idsByPath.get(path);
+		return (id==null) ? NOT_FOUND : id.intValue();
+	}
+
+	/**
+	 * Looks up a path from its UTF-8 bytes without creating a String
+	 * @param buffer buffer holding the encoded path
+	 * @param offset offset of the path in the buffer
+	 * @param length length in bytes of the path
+	 * @return the id of the path or NOT_FOUND
+	 */
+	public int getId(byte[] buffer, int offset, int length) {
+		if (length<minPathLength || length>maxPathLength) return NOT_FOUND;
+		int slot = hash(buffer, offset, length) & mask;
+		int entry;
+		while ((entry=table[slot])!=0){
+			byte[] candidate = pathBytes[entry-1];
+			if (candidate.length==length && sameBytes(candidate, buffer, offset)) return entry-1;
+			slot=(slot+1) & mask;
+		}
+		return NOT_FOUND;
+	}
+
+	private static boolean sameBytes(byte[] candidate, byte[] buffer, int offset){
+		// paths usually share long prefixes so compare from the end
+		for (int i=candidate.length-1; i>=0; i--){
+			if (candidate[i]!=buffer[offset+i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a hash of the bytes with a final mix so that the low bits used by the table are well distributed
+	 */
+	static int hash(byte[] buffer, int offset, int length){
+		int h=0x811c9dc5;
+		for (int i=offset; i<offset+length; i++){
+			h ^= buffer[i] & 0xff;
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+}
@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Decodes a PerformanceDataReadings message buffer directly from its protobuf wire format and resolves 
+ * the path of each reading to its PathDictionary id from the bytes in the buffer.
+ * 
+ * Unlike PerformanceDataReadings.parseFrom() no String or message object is created for a reading. 
+ * Each path is first checked against the prefix rules of a PerfDataPathFilter. The values of a reading 
+ * whose path is rejected by a rule or is not in the dictionary are skipped without being decoded.
+ * For a path which is not in the dictionary only the owner is located so that unmatched readings 
+ * can be tracked.
+ * 
+ * The wire format decoded is that of PerformanceDataProtos.proto: 
+ * PerformanceDataReadings { repeated PerformanceDataReading message = 1; }
+ * PerformanceDataReading { required string path = 1; required string owner = 2; 
+ *                          required uint64 timestamp = 3; repeated double value = 4; }
+ * 
+ * A message can also be decoded as it is read from a CodedInputStream, e.g. straight from a socket. 
+ * Each reading is then passed to the handler as soon as it has been read, so only one reading of 
+ * the message is held in memory and the first reading is handled before the rest has arrived.
+ * 
+ * An instance reuses its value buffer and so must only be used by one thread.
+ */
+public class PerfDataFrameDecoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int WIRETYPE_VARINT=0;
+	private static final int WIRETYPE_FIXED64=1;
+	private static final int WIRETYPE_LENGTH_DELIMITED=2;
+	private static final int WIRETYPE_FIXED32=5;
+
+	private static final int READINGS_MESSAGE_FIELD=1;
+	private static final int READING_PATH_FIELD=1;
+	private static final int READING_OWNER_FIELD=2;
+	private static final int READING_TIMESTAMP_FIELD=3;
+	private static final int READING_VALUE_FIELD=4;
+
+	/**
+	 * receives the decoded readings
+	 */
+	public interface ReadingHandler {
+
+		/**
+		 * called for each reading whose path is in the dictionary
+		 * @param pathId dictionary id of the path
+		 * @param timestamp
+		 * @param values buffer reused for the next reading. Only the first valueCount entries are valid
+		 * @param valueCount
+		 */
+		public void handleReading(int pathId, long timestamp, double[] values, int valueCount);
+
+		/**
+		 * called for each reading whose path passed the prefix rules but is not in the dictionary. 
+		 * Readings rejected by a prefix rule are not passed to the handler
+		 * @param buffer message buffer
+		 * @param pathOffset offset of the UTF-8 path in the buffer
+		 * @param pathLength length of the path in bytes
+		 * @param ownerOffset offset of the UTF-8 owner in the buffer or -1 if the reading has no owner
+		 * @param ownerLength length of the owner in bytes
+		 */
+		public void handleUnknownPath(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength);
+	}
+
+	private final PerfDataPathFilter pathFilter;
+
+	private double[] values = new double[16];
+
+	/**
+	 * holds the path and owner of an unknown reading decoded from a stream
+	 */
+	private byte[] unknownPathBuffer = new byte[256];
+
+	// decoding position in the current buffer
+	private byte[] buffer;
+	private int pos;
+
+	public PerfDataFrameDecoder(PathDictionary pathDictionary) {
+		this(new PerfDataPathFilter(pathDictionary));
+	}
+
+	public PerfDataFrameDecoder(PerfDataPathFilter pathFilter) {
+		if (pathFilter==null) throw new IllegalArgumentException("pathFilter must not be null");
+		this.pathFilter=pathFilter;
+	}
+
+	/**
+	 * @return the dictionary used to resolve paths
+	 */
+	public PathDictionary getPathDictionary() {
+		return pathFilter.getPathDictionary();
+	}
+
+	/**
+	 * @return the filter used to resolve paths
+	 */
+	public PerfDataPathFilter getPathFilter() {
+		return pathFilter;
+	}
+
+	/**
+	 * decodes every reading in a PerformanceDataReadings message buffer
+	 * @param frame the message buffer
+	 * @param handler receives the readings in order
+	 * @return the number of readings in the buffer including those rejected by a prefix rule
+	 * @throws InvalidProtocolBufferException if the buffer is not a valid message. 
+	 * Readings before the error have already been passed to the handler
+	 */
+	public int decode(byte[] frame, ReadingHandler handler) throws InvalidProtocolBufferException {
+		buffer=frame;
+		pos=0;
+		int readings=0;
+		try {
+			while (pos<frame.length){
+				int tag = readVarint32();
+				if ((tag>>>3)==READINGS_MESSAGE_FIELD && (tag & 7)==WIRETYPE_LENGTH_DELIMITED){
+					int length = readLength();
+					decodeReading(pos+length, handler);
+					readings++;
+				} else skipField(tag, frame.length);
+			}
+		} finally {
+			buffer=null;
+		}
+		return readings;
+	}
+
+	/**
+	 * decodes one PerformanceDataReading ending at limit
+	 */
+	private void decodeReading(int limit, ReadingHandler handler) throws InvalidProtocolBufferException {
+		int pathOffset=-1;
+		int pathLength=0;
+		int pathId=PathDictionary.NOT_FOUND;
+		int ownerOffset=-1;
+		int ownerLength=0;
+		boolean skipValues=false;
+		long timestamp=0;
+		int valueCount=0;
+		while (pos<limit){
+			int tag = readVarint32();
+			int field = tag>>>3;
+			int wireType = tag & 7;
+			if (field==READING_PATH_FIELD && wireType==WIRETYPE_LENGTH_DELIMITED){
+				pathLength = readLength();
+				pathOffset = pos;
+				pos+=pathLength;
+				pathId = pathFilter.getId(buffer, pathOffset, pathLength);
+				if (pathId==PerfDataPathFilter.REJECTED_BY_RULE) {
+					// the rest of the reading is not needed
+					pos=limit;
+					break;
+				}
+				// only the owner of an unknown path is needed
+				skipValues = pathId==PathDictionary.NOT_FOUND;
+			} else if (field==READING_OWNER_FIELD && wireType==WIRETYPE_LENGTH_DELIMITED){
+				ownerLength = readLength();
+				ownerOffset = pos;
+				pos+=ownerLength;
+			} else if (field==READING_TIMESTAMP_FIELD && wireType==WIRETYPE_VARINT){
+				timestamp = readVarint64();
+			} else if (skipValues) {
+				skipField(tag, limit);
+			} else if (field==READING_VALUE_FIELD && wireType==WIRETYPE_FIXED64){
+				if (valueCount==values.length) growValues();
+				values[valueCount++] = Double.longBitsToDouble(readFixed64());
+			} else if (field==READING_VALUE_FIELD && wireType==WIRETYPE_LENGTH_DELIMITED){
+				// packed values
+				int packedLimit = pos+readLength();
+				if (packedLimit>limit) throw new InvalidProtocolBufferException("packed values overrun the reading");
+				while (pos<packedLimit){
+					if (valueCount==values.length) growValues();
+					values[valueCount++] = Double.longBitsToDouble(readFixed64());
+				}
+			} else skipField(tag, limit);
+		}
+		if (pos!=limit) throw new InvalidProtocolBufferException("reading overruns its length");
+
+		if (pathOffset<0) return; // required path missing. Nothing to update
+		if (pathId==PerfDataPathFilter.REJECTED_BY_RULE) return;
+		if (pathId==PathDictionary.NOT_FOUND) {
+			handler.handleUnknownPath(buffer, pathOffset, pathLength, ownerOffset, ownerLength);
+		} else {
+			handler.handleReading(pathId, timestamp, values, valueCount);
+		}
+	}
+
+	/**
+	 * decodes a PerformanceDataReadings message as it is read, passing each reading to the handler 
+	 * as soon as it has been decoded
+	 * @param input stream positioned at the start of the message. The message ends at the end of the 
+	 * stream or at the current limit of input
+	 * @param handler receives the readings in order
+	 * @return the number of readings in the message including those rejected by a prefix rule
+	 * @throws IOException if the stream cannot be read or is not a valid message. 
+	 * Readings before the error have already been passed to the handler
+	 */
+	public int decode(CodedInputStream input, ReadingHandler handler) throws IOException {
+		int readings=0;
+		int tag;
+		while ((tag = input.readTag())!=0){
+			if ((tag>>>3)==READINGS_MESSAGE_FIELD && (tag & 7)==WIRETYPE_LENGTH_DELIMITED){
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				decodeReading(input, handler);
+				input.popLimit(oldLimit);
+				readings++;
+			} else if (!input.skipField(tag)) break;
+		}
+		return readings;
+	}
+
+	/**
+	 * decodes one PerformanceDataReading ending at the current limit of input
+	 */
+	private void decodeReading(CodedInputStream input, ReadingHandler handler) throws IOException {
+		byte[] path=null;
+		int pathId=PathDictionary.NOT_FOUND;
+		byte[] owner=null;
+		boolean skipValues=false;
+		long timestamp=0;
+		int valueCount=0;
+		int tag;
+		while ((tag = input.readTag())!=0){
+			int field = tag>>>3;
+			int wireType = tag & 7;
+			if (field==READING_PATH_FIELD && wireType==WIRETYPE_LENGTH_DELIMITED){
+				path = input.readRawBytes(input.readRawVarint32());
+				pathId = pathFilter.getId(path, 0, path.length);
+				if (pathId==PerfDataPathFilter.REJECTED_BY_RULE) {
+					// the rest of the reading is not needed
+					while ((tag = input.readTag())!=0) input.skipField(tag);
+					return;
+				}
+				// only the owner of an unknown path is needed
+				skipValues = pathId==PathDictionary.NOT_FOUND;
+			} else if (field==READING_OWNER_FIELD && wireType==WIRETYPE_LENGTH_DELIMITED && (path==null || skipValues)){
+				owner = input.readRawBytes(input.readRawVarint32());
+			} else if (field==READING_TIMESTAMP_FIELD && wireType==WIRETYPE_VARINT){
+				timestamp = input.readUInt64();
+			} else if (skipValues) {
+				input.skipField(tag);
+			} else if (field==READING_VALUE_FIELD && wireType==WIRETYPE_FIXED64){
+				if (valueCount==values.length) growValues();
+				values[valueCount++] = input.readDouble();
+			} else if (field==READING_VALUE_FIELD && wireType==WIRETYPE_LENGTH_DELIMITED){
+				// packed values
+				int oldLimit = input.pushLimit(input.readRawVarint32());
+				while (!input.isAtEnd()){
+					if (valueCount==values.length) growValues();
+					values[valueCount++] = input.readDouble();
+				}
+				input.popLimit(oldLimit);
+			} else input.skipField(tag);
+		}
+
+		if (path==null) return; // required path missing. Nothing to update
+		if (pathId==PathDictionary.NOT_FOUND) {
+			// the handler expects the path and owner in one buffer
+			int ownerLength = (owner==null) ? 0 : owner.length;
+			if (unknownPathBuffer.length<path.length+ownerLength) unknownPathBuffer = new byte[path.length+ownerLength];
+			System.arraycopy(path, 0, unknownPathBuffer, 0, path.length);
+			if (owner!=null) System.arraycopy(owner, 0, unknownPathBuffer, path.length, ownerLength);
+			handler.handleUnknownPath(unknownPathBuffer, 0, path.length, (owner==null) ? -1 : path.length, ownerLength);
+		} else {
+			handler.handleReading(pathId, timestamp, values, valueCount);
+		}
+	}
+
+	/**
+	 * @return the path or owner of a reading passed to ReadingHandler.handleUnknownPath()
+	 */
+	public static String pathString(byte[] buffer, int pathOffset, int pathLength){
+		return new String(buffer, pathOffset, pathLength, UTF8);
+	}
+
+	private void growValues(){
+		double[] grown = new double[values.length*2];
+		System.arraycopy(values, 0, grown, 0, values.length);
+		values=grown;
+	}
+
+	private void skipField(int tag, int limit) throws InvalidProtocolBufferException {
+		switch (tag & 7) {
+		case WIRETYPE_VARINT: readVarint64(); break;
+		case WIRETYPE_FIXED64: skip(8, limit); break;
+		case WIRETYPE_LENGTH_DELIMITED: skip(readLength(), limit); break;
+		case WIRETYPE_FIXED32: skip(4, limit); break;
+		default: throw new InvalidProtocolBufferException("unsupported wire type "+(tag & 7)+" in performance message");
+		}
+	}
+
+	private void skip(int length, int limit) throws InvalidProtocolBufferException {
+		if (length<0 || pos+length>limit) throw new InvalidProtocolBufferException("field overruns the message");
+		pos+=length;
+	}
+
+	private int readLength() throws InvalidProtocolBufferException {
+		int length = readVarint32();
+		if (length<0 || pos+length>buffer.length) throw new InvalidProtocolBufferException("length "+length+" overruns the message buffer");
+		return length;
+	}
+
+	private int readVarint32() throws InvalidProtocolBufferException {
+		return (int) readVarint64();
+	}
+
+	private long readVarint64() throws InvalidProtocolBufferException {
+		long result=0;
+		for (int shift=0; shift<64; shift+=7){
+			if (pos>=buffer.length) throw new InvalidProtocolBufferException("truncated varint in performance message");
+			byte b = buffer[pos++];
+			result |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80)==0) return result;
+		}
+		throw new InvalidProtocolBufferException("malformed varint in performance message");
+	}
+
+	private long readFixed64() throws InvalidProtocolBufferException {
+		if (pos+8>buffer.length) throw new InvalidProtocolBufferException("truncated double in performance message");
+		long result= (buffer[pos] & 0xffL)
+				| (buffer[pos+1] & 0xffL) << 8
+				| (buffer[pos+2] & 0xffL) << 16
+				| (buffer[pos+3] & 0xffL) << 24
+				| (buffer[pos+4] & 0xffL) << 32
+				| (buffer[pos+5] & 0xffL) << 40
+				| (buffer[pos+6] & 0xffL) << 48
+				| (buffer[pos+7] & 0xffL) << 56;
+		pos+=8;
+		return result;
+	}
+}
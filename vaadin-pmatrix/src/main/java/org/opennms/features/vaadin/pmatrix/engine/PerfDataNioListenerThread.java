@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non blocking alternative to the single socket accept loop used by PmatrixPerfDataListenerBuffered.
+ * 
+ * A single selector thread serves all of the sender connections at once. OpenNMS sends one 
+ * PerformanceDataReadings message per connection and closes the connection when the message 
+ * is complete, so each connection is read into pooled buffer chunks until end of stream and 
+ * the complete frame is then handed to the processing queue as a byte array. 
+ * Parsing is left to the queue thread so that a slow or stalled sender can never hold up
+ * any other connection.
+ * 
+ * Senders which flush often can instead keep one connection open and write a stream of length 
+ * delimited frames, each a varint length followed by a PerformanceDataReadings message (the format 
+ * of protobuf writeDelimitedTo()). Every connection to delimitedPort is read this way. On the 
+ * one shot port a connection whose first byte is 0 is also read this way: a one shot message 
+ * always starts with the tag of its first reading, so a stream sender opens with an empty frame. 
+ * Empty frames are ignored and may also be sent to keep an idle connection open.
+ * 
+ * @author opennms
+ *
+ */
+class PerfDataNioListenerThread extends Thread {
+	private static final Logger LOG = LoggerFactory.getLogger(PerfDataNioListenerThread.class);
+
+	/**
+	 * size of each pooled read buffer chunk
+	 */
+	static final int BUFFER_CHUNK_SIZE=8192;
+
+	/**
+	 * maximum number of free chunks kept in the pool. Chunks released beyond this are left to the garbage collector
+	 */
+	static final int MAX_POOLED_CHUNKS=256;
+
+	/**
+	 * maximum number of direct chunks allocated at any time. Further chunks are allocated on the heap so
+	 * that a burst of connections cannot exhaust the direct memory of the JVM (32 MB)
+	 */
+	static final int MAX_DIRECT_CHUNKS=4096;
+
+	/**
+	 * minimum time (ms) between warnings that frames were dropped because the queue was full
+	 */
+	static final long DROPPED_FRAME_WARNING_INTERVAL=10000;
+
+	/**
+	 * how often (ms) the selector wakes up to check for idle connections and shutdown
+	 */
+	private static final long SELECT_TIMEOUT=1000;
+
+	/**
+	 * the empty frame with which a delimited stream starts on the one shot port
+	 */
+	static final byte DELIMITED_PREAMBLE=0;
+
+	/**
+	 * receive buffers of delimited connections larger than this are released when they are empty
+	 */
+	private static final int MAX_RETAINED_STREAM_BUFFER=64*1024;
+
+	/**
+	 * the longest varint length prefix
+	 */
+	private static final int MAX_LENGTH_PREFIX=5;
+
+	private final BlockingQueue<byte[]> m_queue;
+	private final int port;
+	private final int delimitedPort;
+	private final AtomicBoolean run;
+	private final AtomicLong numberMessageBuffersReceived;
+	private final AtomicLong numberMessageBuffersDropped;
+	private final AtomicInteger numberOpenConnections;
+	private final AtomicInteger numberOpenDelimitedConnections;
+	private final int maxFrameSize;
+	private final int maxConnections;
+	private final long connectionIdleTimeout;
+	private final PerfDataWriteAheadLog writeAheadLog;
+
+	/**
+	 * free read buffer chunks. Only accessed from the selector thread so needs no synchronization
+	 */
+	private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * number of direct chunks currently allocated, pooled or in use. Only accessed from the selector thread
+	 */
+	private int directChunksAllocated=0;
+
+	/**
+	 * time of the last dropped frame warning. Only accessed from the selector thread
+	 */
+	private long lastDroppedFrameWarning=0;
+
+	private volatile Selector selector;
+
+	/**
+	 * per connection state attached to each read SelectionKey
+	 */
+	private static class FrameAccumulator {
+		final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		int length=0;
+		long lastActivity=System.currentTimeMillis();
+
+		/**
+		 * true once it is known whether the connection is one shot or delimited
+		 */
+		boolean protocolKnown=false;
+
+		/**
+		 * receive buffer of a delimited connection. null for a one shot connection
+		 */
+		ByteBuffer streamBuffer=null;
+	}
+
+	/**
+	 * @param port port to listen on
+	 * @param delimitedPort port on which every connection carries length delimited frames. 0 if not used
+	 * @param run shared run flag. Set to false to stop the thread
+	 * @param m_queue queue to which complete message frames are offered
+	 * @param numberMessageBuffersReceived incremented for each complete frame received
+	 * @param numberMessageBuffersDropped incremented for each complete frame dropped because the queue is full
+	 * @param numberOpenConnections kept equal to the number of sender connections currently open
+	 * @param numberOpenDelimitedConnections kept equal to the number of open connections carrying length delimited frames
+	 * @param maxFrameSize connections sending a frame longer than this are dropped
+	 * @param maxConnections new connections are refused when this many are already open
+	 * @param connectionIdleTimeout connections which send nothing for this many ms are dropped
+	 * @param writeAheadLog if not null each frame is appended to this log once it has been queued
+	 */
+	PerfDataNioListenerThread(int port, int delimitedPort, AtomicBoolean run, BlockingQueue<byte[]> m_queue, AtomicLong numberMessageBuffersReceived,
+			AtomicLong numberMessageBuffersDropped, AtomicInteger numberOpenConnections, AtomicInteger numberOpenDelimitedConnections, int maxFrameSize, int maxConnections, 
+			long connectionIdleTimeout, PerfDataWriteAheadLog writeAheadLog){
+		this.port=port;
+		this.delimitedPort=(delimitedPort==port) ? 0 : delimitedPort;
+		this.run=run;
+		this.m_queue=m_queue;
+		this.numberMessageBuffersReceived=numberMessageBuffersReceived;
+		this.numberMessageBuffersDropped=numberMessageBuffersDropped;
+		this.numberOpenConnections=numberOpenConnections;
+		this.numberOpenDelimitedConnections=numberOpenDelimitedConnections;
+		this.maxFrameSize=maxFrameSize;
+		this.maxConnections=maxConnections;
+		this.connectionIdleTimeout=connectionIdleTimeout;
+		this.writeAheadLog=writeAheadLog;
+	}
+
+	@Override
+	public void run() {
+
+		LOG.info("PmatrixPerfDataListener PerfDataNioListenerThread is starting to Listen for messages on port:"+port); 
+
+		ServerSocketChannel serverChannel=null;
+		ServerSocketChannel delimitedServerChannel=null;
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			// Avoid TIME_WAIT when killing the server
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			if (delimitedPort>0){
+				LOG.info("PmatrixPerfDataListener PerfDataNioListenerThread is starting to Listen for length delimited messages on port:"+delimitedPort); 
+				delimitedServerChannel = ServerSocketChannel.open();
+				delimitedServerChannel.configureBlocking(false);
+				delimitedServerChannel.socket().setReuseAddress(true);
+				delimitedServerChannel.socket().bind(new InetSocketAddress(delimitedPort));
+				delimitedServerChannel.register(selector, SelectionKey.OP_ACCEPT);
+			}
+
+			long lastIdleCheck=System.currentTimeMillis();
+
+			while (run.get()) {
+				selector.select(SELECT_TIMEOUT);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept((ServerSocketChannel) key.channel(), key.channel()==delimitedServerChannel);
+						} else if (key.isReadable()) {
+							read(key);
+						}
+					} catch (IOException e) {
+						LOG.error("IO exception when reading performance messages from connection:",e);
+						closeConnection(key);
+					}
+				}
+
+				long now=System.currentTimeMillis();
+				if (now-lastIdleCheck > SELECT_TIMEOUT){
+					closeIdleConnections(now);
+					lastIdleCheck=now;
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// selector closed by stopListenerThread
+		} catch (IOException e) {
+			LOG.error("IO exception when setting up server socket channel for performance messages ",e);
+		} finally {
+			run.set(false); // stop queue thread as well
+			if (selector!=null) {
+				try {
+					for (SelectionKey key : selector.keys()) {
+						if(key.attachment()!=null) closeConnection(key);
+					}
+				} catch (ClosedSelectorException e) {
+					// already closed
+				}
+				try{
+					selector.close();
+				} catch (IOException e2) {
+					LOG.error("IO exception closing performance message selector:",e2);
+				}
+			}
+			if (serverChannel!=null) try{
+				serverChannel.close();
+			} catch (IOException e2) {
+				LOG.error("IO exception closing performance message server socket channel:",e2);
+			} 
+			if (delimitedServerChannel!=null) try{
+				delimitedServerChannel.close();
+			} catch (IOException e2) {
+				LOG.error("IO exception closing length delimited performance message server socket channel:",e2);
+			} 
+		}
+		LOG.info("PmatrixPerfDataListener PerfDataNioListenerThread has stopped");
+	}
+
+	private void accept(ServerSocketChannel serverChannel, boolean delimited) throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel==null) return;
+		if (numberOpenConnections.get() >= maxConnections){
+			LOG.warn("Refusing performance message connection from "+channel.socket().getRemoteSocketAddress()
+					+" (maximum number of connections "+maxConnections+" reached)");
+			channel.close();
+			return;
+		}
+		channel.configureBlocking(false);
+		FrameAccumulator frame = new FrameAccumulator();
+		if (delimited) {
+			frame.protocolKnown=true;
+			frame.streamBuffer=ByteBuffer.allocate(BUFFER_CHUNK_SIZE);
+			numberOpenDelimitedConnections.getAndIncrement();
+		}
+		channel.register(selector, SelectionKey.OP_READ, frame);
+		numberOpenConnections.getAndIncrement();
+		if(LOG.isDebugEnabled()) LOG.debug("Accepted performance message connection from "+channel.socket().getRemoteSocketAddress()
+				+ " open connections:"+numberOpenConnections.get());
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		FrameAccumulator frame = (FrameAccumulator) key.attachment();
+		frame.lastActivity=System.currentTimeMillis();
+
+		if (frame.streamBuffer!=null) {
+			readDelimited(key, channel, frame);
+			return;
+		}
+
+		int bytesRead;
+		do {
+			ByteBuffer chunk = frame.chunks.isEmpty() ? null : frame.chunks.get(frame.chunks.size()-1);
+			if (chunk==null || !chunk.hasRemaining()){
+				chunk=borrowChunk();
+				frame.chunks.add(chunk);
+			}
+			bytesRead = channel.read(chunk);
+			if (bytesRead>0) frame.length=frame.length+bytesRead;
+			if (!frame.protocolKnown && frame.length>0){
+				frame.protocolKnown=true;
+				if (frame.chunks.get(0).get(0)==DELIMITED_PREAMBLE){
+					switchToDelimited(frame);
+					readDelimited(key, channel, frame);
+					return;
+				}
+			}
+			if (frame.length>maxFrameSize){
+				LOG.warn("Dropping performance message connection from "+channel.socket().getRemoteSocketAddress()
+						+" (message longer than maximum frame size "+maxFrameSize+" bytes)");
+				closeConnection(key);
+				return;
+			}
+		} while (bytesRead>0);
+
+		if (bytesRead<0) {
+			// end of stream - sender has written a complete message
+			byte[] bytes = toByteArray(frame);
+			closeConnection(key);
+			if (bytes.length==0) return;
+			queueFrame(bytes);
+		}
+	}
+
+	/**
+	 * hands a complete message frame to the processing queue
+	 */
+	private void queueFrame(byte[] bytes) {
+		numberMessageBuffersReceived.getAndIncrement();
+		if(m_queue.offer(bytes)==false){
+			long dropped=numberMessageBuffersDropped.incrementAndGet();
+			long now=System.currentTimeMillis();
+			if (now-lastDroppedFrameWarning > DROPPED_FRAME_WARNING_INTERVAL){
+				lastDroppedFrameWarning=now;
+				LOG.warn("Message Buffer Disguarded (message queue is full). Message buffers dropped:"+dropped
+						+ " received:"+numberMessageBuffersReceived.get());
+			}
+		} else {
+			// only queued frames are logged so that a dropped frame is not applied when the log is replayed
+			if (writeAheadLog!=null) writeAheadLog.append(bytes);
+			if(LOG.isDebugEnabled()) LOG.debug("Message Buffer Received."
+					+ "\n   Number of message buffers in queue:"+m_queue.size()
+					+ "\n   Message buffers received:"+numberMessageBuffersReceived.get());
+		}
+	}
+
+	/**
+	 * moves the bytes read so far from a connection on the one shot port into a stream buffer
+	 */
+	private void switchToDelimited(FrameAccumulator frame){
+		frame.streamBuffer=ByteBuffer.allocate(Math.max(BUFFER_CHUNK_SIZE, frame.length));
+		for (ByteBuffer chunk : frame.chunks){
+			chunk.flip();
+			frame.streamBuffer.put(chunk);
+			returnChunk(chunk);
+		}
+		frame.chunks.clear();
+		frame.length=0;
+		numberOpenDelimitedConnections.getAndIncrement();
+	}
+
+	/**
+	 * reads a connection carrying length delimited frames and queues each complete frame
+	 */
+	private void readDelimited(SelectionKey key, SocketChannel channel, FrameAccumulator frame) throws IOException {
+		int bytesRead;
+		do {
+			// frames already buffered are queued before reading more
+			if (!queueDelimitedFrames(key, channel, frame)) return;
+			bytesRead = channel.read(frame.streamBuffer);
+		} while (bytesRead>0);
+
+		if (!queueDelimitedFrames(key, channel, frame)) return;
+		if (bytesRead<0) {
+			if (frame.streamBuffer.position()>0) LOG.warn("Length delimited performance message connection from "
+					+channel.socket().getRemoteSocketAddress()+" closed with an incomplete message of "
+					+frame.streamBuffer.position()+" bytes");
+			closeConnection(key);
+		}
+	}
+
+	/**
+	 * queues every complete frame in the stream buffer and makes room for the next frame
+	 * @return false if the connection was closed because a frame is longer than maxFrameSize
+	 */
+	private boolean queueDelimitedFrames(SelectionKey key, SocketChannel channel, FrameAccumulator frame) {
+		ByteBuffer buffer = frame.streamBuffer;
+		buffer.flip();
+		while (buffer.hasRemaining()){
+			int start = buffer.position();
+			int length = readLengthPrefix(buffer);
+			if (length==-1) {
+				buffer.position(start);
+				break; // prefix not complete
+			}
+			if (length<0 || length>maxFrameSize){
+				LOG.warn("Dropping performance message connection from "+channel.socket().getRemoteSocketAddress()
+						+" (message length "+length+" is invalid or longer than maximum frame size "+maxFrameSize+" bytes)");
+				closeConnection(key);
+				return false;
+			}
+			if (buffer.remaining()<length){
+				buffer.position(start);
+				break; // frame not complete
+			}
+			if (length>0){
+				byte[] bytes = new byte[length];
+				buffer.get(bytes);
+				queueFrame(bytes);
+			}
+		}
+		buffer.compact();
+
+		if (buffer.position()==0 && buffer.capacity()>MAX_RETAINED_STREAM_BUFFER) {
+			// release the space used by an unusually large frame
+			frame.streamBuffer=ByteBuffer.allocate(BUFFER_CHUNK_SIZE);
+		} else if (!buffer.hasRemaining()) {
+			// the frame being received is larger than the buffer
+			int capacity = Math.min(buffer.capacity()*2, maxFrameSize+MAX_LENGTH_PREFIX);
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()+1));
+			buffer.flip();
+			grown.put(buffer);
+			frame.streamBuffer=grown;
+		}
+		return true;
+	}
+
+	/**
+	 * reads a varint frame length
+	 * @return the length, -1 if the buffer does not yet hold the complete prefix or -2 if the prefix is malformed
+	 */
+	private static int readLengthPrefix(ByteBuffer buffer){
+		int result=0;
+		for (int shift=0; shift<35; shift+=7){
+			if (!buffer.hasRemaining()) return -1;
+			byte b = buffer.get();
+			result |= (b & 0x7f) << shift;
+			if ((b & 0x80)==0) return (result<0) ? -2 : result;
+		}
+		return -2;
+	}
+
+	private byte[] toByteArray(FrameAccumulator frame){
+		byte[] bytes = new byte[frame.length];
+		int offset=0;
+		for (ByteBuffer chunk : frame.chunks){
+			chunk.flip();
+			int len=chunk.remaining();
+			chunk.get(bytes, offset, len);
+			offset=offset+len;
+		}
+		return bytes;
+	}
+
+	private void closeIdleConnections(long now){
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof FrameAccumulator 
+					&& now - ((FrameAccumulator) attachment).lastActivity > connectionIdleTimeout){
+				LOG.warn("Closing idle performance message connection from "+((SocketChannel) key.channel()).socket().getRemoteSocketAddress()
+						+" (no data for "+connectionIdleTimeout+" ms)");
+				closeConnection(key);
+			}
+		}
+	}
+
+	private void closeConnection(SelectionKey key){
+		Object attachment = key.attachment();
+		key.attach(null);
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			LOG.error("IO exception closing performance message connection:",e);
+		}
+		if (attachment instanceof FrameAccumulator){
+			FrameAccumulator frame = (FrameAccumulator) attachment;
+			for (ByteBuffer chunk : frame.chunks) returnChunk(chunk);
+			frame.chunks.clear();
+			if (frame.streamBuffer!=null) {
+				frame.streamBuffer=null;
+				numberOpenDelimitedConnections.getAndDecrement();
+			}
+			numberOpenConnections.getAndDecrement();
+		}
+	}
+
+	private ByteBuffer borrowChunk(){
+		ByteBuffer chunk = bufferPool.pollFirst();
+		if (chunk!=null) return chunk;
+		if (directChunksAllocated >= MAX_DIRECT_CHUNKS) return ByteBuffer.allocate(BUFFER_CHUNK_SIZE);
+		directChunksAllocated++;
+		return ByteBuffer.allocateDirect(BUFFER_CHUNK_SIZE);
+	}
+
+	private void returnChunk(ByteBuffer chunk){
+		// heap chunks are only used when the direct chunk limit is reached and are not pooled
+		if (!chunk.isDirect()) return;
+		chunk.clear();
+		if (bufferPool.size() < MAX_POOLED_CHUNKS) bufferPool.addFirst(chunk);
+		else directChunksAllocated--; // left to the garbage collector
+	}
+
+	public void stopListenerThread(){
+		LOG.info("Stopping PmatrixPerfDataListener PerfDataNioListenerThread"); 
+		run.set(false);
+		Selector s = selector;
+		if (s!=null) s.wakeup();
+	}
+}
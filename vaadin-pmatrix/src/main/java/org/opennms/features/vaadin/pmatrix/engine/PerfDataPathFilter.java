@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides which received readings are worth decoding. Used by the PerfDataFrameDecoder before the 
+ * path of a reading is looked up in the PathDictionary.
+ * 
+ * OpenNMS sends every RRD write to pmatrix while only a few of the paths are usually displayed. Path 
+ * prefix rules let whole families of paths (e.g. response time or interface directories) be discarded 
+ * with a byte comparison, before the path is hashed. Readings which pass the rules are then matched 
+ * exactly against the dictionary.
+ * 
+ * The filter is immutable once built and so can be shared by any number of threads.
+ */
+public final class PerfDataPathFilter {
+
+	/**
+	 * id returned for a path rejected by a prefix rule
+	 */
+	public static final int REJECTED_BY_RULE=-2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final PathDictionary pathDictionary;
+
+	/**
+	 * if not empty, paths which do not start with one of these prefixes are rejected
+	 */
+	private final byte[][] acceptPrefixes;
+
+	/**
+	 * paths which start with one of these prefixes are rejected
+	 */
+	private final byte[][] rejectPrefixes;
+
+	/**
+	 * builds a filter which only uses the exact match of the dictionary
+	 * @param pathDictionary
+	 */
+	public PerfDataPathFilter(PathDictionary pathDictionary) {
+		this(pathDictionary, null, null);
+	}
+
+	/**
+	 * @param pathDictionary dictionary of the paths which have calculators
+	 * @param acceptPrefixes if not null or empty only paths starting with one of these prefixes are looked up
+	 * @param rejectPrefixes paths starting with one of these prefixes are never looked up. May be null
+	 */
+	public PerfDataPathFilter(PathDictionary pathDictionary, Collection<String> acceptPrefixes, Collection<String> rejectPrefixes) {
+		if (pathDictionary==null) throw new IllegalArgumentException("pathDictionary must not be null");
+		this.pathDictionary=pathDictionary;
+		this.acceptPrefixes=compile(acceptPrefixes);
+		this.rejectPrefixes=compile(rejectPrefixes);
+	}
+
+	private static byte[][] compile(Collection<String> prefixes){
+		List<byte[]> compiled = new ArrayList<byte[]>();
+		if (prefixes!=null) {
+			for (String prefix : prefixes){
+				if (prefix==null || "".equals(prefix.trim())) continue;
+				compiled.add(prefix.trim().getBytes(UTF8));
+			}
+		}
+		return compiled.toArray(new byte[compiled.size()][]);
+	}
+
+	/**
+	 * @return the dictionary used for the exact match
+	 */
+	public PathDictionary getPathDictionary() {
+		return pathDictionary;
+	}
+
+	/**
+	 * @return true if any prefix rules are configured
+	 */
+	public boolean hasRules() {
+		return acceptPrefixes.length>0 || rejectPrefixes.length>0;
+	}
+
+	/**
+	 * Looks up a path from its UTF-8 bytes after applying the prefix rules
+	 * @param buffer buffer holding the encoded path
+	 * @param offset offset of the path in the buffer
+	 * @param length length in bytes of the path
+	 * @return the id of the path, PathDictionary.NOT_FOUND if it passed the rules but is not in the dictionary
+	 * or REJECTED_BY_RULE if it was rejected by a prefix rule
+	 */
+	public int getId(byte[] buffer, int offset, int length) {
+		for (byte[] prefix : rejectPrefixes){
+			if (startsWith(buffer, offset, length, prefix)) return REJECTED_BY_RULE;
+		}
+		if (acceptPrefixes.length>0){
+			boolean accepted=false;
+			for (byte[] prefix : acceptPrefixes){
+				if (startsWith(buffer, offset, length, prefix)) {
+					accepted=true;
+					break;
+				}
+			}
+			if (!accepted) return REJECTED_BY_RULE;
+		}
+		return pathDictionary.getId(buffer, offset, length);
+	}
+
+	private static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix){
+		if (prefix.length>length) return false;
+		// the distinguishing bytes of a prefix are usually at its end
+		for (int i=prefix.length-1; i>=0; i--){
+			if (prefix[i]!=buffer[offset+i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * splits a comma separated list of prefixes from the configuration
+	 * @return the prefixes. Empty if prefixes is null or blank
+	 */
+	public static List<String> parsePrefixes(String prefixes){
+		List<String> parsed = new ArrayList<String>();
+		if (prefixes==null) return parsed;
+		for (String prefix : prefixes.split(",")){
+			if (!"".equals(prefix.trim())) parsed.add(prefix.trim());
+		}
+		return parsed;
+	}
+}
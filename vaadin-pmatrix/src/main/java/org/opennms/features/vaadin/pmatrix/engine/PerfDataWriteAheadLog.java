@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ResourceLoaderAware;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Write ahead log of the raw performance message buffers received by PmatrixPerfDataListenerBuffered.
+ * 
+ * Each buffer is appended to a memory mapped segment file when it is queued for processing 
+ * so that data received since the last persist of the calculators is not lost if the application is killed. 
+ * Buffers dropped because the processing queue is full are not logged.
+ * Segment files are named &lt;fileName&gt;.&lt;sequence number&gt; and are pre-allocated to segmentSize bytes.
+ * Each segment starts with WAL_MAGIC and WAL_VERSION followed by records of
+ * <pre>
+ *  int     length of buffer (0 marks the end of the written records)
+ *  int     CRC32 of buffer
+ *  byte[]  buffer
+ * </pre>
+ * The length is written after the buffer so that a record is only visible once it is complete.
+ * 
+ * startCheckpoint() is called before the calculators are persisted and completeCheckpoint() after they have
+ * been persisted successfully. Segments are only deleted after the checkpoint following the one which closed them, 
+ * so buffers which were still queued when the calculators were persisted are not lost. 
+ * Buffers may therefore be replayed which are already included in the persisted calculators and the replaying
+ * code must ignore readings which are not newer than the calculator's latest timestamp.
+ */
+@ManagedResource
+public class PerfDataWriteAheadLog implements ResourceLoaderAware {
+	private static final Logger LOG = LoggerFactory.getLogger(PerfDataWriteAheadLog.class);
+
+	/**
+	 * first four bytes of a segment file ("PMXW")
+	 */
+	static final int WAL_MAGIC=0x504D5857;
+
+	static final int WAL_VERSION=1;
+
+	private static final int SEGMENT_HEADER_LENGTH=8;
+
+	private static final int RECORD_HEADER_LENGTH=8;
+
+	/**
+	 * Receives each buffer read from the log during replay()
+	 */
+	public interface FrameHandler {
+		void handleFrame(byte[] frame);
+	}
+
+	/**
+	 *  used by Spring ResourceLoaderAware interface
+	 */
+	private ResourceLoader resourceLoader=null;
+
+	/**
+	 * if false nothing is logged or replayed
+	 */
+	private boolean enabled=false;
+
+	/**
+	 * directory where the log segment files are stored
+	 */
+	private String directoryLocation=null;
+
+	/**
+	 * name of the log. Segment files have a sequence number appended to this name
+	 */
+	private String fileName="pmatrixIngest.wal";
+
+	/**
+	 * size in bytes of each segment file. Larger buffers are written to a segment of their own
+	 */
+	private int segmentSize=64*1024*1024;
+
+	private File directory=null;
+
+	private MappedByteBuffer currentSegment=null;
+
+	private long nextSequence=1;
+
+	/**
+	 * segments with a sequence number below this existed before the application started and are replayed
+	 */
+	private long firstSequenceOfRun=1;
+
+	/**
+	 * sequence number of the segment started by the last completed checkpoint
+	 */
+	private long committedCheckpointSequence=1;
+
+	/**
+	 * sequence number of the segment started by a checkpoint which has not yet completed
+	 */
+	private long pendingCheckpointSequence=-1;
+
+	/**
+	 * reused for every record so that append does not allocate
+	 */
+	private final CRC32 crc = new CRC32();
+
+	private AtomicLong numberFramesLogged=new AtomicLong(0);
+	private AtomicLong numberBytesLogged=new AtomicLong(0);
+	private AtomicLong numberFramesReplayed=new AtomicLong(0);
+
+	/**
+	 * used by Spring ResourceLoaderAware interface to inject resource loader into bean
+	 */
+	@Override
+	public void setResourceLoader(ResourceLoader resourceLoader) {
+		this.resourceLoader = resourceLoader;
+	}
+
+	public boolean getEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public String getDirectoryLocation() {
+		return directoryLocation;
+	}
+
+	public void setDirectoryLocation(String directoryLocation) {
+		this.directoryLocation = directoryLocation;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * finds the segments left by the previous run and starts a new segment for this run
+	 */
+	@PostConstruct
+	public synchronized void open(){
+		if (!enabled) {
+			LOG.info("performance data write ahead log is disabled");
+			return;
+		}
+		try {
+			Resource directoryResource = resourceLoader.getResource(directoryLocation);
+			directory = new File(directoryResource.getURL().getFile());
+			directory.mkdirs();
+		} catch (IOException e) {
+			LOG.error("disabling performance data write ahead log as cannot use directoryLocation='"+directoryLocation+"' due to error:",e);
+			enabled=false;
+			return;
+		}
+		File[] segments = listSegments();
+		if (segments.length>0) nextSequence=sequenceOf(segments[segments.length-1])+1;
+		firstSequenceOfRun=nextSequence;
+		committedCheckpointSequence=nextSequence;
+		LOG.info("performance data write ahead log opened in "+directory.getAbsolutePath()+" with "+segments.length+" segments to replay");
+		try {
+			startSegment(0);
+		} catch (IOException e) {
+			LOG.error("cannot start performance data write ahead log segment: ",e);
+		}
+	}
+
+	@PreDestroy
+	public synchronized void close(){
+		if (currentSegment!=null) currentSegment.force();
+		currentSegment=null;
+	}
+
+	/**
+	 * Appends a received message buffer to the log. Does nothing if the log is disabled.
+	 * @param frame
+	 */
+	public void append(byte[] frame){
+		if (!enabled) return;
+		synchronized(this){
+			try {
+				if (currentSegment==null || currentSegment.remaining() < RECORD_HEADER_LENGTH+frame.length){
+					startSegment(frame.length);
+				}
+			} catch (IOException e) {
+				LOG.error("cannot start performance data write ahead log segment. Message buffer not logged: ",e);
+				currentSegment=null;
+				return;
+			}
+			int recordPosition=currentSegment.position();
+			currentSegment.position(recordPosition+RECORD_HEADER_LENGTH);
+			currentSegment.put(frame);
+			crc.reset();
+			crc.update(frame, 0, frame.length);
+			currentSegment.putInt(recordPosition+4, (int) crc.getValue());
+			// length written last so that an incomplete record is never read
+			currentSegment.putInt(recordPosition, frame.length);
+		}
+		numberFramesLogged.getAndIncrement();
+		numberBytesLogged.getAndAdd(frame.length);
+	}
+
+	/**
+	 * starts a new pre-allocated segment
+	 * @param minimumRecordLength the segment is made large enough to hold a record of this length
+	 * @throws IOException
+	 */
+	private void startSegment(int minimumRecordLength) throws IOException{
+		if (currentSegment!=null) currentSegment.force();
+		currentSegment=null;
+		File segmentFile = new File(directory, fileName+"."+String.format("%010d", nextSequence));
+		nextSequence++;
+		int size = Math.max(segmentSize, SEGMENT_HEADER_LENGTH+RECORD_HEADER_LENGTH+minimumRecordLength);
+		RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+		try {
+			raf.setLength(size);
+			// the mapping remains valid after the channel is closed
+			MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			segment.putInt(WAL_MAGIC);
+			segment.putInt(WAL_VERSION);
+			currentSegment=segment;
+		} finally {
+			raf.close();
+		}
+		if(LOG.isDebugEnabled()) LOG.debug("started performance data write ahead log segment "+segmentFile.getAbsolutePath());
+	}
+
+	/**
+	 * Passes every buffer logged before the application started to the handler in the order received.
+	 * Stops reading a segment at the first incomplete or damaged record.
+	 * @param handler
+	 * @return number of buffers replayed
+	 */
+	public int replay(FrameHandler handler){
+		if (!enabled || directory==null) return 0;
+		int replayed=0;
+		List<File> replaySegments = new ArrayList<File>();
+		synchronized(this){
+			for (File segmentFile : listSegments()){
+				if (sequenceOf(segmentFile) < firstSequenceOfRun) replaySegments.add(segmentFile);
+			}
+		}
+		for (File segmentFile : replaySegments){
+			RandomAccessFile raf=null;
+			try {
+				raf = new RandomAccessFile(segmentFile, "r");
+				MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (segment.remaining()<SEGMENT_HEADER_LENGTH || segment.getInt()!=WAL_MAGIC || segment.getInt()!=WAL_VERSION){
+					LOG.warn("ignoring write ahead log segment with unknown header: "+segmentFile.getAbsolutePath());
+					continue;
+				}
+				CRC32 replayCrc = new CRC32();
+				while (segment.remaining() >= RECORD_HEADER_LENGTH){
+					int length = segment.getInt();
+					int expectedCrc = segment.getInt();
+					if (length==0) break; // end of written records
+					if (length<0 || length>segment.remaining()){
+						LOG.warn("write ahead log segment "+segmentFile.getAbsolutePath()+" has an invalid record length. Remaining records ignored");
+						break;
+					}
+					byte[] frame = new byte[length];
+					segment.get(frame);
+					replayCrc.reset();
+					replayCrc.update(frame, 0, length);
+					if ((int) replayCrc.getValue()!=expectedCrc){
+						LOG.warn("write ahead log segment "+segmentFile.getAbsolutePath()+" has a damaged record. Remaining records ignored");
+						break;
+					}
+					handler.handleFrame(frame);
+					replayed++;
+				}
+			} catch (IOException e) {
+				LOG.error("problem replaying write ahead log segment "+segmentFile.getAbsolutePath(), e);
+			} finally {
+				if (raf!=null) try {
+					raf.close();
+				} catch (IOException e) {
+					LOG.error("problem closing write ahead log segment "+segmentFile.getAbsolutePath(), e);
+				}
+			}
+		}
+		numberFramesReplayed.getAndAdd(replayed);
+		return replayed;
+	}
+
+	/**
+	 * Called before the calculators are persisted. Starts a new segment so that buffers logged
+	 * before the calculators were persisted are in older segments
+	 */
+	public synchronized void startCheckpoint(){
+		if (!enabled || directory==null) return;
+		try {
+			startSegment(0);
+			pendingCheckpointSequence=nextSequence-1;
+		} catch (IOException e) {
+			LOG.error("cannot start performance data write ahead log segment: ",e);
+			pendingCheckpointSequence=-1;
+		}
+	}
+
+	/**
+	 * Called after the calculators have been persisted successfully. 
+	 * Deletes the segments closed by the previous checkpoint.
+	 */
+	public synchronized void completeCheckpoint(){
+		if (!enabled || directory==null || pendingCheckpointSequence<0) return;
+		for (File segmentFile : listSegments()){
+			if (sequenceOf(segmentFile) < committedCheckpointSequence){
+				if (segmentFile.delete()){
+					if(LOG.isDebugEnabled()) LOG.debug("deleted write ahead log segment "+segmentFile.getAbsolutePath());
+				} else LOG.warn("cannot delete write ahead log segment "+segmentFile.getAbsolutePath());
+			}
+		}
+		committedCheckpointSequence=pendingCheckpointSequence;
+		pendingCheckpointSequence=-1;
+	}
+
+	/**
+	 * @return segment files in sequence order
+	 */
+	private File[] listSegments(){
+		final String prefix = fileName+".";
+		File[] segments = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				if (!name.startsWith(prefix)) return false;
+				try {
+					Long.parseLong(name.substring(prefix.length()));
+					return true;
+				} catch (NumberFormatException e){
+					return false;
+				}
+			}
+		});
+		if (segments==null) return new File[0];
+		Arrays.sort(segments); // zero padded sequence numbers sort by name
+		return segments;
+	}
+
+	private long sequenceOf(File segment){
+		return Long.parseLong(segment.getName().substring(fileName.length()+1));
+	}
+
+	// jmx management data
+	@ManagedAttribute(description="Count of message buffers appended to the write ahead log")
+	public long getNumberFramesLogged() {
+		return numberFramesLogged.get();
+	}
+
+	@ManagedAttribute(description="Count of message bytes appended to the write ahead log")
+	public long getNumberBytesLogged() {
+		return numberBytesLogged.get();
+	}
+
+	@ManagedAttribute(description="Count of message buffers replayed from the write ahead log at startup")
+	public long getNumberFramesReplayed() {
+		return numberFramesReplayed.get();
+	}
+
+	@ManagedAttribute(description="Number of write ahead log segment files")
+	public synchronized int getNumberSegments() {
+		return (directory==null) ? 0 : listSegments().length;
+	}
+}
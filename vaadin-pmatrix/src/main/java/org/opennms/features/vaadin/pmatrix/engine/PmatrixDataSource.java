@@ -100,6 +100,66 @@ public interface PmatrixDataSource {
 	 * @param hidePmatrixHeaders the hidePmatrixHeaders to set
 	 */
 	public void setHidePmatrixHeaders(boolean hidePmatrixHeaders);
+
+	/**
+	 * if pushEnabled is true, the UI displaying this data source receives its updates by server push
+	 * instead of polling the server every refresh rate
+	 * @return the pushEnabled
+	 */
+	public boolean getPushEnabled();
+
+	/**
+	 * if pushEnabled is true, the UI displaying this data source receives its updates by server push
+	 * instead of polling the server every refresh rate
+	 * @param pushEnabled the pushEnabled to set
+	 */
+	public void setPushEnabled(boolean pushEnabled);
+
+	/**
+	 * if true the data source container holds the html string of each cell instead of a Label component. 
+	 * The table must then render the cells itself and get their descriptions from getCellDescription()
+	 * @return true if lightweight rendering is used for this table
+	 */
+	public boolean getLightweightRendering();
+
+	/**
+	 * @param rowName item id of the row in the data source container
+	 * @param columnName property id of the column in the data source container
+	 * @return the mouse over description of the cell or null if it has none
+	 */
+	public String getCellDescription(Object rowName, Object columnName);
+
+	/**
+	 * if lazyCellDescriptions is true cell descriptions are not sent with the cells. Each cell label is given an id 
+	 * and the browser fetches the description of the cell under the mouse with getCellDescriptionById()
+	 * @return the lazyCellDescriptions
+	 */
+	public boolean getLazyCellDescriptions();
+
+	/**
+	 * if lazyCellDescriptions is true cell descriptions are not sent with the cells. Each cell label is given an id 
+	 * and the browser fetches the description of the cell under the mouse with getCellDescriptionById()
+	 * @param lazyCellDescriptions the lazyCellDescriptions to set
+	 */
+	public void setLazyCellDescriptions(boolean lazyCellDescriptions);
+
+	/**
+	 * @return time in ms the browser keeps a cell description fetched on hover
+	 */
+	public int getCellDescriptionCacheTime();
+
+	/**
+	 * @param rowName item id of the row in the data source container
+	 * @param columnName property id of the column in the data source container
+	 * @return the id to give the label of the cell or null if the cell is not defined
+	 */
+	public String getCellId(Object rowName, Object columnName);
+
+	/**
+	 * @param cellId id of a cell label
+	 * @return the latest mouse over description of the cell from its calculator or null if it has none
+	 */
+	public String getCellDescriptionById(String cellId);
 	
 	/**
 	 * Creates a HTML encoded string for use as a key to describe the cells in a pmatrix table.
@@ -29,24 +29,34 @@
 package org.opennms.features.vaadin.pmatrix.engine;
 
 import java.text.DecimalFormat;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixRenderModel.RenderedCell;
 import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
 import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+import org.opennms.features.vaadin.pmatrix.ui.PmatrixTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
 import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.shared.communication.PushMode;
 import com.vaadin.shared.ui.label.ContentMode;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.Label;
@@ -57,12 +67,10 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 	private static final Logger LOG = LoggerFactory.getLogger(PmatrixDataSourceImpl.class);
 
 	/**
-	 * local data point map used to cross reference data points to columns and rows in table
-	 * String key = the filepath in the data point message 
-	 * DataPointDefinition value =  the row and column in the table. Note that the actual value is NOT used here
-	 * 
+	 * path dictionary ids of the data points subscribed by this table. 
+	 * Used to detect data points which are duplicated in the table
 	 */
-	private ConcurrentMap<String,DataPointDefinition> localDataPointMap = new ConcurrentHashMap<String,DataPointDefinition>();
+	private BitSet subscribedPathIds = new BitSet();
 
 	/**
 	 * reference for the dataPointMap 
@@ -78,6 +86,85 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 	private Component attachedComponent;
 	private IndexedContainer pmatrixDataContainer = null;
 
+	/**
+	 * rendered cells shared with all other sessions displaying this table
+	 */
+	private PmatrixRenderModel renderModel = null;
+
+	/**
+	 * version of each shared rendered cell last applied to the labels of this session
+	 */
+	private Map<RenderedCell,Long> appliedCellVersions = new IdentityHashMap<RenderedCell,Long>();
+
+	/**
+	 * if true changes are pushed to the UI rather than waiting for the UI to poll
+	 */
+	private boolean pushEnabled=false;
+
+	/**
+	 * minimum time in ms between pushes to the UI. Changes made within this time of the last push 
+	 * are sent together by one delayed push
+	 */
+	private long pushDebounceInterval=1000;
+
+	/*
+	 * time of the last push and if a delayed push is waiting. Only accessed holding the Vaadin session lock
+	 */
+	private long lastPushTime=0;
+	private boolean pushScheduled=false;
+
+	/**
+	 * thread which runs the delayed pushes of this data source. Created when the first delayed push is 
+	 * needed and shut down by unRegisterWithDataPointMapDao(). Guarded by pushSchedulerLock
+	 */
+	private ScheduledExecutorService pushScheduler=null;
+	private boolean pushSchedulerShutdown=false;
+	private final Object pushSchedulerLock = new Object();
+
+	/**
+	 * tables with at least this number of cells use lightweight rendering. If 0 lightweight rendering is not used
+	 */
+	private int lightweightRenderingThreshold=0;
+
+	/**
+	 * if true the container holds the html string of each cell instead of a Label component. The table only creates 
+	 * components for the rows it is displaying and gets the cell descriptions from getCellDescription()
+	 */
+	private boolean lightweightRendering=false;
+
+	/**
+	 * shared rendered cells by row name and column name. Used to look up cell descriptions and ids
+	 */
+	private Map<String,Map<String,RenderedCell>> renderedCellsByRow = new HashMap<String,Map<String,RenderedCell>>();
+
+	/**
+	 * if true cell descriptions are not sent with the cells. The browser fetches the description of a cell 
+	 * by its id when the user hovers over it using getCellDescriptionById()
+	 */
+	private boolean lazyCellDescriptions=false;
+
+	/**
+	 * time in ms the browser keeps a description fetched on hover
+	 */
+	private int cellDescriptionCacheTime=5000;
+
+	/**
+	 * start of the id of each cell label. Unique to this data source so that ids are unique in a page
+	 */
+	private final String cellIdPrefix = CELL_ID_PREFIX+Integer.toHexString(System.identityHashCode(this))+"-";
+
+	private static final String CELL_ID_PREFIX="pmatrixcell-";
+
+	/*
+	 * ids of the cells of this table used to fetch their descriptions 
+	 */
+	private Map<String,RenderedCell> renderedCellsById = new HashMap<String,RenderedCell>();
+	private Map<RenderedCell,String> cellIds = new IdentityHashMap<RenderedCell,String>();
+
+	private static final String NOT_DEFINED_HTML="<div class=\"pmatrix.notdefined\" style=\"vertical-align: middle; text-align: center;  color:black;  \">-</div>";
+
+	private static final String NOT_DEFINED_DESCRIPTION="A data value has not <BR>been defined for this cell.";
+
 	/*
 	 * values for setting the key description for this pmatrix display
 	 */
@@ -88,16 +175,6 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 	private String descriptiveText=null;
 	private String colorDescriptionStr=null;
 
-	/*
-	 * values for switching on or off cell decorations
-	 */
-	private boolean latestDataValueEnabled=true;
-	private boolean secondaryNumberEnabled=true;
-	private boolean leftArrowEnabled =true;
-	private boolean rightArrowEnabled=true;
-	private boolean linkUrlEnabled=true;
-	private boolean mouseOverTextEnabled=true;
-
 	@Override
 	public String getComponentHeight() {
 		return componentHeight;
@@ -143,6 +220,9 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 
 		if(LOG.isDebugEnabled()) LOG.debug("constructing new pmatrix table for table pmatrixName:'"+pmatrixName+ "' matrixTitle:'"+pmatrixTitle+"'");
 
+		// the cell content is rendered once for all sessions by the shared render model
+		if (renderModel==null) renderModel=dataPointMapDao.getRenderModel(pmatrixSpecification);
+
 		// Define two columns for the built-in container
 
 		pmatrixDataContainer = new IndexedContainer();
@@ -150,6 +230,13 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 		// first column contains row names
 		pmatrixDataContainer.addContainerProperty("rowName", String.class, null);
 
+		// large tables hold html strings rather than a component for every cell
+		int cellCount = (pmatrixSpecification.getColumnNames()==null || pmatrixSpecification.getRowNames()==null) ? 0 
+				: pmatrixSpecification.getColumnNames().size()*pmatrixSpecification.getRowNames().size();
+		lightweightRendering= lightweightRenderingThreshold>0 && cellCount>=lightweightRenderingThreshold;
+		if(LOG.isDebugEnabled()) LOG.debug("table pmatrixName:'"+pmatrixName+"' has "+cellCount+" cells. lightweightRendering="+lightweightRendering);
+		Class<?> cellType = lightweightRendering ? String.class : Component.class;
+
 		// used to test for duplicate or missing row/column names
 		// note some tests are duplicated - so may show two errors for same problem. However better to keep error messages together
 		Set<String> testColNames=new HashSet<String>();
@@ -164,7 +251,7 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 			} else {
 				if( LOG.isDebugEnabled()) LOG.debug("adding columnName:'"+columnName+ "' to table:'"+pmatrixName+"'");
 				testColNames.add(columnName);
-				pmatrixDataContainer.addContainerProperty(columnName, Component.class,	null);
+				pmatrixDataContainer.addContainerProperty(columnName, cellType,	null);
 			}
 		}
 
@@ -183,10 +270,13 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 
 				// fill empty cells with empty values
 				for (String colName : pmatrixSpecification.getColumnNames()) {
-					String notDefinedStr ="<div class=\"pmatrix.notdefined\" style=\"vertical-align: middle; text-align: center;  color:black;  \">-</div>";
-					Label label = new Label(notDefinedStr, ContentMode.HTML);
-					label.setDescription("A data value has not <BR>been defined for this cell.");
-					row.getItemProperty(colName).setValue(label);
+					if (lightweightRendering) {
+						row.getItemProperty(colName).setValue(NOT_DEFINED_HTML);
+					} else {
+						Label label = new Label(NOT_DEFINED_HTML, ContentMode.HTML);
+						label.setDescription(NOT_DEFINED_DESCRIPTION);
+						row.getItemProperty(colName).setValue(label);
+					}
 				}
 			}
 		}
@@ -215,6 +305,7 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 		}
 
 
+		int cellIndex=0;
 		for (DataPointDefinition dpd : dataPointDefintions) {
 
 			Item row = pmatrixDataContainer.getItem(dpd.getRowName());
@@ -251,19 +342,38 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 						// http://localhost:8980/opennms/graph/results.htm?zoom=true&relativetime=custom&resourceId=node[4].responseTime[127.0.0.1]&reports=icmp&start=1392033278231&end=1392119678231
 					}
 
-					String labelStr = labelStrFromDpd(dpd);
+					RenderedCell renderedCell = renderModel.getCell(dpd);
 
-					//Note using Label instead of Link because Link proved very difficult to style
-					Label label= new Label(labelStr, ContentMode.HTML);
+					String cellId = cellIdPrefix+cellIndex++;
+					renderedCellsById.put(cellId, renderedCell);
+					cellIds.put(renderedCell, cellId);
 
-					String mouseOverText = mouseOverTextEnabled ? dpd.getMouseOverText() : "";
+					// version read first so that a concurrent render is applied again by the next update
+					long version = renderedCell.getVersion();
 
-					label.setDescription(mouseOverText);
-					cell.setValue(label);
+					if (lightweightRendering) {
+						cell.setValue(renderedCell.getHtml());
+					} else {
+						//Note using Label instead of Link because Link proved very difficult to style
+						Label label= new Label(renderedCell.getHtml(), ContentMode.HTML);
+						if (lazyCellDescriptions) {
+							label.setId(cellId);
+						} else {
+							label.setDescription(renderedCell.getDescription());
+						}
+						cell.setValue(label);
+					}
+					Map<String,RenderedCell> rowCells = renderedCellsByRow.get(dpd.getRowName());
+					if (rowCells==null) {
+						rowCells = new HashMap<String,RenderedCell>();
+						renderedCellsByRow.put(dpd.getRowName(), rowCells);
+					}
+					rowCells.put(dpd.getColName(), renderedCell);
+					appliedCellVersions.put(renderedCell, version);
 
-					// insert data value point in localDataPointMap if not
-					// duplicated.
-					if (localDataPointMap.putIfAbsent(dpd.getFilePath(), dpd) != null) {
+					// subscribe the data point if it is not duplicated in this table.
+					int pathId = dataPointMapDao.getPathDictionary().getId(dpd.getFilePath());
+					if (pathId!=PathDictionary.NOT_FOUND && subscribedPathIds.get(pathId)) {
 						LOG.error("the filePath in a dataPointDefinition is duplicated in table definition name:'"+pmatrixName+"' for data point definition:"
 								+ " row name:'"
 								+ dpd.getRowName()
@@ -271,6 +381,10 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 								+ dpd.getColName()
 								+ "' filePath:' "
 								+ dpd.getFilePath() + "'");
+					} else {
+						if (pathId!=PathDictionary.NOT_FOUND) subscribedPathIds.set(pathId);
+						// only the cells subscribed here are refreshed by updates from the dataPointMapDao
+						dataPointMapDao.subscribe(this, dpd);
 					}
 
 				}
@@ -325,14 +439,6 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 		descriptiveText=pmatrixSpecification.getDescriptiveText();
 		colorDescriptionStr=pmatrixSpecification.getColorDescriptionStr();
 
-		// set up switches for cell decorations for the table
-		latestDataValueEnabled=pmatrixSpecification.getLatestDataValueEnabled();
-		secondaryNumberEnabled=pmatrixSpecification.getSecondaryNumberEnabled();
-		leftArrowEnabled =pmatrixSpecification.getLeftArrowEnabled();
-		rightArrowEnabled=pmatrixSpecification.getRightArrowEnabled();
-		linkUrlEnabled=pmatrixSpecification.getLinkUrlEnabled();
-		mouseOverTextEnabled=pmatrixSpecification.getMouseOverTextEnabled();
-
 	}
 
 	/**
@@ -352,7 +458,7 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 			// this does a synchronized vaadin update
 			attachedComponent.getUI().getSession().getLockInstance().lock();
 			try {
-				updateDsc();
+				updateDsc(dataPointMapDao.getSubscribedCells(this));
 			} catch (Exception e){
 				LOG.error("problem updating data source container for pmatrix table pmatrixName:" +pmatrixName);
 			} finally {
@@ -362,12 +468,20 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 			}
 		} else {
 			// this does an unsynchronized vaadin update if there is no session defined
-			updateDsc(); 
+			updateDsc(dataPointMapDao.getSubscribedCells(this)); 
 		}
 
 	}
 
 	public synchronized void updateDataSourceContainer(){
+		updateDataSourceContainer(dataPointMapDao.getSubscribedCells(this));
+	}
+
+	/**
+	 * updates the given cells of the DataSourceContainer from the dataPointMapDao
+	 * @param updatedCells cells subscribed by this data source which are to be refreshed
+	 */
+	public synchronized void updateDataSourceContainer(final Collection<DataPointDefinition> updatedCells){
 
 		//  used access method to update tables - although has same problem as before
 		// see https://vaadin.com/book/vaadin7/-/page/advanced.push.html
@@ -375,7 +489,7 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 
 		// test if we have a vaadin UI to synchronize with
 		if ( attachedComponent!=null ){
-			UI ui=attachedComponent.getUI(); 
+			final UI ui=attachedComponent.getUI(); 
 			if(ui!=null) {
 				updateWithoutSync =false;
 				//this does a synchronised vaadin update
@@ -385,7 +499,7 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 						public void run() {
 							try {
 								if(LOG.isDebugEnabled()) LOG.debug("updating pmatrix UI in access thread for pmatrixName:"+pmatrixName);
-								updateDsc(); 
+								if (updateDsc(updatedCells)>0) requestPush(ui);
 							} catch (Exception e){
 								LOG.error("problem in thread synchronously updating data source container for pmatrix table pmatrixName:" +pmatrixName+" :", e);
 							}
@@ -401,75 +515,157 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 			// this does an unsynchronized vaadin update if there is no session defined
 			try {
 				if(LOG.isDebugEnabled()) LOG.debug("updating pmatrix ui WITH NO LOCK for pmatrixName:"+pmatrixName);
-				updateDsc(); 
+				updateDsc(updatedCells); 
 			} catch (Exception e){
 				LOG.error("problem updating data source container WITH NO LOCK for pmatrix table pmatrixName:" +pmatrixName);
 			}
-			updateDsc(); 
 		}
 
 	}
 
 	/**
-	 * updates the DataSourceContainer from a dataPointMapDao without synchronization
+	 * Pushes the changes applied to the UI if push is enabled. 
+	 * If the UI was pushed less than pushDebounceInterval ago a single delayed push is scheduled
+	 * for all the changes made until then. Must be called holding the Vaadin session lock
+	 * @param ui the UI displaying this data source
 	 */
-	private void updateDsc(){
+	private void requestPush(final UI ui){
+		if (!pushEnabled || ui.getPushConfiguration().getPushMode()!=PushMode.MANUAL) return;
 
-		IndexedContainer pmdc = getPmatrixDataContainer();
+		// changes will be sent by the push which is already waiting
+		if (pushScheduled) return;
 
-		// this deals with the minor race when the PmatrixDatasource registers for updates before the table is fully defined.
-		if (pmdc==null) {
-			if(LOG.isDebugEnabled()) LOG.debug("cannot update datasource container as still being constructed");
+		long delay = lastPushTime+pushDebounceInterval-System.currentTimeMillis();
+		if (delay<=0) {
+			push(ui);
 			return;
 		}
 
-		// check each value in dataPointMapDao if defined in localDataPointMap. If not then ignore.
-		for (String dataPointFilePath : dataPointMapDao.getDataPointMap().keySet()) {
+		pushScheduled=true;
+		try{
+			getPushScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					try{
+						ui.access(new Runnable() {
+							@Override
+							public void run() {
+								pushScheduled=false;
+								push(ui);
+							}
+						});
+					} catch (Exception e){
+						// UI detached before the push was due
+						if(LOG.isDebugEnabled()) LOG.debug("could not schedule push to UI for pmatrixName:"+pmatrixName+" :"+e);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e){
+			pushScheduled=false;
+			LOG.error("could not schedule push to UI for pmatrixName:"+pmatrixName+" :", e);
+		}
+	}
 
-			DataPointDefinition localdpd = localDataPointMap.get(dataPointFilePath);
-			if(localdpd==null) {
-				// if no local definition for this data point then do nothing and return
-			} else {
+	/**
+	 * @return the push scheduler of this data source, created if needed
+	 * @throws RejectedExecutionException if the data source has been unregistered
+	 */
+	private ScheduledExecutorService getPushScheduler(){
+		synchronized(pushSchedulerLock){
+			if (pushSchedulerShutdown) throw new RejectedExecutionException("push scheduler of pmatrixName:"+pmatrixName+" is shut down");
+			if (pushScheduler==null){
+				pushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "PmatrixPushScheduler");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return pushScheduler;
+		}
+	}
 
-				//Long lastCellUpdateTime = localdpd.getLatestTimestamp();
+	/**
+	 * pushes the pending changes to the UI. Must be called holding the Vaadin session lock
+	 */
+	private void push(UI ui){
+		lastPushTime=System.currentTimeMillis();
+		try{
+			ui.push();
+		} catch (Exception e){
+			// the client may not have connected yet or may have gone. The changes are sent when it next connects
+			if(LOG.isDebugEnabled()) LOG.debug("could not push to UI for pmatrixName:"+pmatrixName+" :"+e);
+		}
+	}
+
+	/**
+	 * updates the given cells of the DataSourceContainer from a dataPointMapDao without synchronization
+	 * @param updatedCells cells subscribed by this data source
+	 * @return number of cells whose content was changed
+	 */
+	private int updateDsc(Collection<DataPointDefinition> updatedCells){
 
-				// if there is a local definition update it with the latest calculation				
-				PmatrixDpdCalculator pmatrixDpdCalculator = dataPointMapDao.getDataPointMap().get(dataPointFilePath);
+		IndexedContainer pmdc = getPmatrixDataContainer();
 
-				// if the localdpd has a different update time to the calculator then the calculator has been updated
-				// this prevents display container updates when not needed
-				
-				//TODO SET ALWAYS TRUE THE PROBLEM IS THAT IF UPDATE ONLY HAPPENS ONCE, ALL TABLES ARE NOT UPDATED
-				//THERE SEEMS TO BE A PROBLEM WITH VAADIN UPDATING TABLES
-				boolean dataIsChanged=true; 
-				if (localdpd.getRealUpdateTime()!=pmatrixDpdCalculator.getRealUpdateTime()){
-					dataIsChanged=true;
-				}
+		// this deals with the minor race when the PmatrixDatasource registers for updates before the table is fully defined.
+		if (pmdc==null) {
+			if(LOG.isDebugEnabled()) LOG.debug("cannot update datasource container as still being constructed");
+			return 0;
+		}
 
-				pmatrixDpdCalculator.updateDpd(localdpd);
+		int changedCells=0;
 
-				// if there is a local definition then use the row name and column name to update the local cell with data
-				Property cell = pmdc.getContainerProperty(localdpd.getRowName(),localdpd.getColName());
-				if (cell == null) {
-					LOG.error("could not copy value from dataPointMap to pmatrixDataContainer because it couldnt be found in pmatrixDataContainer "
-							+ "' dataPointFilePath:' " + dataPointFilePath + "'");
-				} else {
-					//Note using Label instead of Link because Link proved very difficult to style
-					String labelStr = labelStrFromDpd(localdpd);
-
-					// create new label and update container if data is changed or value is indeterminate 
-					if(dataIsChanged || Integer.valueOf(DataPointDefinition.RANGE_INDETERMINATE).equals(localdpd.getLatestDataValueRange())){
-						//Label label= new Label(labelStr, ContentMode.HTML);
-						Label label = (Label) cell.getValue();
-						label.setValue(labelStr);
-						String mouseOverText = mouseOverTextEnabled ? localdpd.getMouseOverText() : "";
-						label.setDescription(mouseOverText);
-						cell.setValue(label);
-					}
+		// only the cells of this table are visited rather than every data point in the dataPointMapDao
+		for (DataPointDefinition localdpd : updatedCells) {
+
+			// the cell is rendered by the first session to refresh it in this update and reused by the others
+			RenderedCell renderedCell = renderModel.refreshCell(localdpd);
+			if (renderedCell==null) {
+				LOG.error("could not find cell in shared render model for pmatrixName:" +pmatrixName
+						+ "' dataPointFilePath:' " + localdpd.getFilePath() + "'");
+				continue;
+			}
+
+			// only apply cells whose content has changed since they were last applied to this session
+			long version = renderedCell.getVersion();
+			Long appliedVersion = appliedCellVersions.get(renderedCell);
+			if (appliedVersion!=null && appliedVersion.longValue()==version) continue;
+
+			// use the row name and column name to update the local cell with data
+			Property cell = pmdc.getContainerProperty(localdpd.getRowName(),localdpd.getColName());
+			if (cell == null) {
+				LOG.error("could not copy value from dataPointMap to pmatrixDataContainer because it couldnt be found in pmatrixDataContainer "
+						+ "' dataPointFilePath:' " + localdpd.getFilePath() + "'");
+			} else if (lightweightRendering) {
+				cell.setValue(renderedCell.getHtml());
+				appliedCellVersions.put(renderedCell, version);
+				changedCells++;
+			} else if (lazyCellDescriptions) {
+				// the description is fetched on hover so only a change to the html is sent
+				Label label = (Label) cell.getValue();
+				appliedCellVersions.put(renderedCell, version);
+				if (!renderedCell.getHtml().equals(label.getValue())) {
+					label.setValue(renderedCell.getHtml());
+					changedCells++;
 				}
+			} else {
+				//Note using Label instead of Link because Link proved very difficult to style
+				Label label = (Label) cell.getValue();
+				label.setValue(renderedCell.getHtml());
+				label.setDescription(renderedCell.getDescription());
+				appliedCellVersions.put(renderedCell, version);
+				cell.setValue(label);
+				changedCells++;
 			}
 		}
 
+		// the table only regenerates the components of the rows it is displaying
+		if (lightweightRendering && changedCells>0 && attachedComponent instanceof PmatrixTable) {
+			((PmatrixTable) attachedComponent).refreshCells();
+		}
+		return changedCells;
 	}
 
 	@Override
@@ -494,8 +690,8 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 	}
 
 	@Override
-	public void dataPointMapUpdated() {
-		updateDataSourceContainer();
+	public void dataPointMapUpdated(Collection<DataPointDefinition> updatedCells) {
+		updateDataSourceContainer(updatedCells);
 	}
 
 	@Override
@@ -518,6 +714,110 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 		this.pmatrixName = pmatrixName;
 	}
 
+	/**
+	 * used to identify the table in DataPointMapDao update statistics
+	 */
+	@Override
+	public String toString() {
+		return "PmatrixDataSourceImpl@"+Integer.toHexString(System.identityHashCode(this))+" pmatrixName:"+pmatrixName;
+	}
+
+
+	@Override
+	public boolean getPushEnabled() {
+		return pushEnabled;
+	}
+
+	@Override
+	public void setPushEnabled(boolean pushEnabled) {
+		this.pushEnabled = pushEnabled;
+	}
+
+	/**
+	 * @return minimum time in ms between pushes to the UI
+	 */
+	public long getPushDebounceInterval() {
+		return pushDebounceInterval;
+	}
+
+	/**
+	 * @param pushDebounceInterval minimum time in ms between pushes to the UI. Changes made within this time
+	 * of the last push are sent together by one delayed push
+	 */
+	public void setPushDebounceInterval(long pushDebounceInterval) {
+		this.pushDebounceInterval = pushDebounceInterval;
+	}
+
+	@Override
+	public synchronized boolean getLightweightRendering() {
+		// the rendering mode is decided when the container is created
+		getPmatrixDataContainer();
+		return lightweightRendering;
+	}
+
+	@Override
+	public synchronized String getCellDescription(Object rowName, Object columnName) {
+		if (rowName==null || columnName==null) return null;
+		Map<String,RenderedCell> rowCells = renderedCellsByRow.get(rowName);
+		RenderedCell renderedCell = (rowCells==null) ? null : rowCells.get(columnName);
+		if (renderedCell==null) return "rowName".equals(columnName) ? null : NOT_DEFINED_DESCRIPTION;
+		String description = renderedCell.getDescription();
+		return (description==null || description.isEmpty()) ? null : description;
+	}
+
+	@Override
+	public synchronized String getCellId(Object rowName, Object columnName) {
+		if (rowName==null || columnName==null) return null;
+		Map<String,RenderedCell> rowCells = renderedCellsByRow.get(rowName);
+		RenderedCell renderedCell = (rowCells==null) ? null : rowCells.get(columnName);
+		return (renderedCell==null) ? null : cellIds.get(renderedCell);
+	}
+
+	@Override
+	public synchronized String getCellDescriptionById(String cellId) {
+		if (cellId==null) return null;
+		RenderedCell renderedCell = renderedCellsById.get(cellId);
+		if (renderedCell==null) return null;
+		String description = renderModel.getLatestDescription(renderedCell);
+		return (description.isEmpty()) ? null : description;
+	}
+
+	@Override
+	public boolean getLazyCellDescriptions() {
+		return lazyCellDescriptions;
+	}
+
+	@Override
+	public void setLazyCellDescriptions(boolean lazyCellDescriptions) {
+		this.lazyCellDescriptions = lazyCellDescriptions;
+	}
+
+	@Override
+	public int getCellDescriptionCacheTime() {
+		return cellDescriptionCacheTime;
+	}
+
+	/**
+	 * @param cellDescriptionCacheTime time in ms the browser keeps a description fetched on hover
+	 */
+	public void setCellDescriptionCacheTime(int cellDescriptionCacheTime) {
+		this.cellDescriptionCacheTime = cellDescriptionCacheTime;
+	}
+
+	/**
+	 * @return tables with at least this number of cells use lightweight rendering. 0 if lightweight rendering is not used
+	 */
+	public int getLightweightRenderingThreshold() {
+		return lightweightRenderingThreshold;
+	}
+
+	/**
+	 * @param lightweightRenderingThreshold tables with at least this number of cells use lightweight rendering
+	 * where the table only creates components for the rows it displays. If 0 lightweight rendering is not used
+	 */
+	public void setLightweightRenderingThreshold(int lightweightRenderingThreshold) {
+		this.lightweightRenderingThreshold = lightweightRenderingThreshold;
+	}
 
 	@Override
 	public boolean getHidePmatrixHeaders() {
@@ -541,6 +841,9 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 		if(!dataPointMapDao.addDataPointMapUpdateListener(this)) {
 			if(LOG.isDebugEnabled()) LOG.debug("tried to register PmatrixDataSource pmatrix name:"+ pmatrixName +" with dataPointMapDao but it is already registered");
 		}
+		synchronized(pushSchedulerLock){
+			pushSchedulerShutdown=false;
+		}
 	}
 
 	@PreDestroy
@@ -550,6 +853,29 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 		if(!dataPointMapDao.removeDataPointMapUpdateListener(this)) {
 			if(LOG.isDebugEnabled()) LOG.debug("tried to unregister PmatrixDataSource pmatrix title:"+ pmatrixName +" from dataPointMapDao but it is not registered");
 		}
+		synchronized(pushSchedulerLock){
+			pushSchedulerShutdown=true;
+			if (pushScheduler!=null){
+				// a delayed push still waiting is not needed once the UI is detached
+				pushScheduler.shutdownNow();
+				pushScheduler=null;
+			}
+		}
+	}
+
+	/**
+	 * @return the render model shared with all other sessions displaying this table
+	 */
+	public PmatrixRenderModel getRenderModel() {
+		return renderModel;
+	}
+
+	/**
+	 * @param renderModel the render model shared with all other sessions displaying this table.
+	 * If not set, the model is obtained from the dataPointMapDao
+	 */
+	public void setRenderModel(PmatrixRenderModel renderModel) {
+		this.renderModel = renderModel;
 	}
 
 	/**
@@ -559,157 +885,17 @@ public class PmatrixDataSourceImpl implements PmatrixDataSource, DataPointMapUpd
 	 * @return corresponding html color string
 	 */
 	public String linkColorForRange(Integer dataPointDefinitionRange){
-
-		String linkcolor="black;";
-		if (dataPointDefinitionRange!=null)	switch (dataPointDefinitionRange) {
-		case DataPointDefinition.RANGE_CRITICAL:  linkcolor = "purple;";
-		break;
-		case DataPointDefinition.RANGE_MAJOR:  linkcolor = "red;";
-		break;
-		case DataPointDefinition.RANGE_MINOR:  linkcolor = "LightSalmon;"; // orange hard to distinguish from goldenRod
-		break;
-		case DataPointDefinition.RANGE_WARNING:  linkcolor = "goldenRod;"; // chosen because yellow has poor contrast
-		break;
-		case DataPointDefinition.RANGE_NORMAL:  linkcolor = "green;";
-		break;
-		case DataPointDefinition.RANGE_INDETERMINATE:  linkcolor = "blue;";
-		break;
-		default: linkcolor = "black;";
-		break;
-		}
-		return linkcolor;
+		return PmatrixRenderModel.linkColorForRange(dataPointDefinitionRange);
 	}
 
 	/**
 	 * translates  returned values of DataPointDefinition.getLeftTrendArrow(); and .getRightTrendArrow()
 	 * to html arrow character equivalents
-	 * DataPointDefinition.TREND_LEVEL : arrow left and right (&#8596; or &harr;)
-	 * DataPointDefinition.TREND_UP    : arrow up (&#8593; or &uarr;)
-	 * DataPointDefinition.TREND_DOWN  : arrow down (&#8595; or &darr;)
-	 * 
 	 */
 	public String trendArrowStr(String trendArrow){
-
-		if (DataPointDefinition.TREND_LEVEL.equals(trendArrow)) return "&harr;";
-		if (DataPointDefinition.TREND_UP.equals(trendArrow)) return "&uarr;";
-		if (DataPointDefinition.TREND_DOWN.equals(trendArrow)) return  "&darr;";
-
-		return ""; // null or all other values
-	}
-
-	/**
-	 * Creates and populates a properly HTML formatted label string from a given data point definition.
-	 * returns an empty string if data point definition is null
-	 * @return HTML formatted string for a label
-	 */
-	public String labelStrFromDpd(DataPointDefinition localdpd){
-
-		if (localdpd==null) return "";
-		
-		StringBuffer labelStr= new StringBuffer();
-		
-		// static text cell string is used in cell if StaticTextCell boolean is true
-		if (localdpd.getStaticTextCell()==true) {
-			// link opens in new window or tab
-			labelStr.append("<div class=\"pmatrix.statictextcell\" style=\"vertical-align: middle; text-align: center; color:black; text-decoration:none; \">");
-			if(linkUrlEnabled){
-				String linkUrl= (localdpd.getGraphURL()!=null) ? localdpd.getGraphURL() : "" ;
-				labelStr.append("<a href=\"").append(linkUrl).append("\" target=\"_blank\" >") ;
-			} else {
-				// href with relative link to this page if url not enabled
-				labelStr.append("<a href=\""+"\" >");
-			}
-			labelStr.append(localdpd.getStaticTextCellString()+"</div></a>");
-			return labelStr.toString();
-		}
-
-		// if not static text cell then populate cell normally
-		
-		DecimalFormat pmatrixDformat = new DecimalFormat("####.##");
-
-		//set primary number if enabled
-		String valStr="";
-		if(latestDataValueEnabled){
-			valStr = (localdpd.getLatestDataValue() == null) ? "no&nbsp;data" // &nbsp; = no break space keep words together
-					: pmatrixDformat.format(localdpd.getLatestDataValue());
-		}
-
-		//Note using Label instead of Link because Link proved very difficult to style
-
-		String leftTrendArrow = leftArrowEnabled ? trendArrowStr(localdpd.getLeftTrendArrow()): "" ;
-
-		String latestDataValueColor = linkColorForRange(localdpd.getLatestDataValueRange());
-
-		// line below top number used to underline top number if there is a secondary value
-		String topUnderline	=" border-bottom: thin solid gray;"; 
-		// line above lower number used to underline top number if there is a secondary value
-		String bottomTopline	=" border-top: thin solid gray;"; 
-
-		// if only latest data value or only secondaryNumber then do not draw line between upper and lower numbers
-		if (!secondaryNumberEnabled || localdpd.getSecondaryValue()==null 
-				|| (!latestDataValueEnabled && secondaryNumberEnabled)) {
-			topUnderline="";
-			bottomTopline="";
-		}
-
-		// formats cell as numerator / denominator with left and right arrows
-		// see example http://www.periodni.com/mathematical_and_chemical_equations_on_web.html
-		// link opens in new window or tab
-		if(linkUrlEnabled){
-			String linkUrl= (localdpd.getGraphURL()!=null) ? localdpd.getGraphURL() : "" ;
-			labelStr.append("<a href=\"").append(linkUrl).append("\" target=\"_blank\" >") ;
-		} else {
-			// href with relative link to this page if url not enabled
-			labelStr.append("<a href=\""+"\" >");
-		}
-
-		labelStr.append("<div class=\"pmatrix.cell\" style=\"display: inline-block; vertical-align: middle; white-space:nowrap; text-decoration:none; \">")
-		.append("<span class=\"pmatrix.leftarrow\" style=\"vertical-align: middle; text-align:left; color:gray;  font-size:200%\">")
-		.append(leftTrendArrow)
-		.append("</span>")
-		.append("<div class=\"pmatrix.fraction\" style=\"")
-		.append(" display: inline-block;")
-		.append(" position: relative;")
-		.append(" vertical-align: middle;")
-		.append(" letter-spacing: 0.01em; ")
-		.append(" text-align: center;")
-		.append(" color:black;")
-		.append("\">")
-		.append("<span class=\"pmatrix.fup\" style= \"")
-		.append(" display: block;")
-		.append(" padding: 0.2em; ")
-		.append(topUnderline)
-		.append(" color:"+latestDataValueColor)
-		.append(" \">")
-		.append(valStr)
-		.append("</span>");
-
-		// if there is no secondary value defined (i.e. null ) do not print denominator line and secondary value 
-		if(secondaryNumberEnabled && localdpd.getSecondaryValue()!=null) {
-			String secondValStr = pmatrixDformat.format(localdpd.getSecondaryValue());
-			String secondaryValueColor= linkColorForRange(localdpd.getSecondaryValueRange());
-			labelStr.append("<span class=\"pmatrix.bar\" style=\"display: none;\">/</span>")
-			.append("<span class=\"pmatrix.fdn\" style=\"")
-			.append(" display: block;")
-			.append(" padding: 0.2em; ")
-			.append(bottomTopline)
-			.append(" color:"+secondaryValueColor+"\">")
-			.append(secondValStr)
-			.append("</span>");
-		}
-
-		String rightTrendArrow = rightArrowEnabled ? trendArrowStr(localdpd.getRightTrendArrow()): "" ;
-		labelStr.append("</div>")
-		.append("<span class=\" matrix.rightarrow\" style=\"vertical-align: middle; color:gray; text-align: right; font-size:200%\">")
-		.append(rightTrendArrow)
-		.append("</span>")
-		.append("</div>")
-		.append("</a>");
-
-		return labelStr.toString();
+		return PmatrixRenderModel.trendArrowStr(trendArrow);
 	}
 
-
 	/**
 	 * Creates a HTML encoded string for use as a key to describe the cells in a pmatrix table.
 	 * THese values are set from the specification
@@ -40,10 +40,11 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
-import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.protobuf.CodedInputStream;
+
 /**
  * The PmatrixPerfDataListener class runs in a separate thread listening for OpenNMS performance messages.
  * When a message is received, it looks in the dataPointMapDao to see if a pmatrixDpdCalculator is defined 
@@ -53,6 +54,9 @@ import org.slf4j.LoggerFactory;
  * 
  * This is a simple listener which works provided messages don't arrive at more than 5ms intervals
  * 
+ * Messages are decoded by a PerfDataFrameDecoder as they are read from the socket, so each calculator 
+ * is updated as soon as its reading arrives and only one reading of a large message is held in memory.
+ * 
  * @author C Gallen
  *
  */
@@ -81,6 +85,77 @@ public class PmatrixPerfDataListener implements Runnable {
 	
 	private long numberMessagesProcessed=0; // used to count messages actually processed
 
+	/**
+	 * decodes messages from the socket. Rebuilt if the path dictionary of the dataPointMapDao changes
+	 */
+	private PerfDataFrameDecoder decoder=null;
+
+	/**
+	 * applies each decoded reading to its calculator
+	 */
+	private final PerfDataFrameDecoder.ReadingHandler readingUpdater = new PerfDataFrameDecoder.ReadingHandler() {
+
+		@Override
+		public void handleReading(int pathId, long timestamp, double[] values, int valueCount) {
+			String path = decoder.getPathDictionary().getPath(pathId);
+
+			// only create debug message if debug logging enabled
+			if(LOG.isDebugEnabled()){
+				StringBuffer valuesStr = new StringBuffer();
+				valuesStr.append("{ ");
+				for (int i = 0; i < valueCount; i++) {
+					if (i != 0) {
+						valuesStr.append(", ");
+					}
+					valuesStr.append(values[i]);
+				}
+				valuesStr.append(" }");
+				LOG.debug("Message received count:'"+numberMessagesReceived
+						+ "' { "
+						+ "path: \""
+						+ path + "\", "
+						+ "timestamp: \""
+						+ timestamp
+						+ "\", " + "values: "
+						+ valuesStr.toString() + " }");
+			}
+
+			// try to update the table with data
+			// synchronized so that an update operation does not happen while a persist operation is completing
+			synchronized(persistLockObject){
+				try{
+					PmatrixDpdCalculator pmatrixDpdCalculator = dataPointMapDao.getCalculator(pathId);
+					if (pmatrixDpdCalculator==null) {
+						if(LOG.isDebugEnabled()) LOG.debug("WARNING: data calculator not defined for filepath:'"+path+"'");
+					} else {
+						numberMessagesProcessed++;
+						if(LOG.isDebugEnabled()) LOG.debug("SUCCESS: (message processed count:'"+numberMessagesProcessed
+								+ "') data calculator defined for filepath:'"+path+"' number of update messages: "+valueCount);
+
+						// synchronized on the calculator so that a persist snapshot or render is never taken part way through an update
+						synchronized(pmatrixDpdCalculator){
+							for (int i = 0; i < valueCount; i++){
+								// adds all values in message
+								pmatrixDpdCalculator.updateCalculation(values[i], timestamp);
+							}
+							pmatrixDpdCalculator.markUpdated();
+						}
+						// tell the dataPointMapDao that this cell has changed
+						dataPointMapDao.notifyChange(pathId);
+					}
+				} catch (Exception e){
+					LOG.error("problem trying to update dataPointmapDao with message.getPath():'"+path+"'", e);
+				}
+			}
+		}
+
+		@Override
+		public void handleUnknownPath(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength) {
+			if(LOG.isDebugEnabled()) LOG.debug("WARNING: data calculator not defined for filepath:'"
+					+PerfDataFrameDecoder.pathString(buffer, pathOffset, pathLength)+"'");
+		}
+	};
+
 
 	public void setPort(int port) {
 		this.port = port;
@@ -112,62 +187,11 @@ public class PmatrixPerfDataListener implements Runnable {
 					//final int BUFFERED_SIZE=16000;
 					//BufferedInputStream bis= new BufferedInputStream(is,BUFFERED_SIZE);
 					
-					PerformanceDataProtos.PerformanceDataReadings messages = PerformanceDataProtos.PerformanceDataReadings.parseFrom(is);
+					// each reading is applied as soon as it has been read rather than after the whole message
 					numberMessagesReceived++;
-					for (PerformanceDataProtos.PerformanceDataReading message : messages.getMessageList()) {
-						
-						// only create debug message if debug logging enabled
-						if(LOG.isDebugEnabled()){
-							StringBuffer values = new StringBuffer();
-							values.append("{ ");
-							for (int i = 0; i < message.getValueCount(); i++) {
-								if (i != 0) {
-									values.append(", ");
-								}
-								values.append(message.getValue(i));
-							}
-							values.append(" }");
-							LOG.debug("Message received count:'"+numberMessagesReceived
-									+ "' { "
-									+ "path: \""
-									+ message.getPath() + "\", "
-									+ "owner: \""
-									+ message.getOwner() + "\", "
-									+ "timestamp: \""
-									+ message.getTimestamp()
-									+ "\", " + "values: "
-									+ values.toString() + " }");
-						}
-
-						socket.close(); // close socket before processing received data
-
-						// try to update the table with data
-						// synchronized so that an update operation does not happen while a persist operation is completing
-						synchronized(persistLockObject){
-
-							try{
-								PmatrixDpdCalculator pmatrixDpdCalculator = dataPointMapDao.getDataPointMap().get(message.getPath());
-								if (pmatrixDpdCalculator==null) {
-									if(LOG.isDebugEnabled()) LOG.debug("WARNING: data calculator not defined for filepath:'"+message.getPath()+"'");
-								} else {
-									numberMessagesProcessed++;
-									if(LOG.isDebugEnabled()) LOG.debug("SUCCESS: (message processed count:'"+numberMessagesProcessed
-											+ "') data calculator defined for filepath:'"+message.getPath()+"' number of update messages: "+message.getValueCount());
-									
-									for (int i = 0; i < message.getValueCount(); i++){
-										// adds all values in message
-										Double latestValue = new Double(message.getValue(i));
-										Long latestTimestamp= new Long(message.getTimestamp());
-										//message.getOwner();
-										pmatrixDpdCalculator.updateCalculation(latestValue, latestTimestamp);
-									}
-
-								}
-							} catch (Exception e){
-								LOG.error("problem trying to update dataPointmapDao with message.getPath():'"+message.getPath()+"'", e);
-							}
-						}
-					}
+					PathDictionary pathDictionary = dataPointMapDao.getPathDictionary();
+					if (decoder==null || decoder.getPathDictionary()!=pathDictionary) decoder = new PerfDataFrameDecoder(pathDictionary);
+					decoder.decode(CodedInputStream.newInstance(is), readingUpdater);
 
 				} catch (SocketTimeoutException e) {
 					LOG.error("socket has timed out when listening for performance messages:", e);
@@ -180,14 +204,6 @@ public class PmatrixPerfDataListener implements Runnable {
 						LOG.error("IO exception closing performance message socket:",e2);
 					}
 				}
-				// tell the dataPointMapDao that the table has changed
-				// don't tell it if thread stopping
-				if(run.get()) try{
-					dataPointMapDao.notifyChange();
-				} catch (Exception e){
-					LOG.error("problem trying to notify change to dataPointMapDao:", e);
-				}
-
 			}
 		} catch (IOException e) {
 			LOG.error("IO exception when setting up server socket for performance messages ",e);
@@ -29,29 +29,33 @@
 package org.opennms.features.vaadin.pmatrix.engine;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
-import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos;
-import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos.PerformanceDataReadings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 /**
  * The PmatrixPerfDataListener class runs in a separate thread listening for OpenNMS performance messages.
  * When a message is received, it looks in the dataPointMapDao to see if a pmatrixDpdCalculator is defined 
@@ -62,6 +66,26 @@ import org.springframework.jmx.export.annotation.ManagedResource;
  * This version uses an additional thread to queue incoming messages so that we can handle them faster and
  * not block sockets in a WAIT state.
  * 
+ * If nioListenerEnabled is true messages are received by a PerfDataNioListenerThread which 
+ * serves many concurrent sender connections from a single selector. Otherwise (the default) the original 
+ * single connection PerfDataSocketListenerThread is used. Both hand raw message frames to the queue and the 
+ * frames are parsed by the queue thread.
+ * 
+ * The nio listener also accepts persistent sender connections carrying a stream of length delimited 
+ * messages, either on delimitedPort or on port when the stream opens with an empty message. This 
+ * avoids a connection per flush for senders which flush often.
+ * 
+ * The queue thread decodes each frame with a PerfDataFrameDecoder which resolves the path of each reading 
+ * to its id in the DataPointMapDao path dictionary without creating a String. Readings of paths which 
+ * are not displayed, or which are excluded by the acceptPathPrefixes and rejectPathPrefixes rules, 
+ * are dropped at this point without their values being decoded. Dropped readings of paths which are 
+ * not displayed are recorded by the optional UnmatchedPathTracker.
+ * 
+ * If updateThreads is 0 (the default) the queue thread applies each reading to its calculator itself. 
+ * Otherwise the queue thread does not run the calculators. Each reading is routed by its path id to 
+ * one of updateThreads calculator update shards. Updates to any one calculator therefore stay in order 
+ * on a single thread while different paths are updated in parallel.
+ * 
  * @author C Gallen
  *
  */
@@ -73,25 +97,92 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 
 	private PerfDataSocketListenerThread perfDataSocketListener=null;
 
+	private PerfDataNioListenerThread perfDataNioListener=null;
+
 	/**
 	 * Used to store data a dataPointMap singleton
 	 */
 	private DataPointMapDao dataPointMapDao=null;
 
 	/**
-	 * used to ensure that no updates happen to dataPointMapDao while it is being persisted
+	 * if not null every received message buffer is logged here once it has been queued
+	 */
+	private PerfDataWriteAheadLog writeAheadLog=null;
+
+	/**
+	 * if not null readings whose path has no calculator are recorded here
+	 */
+	private UnmatchedPathTracker unmatchedPathTracker=null;
+
+	/**
+	 * number of calculator update shards (threads). If 0 readings are applied by the queue thread
+	 */
+	private int updateThreads=0;
+
+	/**
+	 * maximum length of each shard's queue of readings waiting to be applied to calculators
 	 */
-	private Object persistLockObject = new Object();
+	private static final int SHARD_QUEUE_LENGTH=10000;
+
+	private volatile CalculatorUpdateShard[] updateShards=null;
+
+	// state used to calculate shard throughput for jmx. Guarded by shardRateLock rather than this
+	// so that jmx polls are not blocked by persistDataPointMapDao()
+	private final Object shardRateLock = new Object();
+	private long shardRateSampleTime=0;
+	private long[] shardRateSampleCounts=new long[0];
+	private double[] shardRates=new double[0];
 
 	private AtomicBoolean run= new AtomicBoolean(true);
 
 	private int port=8999; // default value
 
+	/**
+	 * if greater than 0 (and not equal to port) the nio listener also listens on this port for connections 
+	 * carrying a stream of length delimited messages
+	 */
+	private int delimitedPort=0;
+
+	/**
+	 * if true use the non blocking selector based listener, otherwise use a single blocking socket
+	 */
+	private boolean nioListenerEnabled=false;
+
+	/**
+	 * maximum number of concurrent sender connections served by the nio listener
+	 */
+	private int maxConnections=1000;
+
+	/**
+	 * maximum size in bytes of a single message buffer. Larger messages are discarded
+	 */
+	private int maxFrameSize=16*1024*1024;
+
+	/**
+	 * time (ms) after which the nio listener drops a connection which is not sending data
+	 */
+	private long connectionIdleTimeout=60000;
+
+	/**
+	 * number of sender connections currently open on the nio listener
+	 */
+	private AtomicInteger numberOpenConnections=new AtomicInteger(0);
+
+	/**
+	 * number of open connections on the nio listener carrying length delimited messages
+	 */
+	private AtomicInteger numberOpenDelimitedConnections=new AtomicInteger(0);
+
 	/**
 	 *  used to count received message buffers for debug
 	 */
 	private AtomicLong numberMessageBuffersReceived=new AtomicLong(0);  
 
+	/**
+	 *  used to count received message buffers dropped because the processing queue was full
+	 */
+	private AtomicLong numberMessageBuffersDropped=new AtomicLong(0);  
+
 	/**
 	 * used to count message buffers actually processed
 	 */
@@ -102,6 +193,31 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 	 */
 	private AtomicLong numberPerfMessagesReceived=new AtomicLong(0);
 
+	/**
+	 * used to count messages whose path has a calculator and which are queued for update
+	 */
+	private AtomicLong numberPerfMessagesAccepted=new AtomicLong(0);
+
+	/**
+	 * used to count messages rejected because their path is not in the path dictionary
+	 */
+	private AtomicLong numberPerfMessagesRejectedUnknownPath=new AtomicLong(0);
+
+	/**
+	 * used to count messages rejected by a path prefix rule
+	 */
+	private AtomicLong numberPerfMessagesRejectedByRule=new AtomicLong(0);
+
+	/**
+	 * if not empty only readings whose path starts with one of these prefixes are looked up
+	 */
+	private List<String> acceptPathPrefixes=PerfDataPathFilter.parsePrefixes(null);
+
+	/**
+	 * readings whose path starts with one of these prefixes are discarded without being looked up
+	 */
+	private List<String> rejectPathPrefixes=PerfDataPathFilter.parsePrefixes(null);
+
 	/**
 	 * used to count messages actually processed into a matrix
 	 */
@@ -113,9 +229,88 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 	private static final int MESSAGE_BUFFER_QUEUE_LENGTH=500;
 
 	/**
-	 * used to queue messages for processing if consumption is too slow
+	 * used to queue raw message frames for processing if consumption is too slow
 	 */
-	private final BlockingQueue<PerformanceDataProtos.PerformanceDataReadings> m_queue = new LinkedBlockingQueue<PerformanceDataProtos.PerformanceDataReadings>(MESSAGE_BUFFER_QUEUE_LENGTH);
+	private final BlockingQueue<byte[]> m_queue = new LinkedBlockingQueue<byte[]>(MESSAGE_BUFFER_QUEUE_LENGTH);
+
+	/**
+	 * decoder used by the queue thread. Only accessed by the queue thread
+	 */
+	private PerfDataFrameDecoder decoder=null;
+
+	/**
+	 * queues the decoded readings to the update shards. Only used by the queue thread
+	 */
+	private final ReadingRouter readingRouter = new ReadingRouter();
+
+	/**
+	 * initial number of values each pooled reading can hold. A reading with more values
+	 * grows its slot once and the larger array is then reused
+	 */
+	private static final int INITIAL_READING_VALUES=4;
+
+	/**
+	 * a decoded reading waiting in a shard queue. Readings are preallocated by each shard and
+	 * reused so that no objects are allocated per sample when handing readings to the shards
+	 */
+	private static final class PathReading {
+		int pathId;
+		long timestamp;
+		double[] values = new double[INITIAL_READING_VALUES];
+		int valueCount;
+
+		void set(int pathId, long timestamp, double[] values, int valueCount){
+			this.pathId=pathId;
+			this.timestamp=timestamp;
+			if (this.values.length<valueCount) this.values = new double[valueCount];
+			System.arraycopy(values, 0, this.values, 0, valueCount);
+			this.valueCount=valueCount;
+		}
+	}
+
+	/**
+	 * receives readings from the decoder and queues each to the shard which owns its path
+	 */
+	private class ReadingRouter implements PerfDataFrameDecoder.ReadingHandler {
+
+		/**
+		 * set if the queue thread was interrupted while waiting for a full shard queue
+		 */
+		boolean interrupted=false;
+
+		/**
+		 * reused for each reading applied directly by the queue thread when there are no update shards
+		 */
+		private final PathReading inlineReading = new PathReading();
+
+		@Override
+		public void handleReading(int pathId, long timestamp, double[] values, int valueCount) {
+			numberPerfMessagesAccepted.getAndIncrement();
+			if (interrupted) return;
+			if (updateShards.length==0) {
+				inlineReading.set(pathId, timestamp, values, valueCount);
+				updateCalculator(inlineReading);
+				return;
+			}
+			CalculatorUpdateShard shard = updateShards[shardIndex(pathId, updateShards.length)];
+			try {
+				// waits for a free reading if the shard is behind
+				PathReading reading = shard.freeReadings.take();
+				reading.set(pathId, timestamp, values, valueCount);
+				shard.queue.put(reading);
+			} catch (InterruptedException ie) {
+				interrupted=true;
+			}
+		}
+
+		@Override
+		public void handleUnknownPath(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength) {
+			numberPerfMessagesRejectedUnknownPath.getAndIncrement();
+			if (unmatchedPathTracker!=null) unmatchedPathTracker.record(buffer, pathOffset, pathLength, ownerOffset, ownerLength);
+			if(LOG.isDebugEnabled()) LOG.debug("WARNING: data calculator not defined for filepath:'"
+					+PerfDataFrameDecoder.pathString(buffer, pathOffset, pathLength)+"'");
+		}
+	}
 
 
 	public void setPort(int port) {
@@ -126,6 +321,91 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 		return port;
 	}
 
+	public int getDelimitedPort() {
+		return delimitedPort;
+	}
+
+	/**
+	 * @param delimitedPort port on which the nio listener accepts connections carrying length delimited messages. 
+	 * 0 to only accept them on port
+	 */
+	public void setDelimitedPort(int delimitedPort) {
+		this.delimitedPort = delimitedPort;
+	}
+
+	public boolean getNioListenerEnabled() {
+		return nioListenerEnabled;
+	}
+
+	public void setNioListenerEnabled(boolean nioListenerEnabled) {
+		this.nioListenerEnabled = nioListenerEnabled;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public int getUpdateThreads() {
+		return updateThreads;
+	}
+
+	public void setUpdateThreads(int updateThreads) {
+		this.updateThreads = updateThreads;
+	}
+
+	public long getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+		this.connectionIdleTimeout = connectionIdleTimeout;
+	}
+
+	public String getAcceptPathPrefixes() {
+		return join(acceptPathPrefixes);
+	}
+
+	/**
+	 * @param acceptPathPrefixes comma separated path prefixes. If not empty only readings whose path starts 
+	 * with one of the prefixes are looked up in the path dictionary
+	 */
+	public void setAcceptPathPrefixes(String acceptPathPrefixes) {
+		this.acceptPathPrefixes = PerfDataPathFilter.parsePrefixes(acceptPathPrefixes);
+	}
+
+	public String getRejectPathPrefixes() {
+		return join(rejectPathPrefixes);
+	}
+
+	/**
+	 * @param rejectPathPrefixes comma separated path prefixes. Readings whose path starts with one of 
+	 * the prefixes are discarded without being looked up in the path dictionary
+	 */
+	public void setRejectPathPrefixes(String rejectPathPrefixes) {
+		this.rejectPathPrefixes = PerfDataPathFilter.parsePrefixes(rejectPathPrefixes);
+	}
+
+	private static String join(List<String> prefixes){
+		StringBuilder joined = new StringBuilder();
+		for (String prefix : prefixes){
+			if (joined.length()>0) joined.append(',');
+			joined.append(prefix);
+		}
+		return joined.toString();
+	}
+
 
 	@Override
 	public void run() {
@@ -134,9 +414,9 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 
 		try {
 			while (run.get()) {
-				PerformanceDataReadings messages=null;
+				byte[] frame=null;
 				try {
-				    messages = m_queue.take(); // waits for messages
+				    frame = m_queue.take(); // waits for messages
 				} catch (InterruptedException ie) {
 					// interrupt used to force stop of thread
 			  		run.set(false);
@@ -145,96 +425,191 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 				
 				numberMessageBuffersProcessed.getAndIncrement();
 
-				for (PerformanceDataProtos.PerformanceDataReading message : messages.getMessageList()) {
+				// the dictionary is replaced if the dataPointMapDao reloads its configuration
+				PathDictionary pathDictionary = dataPointMapDao.getPathDictionary();
+				if (decoder==null || decoder.getPathDictionary()!=pathDictionary) {
+					decoder = new PerfDataFrameDecoder(new PerfDataPathFilter(pathDictionary, acceptPathPrefixes, rejectPathPrefixes));
+				}
 
-					numberPerfMessagesReceived.getAndIncrement();
+				// routes each reading to the shard which owns its path
+				long handledBefore = numberPerfMessagesAccepted.get()+numberPerfMessagesRejectedUnknownPath.get();
+				try {
+					int readings = decoder.decode(frame, readingRouter);
+					numberPerfMessagesReceived.getAndAdd(readings);
+					// readings rejected by a prefix rule are not passed to the router
+					long handled = numberPerfMessagesAccepted.get()+numberPerfMessagesRejectedUnknownPath.get()-handledBefore;
+					if (readings>handled) numberPerfMessagesRejectedByRule.getAndAdd(readings-handled);
+				} catch (InvalidProtocolBufferException e) {
+					LOG.error("problem parsing performance message buffer of length "+frame.length+" bytes:", e);
+				}
+				if (readingRouter.interrupted) {
+					// interrupt used to force stop of thread
+					run.set(false);
+					break;
+				}
+			}
 
-					// only create debug message if debug logging enabled
-					if(LOG.isDebugEnabled()){
-						StringBuffer values = new StringBuffer();
-						values.append("{ ");
-						for (int i = 0; i < message.getValueCount(); i++) {
-							if (i != 0) {
-								values.append(", ");
-							}
-							values.append(message.getValue(i));
-						}
-						values.append(" }");
-						LOG.debug("Message received. "
-								+ "\n   Message buffers (received:'"+numberMessageBuffersReceived.get()
-								+ " processed:'"+numberMessageBuffersProcessed.get()
-								+ "' In Queue:'"+m_queue.size()
-								+ "') "
-								+ "\n   Perf Messages (received:'"+numberPerfMessagesReceived.get()
-								+ " processed:'"+numberPerfMessagesProcessedByMatrix.get()
-								+ "')"
-								+ "\n   Message { "
-								+ "  path: \""
-								+ message.getPath() + "\", "
-								+ "owner: \""
-								+ message.getOwner() + "\", "
-								+ "timestamp: \""
-								+ message.getTimestamp()
-								+ "\", " + "values: "
-								+ values.toString() + " }");
-					}
+			LOG.info("PmatrixPerfDataQueueListener thread has stopped");
+			run.set(false);
+		} catch (Exception e){
+			LOG.error("Problem with PmatrixPerfDataQueueListener:", e);
+		}
+	}
 
-					// try to update the table with data
-					// synchronized so that an update operation does not happen while a persist operation is completing
-					synchronized(persistLockObject){
-
-						try{
-							PmatrixDpdCalculator pmatrixDpdCalculator = dataPointMapDao.getDataPointMap().get(message.getPath());
-							if (pmatrixDpdCalculator==null) {
-								if(LOG.isDebugEnabled()) LOG.debug("WARNING: data calculator not defined for filepath:'"+message.getPath()+"'");
-							} else {
-								numberPerfMessagesProcessedByMatrix.getAndIncrement();
-								if(LOG.isDebugEnabled()) LOG.debug("SUCCESS: (message processed count:'"+numberPerfMessagesProcessedByMatrix.get()
-										+ "') data calculator defined for filepath:'"+message.getPath()+"' number of update messages: "+message.getValueCount());
-
-								for (int i = 0; i < message.getValueCount(); i++){
-									// adds all values in message
-									Double latestValue = new Double(message.getValue(i));
-									Long latestTimestamp= new Long(message.getTimestamp());
-									//message.getOwner();
-									pmatrixDpdCalculator.updateCalculation(latestValue, latestTimestamp);
-								}
 
-							}
-						} catch (Exception e){
-							LOG.error("problem trying to update dataPointmapDao with message.getPath():'"+message.getPath()+"'", e);
-						}
-					}
+	/**
+	 * applies a single reading to its calculator. Called only by the update shard which owns the reading's path,
+	 * or by the queue thread if there are no update shards
+	 * @param reading
+	 */
+	private void updateCalculator(PathReading reading){
+
+		// only create debug message if debug logging enabled
+		if(LOG.isDebugEnabled()){
+			StringBuffer values = new StringBuffer();
+			values.append("{ ");
+			for (int i = 0; i < reading.valueCount; i++) {
+				if (i != 0) {
+					values.append(", ");
 				}
+				values.append(reading.values[i]);
+			}
+			values.append(" }");
+			LOG.debug("Message received. "
+					+ "\n   Message buffers (received:'"+numberMessageBuffersReceived.get()
+					+ " processed:'"+numberMessageBuffersProcessed.get()
+					+ "' In Queue:'"+m_queue.size()
+					+ "') "
+					+ "\n   Perf Messages (received:'"+numberPerfMessagesReceived.get()
+					+ " processed:'"+numberPerfMessagesProcessedByMatrix.get()
+					+ "')"
+					+ "\n   Message { "
+					+ "  path: \""
+					+ dataPointMapDao.getPathDictionary().getPath(reading.pathId) + "\", "
+					+ "timestamp: \""
+					+ reading.timestamp
+					+ "\", " + "values: "
+					+ values.toString() + " }");
+		}
 
-				// tell the dataPointMapDao that the table has changed
-				// don't tell it if thread stopping
-				if(run.get()) try{
-					dataPointMapDao.notifyChange();
-				} catch (Exception e){
-					LOG.error("problem trying to notify change to dataPointmapDao:", e);
+		// try to update the table with data
+		try{
+			PmatrixDpdCalculator pmatrixDpdCalculator = dataPointMapDao.getCalculator(reading.pathId);
+			if (pmatrixDpdCalculator==null) {
+				if(LOG.isDebugEnabled()) LOG.debug("WARNING: data calculator not defined for path id:"+reading.pathId);
+			} else {
+				numberPerfMessagesProcessedByMatrix.getAndIncrement();
+				if(LOG.isDebugEnabled()) LOG.debug("SUCCESS: (message processed count:'"+numberPerfMessagesProcessedByMatrix.get()
+						+ "') data calculator defined for path id:"+reading.pathId+" number of update messages: "+reading.valueCount);
+
+				// synchronized on the calculator so that a persist snapshot is never taken part way through an update
+				synchronized(pmatrixDpdCalculator){
+					for (int i = 0; i < reading.valueCount; i++){
+						// adds all values in message
+						pmatrixDpdCalculator.updateCalculation(reading.values[i], reading.timestamp);
+					}
+					pmatrixDpdCalculator.markUpdated();
 				}
+				// tell the dataPointMapDao that this cell has changed
+				dataPointMapDao.notifyChange(reading.pathId);
 
 			}
-
-			LOG.info("PmatrixPerfDataQueueListener thread has stopped");
-			run.set(false);
 		} catch (Exception e){
-			LOG.error("Problem with PmatrixPerfDataQueueListener:", e);
+			LOG.error("problem trying to update dataPointmapDao with path id:"+reading.pathId, e);
 		}
 	}
 
+	/**
+	 * @return index of the update shard which owns this path
+	 */
+	static int shardIndex(int pathId, int numberOfShards){
+		return pathId % numberOfShards;
+	}
+
+	/**
+	 * Applies readings to calculators for the subset of paths which hash to this shard.
+	 */
+	private class CalculatorUpdateShard extends Thread {
+
+		/**
+		 * readings waiting to be applied to calculators
+		 */
+		final BlockingQueue<PathReading> queue = new ArrayBlockingQueue<PathReading>(SHARD_QUEUE_LENGTH);
+
+		/**
+		 * preallocated readings not currently in the queue. Each reading is returned here once applied
+		 */
+		final BlockingQueue<PathReading> freeReadings = new ArrayBlockingQueue<PathReading>(SHARD_QUEUE_LENGTH);
+
+		CalculatorUpdateShard(){
+			for (int i = 0; i < SHARD_QUEUE_LENGTH; i++) freeReadings.add(new PathReading());
+		}
+
+		/**
+		 * count of readings applied by this shard
+		 */
+		final AtomicLong readingsProcessed = new AtomicLong(0);
+
+		@Override
+		public void run() {
+			LOG.info(getName()+" is starting to process readings"); 
+			while (run.get()) {
+				PathReading reading=null;
+				try {
+					reading = queue.take(); // waits for readings
+				} catch (InterruptedException ie) {
+					// interrupt used to force stop of thread
+					break;
+				}
+
+				// updateCalculator notifies the dataPointMapDao of each changed cell
+				try {
+					updateCalculator(reading);
+				} finally {
+					freeReadings.offer(reading);
+				}
+				readingsProcessed.getAndIncrement();
+			}
+			LOG.info(getName()+" has stopped");
+		}
+	}
 
 	@PostConstruct
 	public synchronized void startThread(){
 		run.set(true);
+		readingRouter.interrupted=false;
+
+		// with no shards readings are applied by the queue thread
+		int numberOfShards = (updateThreads < 1) ? 0 : updateThreads;
+		CalculatorUpdateShard[] shards = new CalculatorUpdateShard[numberOfShards];
+		for (int i = 0; i < numberOfShards; i++){
+			shards[i] = new CalculatorUpdateShard();
+			shards[i].setName("PmatrixCalculatorUpdateShard-"+i);
+			shards[i].start();
+		}
+		synchronized(shardRateLock){
+			shardRateSampleCounts = new long[numberOfShards];
+			shardRates = new double[numberOfShards];
+			shardRateSampleTime=0;
+		}
+		updateShards = shards;
+
 		perfDataQueueListener= new Thread(this);
 		perfDataQueueListener.setName("PmatrixPerfDataQueueListenerThread" );
 		perfDataQueueListener.start();
 
-		perfDataSocketListener= new PerfDataSocketListenerThread(port, run, m_queue, numberMessageBuffersProcessed, numberMessageBuffersReceived);
-		perfDataSocketListener.setName("pmatrixPerfDataSocketListenerThread" );
-		perfDataSocketListener.start();
+		if(nioListenerEnabled){
+			perfDataNioListener= new PerfDataNioListenerThread(port, delimitedPort, run, m_queue, numberMessageBuffersReceived, 
+					numberMessageBuffersDropped, numberOpenConnections, numberOpenDelimitedConnections, maxFrameSize, maxConnections, connectionIdleTimeout, writeAheadLog);
+			perfDataNioListener.setName("pmatrixPerfDataNioListenerThread" );
+			perfDataNioListener.start();
+		} else {
+			if (delimitedPort>0) LOG.warn("delimitedPort "+delimitedPort+" is ignored. Length delimited messages are only received by the nio listener");
+			perfDataSocketListener= new PerfDataSocketListenerThread(port, run, m_queue, numberMessageBuffersProcessed, numberMessageBuffersReceived, 
+					numberMessageBuffersDropped, maxFrameSize, writeAheadLog);
+			perfDataSocketListener.setName("pmatrixPerfDataSocketListenerThread" );
+			perfDataSocketListener.start();
+		}
 
 	}
 
@@ -250,6 +625,14 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 				LOG.error("Exception when stopping PmatrixPerfDataListener perfDataSocketListener",e);
 			}
 		}
+		if (perfDataNioListener!=null){
+			try {
+				perfDataNioListener.stopListenerThread();
+				perfDataNioListener.join(); //wait to stop
+			} catch (InterruptedException e) {
+				LOG.error("Exception when stopping PmatrixPerfDataListener perfDataNioListener",e);
+			}
+		}
 		if (perfDataQueueListener!=null){
 			try {
 				perfDataQueueListener.interrupt();
@@ -258,21 +641,31 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 				LOG.error("Exception when stopping PmatrixPerfDataListener perfDataQueueListener",e);
 			}
 		}
+		if (updateShards!=null){
+			for (CalculatorUpdateShard shard : updateShards){
+				try {
+					shard.interrupt();
+					shard.join(); //wait to stop
+				} catch (InterruptedException e) {
+					LOG.error("Exception when stopping PmatrixPerfDataListener "+shard.getName(),e);
+				}
+			}
+		}
 		LOG.info("PmatrixPerfDataListener Stopped"); 
 
 	}
 
 	/**
-	 * Pauses the updates from the update listener and instructs the attached DataPointMapDao to persist its data
+	 * Instructs the attached DataPointMapDao to persist its data. 
+	 * Updates are not paused. The repository snapshots each calculator while it is not being updated
+	 * and writes the snapshot on the calling (scheduler) thread.
 	 * @return true if the DataPointMapDao says it has persisted
 	 */
 	public synchronized  boolean persistDataPointMapDao(){
 		boolean persistSuccessfull=false;
 		LOG.debug("DEBUG: persistDataPointMapDao() called");
 		if (dataPointMapDao==null) return false;
-		synchronized(persistLockObject) {
-			persistSuccessfull=dataPointMapDao.persist();
-		}
+		persistSuccessfull=dataPointMapDao.persist();
 		return persistSuccessfull;
 	}
 
@@ -291,6 +684,34 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 		this.dataPointMapDao = dataPointMapDao;
 	}
 
+	/**
+	 * @return the write ahead log of received message buffers
+	 */
+	public PerfDataWriteAheadLog getWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 * @param writeAheadLog log to which each received message buffer is appended once it has been queued
+	 */
+	public void setWriteAheadLog(PerfDataWriteAheadLog writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+	}
+
+	/**
+	 * @return the tracker of readings whose path has no calculator
+	 */
+	public UnmatchedPathTracker getUnmatchedPathTracker() {
+		return unmatchedPathTracker;
+	}
+
+	/**
+	 * @param unmatchedPathTracker records readings whose path has no calculator. May be null
+	 */
+	public void setUnmatchedPathTracker(UnmatchedPathTracker unmatchedPathTracker) {
+		this.unmatchedPathTracker = unmatchedPathTracker;
+	}
+
 	/**
 	 * This Thread listens on the port for protobuff messages and adds the to the processing queue 
 	 * before quickly resetting the socket
@@ -299,22 +720,30 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 	 */
 	private static class PerfDataSocketListenerThread extends Thread {
 
-		BlockingQueue<PerformanceDataProtos.PerformanceDataReadings> m_queue=null;
+		BlockingQueue<byte[]> m_queue=null;
 		int port=0;
+		int maxFrameSize=0;
 		AtomicBoolean run=null;
 		AtomicLong numberMessageBuffersReceived=null;
 		AtomicLong numberMessageBuffersProcessed=null;
+		AtomicLong numberMessageBuffersDropped=null;
+		PerfDataWriteAheadLog writeAheadLog=null;
+		long lastDroppedFrameWarning=0;
 
 
 		ServerSocket ssocket;
 
-		PerfDataSocketListenerThread(int port, AtomicBoolean run, BlockingQueue<PerformanceDataProtos.PerformanceDataReadings> m_queue, 
-				AtomicLong numberMessageBuffersProcessed, AtomicLong numberMessageBuffersReceived){
+		PerfDataSocketListenerThread(int port, AtomicBoolean run, BlockingQueue<byte[]> m_queue, 
+				AtomicLong numberMessageBuffersProcessed, AtomicLong numberMessageBuffersReceived, 
+				AtomicLong numberMessageBuffersDropped, int maxFrameSize, PerfDataWriteAheadLog writeAheadLog){
 			this.port=port;
+			this.maxFrameSize=maxFrameSize;
 			this.run=run;
 			this.m_queue=m_queue;
 			this.numberMessageBuffersProcessed=numberMessageBuffersReceived;
 			this.numberMessageBuffersReceived=numberMessageBuffersReceived;
+			this.numberMessageBuffersDropped=numberMessageBuffersDropped;
+			this.writeAheadLog=writeAheadLog;
 		}
 
 		@Override
@@ -334,17 +763,25 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 						socket = ssocket.accept();
 						InputStream is = socket.getInputStream();
 
-						PerformanceDataProtos.PerformanceDataReadings messages = PerformanceDataProtos.PerformanceDataReadings.parseFrom(is);
+						byte[] messages = readFrame(is);
+						if (messages==null) continue;
 						numberMessageBuffersReceived.getAndIncrement();
 						if(m_queue.offer(messages)==false){
-							if(LOG.isDebugEnabled()) LOG.debug("Message Buffer Disguarded (message queue is full)."
-									+ "\n   Number of messages buffers in queue:"+m_queue.size()
+							long dropped=numberMessageBuffersDropped.incrementAndGet();
+							long now=System.currentTimeMillis();
+							if (now-lastDroppedFrameWarning > PerfDataNioListenerThread.DROPPED_FRAME_WARNING_INTERVAL){
+								lastDroppedFrameWarning=now;
+								LOG.warn("Message Buffer Disguarded (message queue is full). Message buffers dropped:"+dropped
+										+ " received:"+numberMessageBuffersReceived.get());
+							}
+						} else {
+							// only queued buffers are logged so that a dropped buffer is not applied when the log is replayed
+							if (writeAheadLog!=null) writeAheadLog.append(messages);
+							if(LOG.isDebugEnabled()) LOG.debug("Message Buffer Received."
+									+ "\n   Number of message buffers in queue:"+m_queue.size()
 									+ "\n   Message buffers received:"+numberMessageBuffersReceived.get()
 									+ "\n   Message buffers processed:"+numberMessageBuffersProcessed.get());
-						} else if(LOG.isDebugEnabled()) LOG.debug("Message Buffer Received."
-								+ "\n   Number of message buffers in queue:"+m_queue.size()
-								+ "\n   Message buffers received:"+numberMessageBuffersReceived.get()
-								+ "\n   Message buffers processed:"+numberMessageBuffersProcessed.get());
+						}
 
 					} catch (SocketTimeoutException e) {
 						LOG.error("socket has timed out when listening for performance messages:", e);
@@ -373,6 +810,24 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 		}
 
 
+		/**
+		 * reads the complete message sent on a connection
+		 * @return message bytes or null if the message was empty or longer than maxFrameSize
+		 */
+		private byte[] readFrame(InputStream is) throws IOException {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			byte[] buffer = new byte[PerfDataNioListenerThread.BUFFER_CHUNK_SIZE];
+			int len;
+			while ((len = is.read(buffer)) != -1) {
+				frame.write(buffer, 0, len);
+				if (frame.size() > maxFrameSize){
+					LOG.warn("Discarding performance message longer than maximum frame size "+maxFrameSize+" bytes");
+					return null;
+				}
+			}
+			return (frame.size()==0) ? null : frame.toByteArray();
+		}
+
 		public void stopListenerThread(){
 			LOG.info("Stopping PmatrixPerfDataListener ListenerThread"); 
 			run.set(false);
@@ -395,6 +850,11 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 		return numberMessageBuffersReceived.get();
 	}
 
+	@ManagedAttribute(description="Count of received message buffers dropped because the processing queue was full")
+	public long getNumberMessageBuffersDropped() {
+		return numberMessageBuffersDropped.get();
+	}
+
 	/**
 	 * @return the numberMessageBuffersProcessed
 	 */
@@ -411,6 +871,21 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 		return numberPerfMessagesReceived.get();
 	}
 
+	@ManagedAttribute(description="Count of performance messages whose path has a calculator")
+	public long getNumberPerfMessagesAccepted() {
+		return numberPerfMessagesAccepted.get();
+	}
+
+	@ManagedAttribute(description="Count of performance messages rejected because their path is not displayed")
+	public long getNumberPerfMessagesRejectedUnknownPath() {
+		return numberPerfMessagesRejectedUnknownPath.get();
+	}
+
+	@ManagedAttribute(description="Count of performance messages rejected by acceptPathPrefixes or rejectPathPrefixes")
+	public long getNumberPerfMessagesRejectedByRule() {
+		return numberPerfMessagesRejectedByRule.get();
+	}
+
 	/**
 	 * @return the numberPerfMessagesProcessedByMatrix
 	 */
@@ -423,13 +898,77 @@ public class PmatrixPerfDataListenerBuffered implements Runnable {
 	public int getMessageQueueLength(){
 		return m_queue.size();
 	}
+
+	@ManagedAttribute(description="number of sender connections currently open (nio listener only)")
+	public int getNumberOpenConnections(){
+		return numberOpenConnections.get();
+	}
+
+	@ManagedAttribute(description="number of open sender connections carrying length delimited messages (nio listener only)")
+	public int getNumberOpenDelimitedConnections(){
+		return numberOpenDelimitedConnections.get();
+	}
 	
+	@ManagedAttribute(description="number of calculator update shards")
+	public int getNumberUpdateShards(){
+		return (updateShards==null) ? 0 : updateShards.length;
+	}
+
+	@ManagedAttribute(description="number of readings waiting in each calculator update shard queue")
+	public int[] getShardQueueLengths(){
+		CalculatorUpdateShard[] shards = updateShards;
+		if (shards==null) return new int[0];
+		int[] lengths = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) lengths[i]=shards[i].queue.size();
+		return lengths;
+	}
+
+	@ManagedAttribute(description="count of readings applied to calculators by each calculator update shard")
+	public long[] getShardReadingsProcessed(){
+		CalculatorUpdateShard[] shards = updateShards;
+		if (shards==null) return new long[0];
+		long[] counts = new long[shards.length];
+		for (int i = 0; i < shards.length; i++) counts[i]=shards[i].readingsProcessed.get();
+		return counts;
+	}
+
+	@ManagedAttribute(description="readings per second applied by each calculator update shard since this attribute was last sampled (at most once per second)")
+	public double[] getShardReadingsPerSecond(){
+		CalculatorUpdateShard[] shards = updateShards;
+		if (shards==null) return new double[0];
+		synchronized(shardRateLock){
+			if (shardRates.length!=shards.length) return new double[0]; // shards being restarted
+			long now = System.currentTimeMillis();
+			long elapsed = now - shardRateSampleTime;
+			if (elapsed >= 1000) {
+				for (int i = 0; i < shards.length; i++) {
+					long count = shards[i].readingsProcessed.get();
+					shardRates[i] = (shardRateSampleTime==0) ? 0 : (count - shardRateSampleCounts[i]) * 1000.0 / elapsed;
+					shardRateSampleCounts[i] = count;
+				}
+				shardRateSampleTime = now;
+			}
+			return shardRates.clone();
+		}
+	}
+
 	@ManagedOperation(description="reset all message counters to zero")
 	public void resetCounters(){
 		numberPerfMessagesProcessedByMatrix.set(0);
 		numberPerfMessagesReceived.set(0);
+		numberPerfMessagesAccepted.set(0);
+		numberPerfMessagesRejectedUnknownPath.set(0);
+		numberPerfMessagesRejectedByRule.set(0);
 		numberMessageBuffersProcessed.set(0);
 		numberMessageBuffersReceived.set(0);
+		numberMessageBuffersDropped.set(0);
+		CalculatorUpdateShard[] shards = updateShards;
+		if (shards!=null) {
+			for (CalculatorUpdateShard shard : shards) shard.readingsProcessed.set(0);
+			synchronized(shardRateLock){
+				shardRateSampleTime=0;
+			}
+		}
 	}
 
 
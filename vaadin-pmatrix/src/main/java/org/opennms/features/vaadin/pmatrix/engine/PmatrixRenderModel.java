@@ -0,0 +1,639 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+
+/**
+ * Rendered content of the cells of one pmatrix table which is shared by every session displaying the table.
+ * Each cell is rendered at most once per DataPointMapDao update no matter how many sessions display it.
+ * The sessions compare the version of each cell with the version they last applied so that only 
+ * cells which have changed are updated in their own components.
+ */
+public class PmatrixRenderModel {
+
+	private final PmatrixSpecification pmatrixSpecification;
+
+	private final DataPointMapDao dataPointMapDao;
+
+	/**
+	 * rendered cells indexed by the DataPointDefinitions in the pmatrixSpecification
+	 */
+	private final Map<DataPointDefinition,RenderedCell> renderedCells = new IdentityHashMap<DataPointDefinition,RenderedCell>();
+
+	/**
+	 * highest DataPointMapDao update sequence in which the values of any cell changed
+	 */
+	private final AtomicLong version = new AtomicLong(0);
+
+	/**
+	 * DataPointMapDao update sequence when all of the cells were last refreshed by refreshCells()
+	 */
+	private volatile long refreshedSequence=-1;
+
+	/*
+	 * values for switching on or off cell decorations
+	 */
+	private final boolean latestDataValueEnabled;
+	private final boolean secondaryNumberEnabled;
+	private final boolean leftArrowEnabled;
+	private final boolean rightArrowEnabled;
+	private final boolean linkUrlEnabled;
+	private final boolean mouseOverTextEnabled;
+
+	/**
+	 * true if the cell descriptions are not rendered on each update but fetched with getLatestDescription()
+	 */
+	private final boolean lazyCellDescriptions;
+
+	/*
+	 * constant fragments of the cell html. The fragments which depend on the pmatrixSpecification
+	 * flags are built once in the constructor
+	 */
+	private static final String STATIC_TEXT_CELL_OPEN_HTML = 
+			"<div class=\"pmatrix.statictextcell\" style=\"vertical-align: middle; text-align: center; color:black; text-decoration:none; \">";
+
+	private static final String CELL_OPEN_HTML = 
+			"<div class=\"pmatrix.cell\" style=\"display: inline-block; vertical-align: middle; white-space:nowrap; text-decoration:none; \">"
+			+ "<span class=\"pmatrix.leftarrow\" style=\"vertical-align: middle; text-align:left; color:gray;  font-size:200%\">";
+
+	private static final String FRACTION_OPEN_HTML = "</span>"
+			+ "<div class=\"pmatrix.fraction\" style=\""
+			+ " display: inline-block;"
+			+ " position: relative;"
+			+ " vertical-align: middle;"
+			+ " letter-spacing: 0.01em; "
+			+ " text-align: center;"
+			+ " color:black;"
+			+ "\">"
+			+ "<span class=\"pmatrix.fup\" style= \""
+			+ " display: block;"
+			+ " padding: 0.2em; ";
+
+	private static final String SECONDARY_OPEN_HTML = "<span class=\"pmatrix.bar\" style=\"display: none;\">/</span>"
+			+ "<span class=\"pmatrix.fdn\" style=\""
+			+ " display: block;"
+			+ " padding: 0.2em; ";
+
+	private static final String CELL_RIGHT_ARROW_HTML = "</div>"
+			+ "<span class=\" matrix.rightarrow\" style=\"vertical-align: middle; color:gray; text-align: right; font-size:200%\">";
+
+	private static final String CELL_CLOSE_HTML = "</span>"
+			+ "</div>"
+			+ "</a>";
+
+	// line below top number used to underline top number if there is a secondary value
+	private static final String TOP_UNDERLINE=" border-bottom: thin solid gray;"; 
+
+	// line above lower number used to underline top number if there is a secondary value
+	private static final String BOTTOM_TOPLINE=" border-top: thin solid gray;"; 
+
+	private final String fractionOpenHtml = FRACTION_OPEN_HTML+" color:";
+	private final String fractionOpenUnderlinedHtml = FRACTION_OPEN_HTML+TOP_UNDERLINE+" color:";
+	private final String secondaryOpenHtml = SECONDARY_OPEN_HTML+" color:";
+	private final String secondaryOpenToplinedHtml = SECONDARY_OPEN_HTML+BOTTOM_TOPLINE+" color:";
+
+	/**
+	 * approximate length of the html of a cell used to size the StringBuilder
+	 */
+	private final int cellTemplateLength;
+
+	/**
+	 * rendered html, description and severity of one cell
+	 */
+	public static class RenderedCell {
+
+		private final DataPointDefinition dataPointDefinition;
+
+		/**
+		 * id of the filePath of the cell in the DataPointMapDao path dictionary. NOT_FOUND if the cell has no calculator
+		 */
+		private final int pathId;
+
+		private volatile String html;
+
+		private volatile String description;
+
+		private volatile Integer severity;
+
+		private volatile long version=0;
+
+		private volatile CellValues values;
+
+		/**
+		 * DataPointMapDao update sequence when the cell was last rendered. -1 if never rendered
+		 */
+		private long renderedSequence=-1;
+
+		/*
+		 * values of the definition used to build the current html. 
+		 * If none of these change the html is not rebuilt
+		 */
+		private Double renderedValue;
+		private Integer renderedValueRange;
+		private Double renderedSecondaryValue;
+		private Integer renderedSecondaryValueRange;
+		private String renderedLeftTrendArrow;
+		private String renderedRightTrendArrow;
+		private String renderedGraphURL;
+		private Boolean renderedStaticTextCell;
+		private String renderedStaticTextCellString;
+
+		RenderedCell(DataPointDefinition dataPointDefinition, int pathId){
+			this.dataPointDefinition=dataPointDefinition;
+			this.pathId=pathId;
+		}
+
+		/**
+		 * @return true if the html has been rendered from exactly these values of the definition
+		 */
+		private boolean renderInputsUnchanged(DataPointDefinition dpd){
+			return html!=null
+					&& same(renderedValue, dpd.getLatestDataValue())
+					&& same(renderedValueRange, dpd.getLatestDataValueRange())
+					&& same(renderedSecondaryValue, dpd.getSecondaryValue())
+					&& same(renderedSecondaryValueRange, dpd.getSecondaryValueRange())
+					&& same(renderedLeftTrendArrow, dpd.getLeftTrendArrow())
+					&& same(renderedRightTrendArrow, dpd.getRightTrendArrow())
+					&& same(renderedGraphURL, dpd.getGraphURL())
+					&& same(renderedStaticTextCell, dpd.getStaticTextCell())
+					&& same(renderedStaticTextCellString, dpd.getStaticTextCellString());
+		}
+
+		private void recordRenderInputs(DataPointDefinition dpd){
+			renderedValue=dpd.getLatestDataValue();
+			renderedValueRange=dpd.getLatestDataValueRange();
+			renderedSecondaryValue=dpd.getSecondaryValue();
+			renderedSecondaryValueRange=dpd.getSecondaryValueRange();
+			renderedLeftTrendArrow=dpd.getLeftTrendArrow();
+			renderedRightTrendArrow=dpd.getRightTrendArrow();
+			renderedGraphURL=dpd.getGraphURL();
+			renderedStaticTextCell=dpd.getStaticTextCell();
+			renderedStaticTextCellString=dpd.getStaticTextCellString();
+		}
+
+		private static boolean same(Object a, Object b){
+			return (a==null) ? b==null : a.equals(b);
+		}
+
+		/**
+		 * @return the definition of the cell in the pmatrixSpecification
+		 */
+		public DataPointDefinition getDataPointDefinition() {
+			return dataPointDefinition;
+		}
+
+		/**
+		 * @return html content of the cell
+		 */
+		public String getHtml() {
+			return html;
+		}
+
+		/**
+		 * @return mouse over description of the cell. Empty if mouse over text is not enabled or 
+		 * the descriptions are lazy, in which case getLatestDescription() renders it
+		 */
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * @return the latest data value range of the cell (DataPointDefinition.RANGE_INDETERMINATE to RANGE_CRITICAL) or null
+		 */
+		public Integer getSeverity() {
+			return severity;
+		}
+
+		/**
+		 * @return number which increases each time the html or description of the cell changes
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the values of the cell when it was last rendered. null if never rendered
+		 */
+		public CellValues getValues() {
+			return values;
+		}
+	}
+
+	/**
+	 * Immutable copy of the values of a cell which is replaced each time they change. 
+	 * Used by readers which need the values rather than the html of the cells
+	 */
+	public static final class CellValues {
+
+		private final Double latestDataValue;
+		private final Integer latestDataValueRange;
+		private final Double secondaryValue;
+		private final Integer secondaryValueRange;
+		private final String leftTrendArrow;
+		private final String rightTrendArrow;
+		private final Long latestTimestamp;
+		private final long changedSequence;
+
+		CellValues(DataPointDefinition dpd, long changedSequence){
+			latestDataValue=dpd.getLatestDataValue();
+			latestDataValueRange=dpd.getLatestDataValueRange();
+			secondaryValue=dpd.getSecondaryValue();
+			secondaryValueRange=dpd.getSecondaryValueRange();
+			leftTrendArrow=dpd.getLeftTrendArrow();
+			rightTrendArrow=dpd.getRightTrendArrow();
+			latestTimestamp=dpd.getLatestTimestamp();
+			this.changedSequence=changedSequence;
+		}
+
+		private boolean sameAs(DataPointDefinition dpd){
+			return RenderedCell.same(latestDataValue, dpd.getLatestDataValue())
+					&& RenderedCell.same(latestDataValueRange, dpd.getLatestDataValueRange())
+					&& RenderedCell.same(secondaryValue, dpd.getSecondaryValue())
+					&& RenderedCell.same(secondaryValueRange, dpd.getSecondaryValueRange())
+					&& RenderedCell.same(leftTrendArrow, dpd.getLeftTrendArrow())
+					&& RenderedCell.same(rightTrendArrow, dpd.getRightTrendArrow())
+					&& RenderedCell.same(latestTimestamp, dpd.getLatestTimestamp());
+		}
+
+		public Double getLatestDataValue() {
+			return latestDataValue;
+		}
+
+		public Integer getLatestDataValueRange() {
+			return latestDataValueRange;
+		}
+
+		public Double getSecondaryValue() {
+			return secondaryValue;
+		}
+
+		public Integer getSecondaryValueRange() {
+			return secondaryValueRange;
+		}
+
+		public String getLeftTrendArrow() {
+			return leftTrendArrow;
+		}
+
+		public String getRightTrendArrow() {
+			return rightTrendArrow;
+		}
+
+		public Long getLatestTimestamp() {
+			return latestTimestamp;
+		}
+
+		/**
+		 * @return the DataPointMapDao update sequence in which these values were first rendered
+		 */
+		public long getChangedSequence() {
+			return changedSequence;
+		}
+	}
+
+	/**
+	 * @param pmatrixSpecification
+	 * @param dataPointMapDao
+	 * @param lazyCellDescriptions if true the description of each cell is left empty and is only 
+	 * rendered when requested with getLatestDescription()
+	 */
+	public PmatrixRenderModel(PmatrixSpecification pmatrixSpecification, DataPointMapDao dataPointMapDao, boolean lazyCellDescriptions) {
+		if (pmatrixSpecification==null) throw new IllegalArgumentException("pmatrixSpecification must not be null");
+		if (dataPointMapDao==null) throw new IllegalArgumentException("dataPointMapDao must not be null");
+		this.pmatrixSpecification=pmatrixSpecification;
+		this.dataPointMapDao=dataPointMapDao;
+
+		latestDataValueEnabled=pmatrixSpecification.getLatestDataValueEnabled();
+		secondaryNumberEnabled=pmatrixSpecification.getSecondaryNumberEnabled();
+		leftArrowEnabled =pmatrixSpecification.getLeftArrowEnabled();
+		rightArrowEnabled=pmatrixSpecification.getRightArrowEnabled();
+		linkUrlEnabled=pmatrixSpecification.getLinkUrlEnabled();
+		mouseOverTextEnabled=pmatrixSpecification.getMouseOverTextEnabled();
+		this.lazyCellDescriptions=lazyCellDescriptions;
+
+		cellTemplateLength= CELL_OPEN_HTML.length()+fractionOpenUnderlinedHtml.length()
+				+ (secondaryNumberEnabled ? secondaryOpenToplinedHtml.length() : 0)
+				+ CELL_RIGHT_ARROW_HTML.length()+CELL_CLOSE_HTML.length();
+
+		if (pmatrixSpecification.getDatapointDefinitions()!=null) {
+			PathDictionary pathDictionary = dataPointMapDao.getPathDictionary();
+			for (DataPointDefinition dpd : pmatrixSpecification.getDatapointDefinitions()) {
+				renderedCells.put(dpd, new RenderedCell(dpd, pathDictionary.getId(dpd.getFilePath())));
+			}
+		}
+	}
+
+	/**
+	 * @return the pmatrixSpecification of the table
+	 */
+	public PmatrixSpecification getPmatrixSpecification() {
+		return pmatrixSpecification;
+	}
+
+	/**
+	 * @return all of the cells of the table in the order of the pmatrixSpecification
+	 */
+	public List<RenderedCell> getCells() {
+		if (pmatrixSpecification.getDatapointDefinitions()==null) return Collections.emptyList();
+		List<RenderedCell> cells = new ArrayList<RenderedCell>();
+		for (DataPointDefinition dpd : pmatrixSpecification.getDatapointDefinitions()) {
+			RenderedCell cell = getCell(dpd);
+			if (cell!=null) cells.add(cell);
+		}
+		return cells;
+	}
+
+	/**
+	 * Returns the cell rendered for this definition, rendering it if it has never been rendered.
+	 * Used when a session first builds its table.
+	 * @param dataPointDefinition definition from the pmatrixSpecification of this model
+	 * @return the rendered cell or null if the definition is not part of this model
+	 */
+	public RenderedCell getCell(DataPointDefinition dataPointDefinition) {
+		RenderedCell cell = renderedCells.get(dataPointDefinition);
+		if (cell==null) return null;
+		synchronized(cell){
+			if (cell.renderedSequence<0) render(cell, dataPointMapDao.getUpdateSequence());
+		}
+		return cell;
+	}
+
+	/**
+	 * Returns the cell rendered for this definition, rendering it from its calculator if it has not
+	 * already been rendered during the current DataPointMapDao update. 
+	 * Used when the DataPointMapDao reports the cell has changed.
+	 * @param dataPointDefinition definition from the pmatrixSpecification of this model
+	 * @return the rendered cell or null if the definition is not part of this model
+	 */
+	public RenderedCell refreshCell(DataPointDefinition dataPointDefinition) {
+		RenderedCell cell = renderedCells.get(dataPointDefinition);
+		if (cell==null) return null;
+		long updateSequence=dataPointMapDao.getUpdateSequence();
+		synchronized(cell){
+			if (cell.renderedSequence<updateSequence || cell.renderedSequence<0) render(cell, updateSequence);
+		}
+		return cell;
+	}
+
+	/**
+	 * Refreshes every cell of the table which has not been rendered since the last DataPointMapDao update.
+	 * Used by readers of the whole table which are not subscribed to the DataPointMapDao. 
+	 * Does nothing if the cells have already been refreshed for the current update.
+	 * @return the DataPointMapDao update sequence which every cell has been rendered up to. getVersion() may 
+	 * already be higher if another reader has rendered some of the cells of a later update, so readers which 
+	 * give the version to clients should not give a version higher than this
+	 */
+	public long refreshCells() {
+		long updateSequence=dataPointMapDao.getUpdateSequence();
+		if (refreshedSequence>=updateSequence) return updateSequence;
+		if (pmatrixSpecification.getDatapointDefinitions()!=null) {
+			for (DataPointDefinition dpd : pmatrixSpecification.getDatapointDefinitions()) {
+				refreshCell(dpd);
+			}
+		}
+		if (refreshedSequence<updateSequence) refreshedSequence=updateSequence;
+		return updateSequence;
+	}
+
+	/**
+	 * @return the highest DataPointMapDao update sequence in which the values of any cell of the table changed.
+	 * Unchanged while the table is unchanged so it can be used as a version of the table. 
+	 * Cells of the latest update may still be waiting to be rendered (see refreshCells())
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Returns the mouse over description of the cell directly from the state of its calculator rather than from 
+	 * the last render. Used to fetch the description of a single cell when the user hovers over it.
+	 * @param cell cell of this model
+	 * @return the latest description of the cell. Empty if mouse over text is not enabled or there is no description
+	 */
+	public String getLatestDescription(RenderedCell cell) {
+		if (!mouseOverTextEnabled || cell==null) return "";
+		DataPointDefinition dpd = cell.dataPointDefinition;
+		String description=null;
+		PmatrixDpdCalculator pmatrixDpdCalculator = dataPointMapDao.getCalculator(cell.pathId);
+		if (pmatrixDpdCalculator!=null) {
+			description = pmatrixDpdCalculator.getMouseOverText();
+		}
+		if (description==null) {
+			synchronized(cell){
+				description = dpd.getMouseOverText();
+			}
+		}
+		return (description==null) ? "" : description;
+	}
+
+	/**
+	 * copies the latest calculation into the cell definition and renders it. Must be called synchronized on the cell
+	 */
+	private void render(RenderedCell cell, long updateSequence) {
+		PmatrixDpdCalculator pmatrixDpdCalculator = dataPointMapDao.getCalculator(cell.pathId);
+		if (pmatrixDpdCalculator==null) {
+			renderDefinition(cell, updateSequence);
+			return;
+		}
+		// the calculator is locked as it is by the listeners while it is updated so that the 
+		// value, severity and description of the cell all come from the same update
+		synchronized(pmatrixDpdCalculator){
+			pmatrixDpdCalculator.updateDpd(cell.dataPointDefinition, mouseOverTextEnabled && !lazyCellDescriptions);
+			renderDefinition(cell, updateSequence);
+		}
+	}
+
+	/**
+	 * renders the cell from its definition and increments its version if the result has changed
+	 */
+	private void renderDefinition(RenderedCell cell, long updateSequence) {
+		DataPointDefinition dpd = cell.dataPointDefinition;
+
+		// only rebuild the html if the values it is built from have changed since the last render
+		String html;
+		if (cell.renderInputsUnchanged(dpd)) {
+			html = cell.html;
+		} else {
+			html = labelStrFromDpd(dpd);
+			cell.recordRenderInputs(dpd);
+		}
+		// lazy descriptions are rendered on request so they are neither kept nor compared here
+		String description = (mouseOverTextEnabled && !lazyCellDescriptions) ? dpd.getMouseOverText() : "";
+		if (description==null) description="";
+
+		// the existing strings are kept if unchanged so that sessions can skip the cell
+		if (!html.equals(cell.html) || !description.equals(cell.description)) {
+			cell.html=html;
+			cell.description=description;
+			cell.version++;
+		}
+		cell.severity=dpd.getLatestDataValueRange();
+
+		CellValues values = cell.values;
+		if (values==null || !values.sameAs(dpd)) {
+			cell.values=new CellValues(dpd, updateSequence);
+			long tableVersion;
+			do {
+				tableVersion=version.get();
+			} while (tableVersion<updateSequence && !version.compareAndSet(tableVersion, updateSequence));
+		}
+		cell.renderedSequence=updateSequence;
+	}
+
+	/**
+	 * translates the range values between DataPointDefinition.RANGE_CRITICAL and DataPointDefinition.RANGE_INDETERMINATE
+	 * into appropriate HTML colours. 
+	 * @param dataPointDefinitionRange
+	 * @return corresponding html color string
+	 */
+	public static String linkColorForRange(Integer dataPointDefinitionRange){
+
+		String linkcolor="black;";
+		if (dataPointDefinitionRange!=null)	switch (dataPointDefinitionRange) {
+		case DataPointDefinition.RANGE_CRITICAL:  linkcolor = "purple;";
+		break;
+		case DataPointDefinition.RANGE_MAJOR:  linkcolor = "red;";
+		break;
+		case DataPointDefinition.RANGE_MINOR:  linkcolor = "LightSalmon;"; // orange hard to distinguish from goldenRod
+		break;
+		case DataPointDefinition.RANGE_WARNING:  linkcolor = "goldenRod;"; // chosen because yellow has poor contrast
+		break;
+		case DataPointDefinition.RANGE_NORMAL:  linkcolor = "green;";
+		break;
+		case DataPointDefinition.RANGE_INDETERMINATE:  linkcolor = "blue;";
+		break;
+		default: linkcolor = "black;";
+		break;
+		}
+		return linkcolor;
+	}
+
+	/**
+	 * translates  returned values of DataPointDefinition.getLeftTrendArrow(); and .getRightTrendArrow()
+	 * to html arrow character equivalents
+	 * DataPointDefinition.TREND_LEVEL : arrow left and right (&#8596; or &harr;)
+	 * DataPointDefinition.TREND_UP    : arrow up (&#8593; or &uarr;)
+	 * DataPointDefinition.TREND_DOWN  : arrow down (&#8595; or &darr;)
+	 * 
+	 */
+	public static String trendArrowStr(String trendArrow){
+
+		if (DataPointDefinition.TREND_LEVEL.equals(trendArrow)) return "&harr;";
+		if (DataPointDefinition.TREND_UP.equals(trendArrow)) return "&uarr;";
+		if (DataPointDefinition.TREND_DOWN.equals(trendArrow)) return  "&darr;";
+
+		return ""; // null or all other values
+	}
+
+	/**
+	 * Creates and populates a properly HTML formatted label string from a given data point definition.
+	 * The constant fragments of the html are built once for the table so only the values, colours, 
+	 * arrows and link are added for each cell.
+	 * returns an empty string if data point definition is null
+	 * @return HTML formatted string for a label
+	 */
+	public String labelStrFromDpd(DataPointDefinition localdpd){
+
+		if (localdpd==null) return "";
+
+		// static text cell string is used in cell if StaticTextCell boolean is true
+		if (Boolean.TRUE.equals(localdpd.getStaticTextCell())) {
+			StringBuilder labelStr= new StringBuilder(STATIC_TEXT_CELL_OPEN_HTML.length()+128);
+			labelStr.append(STATIC_TEXT_CELL_OPEN_HTML);
+			appendLinkOpen(labelStr, localdpd);
+			labelStr.append(localdpd.getStaticTextCellString()).append("</div></a>");
+			return labelStr.toString();
+		}
+
+		// if not static text cell then populate cell normally
+		boolean secondaryNumberShown = secondaryNumberEnabled && localdpd.getSecondaryValue()!=null;
+
+		StringBuilder labelStr= new StringBuilder(cellTemplateLength+128);
+
+		// formats cell as numerator / denominator with left and right arrows
+		// see example http://www.periodni.com/mathematical_and_chemical_equations_on_web.html
+		appendLinkOpen(labelStr, localdpd);
+		labelStr.append(CELL_OPEN_HTML);
+		if (leftArrowEnabled) labelStr.append(trendArrowStr(localdpd.getLeftTrendArrow()));
+
+		// line below top number is only drawn if both numbers are shown
+		labelStr.append(secondaryNumberShown && latestDataValueEnabled ? fractionOpenUnderlinedHtml : fractionOpenHtml)
+		.append(linkColorForRange(localdpd.getLatestDataValueRange()))
+		.append(" \">");
+
+		//set primary number if enabled
+		if(latestDataValueEnabled){
+			Double latestDataValue = localdpd.getLatestDataValue();
+			if (latestDataValue == null) {
+				labelStr.append("no&nbsp;data"); // &nbsp; = no break space keep words together
+			} else {
+				CellValueFormat.append(labelStr, latestDataValue.doubleValue());
+			}
+		}
+		labelStr.append("</span>");
+
+		// if there is no secondary value defined (i.e. null ) do not print denominator line and secondary value 
+		if(secondaryNumberShown) {
+			labelStr.append(latestDataValueEnabled ? secondaryOpenToplinedHtml : secondaryOpenHtml)
+			.append(linkColorForRange(localdpd.getSecondaryValueRange()))
+			.append("\">");
+			CellValueFormat.append(labelStr, localdpd.getSecondaryValue().doubleValue());
+			labelStr.append("</span>");
+		}
+
+		labelStr.append(CELL_RIGHT_ARROW_HTML);
+		if (rightArrowEnabled) labelStr.append(trendArrowStr(localdpd.getRightTrendArrow()));
+		labelStr.append(CELL_CLOSE_HTML);
+
+		return labelStr.toString();
+	}
+
+	/**
+	 * link opens in new window or tab. 
+	 * href with relative link to this page if url not enabled
+	 */
+	private void appendLinkOpen(StringBuilder labelStr, DataPointDefinition localdpd){
+		if(linkUrlEnabled){
+			String linkUrl= (localdpd.getGraphURL()!=null) ? localdpd.getGraphURL() : "" ;
+			labelStr.append("<a href=\"").append(linkUrl).append("\" target=\"_blank\" >") ;
+		} else {
+			labelStr.append("<a href=\"\" >");
+		}
+	}
+
+}
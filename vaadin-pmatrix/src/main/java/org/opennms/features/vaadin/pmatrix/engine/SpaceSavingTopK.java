@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Space-Saving estimate of the most frequent keys offered, using a fixed number of counters.
+ * 
+ * Keys are offered as encoded bytes within a larger buffer. A key which already has a counter is 
+ * found by its hash and a byte comparison, so counting a key allocates nothing. When all counters 
+ * are in use a new key replaces the key with the lowest count and inherits that count as its error. 
+ * Any key offered more than total/capacity times is guaranteed to hold a counter, and the count of 
+ * each key reported is an overestimate by at most its error.
+ * 
+ * The bytes of a key are copied when it takes a counter. The String is only created when the 
+ * counters are read by top().
+ * 
+ * Not thread safe.
+ */
+public final class SpaceSavingTopK {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * snapshot of one counter returned by top()
+	 */
+	public static final class Entry {
+		private final String key;
+		private final long count;
+		private final long error;
+
+		Entry(String key, long count, long error) {
+			this.key=key;
+			this.count=count;
+			this.error=error;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the estimated number of times the key was offered. Never less than the real number
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the maximum amount by which count overestimates the real number
+		 */
+		public long getError() {
+			return error;
+		}
+	}
+
+	private static final class Counter {
+		byte[] key;
+		int keyLength;
+		int hash;
+		String keyString;
+		long count;
+		long error;
+		int heapIndex;
+	}
+
+	private final int capacity;
+
+	/**
+	 * binary min heap of the counters ordered by count
+	 */
+	private final Counter[] heap;
+
+	private int size=0;
+
+	/**
+	 * open addressing table of the counters with linear probing indexed by the key hash
+	 */
+	private final Counter[] table;
+
+	private final int mask;
+
+	/**
+	 * @param capacity number of counters kept
+	 */
+	public SpaceSavingTopK(int capacity) {
+		if (capacity<1) throw new IllegalArgumentException("capacity must be at least 1: "+capacity);
+		this.capacity=capacity;
+		this.heap=new Counter[capacity];
+		int tableSize=4;
+		while (tableSize<capacity*2) tableSize<<=1;
+		this.table=new Counter[tableSize];
+		this.mask=tableSize-1;
+	}
+
+	/**
+	 * counts one occurrence of a key
+	 * @param buffer buffer holding the encoded key
+	 * @param offset offset of the key in the buffer
+	 * @param length length of the key in bytes
+	 * @param hash hash of the key bytes e.g. from HyperLogLog.hash64()
+	 */
+	public void offer(byte[] buffer, int offset, int length, long hash){
+		int slot = (int) hash & mask;
+		Counter counter;
+		while ((counter=table[slot])!=null){
+			if (counter.hash==(int) hash && sameKey(counter, buffer, offset, length)){
+				counter.count++;
+				siftDown(counter.heapIndex);
+				return;
+			}
+			slot = (slot+1) & mask;
+		}
+
+		if (size<capacity){
+			counter=new Counter();
+			counter.heapIndex=size;
+			heap[size++]=counter;
+		} else {
+			// replace the key with the lowest count
+			counter=heap[0];
+			removeFromTable(counter);
+			counter.error=counter.count;
+			// the slot found above may have moved when the old key was removed
+			slot = (int) hash & mask;
+			while (table[slot]!=null) slot = (slot+1) & mask;
+		}
+		setKey(counter, buffer, offset, length, (int) hash);
+		counter.count++;
+		table[slot]=counter;
+		if (counter.count==1) siftUp(counter.heapIndex);
+		else siftDown(counter.heapIndex);
+	}
+
+	/**
+	 * @param limit maximum number of entries returned
+	 * @return the counted keys in descending order of count
+	 */
+	public List<Entry> top(int limit){
+		List<Counter> counters = new ArrayList<Counter>(size);
+		for (int i=0; i<size; i++) counters.add(heap[i]);
+		Collections.sort(counters, new Comparator<Counter>(){
+			@Override
+			public int compare(Counter c1, Counter c2) {
+				return c1.count>c2.count ? -1 : (c1.count==c2.count ? 0 : 1);
+			}
+		});
+		List<Entry> entries = new ArrayList<Entry>(Math.max(0, Math.min(limit, counters.size())));
+		for (Counter counter : counters){
+			if (entries.size()>=limit) break;
+			if (counter.keyString==null) counter.keyString=new String(counter.key, 0, counter.keyLength, UTF8);
+			entries.add(new Entry(counter.keyString, counter.count, counter.error));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return number of counters in use
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public void clear(){
+		for (int i=0; i<size; i++) heap[i]=null;
+		for (int i=0; i<table.length; i++) table[i]=null;
+		size=0;
+	}
+
+	private static boolean sameKey(Counter counter, byte[] buffer, int offset, int length){
+		if (counter.keyLength!=length) return false;
+		byte[] key=counter.key;
+		for (int i=0; i<length; i++){
+			if (key[i]!=buffer[offset+i]) return false;
+		}
+		return true;
+	}
+
+	private static void setKey(Counter counter, byte[] buffer, int offset, int length, int hash){
+		// the key array of an evicted counter is reused when it is large enough
+		if (counter.key==null || counter.key.length<length) counter.key=new byte[length];
+		System.arraycopy(buffer, offset, counter.key, 0, length);
+		counter.keyLength=length;
+		counter.hash=hash;
+		counter.keyString=null;
+	}
+
+	/**
+	 * removes a counter from the table, shifting back any following entries of the probe sequence
+	 */
+	private void removeFromTable(Counter counter){
+		int slot = counter.hash & mask;
+		while (table[slot]!=counter) slot = (slot+1) & mask;
+		table[slot]=null;
+		int next=slot;
+		while (true){
+			next = (next+1) & mask;
+			Counter moved=table[next];
+			if (moved==null) return;
+			int home = moved.hash & mask;
+			// leave entries whose home slot is cyclically after the empty slot
+			boolean stays = slot<=next ? (slot<home && home<=next) : (slot<home || home<=next);
+			if (stays) continue;
+			table[slot]=moved;
+			table[next]=null;
+			slot=next;
+		}
+	}
+
+	private void siftUp(int index){
+		Counter counter=heap[index];
+		while (index>0){
+			int parent=(index-1)>>>1;
+			if (heap[parent].count<=counter.count) break;
+			heap[index]=heap[parent];
+			heap[index].heapIndex=index;
+			index=parent;
+		}
+		heap[index]=counter;
+		counter.heapIndex=index;
+	}
+
+	private void siftDown(int index){
+		Counter counter=heap[index];
+		while (true){
+			int child=2*index+1;
+			if (child>=size) break;
+			if (child+1<size && heap[child+1].count<heap[child].count) child++;
+			if (counter.count<=heap[child].count) break;
+			heap[index]=heap[child];
+			heap[index].heapIndex=index;
+			index=child;
+		}
+		heap[index]=counter;
+		counter.heapIndex=index;
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.util.List;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Tracks the received readings whose path is not in the pmatrix configuration, so that the paths 
+ * worth adding to the configuration can be found without running PerfTestDataConfigurationCollector.
+ * 
+ * Memory is bounded however many distinct paths are received. The number of distinct unmatched paths 
+ * and owners is estimated with a HyperLogLog and the most frequent of them with a SpaceSavingTopK. 
+ * Readings are recorded by the PmatrixPerfDataListenerBuffered queue thread from the bytes of the 
+ * message buffer. No String is created for a reading unless its key is read from the top lists.
+ * 
+ * The results are available over JMX and as JSON from PmatrixUnmatchedPathsServlet.
+ */
+@ManagedResource
+public class UnmatchedPathTracker {
+
+	/**
+	 * if false readings are not recorded
+	 */
+	private volatile boolean enabled=true;
+
+	/**
+	 * number of counters kept for the most frequent paths and owners
+	 */
+	private int topK=100;
+
+	private final HyperLogLog pathCardinality = new HyperLogLog();
+
+	private final HyperLogLog ownerCardinality = new HyperLogLog();
+
+	private SpaceSavingTopK topPaths = new SpaceSavingTopK(topK);
+
+	private SpaceSavingTopK topOwners = new SpaceSavingTopK(topK);
+
+	private long unmatchedReadings=0;
+
+	private long resetTime=System.currentTimeMillis();
+
+	/**
+	 * records a reading whose path has no calculator
+	 * @param buffer message buffer
+	 * @param pathOffset offset of the UTF-8 path in the buffer
+	 * @param pathLength length of the path in bytes
+	 * @param ownerOffset offset of the UTF-8 owner in the buffer or -1 if the reading has no owner
+	 * @param ownerLength length of the owner in bytes
+	 */
+	public void record(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength){
+		if (!enabled) return;
+		long pathHash = HyperLogLog.hash64(buffer, pathOffset, pathLength);
+		long ownerHash = (ownerOffset<0) ? 0 : HyperLogLog.hash64(buffer, ownerOffset, ownerLength);
+		synchronized (this) {
+			unmatchedReadings++;
+			pathCardinality.offer(pathHash);
+			topPaths.offer(buffer, pathOffset, pathLength, pathHash);
+			if (ownerOffset>=0) {
+				ownerCardinality.offer(ownerHash);
+				topOwners.offer(buffer, ownerOffset, ownerLength, ownerHash);
+			}
+		}
+	}
+
+	/**
+	 * @param limit maximum number of entries returned
+	 * @return the most frequent unmatched paths in descending order of count
+	 */
+	public synchronized List<SpaceSavingTopK.Entry> getTopPaths(int limit){
+		return topPaths.top(limit);
+	}
+
+	/**
+	 * @param limit maximum number of entries returned
+	 * @return the most frequent owners of unmatched paths in descending order of count
+	 */
+	public synchronized List<SpaceSavingTopK.Entry> getTopOwners(int limit){
+		return topOwners.top(limit);
+	}
+
+	@ManagedAttribute(description="Estimated number of distinct unmatched paths since the last reset")
+	public synchronized long getDistinctUnmatchedPaths() {
+		return pathCardinality.cardinality();
+	}
+
+	@ManagedAttribute(description="Estimated number of distinct owners of unmatched paths since the last reset")
+	public synchronized long getDistinctUnmatchedOwners() {
+		return ownerCardinality.cardinality();
+	}
+
+	@ManagedAttribute(description="Count of readings with an unmatched path since the last reset")
+	public synchronized long getUnmatchedReadings() {
+		return unmatchedReadings;
+	}
+
+	@ManagedAttribute(description="Time in ms since the epoch of the last reset")
+	public synchronized long getResetTime() {
+		return resetTime;
+	}
+
+	@ManagedAttribute(description="Most frequent unmatched paths as 'count path'")
+	public String[] getTopUnmatchedPaths() {
+		return describe(getTopPaths(topK));
+	}
+
+	@ManagedAttribute(description="Most frequent owners of unmatched paths as 'count owner'")
+	public String[] getTopUnmatchedOwners() {
+		return describe(getTopOwners(topK));
+	}
+
+	private static String[] describe(List<SpaceSavingTopK.Entry> entries){
+		String[] descriptions = new String[entries.size()];
+		for (int i=0; i<descriptions.length; i++){
+			SpaceSavingTopK.Entry entry = entries.get(i);
+			descriptions[i] = entry.getCount()+" "+entry.getKey();
+		}
+		return descriptions;
+	}
+
+	@ManagedOperation(description="clear the unmatched path statistics")
+	public synchronized void reset(){
+		pathCardinality.clear();
+		ownerCardinality.clear();
+		topPaths.clear();
+		topOwners.clear();
+		unmatchedReadings=0;
+		resetTime=System.currentTimeMillis();
+	}
+
+	@ManagedAttribute(description="true if unmatched readings are recorded")
+	public boolean getEnabled() {
+		return enabled;
+	}
+
+	@ManagedAttribute(description="true if unmatched readings are recorded")
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@ManagedAttribute(description="Number of counters kept for the most frequent paths and owners")
+	public synchronized int getTopK() {
+		return topK;
+	}
+
+	/**
+	 * @param topK number of counters kept for the most frequent paths and owners. 
+	 * Changing it clears the top lists
+	 */
+	public synchronized void setTopK(int topK) {
+		if (topK<1) throw new IllegalArgumentException("topK must be at least 1: "+topK);
+		this.topK = topK;
+		topPaths = new SpaceSavingTopK(topK);
+		topOwners = new SpaceSavingTopK(topK);
+	}
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.ui;
+
+import org.opennms.features.vaadin.pmatrix.engine.PmatrixDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.external.json.JSONArray;
+import com.vaadin.external.json.JSONException;
+import com.vaadin.server.AbstractJavaScriptExtension;
+import com.vaadin.ui.JavaScriptFunction;
+
+/**
+ * Shows the mouse over description of a pmatrix cell when the user hovers over it.
+ * The descriptions are not sent with the cells. The browser fetches the description of the cell
+ * under the mouse from the server using the id of the cell label and caches it for a short time.
+ */
+@SuppressWarnings("serial")
+@JavaScript("cellDescriptionExtension.js")
+public class CellDescriptionExtension extends AbstractJavaScriptExtension {
+	private static final Logger LOG = LoggerFactory.getLogger(CellDescriptionExtension.class);
+
+	private final PmatrixDataSource pmatrixDataSource;
+
+	/**
+	 * @param target the component containing the cells. Usually the PmatrixTable
+	 * @param pmatrixDataSource data source which provides the cell descriptions
+	 * @param cacheTime time in ms the browser keeps a fetched description
+	 */
+	public CellDescriptionExtension(PmatrixTable target, PmatrixDataSource pmatrixDataSource, int cacheTime) {
+		this.pmatrixDataSource=pmatrixDataSource;
+		getState().cacheTime=cacheTime;
+
+		// called by the browser with the id of the cell under the mouse
+		addFunction("fetchDescription", new JavaScriptFunction() {
+			@Override
+			public void call(JSONArray arguments) throws JSONException {
+				String cellId = arguments.getString(0);
+				String description = CellDescriptionExtension.this.pmatrixDataSource.getCellDescriptionById(cellId);
+				if(LOG.isDebugEnabled()) LOG.debug("fetched description for cellId:"+cellId);
+				callFunction("showDescription", cellId, (description==null) ? "" : description);
+			}
+		});
+
+		extend(target);
+	}
+
+	@Override
+	protected CellDescriptionExtensionState getState() {
+		return (CellDescriptionExtensionState) super.getState();
+	}
+
+}
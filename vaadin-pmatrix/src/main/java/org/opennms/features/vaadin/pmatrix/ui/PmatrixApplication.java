@@ -37,7 +37,9 @@ import com.vaadin.annotations.PreserveOnRefresh;
 import com.vaadin.annotations.Theme;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinServlet;
+import com.vaadin.shared.communication.PushMode;
 import com.vaadin.shared.ui.label.ContentMode;
+import com.vaadin.shared.ui.ui.Transport;
 import com.vaadin.ui.Alignment;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.Label;
@@ -130,14 +132,28 @@ public class PmatrixApplication extends UI {
 		} else {
 			layout.addComponent(uiComponent);
 
-			// refresh interval to apply to the UI
-			int pollInterval=uiComponentFactory.getRefreshRate();
-			setPollInterval(pollInterval);
+			boolean pushEnabled = (uiComponent instanceof PmatrixTable) 
+					&& ((PmatrixTable) uiComponent).getPmatrixDataSource().getPushEnabled();
 
-			// display poll interval in seconds
-			DecimalFormat dformat = new DecimalFormat("##.##");
 			Label label = new Label();
-			label.setCaption("(refresh rate:"+dformat.format(pollInterval/1000)+" seconds)");
+			if (pushEnabled) {
+				// the data source pushes changes to the browser as they arrive so the UI does not poll.
+				// websocket is used where possible, otherwise atmosphere falls back to long polling
+				getPushConfiguration().setTransport(Transport.WEBSOCKET);
+				getPushConfiguration().setParameter("fallbackTransport", "long-polling");
+				getPushConfiguration().setPushMode(PushMode.MANUAL);
+				setPollInterval(-1);
+				label.setCaption("(updates pushed by server)");
+				if(LOG.isDebugEnabled()) LOG.debug("Pmatrix UI instance using server push:"+this);
+			} else {
+				// refresh interval to apply to the UI
+				int pollInterval=uiComponentFactory.getRefreshRate();
+				setPollInterval(pollInterval);
+
+				// display poll interval in seconds
+				DecimalFormat dformat = new DecimalFormat("##.##");
+				label.setCaption("(refresh rate:"+dformat.format(pollInterval/1000)+" seconds)");
+			}
 			layout.addComponent(label);
 		}
 
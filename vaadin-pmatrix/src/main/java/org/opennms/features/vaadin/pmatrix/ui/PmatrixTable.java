@@ -35,8 +35,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vaadin.annotations.AutoGenerated;
+import com.vaadin.data.Property;
 import com.vaadin.shared.ui.label.ContentMode;
+import com.vaadin.ui.AbstractSelect.ItemDescriptionGenerator;
 import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Component;
 import com.vaadin.ui.CustomComponent;
 import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Label;
@@ -68,6 +71,11 @@ public class PmatrixTable extends CustomComponent {
 	private PmatrixDataSource pmatrixDataSource =null;
 	
 	private boolean hidePmatrixHeaders=false;
+
+	/**
+	 * rows cached either side of the displayed rows when lightweight rendering is used (as a multiple of the displayed rows)
+	 */
+	private static final double LIGHTWEIGHT_CACHE_RATE=0.5;
 	
 
 	public PmatrixDataSource getPmatrixDataSource() {
@@ -136,6 +144,42 @@ public class PmatrixTable extends CustomComponent {
 		pmatrixTable.addStyleName(".pmatrixtheme .v-table-caption-container");
 		
 		pmatrixTable.setContainerDataSource(getPmatrixDataSource().getDataSourceContainer());
+
+		// cell descriptions are fetched by the browser when the user hovers over a cell
+		final boolean lazyCellDescriptions = pmatrixDataSource.getLazyCellDescriptions();
+		if(lazyCellDescriptions){
+			new CellDescriptionExtension(this, pmatrixDataSource, pmatrixDataSource.getCellDescriptionCacheTime());
+		}
+
+		// large tables hold html strings. A Label is only generated for the cells of the rows being displayed
+		if(pmatrixDataSource.getLightweightRendering()){
+			if(LOG.isDebugEnabled()) LOG.debug("using lightweight rendering for pmatrix table:"+pmatrixTitle);
+			Table.ColumnGenerator htmlCellGenerator = new Table.ColumnGenerator() {
+				@Override
+				public Object generateCell(Table source, Object itemId, Object columnId) {
+					Property<?> cell = source.getContainerProperty(itemId, columnId);
+					Object html = (cell==null) ? null : cell.getValue();
+					if (html==null) return null;
+					Label label = new Label(html.toString(), ContentMode.HTML);
+					PmatrixDataSource dataSource = getPmatrixDataSource();
+					if (lazyCellDescriptions && dataSource!=null) label.setId(dataSource.getCellId(itemId, columnId));
+					return label;
+				}
+			};
+			for(Object  pid: pmatrixTable.getContainerPropertyIds()){
+				if(! pid.equals("rowName")) pmatrixTable.addGeneratedColumn(pid, htmlCellGenerator);
+			}
+			if(!lazyCellDescriptions){
+				pmatrixTable.setItemDescriptionGenerator(new ItemDescriptionGenerator() {
+					@Override
+					public String generateDescription(Component source, Object itemId, Object propertyId) {
+						PmatrixDataSource dataSource = getPmatrixDataSource();
+						return (dataSource==null) ? null : dataSource.getCellDescription(itemId, propertyId);
+					}
+				});
+			}
+			pmatrixTable.setCacheRate(LIGHTWEIGHT_CACHE_RATE);
+		}
 		
 		//set table height and width from datasource
 		//if no height and width set then use defaults set here
@@ -176,6 +220,14 @@ public class PmatrixTable extends CustomComponent {
 		
 	}
 
+	/**
+	 * regenerates the displayed cells after the data source has changed them. 
+	 * Only needed with lightweight rendering. Must be called holding the Vaadin session lock
+	 */
+	public void refreshCells(){
+		if (pmatrixTable!=null) pmatrixTable.refreshRowCache();
+	}
+
 	@AutoGenerated
 	private HorizontalLayout buildMainLayout() {
 		// common part: create layout
@@ -0,0 +1,81 @@
+/*
+ * Client side of org.opennms.features.vaadin.pmatrix.ui.CellDescriptionExtension
+ * Shows the description of the pmatrix cell under the mouse. Descriptions are fetched from 
+ * the server by cell id when first needed and cached for state.cacheTime ms
+ */
+window.org_opennms_features_vaadin_pmatrix_ui_CellDescriptionExtension = function() {
+	var self = this;
+	var element = this.getElement(this.getParentId());
+	var cache = {};
+	var hoverCellId = null;
+	var tooltip = null;
+	var mouseX = 0;
+	var mouseY = 0;
+
+	// returns the id of the pmatrix cell containing the node or null
+	function cellIdOf(node) {
+		while (node && node !== element) {
+			if (node.id && node.id.indexOf("pmatrixcell-") === 0) return node.id;
+			node = node.parentNode;
+		}
+		return null;
+	}
+
+	function showTooltip(html) {
+		if (!html) {
+			hideTooltip();
+			return;
+		}
+		if (tooltip === null) {
+			tooltip = document.createElement("div");
+			tooltip.className = "v-tooltip pmatrix-celldescription";
+			tooltip.style.position = "absolute";
+			tooltip.style.zIndex = "20000";
+			tooltip.style.pointerEvents = "none";
+			document.body.appendChild(tooltip);
+		}
+		tooltip.innerHTML = "<div class=\"v-tooltip-text\">" + html + "</div>";
+		tooltip.style.left = (mouseX + 12) + "px";
+		tooltip.style.top = (mouseY + 12) + "px";
+		tooltip.style.display = "block";
+	}
+
+	function hideTooltip() {
+		if (tooltip !== null) tooltip.style.display = "none";
+	}
+
+	element.addEventListener("mouseover", function(event) {
+		mouseX = event.pageX;
+		mouseY = event.pageY;
+		var cellId = cellIdOf(event.target);
+		if (cellId === hoverCellId) return;
+		hoverCellId = cellId;
+		if (cellId === null) {
+			hideTooltip();
+			return;
+		}
+		var cached = cache[cellId];
+		if (cached && (new Date().getTime() - cached.time) < self.getState().cacheTime) {
+			showTooltip(cached.html);
+		} else {
+			self.fetchDescription(cellId);
+		}
+	}, false);
+
+	element.addEventListener("mouseout", function(event) {
+		if (cellIdOf(event.relatedTarget) !== hoverCellId) {
+			hoverCellId = null;
+			hideTooltip();
+		}
+	}, false);
+
+	// called by the server with a fetched description
+	this.showDescription = function(cellId, html) {
+		cache[cellId] = { html: html, time: new Date().getTime() };
+		if (cellId === hoverCellId) showTooltip(html);
+	};
+
+	this.onUnregister = function() {
+		if (tooltip !== null && tooltip.parentNode) tooltip.parentNode.removeChild(tooltip);
+	};
+};
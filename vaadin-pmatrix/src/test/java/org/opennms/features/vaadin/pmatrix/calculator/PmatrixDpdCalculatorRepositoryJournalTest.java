@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.calculator;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opennms.features.vaadin.pmatrix.model.NameValuePair;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that journaled changes are replayed over the full archive on load and compares
+ * the bytes written by a journal tick with the bytes written by a full persist 
+ * when only a few calculators have changed.
+ */
+public class PmatrixDpdCalculatorRepositoryJournalTest extends TestCase {
+
+	private static String archiveFileDirectoryLocation="file:./target/PmatrixHistoryJournal";
+
+	private static String archiveFileName="journalHistory.bin";
+
+	private static int numberOfCalculators=2000;
+
+	private static int maxSampleNo=100;
+
+	/**
+	 * number of calculators updated between journal ticks
+	 */
+	private static int changedCalculators=20;
+
+	public void testJournalReplay(){
+		System.out.println("start of test:testJournalReplay()");
+		deleteArchives();
+
+		Map<String, PmatrixDpdCalculator> dataPointMap = createDataPointMap();
+		PmatrixDpdCalculatorRepository repository = createRepository();
+		repository.setDataPointMap(dataPointMap);
+		assertTrue(repository.persist());
+		long fullArchiveBytes=repository.getLastPersistBytesWritten();
+
+		// nothing has changed so nothing is journaled
+		assertTrue(repository.journal());
+		assertEquals(0, repository.getJournalBytesWritten());
+
+		for (int tick = 0; tick < 10; tick++){
+			updateCalculators(dataPointMap, tick);
+			assertTrue(repository.journal());
+			assertEquals(changedCalculators, repository.getLastJournalSize());
+		}
+		long journalBytesPerTick=repository.getJournalBytesWritten()/10;
+
+		System.out.println("full archive "+fullArchiveBytes+" bytes in "+repository.getLastPersistDuration()+" ms, journal tick of "
+				+ changedCalculators+" changed calculators "+journalBytesPerTick+" bytes in "+repository.getLastJournalDuration()+" ms");
+		assertTrue(journalBytesPerTick*10 < fullArchiveBytes);
+
+		PmatrixDpdCalculatorRepository reloadedRepository = createRepository();
+		assertTrue(reloadedRepository.load());
+		assertSameData(dataPointMap, reloadedRepository.getDataPointMap());
+
+		System.out.println("end of test:testJournalReplay()");
+	}
+
+	/**
+	 * a block only partly written when the application stopped is ignored on replay
+	 */
+	public void testTruncatedJournal() throws IOException{
+		System.out.println("start of test:testTruncatedJournal()");
+		deleteArchives();
+
+		Map<String, PmatrixDpdCalculator> dataPointMap = createDataPointMap();
+		PmatrixDpdCalculatorRepository repository = createRepository();
+		repository.setDataPointMap(dataPointMap);
+		assertTrue(repository.persist());
+		updateCalculators(dataPointMap, 0);
+		assertTrue(repository.journal());
+
+		File segment = new File(archiveDirectory(), archiveFileName+".journal.0000000001");
+		assertTrue(segment.exists());
+		FileOutputStream out = new FileOutputStream(segment, true);
+		out.write(new byte[]{0,0,1,0,1,2,3});
+		out.close();
+
+		PmatrixDpdCalculatorRepository reloadedRepository = createRepository();
+		assertTrue(reloadedRepository.load());
+		assertSameData(dataPointMap, reloadedRepository.getDataPointMap());
+
+		System.out.println("end of test:testTruncatedJournal()");
+	}
+
+	/**
+	 * the journal is deleted once it is compacted into a new full archive
+	 */
+	public void testCompaction() throws InterruptedException{
+		System.out.println("start of test:testCompaction()");
+		deleteArchives();
+
+		Map<String, PmatrixDpdCalculator> dataPointMap = createDataPointMap();
+		PmatrixDpdCalculatorRepository repository = createRepository();
+		repository.setJournalCompactionSize(1);
+		repository.setDataPointMap(dataPointMap);
+		assertTrue(repository.persist());
+
+		updateCalculators(dataPointMap, 0);
+		assertTrue(repository.journal());
+		assertTrue(repository.getJournalBytesWritten()>0);
+		// journal is now larger than the compaction size
+		updateCalculators(dataPointMap, 1);
+		assertTrue(repository.journal());
+		waitForCompaction(repository);
+		assertEquals(0, repository.getJournalBytesWritten());
+		assertFalse(new File(archiveDirectory(), archiveFileName+".journal.0000000001").exists());
+
+		PmatrixDpdCalculatorRepository reloadedRepository = createRepository();
+		assertTrue(reloadedRepository.load());
+		assertSameData(dataPointMap, reloadedRepository.getDataPointMap());
+
+		System.out.println("end of test:testCompaction()");
+	}
+
+	/**
+	 * compaction runs on its own thread
+	 */
+	private void waitForCompaction(PmatrixDpdCalculatorRepository repository) throws InterruptedException{
+		long timeout=System.currentTimeMillis()+30000;
+		while (repository.isCompactionRunning()){
+			assertTrue("journal compaction did not finish", System.currentTimeMillis()<timeout);
+			Thread.sleep(10);
+		}
+	}
+
+	private void updateCalculators(Map<String, PmatrixDpdCalculator> dataPointMap, int tick){
+		for (int i = 0; i < changedCalculators; i++){
+			PmatrixDpdCalculator calculator = dataPointMap.get(path((tick*changedCalculators+i) % numberOfCalculators));
+			synchronized(calculator){
+				calculator.updateCalculation(Double.valueOf(Math.random()*1000), Long.valueOf(System.currentTimeMillis()));
+				calculator.markUpdated();
+			}
+		}
+	}
+
+	private PmatrixDpdCalculatorRepository createRepository(){
+		PmatrixDpdCalculatorRepository repository = new PmatrixDpdCalculatorRepository();
+		repository.setResourceLoader(new DefaultResourceLoader());
+		repository.setArchiveFileDirectoryLocation(archiveFileDirectoryLocation);
+		repository.setArchiveFileName(archiveFileName);
+		repository.setArchiveFileMaxNumber(1);
+		repository.setPersistHistoricData(true);
+		repository.setArchiveFileFormat(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_BINARY);
+		repository.setJournalEnabled(true);
+		return repository;
+	}
+
+	private File archiveDirectory(){
+		try {
+			return new File(new DefaultResourceLoader().getResource(archiveFileDirectoryLocation).getURL().getFile());
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot find archive directory "+archiveFileDirectoryLocation, e);
+		}
+	}
+
+	private void deleteArchives(){
+		File[] files = archiveDirectory().listFiles();
+		if (files==null) return;
+		for (File file : files){
+			if (file.getName().startsWith(archiveFileName)) file.delete();
+		}
+	}
+
+	private String path(int i){
+		return "/opt/opennms/share/rrd/snmp/"+i+"/mib2-interfaces/ifInOctets";
+	}
+
+	private Map<String, PmatrixDpdCalculator> createDataPointMap(){
+		Map<String, PmatrixDpdCalculator> dataPointMap = new ConcurrentHashMap<String, PmatrixDpdCalculator>();
+		for (int i = 0; i < numberOfCalculators; i++){
+			PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+			List<NameValuePair> configuration = new ArrayList<NameValuePair>();
+			configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.MAX_SAMPLE_NO_PROPERTY_NAME, Integer.toString(maxSampleNo)));
+			configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_PROPERTY_NAME, PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_STANDARD_DEVIATION));
+			calculator.setConfiguration(configuration);
+			long timestamp=System.currentTimeMillis();
+			for (int j = 0; j < maxSampleNo; j++){
+				calculator.updateCalculation(Double.valueOf(Math.random()*1000), Long.valueOf(timestamp+j*300000L));
+			}
+			dataPointMap.put(path(i), calculator);
+		}
+		return dataPointMap;
+	}
+
+	private void assertSameData(Map<String, PmatrixDpdCalculator> expected, Map<String, PmatrixDpdCalculator> actual){
+		assertEquals(expected.size(), actual.size());
+		for (String path : expected.keySet()){
+			PmatrixDpdCalculator e = expected.get(path);
+			PmatrixDpdCalculator a = actual.get(path);
+			assertNotNull("missing calculator for "+path, a);
+			assertEquals(e.getLatestDataValue(), a.getLatestDataValue());
+			assertEquals(e.getLatestTimestamp(), a.getLatestTimestamp());
+			assertEquals(e.dataToCSV(), a.dataToCSV());
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.opennms.features.vaadin.pmatrix.model.NameValuePair;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that PmatrixDpdCalculatorSimpleMovingAvgImpl keeps its samples in a single reused ring buffer 
+ * once the window has been sized, and that the running statistics match a direct calculation over the window.
+ * The allocation and timing measurements are in manual.PmatrixDpdCalculatorAllocationTest
+ */
+public class PmatrixDpdCalculatorSimpleMovingAvgWindowTest extends TestCase {
+
+	private static final int WINDOW_SIZE=100;
+
+	private PmatrixDpdCalculatorSimpleMovingAvgImpl newCalculator(String secondValue){
+		PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+		List<NameValuePair> configuration = new ArrayList<NameValuePair>();
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.MAX_SAMPLE_NO_PROPERTY_NAME, Integer.toString(WINDOW_SIZE)));
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_PROPERTY_NAME, PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_STANDARD_DEVIATION));
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_PROPERTY_NAME, secondValue));
+		calculator.setConfiguration(configuration);
+		return calculator;
+	}
+
+	private static double[] samples(PmatrixDpdCalculatorSimpleMovingAvgImpl calculator) throws Exception {
+		Field field = PmatrixDpdCalculatorSimpleMovingAvgImpl.class.getDeclaredField("samples");
+		field.setAccessible(true);
+		return (double[]) field.get(calculator);
+	}
+
+	public void testWindowReusedAfterFirstUpdate() throws Exception {
+		PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = newCalculator(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_AVERAGE);
+		calculator.updateCalculation(1d, 0L);
+		double[] window = samples(calculator);
+		assertEquals(WINDOW_SIZE, window.length);
+
+		for (int i = 1; i < WINDOW_SIZE*10; i++){
+			calculator.updateCalculation((double) i, i*300000L);
+			assertSame("sample window replaced at update "+i, window, samples(calculator));
+		}
+		assertEquals(WINDOW_SIZE, calculator.getPersistwindow().size());
+	}
+
+	public void testWindowReusedAfterRestore() throws Exception {
+		PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = newCalculator(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_AVERAGE);
+		for (int i = 0; i < WINDOW_SIZE/2; i++) calculator.updateCalculation((double) i, i*300000L);
+
+		PmatrixDpdCalculatorSimpleMovingAvgImpl restored = restore(calculator);
+		restored.updateCalculation(1d, WINDOW_SIZE*300000L);
+		double[] window = samples(restored);
+		assertEquals(WINDOW_SIZE, window.length);
+		for (int i = 0; i < WINDOW_SIZE*2; i++){
+			restored.updateCalculation((double) i, (WINDOW_SIZE+i)*300000L);
+			assertSame("sample window replaced at update "+i+" after restore", window, samples(restored));
+		}
+	}
+
+	public void testRunningStatisticsMatchWindow() throws Exception {
+		PmatrixDpdCalculatorSimpleMovingAvgImpl hiCalculator = newCalculator(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_HI);
+		PmatrixDpdCalculatorSimpleMovingAvgImpl lowCalculator = newCalculator(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_LOW);
+		Random random = new Random(42);
+		List<Double> window = new ArrayList<Double>();
+
+		for (int i = 0; i < WINDOW_SIZE*5; i++){
+			double value = Math.floor(random.nextDouble()*1000);
+			hiCalculator.updateCalculation(value, i*300000L);
+			lowCalculator.updateCalculation(value, i*300000L);
+			window.add(value);
+			if (window.size()>WINDOW_SIZE) window.remove(0);
+
+			double sum=0;
+			double max=Double.NEGATIVE_INFINITY;
+			double min=Double.POSITIVE_INFINITY;
+			for (double sample : window){
+				sum=sum+sample;
+				max=Math.max(max, sample);
+				min=Math.min(min, sample);
+			}
+			double n=window.size();
+			double average=sum/n;
+			assertEquals("average at update "+i, average, hiCalculator.getAverage(), 1e-6);
+			if (n>1){
+				// two pass sample variance of the window, independent of the calculator's running sums
+				double squaredDeviations=0;
+				for (double sample : window){
+					squaredDeviations=squaredDeviations+(sample-average)*(sample-average);
+				}
+				double variance=squaredDeviations/(n-1);
+				assertEquals("variance at update "+i, variance, hiCalculator.getVariance(), variance*1e-9);
+			}
+			assertEquals("high water mark at update "+i, max, hiCalculator.getSecondaryValue(), 0d);
+			assertEquals("low water mark at update "+i, min, lowCalculator.getSecondaryValue(), 0d);
+		}
+	}
+
+	public void testVarianceOfKnownSamples() throws Exception {
+		PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = newCalculator(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_AVERAGE);
+		calculator.updateCalculation(5d, 0L);
+		assertEquals("variance of a single sample", 0d, calculator.getVariance(), 0d);
+
+		calculator = newCalculator(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_AVERAGE);
+		double[] values = {2, 4, 4, 4, 5, 5, 7, 9};
+		for (int i = 0; i < values.length; i++) calculator.updateCalculation(values[i], i*300000L);
+		assertEquals(5d, calculator.getAverage(), 1e-12);
+		// squared deviations from the mean sum to 32 over 8 samples
+		assertEquals(32d/7d, calculator.getVariance(), 1e-12);
+
+		calculator = newCalculator(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_AVERAGE);
+		for (int i = 0; i < 10; i++) calculator.updateCalculation(0.1d, i*300000L);
+		assertEquals("variance of equal samples", 0d, calculator.getVariance(), 1e-12);
+	}
+
+	private PmatrixDpdCalculatorSimpleMovingAvgImpl restore(PmatrixDpdCalculatorSimpleMovingAvgImpl calculator) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		calculator.writeState(out);
+		out.flush();
+		PmatrixDpdCalculatorSimpleMovingAvgImpl restored = new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+		restored.setConfiguration(calculator.getConfiguration());
+		restored.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		return restored;
+	}
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.engine.CellChangeBroadcaster.Subscriber;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that changed cells are queued once for each event stream subscriber and that a subscriber 
+ * which falls behind has its events replaced by a single resync event
+ */
+public class CellChangeBroadcasterTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] PATHS = {
+		"/opt/opennms/share/rrd/snmp/1/ifInOctets", 
+		"/opt/opennms/share/rrd/snmp/1/ifOutOctets", 
+		"/opt/opennms/share/rrd/snmp/2/ifInOctets"};
+
+	private PmatrixSpecification pmatrixSpecification;
+
+	private DataPointMapDaoImpl dataPointMapDao;
+
+	private CellChangeBroadcaster broadcaster;
+
+	private final AtomicInteger eventsAvailable = new AtomicInteger();
+
+	private final Runnable eventsAvailableCounter = new Runnable(){
+		@Override
+		public void run() {
+			eventsAvailable.incrementAndGet();
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		pmatrixSpecification = DataPointMapDaoImplTest.createSpecification("table", PATHS);
+		dataPointMapDao = DataPointMapDaoImplTest.createDataPointMapDao(pmatrixSpecification);
+		broadcaster = new CellChangeBroadcaster(pmatrixSpecification, dataPointMapDao);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dataPointMapDao.shutdown();
+	}
+
+	public void testRegisteredWhileSubscribed(){
+		Subscriber subscriberA = new Subscriber(0, 10, eventsAvailableCounter);
+		Subscriber subscriberB = new Subscriber(0, 10, eventsAvailableCounter);
+		broadcaster.addSubscriber(subscriberA);
+		broadcaster.addSubscriber(subscriberB);
+		assertEquals(2, broadcaster.getSubscriberCount());
+		assertEquals(PATHS.length, dataPointMapDao.getSubscribedCells(broadcaster).size());
+
+		broadcaster.removeSubscriber(subscriberA);
+		assertEquals(PATHS.length, dataPointMapDao.getSubscribedCells(broadcaster).size());
+		broadcaster.removeSubscriber(subscriberB);
+		assertEquals(0, broadcaster.getSubscriberCount());
+		assertTrue(dataPointMapDao.getSubscribedCells(broadcaster).isEmpty());
+	}
+
+	public void testChangedCellQueuedForEachSubscriber(){
+		Subscriber subscriberA = new Subscriber(0, 10, eventsAvailableCounter);
+		Subscriber subscriberB = new Subscriber(0, 10, eventsAvailableCounter);
+		broadcaster.addSubscriber(subscriberA);
+		broadcaster.addSubscriber(subscriberB);
+
+		updateCell(PATHS[1], 10d);
+		assertEquals(2, eventsAvailable.get());
+		assertEquals(1, broadcaster.getEventsBroadcast());
+
+		List<byte[]> eventsA = broadcaster.drain(subscriberA);
+		List<byte[]> eventsB = broadcaster.drain(subscriberB);
+		assertEquals(1, eventsA.size());
+		assertEquals(1, eventsB.size());
+		// the event is serialized once for all subscribers
+		assertSame(eventsA.get(0), eventsB.get(0));
+
+		String event = new String(eventsA.get(0), UTF8);
+		String version = CellValuesJson.versionToken(dataPointMapDao.getUpdateSequence());
+		assertTrue(event, event.startsWith("id: "+version+"\nevent: cell\ndata: {\"row\":\""+PATHS[1]+"\""));
+		// the cell carries the same version as its event id
+		assertTrue(event, event.endsWith(",\"version\":\""+version+"\"}\n\n"));
+		assertTrue(broadcaster.drain(subscriberA).isEmpty());
+	}
+
+	public void testNotificationWithoutChangedValuesNotBroadcast(){
+		Subscriber subscriber = new Subscriber(0, 10, eventsAvailableCounter);
+		broadcaster.addSubscriber(subscriber);
+
+		dataPointMapDao.notifyChange(PATHS[1]);
+		dataPointMapDao.runUpdate();
+		assertEquals(0, eventsAvailable.get());
+		assertTrue(broadcaster.drain(subscriber).isEmpty());
+	}
+
+	public void testMinSeverityFilter(){
+		Subscriber[] subscribers = new Subscriber[DataPointDefinition.RANGE_CRITICAL+2];
+		for (int minSeverity=0; minSeverity<subscribers.length; minSeverity++){
+			subscribers[minSeverity] = new Subscriber(minSeverity, 10, eventsAvailableCounter);
+			broadcaster.addSubscriber(subscribers[minSeverity]);
+		}
+
+		updateCell(PATHS[0], 10d);
+		Integer severity = dataPointMapDao.getRenderModel(pmatrixSpecification)
+				.getCell(pmatrixSpecification.getDatapointDefinitions().get(0)).getValues().getLatestDataValueRange();
+		assertNotNull(severity);
+		for (int minSeverity=0; minSeverity<subscribers.length; minSeverity++){
+			int expected = (minSeverity<=severity) ? 1 : 0;
+			assertEquals("minSeverity="+minSeverity, expected, broadcaster.drain(subscribers[minSeverity]).size());
+		}
+	}
+
+	public void testResyncAfterQueueOverflow(){
+		Subscriber slow = new Subscriber(0, 2, eventsAvailableCounter);
+		Subscriber fast = new Subscriber(0, 10, eventsAvailableCounter);
+		broadcaster.addSubscriber(slow);
+		broadcaster.addSubscriber(fast);
+
+		updateCell(PATHS[0], 10d);
+		updateCell(PATHS[1], 10d);
+		assertFalse(slow.isResync());
+		updateCell(PATHS[2], 10d);
+		assertTrue(slow.isResync());
+		assertEquals(3, slow.getEventsDropped());
+
+		// no further events are queued until the resync event is drained
+		updateCell(PATHS[0], 20d);
+		assertTrue(slow.isResync());
+
+		List<byte[]> events = broadcaster.drain(slow);
+		assertEquals(1, events.size());
+		String version = CellValuesJson.versionToken(dataPointMapDao.getUpdateSequence());
+		assertEquals("event: resync\ndata: {\"name\":\"table\",\"version\":\""+version+"\"}\n\n", new String(events.get(0), UTF8));
+		assertFalse(slow.isResync());
+
+		// the fast subscriber is unaffected
+		assertEquals(4, broadcaster.drain(fast).size());
+		assertEquals(0, fast.getEventsDropped());
+
+		// the resynchronised subscriber receives the following changes again
+		updateCell(PATHS[1], 20d);
+		events = broadcaster.drain(slow);
+		assertEquals(1, events.size());
+		assertTrue(new String(events.get(0), UTF8).contains("event: cell\n"));
+	}
+
+	private void updateCell(String filePath, double value){
+		int pathId = dataPointMapDao.getPathDictionary().getId(filePath);
+		PmatrixDpdCalculator calculator = dataPointMapDao.getCalculator(pathId);
+		synchronized(calculator){
+			calculator.updateCalculation(value, System.currentTimeMillis());
+			calculator.markUpdated();
+		}
+		dataPointMapDao.notifyChange(pathId);
+		dataPointMapDao.runUpdate();
+	}
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that CellValueFormat rounds HALF_EVEN on the exact binary value of each double 
+ * (independently of the DecimalFormat of the JDK running the test) and uses the decimal separator 
+ * of the locale. The time taken is compared with DecimalFormat by manual.CellValueFormatThroughputTest
+ */
+public class CellValueFormatTest extends TestCase {
+
+	/**
+	 * pairs of value and expected string. 0.015, 1.005 and 2.675 are shown as 0.02, 1.01 and 2.68 
+	 * by the JDK 6/7 DecimalFormat
+	 */
+	private static Object[][] expectedValues= { 
+		{0d, "0"}, {-0d, "-0"}, {0.005d, "0.01"}, {0.015d, "0.01"}, {0.125d, "0.12"}, {0.135d, "0.14"}, 
+		{-0.005d, "-0.01"}, {-0.001d, "-0"}, {1.005d, "1"}, {2.675d, "2.67"}, {0.994999d, "0.99"}, {0.995d, "0.99"}, 
+		{9.995d, "9.99"}, {99.995d, "100"}, {0.1d, "0.1"}, {10.5d, "10.5"}, {1234.5678d, "1234.57"}, 
+		{-1234.5678d, "-1234.57"}, {1e12d, "1000000000000"}, {9.999999999999e12d, "9999999999999"}, 
+		{1e13d, "10000000000000"}, {1e20d, "100000000000000000000"}, {Double.MIN_VALUE, "0"}};
+
+	/**
+	 * pairs of value and expected string for values at or close to a tie in the third decimal place. 
+	 * 1.125 and 1.375 are exact ties, the others are just above or below the tie in binary
+	 */
+	private static Object[][] expectedTies= { 
+		{0.045d, "0.04"}, {0.055d, "0.06"}, {0.285d, "0.28"}, {1.115d, "1.11"}, {1.125d, "1.12"}, {1.375d, "1.38"}, 
+		{-2.675d, "-2.67"}, {8.345d, "8.35"}, {123.455d, "123.45"}, {0.001d, "0"}, {4.35d, "4.35"}};
+
+	/**
+	 * pairs of value and expected string in the German locale, including a value formatted by DecimalFormat
+	 */
+	private static Object[][] expectedGermanValues= { 
+		{0.5d, "0,5"}, {-1234.5678d, "-1234,57"}, {2.675d, "2,67"}, {100d, "100"}, {12345678901234.5d, "12345678901234,5"}};
+
+	private static final DecimalFormatSymbols US = DecimalFormatSymbols.getInstance(Locale.US);
+
+	public void testExpectedStrings(){
+		assertExpected(expectedValues, US);
+	}
+
+	public void testHalfEvenOnExactValue(){
+		assertExpected(expectedTies, US);
+	}
+
+	public void testLocaleDecimalSeparator(){
+		assertExpected(expectedGermanValues, DecimalFormatSymbols.getInstance(Locale.GERMANY));
+		// fast path and DecimalFormat fallback use the same separator
+		assertEquals("12345678901234.5", CellValueFormat.append(new StringBuilder(), 12345678901234.5d, US).toString());
+	}
+
+	public void testDefaultLocale(){
+		char separator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+		assertEquals("1"+separator+"5", CellValueFormat.format(1.5d));
+	}
+
+	private void assertExpected(Object[][] expectedStrings, DecimalFormatSymbols symbols){
+		for (Object[] expected : expectedStrings){
+			double value = (Double) expected[0];
+			assertEquals("value "+value, expected[1], CellValueFormat.append(new StringBuilder(), value, symbols).toString());
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorSimpleMovingAvgImpl;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinitionImpl;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecificationImpl;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecificationListImpl;
+import org.springframework.context.ApplicationContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the reverse index from data point filePath to the cells subscribed by each DataPointMapUpdateListener
+ * and that runUpdate() delivers to each listener only its own changed cells. A listener which is still busy 
+ * with an earlier update is skipped and its cells are delivered once it is free
+ */
+public class DataPointMapDaoImplTest extends TestCase {
+
+	private static final String[] PATHS = {
+		"/opt/opennms/share/rrd/snmp/1/ifInOctets", 
+		"/opt/opennms/share/rrd/snmp/1/ifOutOctets", 
+		"/opt/opennms/share/rrd/snmp/2/ifInOctets"};
+
+	private static final String UNKNOWN_PATH = "/opt/opennms/share/rrd/snmp/3/ifInOctets";
+
+	private DataPointMapDaoImpl dataPointMapDao;
+
+	@Override
+	protected void setUp() throws Exception {
+		dataPointMapDao = createDataPointMapDao(createSpecification("table", PATHS));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dataPointMapDao.shutdown();
+	}
+
+	public void testSubscriptionsIndexedByPath(){
+		RecordingListener listenerA = new RecordingListener();
+		RecordingListener listenerB = new RecordingListener();
+		DataPointDefinition cellA0 = cell(PATHS[0]);
+		DataPointDefinition cellA1 = cell(PATHS[1]);
+		DataPointDefinition cellB1 = cell(PATHS[1]);
+		dataPointMapDao.addDataPointMapUpdateListener(listenerA);
+		dataPointMapDao.addDataPointMapUpdateListener(listenerB);
+		dataPointMapDao.subscribe(listenerA, cellA0);
+		dataPointMapDao.subscribe(listenerA, cellA1);
+		dataPointMapDao.subscribe(listenerB, cellB1);
+
+		List<DataPointSubscription> subscriptions = dataPointMapDao.getSubscriptions(PATHS[0]);
+		assertEquals(1, subscriptions.size());
+		assertSame(listenerA, subscriptions.get(0).getDataPointMapUpdateListener());
+		assertSame(cellA0, subscriptions.get(0).getDataPointDefinition());
+		assertEquals(2, dataPointMapDao.getSubscriptions(PATHS[1]).size());
+		assertTrue(dataPointMapDao.getSubscriptions(PATHS[2]).isEmpty());
+
+		assertEquals(2, dataPointMapDao.getSubscribedCells(listenerA).size());
+		assertTrue(dataPointMapDao.getSubscribedCells(listenerA).contains(cellA1));
+		assertEquals(1, dataPointMapDao.getSubscribedCells(listenerB).size());
+	}
+
+	public void testUnsubscribeRemovesOnlyListenersCells(){
+		RecordingListener listenerA = new RecordingListener();
+		RecordingListener listenerB = new RecordingListener();
+		dataPointMapDao.addDataPointMapUpdateListener(listenerA);
+		dataPointMapDao.addDataPointMapUpdateListener(listenerB);
+		dataPointMapDao.subscribe(listenerA, cell(PATHS[0]));
+		dataPointMapDao.subscribe(listenerA, cell(PATHS[1]));
+		DataPointDefinition cellB1 = cell(PATHS[1]);
+		dataPointMapDao.subscribe(listenerB, cellB1);
+
+		dataPointMapDao.unsubscribe(listenerA);
+		assertTrue(dataPointMapDao.getSubscribedCells(listenerA).isEmpty());
+		assertTrue(dataPointMapDao.getSubscriptions(PATHS[0]).isEmpty());
+		List<DataPointSubscription> subscriptions = dataPointMapDao.getSubscriptions(PATHS[1]);
+		assertEquals(1, subscriptions.size());
+		assertSame(cellB1, subscriptions.get(0).getDataPointDefinition());
+
+		// removing the listener also removes its subscriptions
+		dataPointMapDao.removeDataPointMapUpdateListener(listenerB);
+		assertTrue(dataPointMapDao.getSubscribedCells(listenerB).isEmpty());
+		assertTrue(dataPointMapDao.getSubscriptions(PATHS[1]).isEmpty());
+	}
+
+	public void testPathWithoutCalculatorNotIndexed(){
+		RecordingListener listener = new RecordingListener();
+		dataPointMapDao.addDataPointMapUpdateListener(listener);
+		DataPointDefinition unknownCell = cell(UNKNOWN_PATH);
+		dataPointMapDao.subscribe(listener, unknownCell);
+
+		assertTrue(dataPointMapDao.getSubscriptions(UNKNOWN_PATH).isEmpty());
+		// the cell is still refreshed with all of the listener's cells
+		assertTrue(dataPointMapDao.getSubscribedCells(listener).contains(unknownCell));
+	}
+
+	public void testOnlyChangedCellsDelivered(){
+		RecordingListener listenerA = new RecordingListener();
+		RecordingListener listenerB = new RecordingListener();
+		DataPointDefinition cellA0 = cell(PATHS[0]);
+		DataPointDefinition cellA1 = cell(PATHS[1]);
+		DataPointDefinition cellB1 = cell(PATHS[1]);
+		DataPointDefinition cellB2 = cell(PATHS[2]);
+		dataPointMapDao.addDataPointMapUpdateListener(listenerA);
+		dataPointMapDao.addDataPointMapUpdateListener(listenerB);
+		dataPointMapDao.subscribe(listenerA, cellA0);
+		dataPointMapDao.subscribe(listenerA, cellA1);
+		dataPointMapDao.subscribe(listenerB, cellB1);
+		dataPointMapDao.subscribe(listenerB, cellB2);
+
+		long sequence = dataPointMapDao.getUpdateSequence();
+		dataPointMapDao.notifyChange(PATHS[0]);
+		// a second notification before the update is delivered once
+		dataPointMapDao.notifyChange(dataPointMapDao.getPathDictionary().getId(PATHS[0]));
+		dataPointMapDao.runUpdate();
+		assertEquals(sequence+1, dataPointMapDao.getUpdateSequence());
+		assertEquals(1, listenerA.getUpdates().size());
+		assertEquals(1, listenerA.getUpdates().get(0).size());
+		assertTrue(listenerA.getUpdates().get(0).contains(cellA0));
+		assertTrue(listenerB.getUpdates().isEmpty());
+
+		dataPointMapDao.notifyChange(PATHS[1]);
+		dataPointMapDao.runUpdate();
+		assertEquals(sequence+2, dataPointMapDao.getUpdateSequence());
+		assertEquals(2, listenerA.getUpdates().size());
+		assertTrue(listenerA.getUpdates().get(1).contains(cellA1));
+		assertEquals(1, listenerB.getUpdates().size());
+		assertEquals(1, listenerB.getUpdates().get(0).size());
+		assertTrue(listenerB.getUpdates().get(0).contains(cellB1));
+	}
+
+	public void testNoUpdateWithoutChanges(){
+		RecordingListener listener = new RecordingListener();
+		dataPointMapDao.addDataPointMapUpdateListener(listener);
+		dataPointMapDao.subscribe(listener, cell(PATHS[0]));
+
+		long sequence = dataPointMapDao.getUpdateSequence();
+		dataPointMapDao.runUpdate();
+		assertEquals(sequence, dataPointMapDao.getUpdateSequence());
+		assertTrue(listener.getUpdates().isEmpty());
+
+		// a change which no listener displays still moves the sequence on for readers of the render models
+		dataPointMapDao.notifyChange(PATHS[2]);
+		dataPointMapDao.runUpdate();
+		assertEquals(sequence+1, dataPointMapDao.getUpdateSequence());
+		assertTrue(listener.getUpdates().isEmpty());
+
+		// changes to paths without a calculator are ignored
+		dataPointMapDao.notifyChange(UNKNOWN_PATH);
+		dataPointMapDao.runUpdate();
+		assertEquals(sequence+1, dataPointMapDao.getUpdateSequence());
+	}
+
+	public void testRefreshAllDeliversEverySubscribedCell(){
+		RecordingListener listenerA = new RecordingListener();
+		RecordingListener listenerB = new RecordingListener();
+		dataPointMapDao.addDataPointMapUpdateListener(listenerA);
+		dataPointMapDao.addDataPointMapUpdateListener(listenerB);
+		dataPointMapDao.subscribe(listenerA, cell(PATHS[0]));
+		dataPointMapDao.subscribe(listenerA, cell(UNKNOWN_PATH));
+		dataPointMapDao.subscribe(listenerB, cell(PATHS[2]));
+
+		dataPointMapDao.notifyChange(PATHS[0]);
+		dataPointMapDao.notifyChange();
+		dataPointMapDao.runUpdate();
+		assertEquals(1, listenerA.getUpdates().size());
+		assertEquals(2, listenerA.getUpdates().get(0).size());
+		assertEquals(1, listenerB.getUpdates().size());
+		assertEquals(1, listenerB.getUpdates().get(0).size());
+	}
+
+	public void testBusyListenerSkipped() throws InterruptedException{
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingListener slowListener = new RecordingListener(){
+			@Override
+			public void dataPointMapUpdated(Collection<DataPointDefinition> updatedCells) {
+				super.dataPointMapUpdated(updatedCells);
+				try {
+					release.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		RecordingListener listener = new RecordingListener();
+		DataPointDefinition slowCell0 = cell(PATHS[0]);
+		DataPointDefinition slowCell1 = cell(PATHS[1]);
+		dataPointMapDao.addDataPointMapUpdateListener(slowListener);
+		dataPointMapDao.addDataPointMapUpdateListener(listener);
+		dataPointMapDao.subscribe(slowListener, slowCell0);
+		dataPointMapDao.subscribe(slowListener, slowCell1);
+		dataPointMapDao.subscribe(listener, cell(PATHS[0]));
+		dataPointMapDao.setListenerUpdateTimeout(100);
+
+		// the slow listener does not complete within the timeout
+		dataPointMapDao.notifyChange(PATHS[0]);
+		dataPointMapDao.runUpdate();
+		assertEquals(1, dataPointMapDao.getListenerUpdatesTimedOut());
+		assertEquals(1, listener.getUpdates().size());
+
+		// the busy listener is skipped and the other listener is still updated
+		dataPointMapDao.notifyChange(PATHS[0]);
+		dataPointMapDao.notifyChange(PATHS[1]);
+		dataPointMapDao.runUpdate();
+		assertEquals(1, dataPointMapDao.getListenerUpdatesSkipped());
+		assertEquals(1, slowListener.getUpdates().size());
+		assertEquals(2, listener.getUpdates().size());
+
+		release.countDown();
+		waitWhileListenerBusy();
+
+		// the cells left pending are delivered by the next update without a further change
+		dataPointMapDao.runUpdate();
+		assertEquals(2, slowListener.getUpdates().size());
+		Collection<DataPointDefinition> pendingCells = slowListener.getUpdates().get(1);
+		assertEquals(2, pendingCells.size());
+		assertTrue(pendingCells.contains(slowCell0));
+		assertTrue(pendingCells.contains(slowCell1));
+		assertEquals(2, listener.getUpdates().size());
+	}
+
+	/**
+	 * waits until the update of every listener has completed. Busy listeners are marked BUSY in the update latencies
+	 */
+	private void waitWhileListenerBusy() throws InterruptedException{
+		long timeout=System.currentTimeMillis()+30000;
+		boolean busy=true;
+		while (busy){
+			busy=false;
+			for (String latency : dataPointMapDao.getListenerUpdateLatencies()){
+				if (latency.endsWith(" BUSY")) busy=true;
+			}
+			assertTrue("listener update did not complete", System.currentTimeMillis()<timeout);
+			if (busy) Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * records the cells delivered in each update
+	 */
+	static class RecordingListener implements DataPointMapUpdateListener {
+
+		final List<Collection<DataPointDefinition>> updates = new ArrayList<Collection<DataPointDefinition>>();
+
+		@Override
+		public void dataPointMapUpdated(Collection<DataPointDefinition> updatedCells) {
+			synchronized(this){
+				updates.add(new ArrayList<DataPointDefinition>(updatedCells));
+			}
+		}
+
+		synchronized List<Collection<DataPointDefinition>> getUpdates(){
+			return new ArrayList<Collection<DataPointDefinition>>(updates);
+		}
+	}
+
+	static DataPointDefinition cell(String filePath){
+		DataPointDefinitionImpl dpd = new DataPointDefinitionImpl();
+		dpd.setFilePath(filePath);
+		dpd.setRowName(filePath);
+		dpd.setColName("value");
+		return dpd;
+	}
+
+	static PmatrixSpecification createSpecification(String pmatrixName, String... filePaths){
+		PmatrixSpecificationImpl pmatrixSpecification = new PmatrixSpecificationImpl();
+		pmatrixSpecification.setPmatrixName(pmatrixName);
+		List<DataPointDefinition> datapointDefinitions = new ArrayList<DataPointDefinition>();
+		for (String filePath : filePaths) datapointDefinitions.add(cell(filePath));
+		pmatrixSpecification.setDatapointDefinitions(datapointDefinitions);
+		return pmatrixSpecification;
+	}
+
+	/**
+	 * @return a DataPointMapDaoImpl with a new moving average calculator for each path of the specifications. 
+	 * There is no repository so nothing is persisted
+	 */
+	static DataPointMapDaoImpl createDataPointMapDao(PmatrixSpecification... pmatrixSpecifications) throws Exception {
+		List<PmatrixSpecification> specificationList = new ArrayList<PmatrixSpecification>();
+		for (PmatrixSpecification pmatrixSpecification : pmatrixSpecifications) specificationList.add(pmatrixSpecification);
+
+		// application context which only supplies new calculators
+		ApplicationContext applicationContext = (ApplicationContext) Proxy.newProxyInstance(DataPointMapDaoImplTest.class.getClassLoader(), 
+				new Class<?>[]{ApplicationContext.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("getBean".equals(method.getName())) return new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+
+		DataPointMapDaoImpl dataPointMapDao = new DataPointMapDaoImpl();
+		Field field = DataPointMapDaoImpl.class.getDeclaredField("applicationContext");
+		field.setAccessible(true);
+		field.set(dataPointMapDao, applicationContext);
+		dataPointMapDao.setPmatrixSpecificationList(new PmatrixSpecificationListImpl(specificationList));
+		dataPointMapDao.addPmatrixSpecifications();
+		return dataPointMapDao;
+	}
+}
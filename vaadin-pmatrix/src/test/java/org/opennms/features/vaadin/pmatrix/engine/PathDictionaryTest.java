@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks id assignment and lookup of paths from Strings and from encoded bytes in a buffer
+ */
+public class PathDictionaryTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String PATH_A = "/opt/opennms/share/rrd/snmp/1/ifInOctets";
+	private static final String PATH_B = "/opt/opennms/share/rrd/snmp/1/ifOutOctets";
+	private static final String PATH_C = "/opt/opennms/share/rrd/snmp/12/ifInOctets";
+
+	public void testIdsAssignedInIterationOrder(){
+		PathDictionary dictionary = new PathDictionary(Arrays.asList(PATH_B, PATH_A, PATH_C));
+		assertEquals(3, dictionary.size());
+		assertEquals(0, dictionary.getId(PATH_B));
+		assertEquals(1, dictionary.getId(PATH_A));
+		assertEquals(2, dictionary.getId(PATH_C));
+		assertEquals(PATH_B, dictionary.getPath(0));
+		assertEquals(PATH_A, dictionary.getPath(1));
+		assertEquals(PATH_C, dictionary.getPath(2));
+	}
+
+	public void testNullAndDuplicatePathsIgnored(){
+		PathDictionary dictionary = new PathDictionary(Arrays.asList(PATH_A, null, PATH_B, PATH_A, null, PATH_C));
+		assertEquals(3, dictionary.size());
+		assertEquals(0, dictionary.getId(PATH_A));
+		assertEquals(1, dictionary.getId(PATH_B));
+		assertEquals(2, dictionary.getId(PATH_C));
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId((String)null));
+	}
+
+	public void testUnknownPathNotFound(){
+		PathDictionary dictionary = new PathDictionary(Arrays.asList(PATH_A, PATH_B));
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(PATH_C));
+		byte[] bytes = PATH_C.getBytes(UTF8);
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(bytes, 0, bytes.length));
+	}
+
+	public void testLookupFromBytesAtOffset(){
+		List<String> paths = new ArrayList<String>();
+		for (int i=0; i<100; i++){
+			paths.add("/opt/opennms/share/rrd/snmp/"+i+"/ifInOctets");
+		}
+		PathDictionary dictionary = new PathDictionary(paths);
+
+		for (int id=0; id<paths.size(); id++){
+			byte[] path = paths.get(id).getBytes(UTF8);
+			// embed the path between other bytes as it would be in a received frame
+			byte[] buffer = new byte[path.length+7];
+			Arrays.fill(buffer, (byte)'x');
+			System.arraycopy(path, 0, buffer, 5, path.length);
+			assertEquals(id, dictionary.getId(buffer, 5, path.length));
+		}
+	}
+
+	public void testLookupFromBytesMatchesWholePath(){
+		PathDictionary dictionary = new PathDictionary(Arrays.asList(PATH_A, PATH_C));
+		byte[] bytes = PATH_C.getBytes(UTF8);
+		// a prefix of a known path within the length bounds is not a match
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(bytes, 0, PATH_A.length()));
+		assertEquals(1, dictionary.getId(bytes, 0, bytes.length));
+	}
+
+	public void testLengthOutsideBoundsNotFound(){
+		PathDictionary dictionary = new PathDictionary(Arrays.asList(PATH_A, PATH_C));
+		byte[] bytes = (PATH_C+"/extra").getBytes(UTF8);
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(bytes, 0, bytes.length));
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(bytes, 0, 3));
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(bytes, 0, 0));
+	}
+
+	public void testEmptyDictionary(){
+		PathDictionary dictionary = new PathDictionary(Collections.<String>emptyList());
+		assertEquals(0, dictionary.size());
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(PATH_A));
+		byte[] bytes = PATH_A.getBytes(UTF8);
+		assertEquals(PathDictionary.NOT_FOUND, dictionary.getId(bytes, 0, bytes.length));
+	}
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos.PerformanceDataReading;
+import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos.PerformanceDataReadings;
+
+import com.google.protobuf.CodedInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the PerfDataFrameDecoder decodes the same readings as PerformanceDataReadings.parseFrom()
+ * for a batch in which only some paths are in the dictionary, and that decoding from a stream gives 
+ * the same readings as decoding from a buffer. The decode rates are compared by 
+ * manual.PerfDataFrameDecoderThroughputTest
+ */
+public class PerfDataFrameDecoderTest extends TestCase {
+
+	private static int numberOfReadings=2000;
+
+	public void testDecodeMatchesParseFrom() throws Exception {
+		System.out.println("start of test:testDecodeMatchesParseFrom()");
+
+		// one path in four is displayed
+		List<String> dictionaryPaths = new ArrayList<String>();
+		PerformanceDataReadings.Builder builder = PerformanceDataReadings.newBuilder();
+		for (int i = 0; i < numberOfReadings; i++){
+			String path = "/opt/opennms/share/rrd/snmp/"+i+"/ifHCInOctets";
+			if (i%4==0) dictionaryPaths.add(path);
+			builder.addMessage(PerformanceDataReading.newBuilder()
+					.setPath(path)
+					.setOwner("127.0.0.1")
+					.setTimestamp(1380000000000L+i)
+					.addValue(i*1.5)
+					.addValue(-i));
+		}
+		byte[] frame = builder.build().toByteArray();
+		final PathDictionary pathDictionary = new PathDictionary(dictionaryPaths);
+
+		final List<String> decodedPaths = new ArrayList<String>();
+		final List<Double> decodedValues = new ArrayList<Double>();
+		final int[] unknownPaths = new int[]{0};
+		PerfDataFrameDecoder decoder = new PerfDataFrameDecoder(pathDictionary);
+		int readings = decoder.decode(frame, new PerfDataFrameDecoder.ReadingHandler() {
+			@Override
+			public void handleReading(int pathId, long timestamp, double[] values, int valueCount) {
+				decodedPaths.add(pathDictionary.getPath(pathId));
+				for (int i = 0; i < valueCount; i++) decodedValues.add(values[i]);
+			}
+
+			@Override
+			public void handleUnknownPath(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength) {
+				unknownPaths[0]++;
+			}
+		});
+		assertEquals(numberOfReadings, readings);
+		assertEquals(numberOfReadings-dictionaryPaths.size(), unknownPaths[0]);
+
+		List<String> parsedPaths = new ArrayList<String>();
+		List<Double> parsedValues = new ArrayList<Double>();
+		for (PerformanceDataReading message : PerformanceDataReadings.parseFrom(frame).getMessageList()){
+			if (pathDictionary.getId(message.getPath())==PathDictionary.NOT_FOUND) continue;
+			parsedPaths.add(message.getPath());
+			parsedValues.addAll(message.getValueList());
+		}
+		assertEquals(parsedPaths, decodedPaths);
+		assertEquals(parsedValues, decodedValues);
+
+		System.out.println("end of test:testDecodeMatchesParseFrom()");
+	}
+
+	public void testStreamDecodeMatchesFrameDecode() throws Exception {
+		System.out.println("start of test:testStreamDecodeMatchesFrameDecode()");
+
+		List<String> dictionaryPaths = new ArrayList<String>();
+		PerformanceDataReadings.Builder builder = PerformanceDataReadings.newBuilder();
+		for (int i = 0; i < numberOfReadings; i++){
+			String path = "/opt/opennms/share/rrd/snmp/"+i+"/ifHCInOctets";
+			if (i%4==0) dictionaryPaths.add(path);
+			builder.addMessage(PerformanceDataReading.newBuilder()
+					.setPath(path)
+					.setOwner("127.0.0."+(i%256))
+					.setTimestamp(1380000000000L+i)
+					.addValue(i*1.5));
+		}
+		byte[] frame = builder.build().toByteArray();
+		PerfDataFrameDecoder decoder = new PerfDataFrameDecoder(new PathDictionary(dictionaryPaths));
+
+		final StringBuilder frameReadings = new StringBuilder();
+		final StringBuilder streamReadings = new StringBuilder();
+		int frameCount = decoder.decode(frame, new RecordingHandler(frameReadings));
+		int streamCount = decoder.decode(CodedInputStream.newInstance(new ByteArrayInputStream(frame)), new RecordingHandler(streamReadings));
+
+		assertEquals(numberOfReadings, frameCount);
+		assertEquals(numberOfReadings, streamCount);
+		assertEquals(frameReadings.toString(), streamReadings.toString());
+
+		System.out.println("end of test:testStreamDecodeMatchesFrameDecode()");
+	}
+
+	/**
+	 * appends a line describing each reading
+	 */
+	private static class RecordingHandler implements PerfDataFrameDecoder.ReadingHandler {
+		private final StringBuilder readings;
+
+		RecordingHandler(StringBuilder readings){
+			this.readings=readings;
+		}
+
+		@Override
+		public void handleReading(int pathId, long timestamp, double[] values, int valueCount) {
+			readings.append(pathId).append(' ').append(timestamp);
+			for (int i = 0; i < valueCount; i++) readings.append(' ').append(values[i]);
+			readings.append('\n');
+		}
+
+		@Override
+		public void handleUnknownPath(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength) {
+			readings.append(PerfDataFrameDecoder.pathString(buffer, pathOffset, pathLength))
+			.append(' ').append(PerfDataFrameDecoder.pathString(buffer, ownerOffset, ownerLength)).append('\n');
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.core.io.DefaultResourceLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the framing of the connections read by PerfDataNioListenerThread over local sockets: one shot 
+ * connections, length delimited streams opened with the empty preamble frame on the one shot port 
+ * and length delimited streams on the delimited port, and that only queued frames are written to the 
+ * write ahead log. The frames are opaque bytes to the listener so no protobuf messages are needed
+ */
+public class PerfDataNioListenerThreadTest extends TestCase {
+
+	private static final int MAX_FRAME_SIZE=1024;
+
+	private static final long TIMEOUT=5000;
+
+	private BlockingQueue<byte[]> queue;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicInteger openDelimitedConnections = new AtomicInteger();
+
+	private int port;
+	private int delimitedPort;
+	private PerfDataNioListenerThread listener;
+
+	@Override
+	protected void setUp() throws Exception {
+		port = freePort();
+		delimitedPort = freePort();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (listener!=null) {
+			listener.stopListenerThread();
+			listener.join(TIMEOUT);
+		}
+	}
+
+	private void startListener(int queueLength, PerfDataWriteAheadLog writeAheadLog){
+		queue = new ArrayBlockingQueue<byte[]>(queueLength);
+		listener = new PerfDataNioListenerThread(port, delimitedPort, new AtomicBoolean(true), queue, received, dropped, 
+				openConnections, openDelimitedConnections, MAX_FRAME_SIZE, 10, 60000, writeAheadLog);
+		listener.start();
+	}
+
+	public void testOneShotFrame() throws Exception {
+		startListener(10, null);
+		byte[] message = message(300, 0x0a);
+		Socket socket = connect(port);
+		socket.getOutputStream().write(message);
+		socket.close();
+
+		assertTrue(Arrays.equals(message, queue.poll(TIMEOUT, TimeUnit.MILLISECONDS)));
+		assertEquals(1, received.get());
+		waitForConnections(0, 0);
+	}
+
+	public void testEmptyOneShotConnectionIgnored() throws Exception {
+		startListener(10, null);
+		connect(port).close();
+		waitForConnections(0, 0);
+		assertNull(queue.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(0, received.get());
+	}
+
+	public void testDelimitedStreamWithPreamble() throws Exception {
+		startListener(10, null);
+		byte[] first = message(3, 0x0a);
+		byte[] second = message(200, 0x0a); // length prefix of two bytes
+		Socket socket = connect(port);
+		OutputStream out = socket.getOutputStream();
+		out.write(PerfDataNioListenerThread.DELIMITED_PREAMBLE);
+		out.write(delimited(first));
+		out.flush();
+		assertTrue(Arrays.equals(first, queue.poll(TIMEOUT, TimeUnit.MILLISECONDS)));
+		waitForConnections(1, 1);
+
+		// an empty keep alive frame and a frame split across writes
+		byte[] frame = delimited(second);
+		out.write(0);
+		out.write(frame, 0, 1);
+		out.flush();
+		Thread.sleep(50);
+		out.write(frame, 1, frame.length-1);
+		out.flush();
+		assertTrue(Arrays.equals(second, queue.poll(TIMEOUT, TimeUnit.MILLISECONDS)));
+
+		socket.close();
+		waitForConnections(0, 0);
+		assertEquals(2, received.get());
+		assertTrue(queue.isEmpty());
+	}
+
+	public void testDelimitedPort() throws Exception {
+		startListener(10, null);
+		byte[] first = message(10, 0x0a);
+		byte[] second = message(20, 0x0a);
+		Socket socket = connect(delimitedPort);
+		OutputStream out = socket.getOutputStream();
+		// frames on the delimited port need no preamble. Both are written in one packet
+		byte[] frames = concat(delimited(first), delimited(second));
+		out.write(frames);
+		out.flush();
+		assertTrue(Arrays.equals(first, queue.poll(TIMEOUT, TimeUnit.MILLISECONDS)));
+		assertTrue(Arrays.equals(second, queue.poll(TIMEOUT, TimeUnit.MILLISECONDS)));
+		waitForConnections(1, 1);
+		socket.close();
+		waitForConnections(0, 0);
+	}
+
+	public void testFrameLongerThanMaximumClosesConnection() throws Exception {
+		startListener(10, null);
+		Socket socket = connect(delimitedPort);
+		socket.getOutputStream().write(delimited(message(MAX_FRAME_SIZE+1, 0x0a)));
+		socket.getOutputStream().flush();
+		socket.setSoTimeout((int) TIMEOUT);
+		InputStream in = socket.getInputStream();
+		try {
+			assertEquals(-1, in.read());
+		} catch (IOException e){
+			// connection reset by the listener
+		}
+		socket.close();
+		waitForConnections(0, 0);
+		assertTrue(queue.isEmpty());
+	}
+
+	public void testOnlyQueuedFramesLogged() throws Exception {
+		File directory = new File("target/PmatrixNioListenerWriteAheadLog");
+		deleteFiles(directory);
+		PerfDataWriteAheadLog writeAheadLog = createWriteAheadLog(directory);
+		// nothing takes from the queue so the second frame is dropped
+		startListener(1, writeAheadLog);
+
+		byte[] queued = message(100, 0x0a);
+		byte[] droppedFrame = message(200, 0x0a);
+		Socket socket = connect(port);
+		socket.getOutputStream().write(queued);
+		socket.close();
+		waitForReceived(1);
+		socket = connect(port);
+		socket.getOutputStream().write(droppedFrame);
+		socket.close();
+		waitForReceived(2);
+		waitForConnections(0, 0);
+
+		assertEquals(1, dropped.get());
+		assertEquals(1, queue.size());
+		assertEquals(1, writeAheadLog.getNumberFramesLogged());
+		writeAheadLog.close();
+
+		final List<byte[]> replayed = new ArrayList<byte[]>();
+		createWriteAheadLog(directory).replay(new PerfDataWriteAheadLog.FrameHandler() {
+			@Override
+			public void handleFrame(byte[] frame) {
+				replayed.add(frame);
+			}
+		});
+		assertEquals(1, replayed.size());
+		assertTrue(Arrays.equals(queued, replayed.get(0)));
+	}
+
+	private static PerfDataWriteAheadLog createWriteAheadLog(File directory){
+		PerfDataWriteAheadLog writeAheadLog = new PerfDataWriteAheadLog();
+		writeAheadLog.setResourceLoader(new DefaultResourceLoader());
+		writeAheadLog.setDirectoryLocation("file:"+directory.getPath());
+		writeAheadLog.setFileName("testListener.wal");
+		writeAheadLog.setSegmentSize(64*1024);
+		writeAheadLog.setEnabled(true);
+		writeAheadLog.open();
+		return writeAheadLog;
+	}
+
+	private static void deleteFiles(File directory){
+		File[] files = directory.listFiles();
+		if (files==null) return;
+		for (File file : files) file.delete();
+	}
+
+	private void waitForReceived(long expected) throws InterruptedException {
+		long deadline=System.currentTimeMillis()+TIMEOUT;
+		while (received.get()<expected && System.currentTimeMillis()<deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(expected, received.get());
+	}
+
+	private static byte[] message(int length, int firstByte){
+		byte[] message = new byte[length];
+		for (int i=0; i<length; i++) message[i]=(byte) (i*31+7);
+		message[0]=(byte) firstByte;
+		return message;
+	}
+
+	/**
+	 * @return the message preceded by its varint length as written by protobuf writeDelimitedTo()
+	 */
+	private static byte[] delimited(byte[] message){
+		byte[] prefix = new byte[5];
+		int prefixLength=0;
+		int length=message.length;
+		while ((length & ~0x7f)!=0){
+			prefix[prefixLength++]=(byte) ((length & 0x7f) | 0x80);
+			length=length>>>7;
+		}
+		prefix[prefixLength++]=(byte) length;
+		return concat(Arrays.copyOf(prefix, prefixLength), message);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b){
+		byte[] result = Arrays.copyOf(a, a.length+b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		try {
+			return serverSocket.getLocalPort();
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * connects once the listener has bound its port
+	 */
+	private static Socket connect(int port) throws Exception {
+		long deadline=System.currentTimeMillis()+TIMEOUT;
+		while (true){
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (ConnectException e){
+				if (System.currentTimeMillis()>deadline) throw e;
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	private void waitForConnections(int expectedConnections, int expectedDelimitedConnections) throws InterruptedException {
+		long deadline=System.currentTimeMillis()+TIMEOUT;
+		while ((openConnections.get()!=expectedConnections || openDelimitedConnections.get()!=expectedDelimitedConnections)
+				&& System.currentTimeMillis()<deadline){
+			Thread.sleep(10);
+		}
+		assertEquals(expectedConnections, openConnections.get());
+		assertEquals(expectedDelimitedConnections, openDelimitedConnections.get());
+	}
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.engine;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.core.io.DefaultResourceLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that logged message buffers are replayed after a restart and deleted after a checkpoint.
+ * The append rate is measured by manual.PerfDataWriteAheadLogThroughputTest
+ */
+public class PerfDataWriteAheadLogTest extends TestCase {
+
+	private static String directoryLocation="file:./target/PmatrixWriteAheadLog";
+
+	private static String fileName="testIngest.wal";
+
+	private static int numberOfFrames=2000;
+
+	private static int frameSize=2000;
+
+	/**
+	 * small segments so that the frames are spread over several segments
+	 */
+	private static int segmentSize=1024*1024;
+
+	public void testAppendAndReplay(){
+		System.out.println("start of test:testAppendAndReplay()");
+		deleteSegments();
+
+		PerfDataWriteAheadLog writeAheadLog = createWriteAheadLog();
+		byte[] frame = new byte[frameSize];
+		for (int i = 0; i < numberOfFrames; i++){
+			frame[0]=(byte) i;
+			writeAheadLog.append(frame);
+		}
+		writeAheadLog.close();
+
+		PerfDataWriteAheadLog reopenedLog = createWriteAheadLog();
+		final List<byte[]> replayed = new ArrayList<byte[]>();
+		reopenedLog.replay(new PerfDataWriteAheadLog.FrameHandler() {
+			@Override
+			public void handleFrame(byte[] replayedFrame) {
+				if (replayed.size()<3) replayed.add(replayedFrame);
+			}
+		});
+		assertEquals(numberOfFrames, reopenedLog.getNumberFramesReplayed());
+		assertEquals((byte) 2, replayed.get(2)[0]);
+		assertEquals(frameSize, replayed.get(2).length);
+
+		// first checkpoint after startup deletes the replayed segments
+		int segmentsBefore = reopenedLog.getNumberSegments();
+		reopenedLog.startCheckpoint();
+		reopenedLog.completeCheckpoint();
+		assertEquals(2, reopenedLog.getNumberSegments());
+		assertTrue(segmentsBefore>2);
+		reopenedLog.close();
+
+		System.out.println("end of test:testAppendAndReplay()");
+	}
+
+	/**
+	 * a damaged record stops the replay of its segment
+	 */
+	public void testDamagedRecord() throws IOException{
+		System.out.println("start of test:testDamagedRecord()");
+		deleteSegments();
+
+		PerfDataWriteAheadLog writeAheadLog = createWriteAheadLog();
+		byte[] frame = new byte[100];
+		for (int i = 0; i < 10; i++) writeAheadLog.append(frame);
+		writeAheadLog.close();
+
+		File[] segments = segmentFiles();
+		assertEquals(1, segments.length);
+		RandomAccessFile raf = new RandomAccessFile(segments[0], "rw");
+		// corrupt the body of the sixth record (8 byte segment header + 5 records of 108 bytes + 8 byte record header)
+		raf.seek(8+5*108+8);
+		raf.write(1);
+		raf.close();
+
+		PerfDataWriteAheadLog reopenedLog = createWriteAheadLog();
+		int replayed = reopenedLog.replay(new PerfDataWriteAheadLog.FrameHandler() {
+			@Override
+			public void handleFrame(byte[] replayedFrame) {
+			}
+		});
+		assertEquals(5, replayed);
+		reopenedLog.close();
+
+		System.out.println("end of test:testDamagedRecord()");
+	}
+
+	private PerfDataWriteAheadLog createWriteAheadLog(){
+		PerfDataWriteAheadLog writeAheadLog = new PerfDataWriteAheadLog();
+		writeAheadLog.setResourceLoader(new DefaultResourceLoader());
+		writeAheadLog.setDirectoryLocation(directoryLocation);
+		writeAheadLog.setFileName(fileName);
+		writeAheadLog.setSegmentSize(segmentSize);
+		writeAheadLog.setEnabled(true);
+		writeAheadLog.open();
+		return writeAheadLog;
+	}
+
+	private File[] segmentFiles(){
+		File directory;
+		try {
+			directory = new File(new DefaultResourceLoader().getResource(directoryLocation).getURL().getFile());
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot find directory "+directoryLocation, e);
+		}
+		File[] files = directory.listFiles();
+		if (files==null) return new File[0];
+		List<File> segments = new ArrayList<File>();
+		for (File file : files){
+			if (file.getName().startsWith(fileName)) segments.add(file);
+		}
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private void deleteSegments(){
+		for (File file : segmentFiles()) file.delete();
+	}
+}
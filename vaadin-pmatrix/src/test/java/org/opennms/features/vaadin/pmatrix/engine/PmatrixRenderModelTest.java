@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.model.DataPointDefinition;
+import org.opennms.features.vaadin.pmatrix.model.PmatrixSpecification;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that one render model is shared by all sessions displaying a table and that each cell 
+ * is rendered at most once per DataPointMapDao update
+ */
+public class PmatrixRenderModelTest extends TestCase {
+
+	private static final String[] PATHS = {
+		"/opt/opennms/share/rrd/snmp/1/ifInOctets", 
+		"/opt/opennms/share/rrd/snmp/2/ifInOctets"};
+
+	private PmatrixSpecification pmatrixSpecification;
+
+	private DataPointMapDaoImpl dataPointMapDao;
+
+	@Override
+	protected void setUp() throws Exception {
+		pmatrixSpecification = DataPointMapDaoImplTest.createSpecification("table", PATHS);
+		dataPointMapDao = DataPointMapDaoImplTest.createDataPointMapDao(pmatrixSpecification);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dataPointMapDao.shutdown();
+	}
+
+	public void testRenderModelSharedPerTable(){
+		PmatrixRenderModel renderModel = dataPointMapDao.getRenderModel(pmatrixSpecification);
+		assertSame(renderModel, dataPointMapDao.getRenderModel(pmatrixSpecification));
+		assertSame(pmatrixSpecification, renderModel.getPmatrixSpecification());
+
+		PmatrixSpecification otherTable = DataPointMapDaoImplTest.createSpecification("otherTable", PATHS);
+		assertNotSame(renderModel, dataPointMapDao.getRenderModel(otherTable));
+
+		// a reloaded specification of the same table replaces the shared model
+		PmatrixSpecification reloaded = DataPointMapDaoImplTest.createSpecification("table", PATHS);
+		PmatrixRenderModel reloadedModel = dataPointMapDao.getRenderModel(reloaded);
+		assertNotSame(renderModel, reloadedModel);
+		assertSame(reloadedModel, dataPointMapDao.getRenderModel(reloaded));
+	}
+
+	public void testCellRenderedOncePerUpdate(){
+		PmatrixRenderModel renderModel = dataPointMapDao.getRenderModel(pmatrixSpecification);
+		DataPointDefinition dpd = pmatrixSpecification.getDatapointDefinitions().get(0);
+		PmatrixRenderModel.RenderedCell cell = renderModel.getCell(dpd);
+		assertNotNull(cell.getHtml());
+		long cellVersion = cell.getVersion();
+		assertNull(cell.getValues().getLatestDataValue());
+
+		int pathId = dataPointMapDao.getPathDictionary().getId(PATHS[0]);
+		PmatrixDpdCalculator calculator = dataPointMapDao.getCalculator(pathId);
+		synchronized(calculator){
+			calculator.updateCalculation(10d, System.currentTimeMillis());
+			calculator.markUpdated();
+		}
+
+		// the cell has already been rendered for the current update
+		assertSame(cell, renderModel.refreshCell(dpd));
+		assertEquals(cellVersion, cell.getVersion());
+		assertNull(cell.getValues().getLatestDataValue());
+
+		dataPointMapDao.notifyChange(pathId);
+		dataPointMapDao.runUpdate();
+		long sequence = dataPointMapDao.getUpdateSequence();
+		renderModel.refreshCell(dpd);
+		assertTrue(cell.getVersion()>cellVersion);
+		assertEquals(10d, cell.getValues().getLatestDataValue(), 0d);
+		assertEquals(sequence, cell.getValues().getChangedSequence());
+		assertEquals(sequence, renderModel.getVersion());
+
+		// a second session refreshing the same cell in the same update does not render it again
+		PmatrixRenderModel.CellValues values = cell.getValues();
+		cellVersion = cell.getVersion();
+		renderModel.refreshCell(dpd);
+		assertEquals(cellVersion, cell.getVersion());
+		assertSame(values, cell.getValues());
+	}
+
+	public void testRefreshCellsReturnsRenderedSequence(){
+		PmatrixRenderModel renderModel = dataPointMapDao.getRenderModel(pmatrixSpecification);
+		dataPointMapDao.notifyChange();
+		dataPointMapDao.runUpdate();
+		long sequence = dataPointMapDao.getUpdateSequence();
+		assertEquals(sequence, renderModel.refreshCells());
+		for (PmatrixRenderModel.RenderedCell cell : renderModel.getCells()){
+			assertNotNull(cell.getHtml());
+		}
+		assertTrue(renderModel.getVersion()<=sequence);
+	}
+}
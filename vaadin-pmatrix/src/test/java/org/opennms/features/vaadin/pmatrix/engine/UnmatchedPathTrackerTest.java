@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.engine;
+
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the UnmatchedPathTracker estimates with exact counts for a stream of readings in which 
+ * a few paths are received far more often than the long tail of other paths
+ */
+public class UnmatchedPathTrackerTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static int numberOfDistinctPaths=100000;
+
+	private static int numberOfReadings=2000000;
+
+	private static int numberOfOwners=500;
+
+	private static int topK=100;
+
+	public void testEstimatesMatchExactCounts() throws Exception {
+		System.out.println("start of test:testEstimatesMatchExactCounts()");
+
+		UnmatchedPathTracker tracker = new UnmatchedPathTracker();
+		tracker.setTopK(topK);
+
+		// each reading is encoded once as a buffer holding its path followed by its owner, as
+		// the listener records them from within the message buffer
+		byte[][] encodedReadings = new byte[numberOfDistinctPaths][];
+		int[] pathLengths = new int[numberOfDistinctPaths];
+		for (int i = 0; i < numberOfDistinctPaths; i++){
+			byte[] path=("/opt/opennms/share/rrd/snmp/"+i+"/ifHCInOctets").getBytes(UTF8);
+			byte[] owner=("10.0."+(i%numberOfOwners/256)+"."+(i%numberOfOwners%256)).getBytes(UTF8);
+			encodedReadings[i]=new byte[2+path.length+owner.length];
+			System.arraycopy(path, 0, encodedReadings[i], 2, path.length);
+			System.arraycopy(owner, 0, encodedReadings[i], 2+path.length, owner.length);
+			pathLengths[i]=path.length;
+		}
+
+		// zipf like distribution: path i is chosen with probability proportional to 1/(i+1)
+		double[] cumulative = new double[numberOfDistinctPaths];
+		double total=0;
+		for (int i = 0; i < numberOfDistinctPaths; i++){
+			total+=1.0/(i+1);
+			cumulative[i]=total;
+		}
+
+		Random random = new Random(42);
+		int[] exactCounts = new int[numberOfDistinctPaths];
+		boolean[] seen = new boolean[numberOfDistinctPaths];
+		int distinctSeen=0;
+		for (int r = 0; r < numberOfReadings; r++){
+			int path = Arrays.binarySearch(cumulative, random.nextDouble()*total);
+			if (path<0) path=-path-1;
+			if (path>=numberOfDistinctPaths) path=numberOfDistinctPaths-1;
+			exactCounts[path]++;
+			if (!seen[path]) {
+				seen[path]=true;
+				distinctSeen++;
+			}
+			byte[] reading = encodedReadings[path];
+			tracker.record(reading, 2, pathLengths[path], 2+pathLengths[path], reading.length-2-pathLengths[path]);
+		}
+
+		long estimatedDistinct = tracker.getDistinctUnmatchedPaths();
+		double pathError = Math.abs(estimatedDistinct-distinctSeen)/(double) distinctSeen;
+		System.out.println("distinct paths "+distinctSeen+" estimated "+estimatedDistinct+" error "+pathError);
+		assertTrue(pathError<0.05);
+
+		long estimatedOwners = tracker.getDistinctUnmatchedOwners();
+		System.out.println("distinct owners "+numberOfOwners+" estimated "+estimatedOwners);
+		assertTrue(Math.abs(estimatedOwners-numberOfOwners)<numberOfOwners*0.05);
+
+		assertEquals(numberOfReadings, tracker.getUnmatchedReadings());
+
+		// every path received more than numberOfReadings/topK times must be reported with a bounded count
+		Map<String,Integer> exact = new HashMap<String,Integer>();
+		for (int i = 0; i < numberOfDistinctPaths; i++){
+			if (exactCounts[i]>0) exact.put(new String(encodedReadings[i], 2, pathLengths[i], UTF8), exactCounts[i]);
+		}
+		List<SpaceSavingTopK.Entry> top = tracker.getTopPaths(topK);
+		Map<String,SpaceSavingTopK.Entry> reported = new HashMap<String,SpaceSavingTopK.Entry>();
+		for (SpaceSavingTopK.Entry entry : top){
+			reported.put(entry.getKey(), entry);
+			int real = exact.get(entry.getKey());
+			assertTrue(entry.getCount()>=real);
+			assertTrue(entry.getCount()-entry.getError()<=real);
+		}
+		for (Map.Entry<String,Integer> e : exact.entrySet()){
+			if (e.getValue()>numberOfReadings/topK) assertTrue(e.getKey(), reported.containsKey(e.getKey()));
+		}
+
+		List<Map.Entry<String,Integer>> exactTop = new ArrayList<Map.Entry<String,Integer>>(exact.entrySet());
+		Collections.sort(exactTop, new Comparator<Map.Entry<String,Integer>>(){
+			@Override
+			public int compare(Map.Entry<String,Integer> e1, Map.Entry<String,Integer> e2) {
+				return e2.getValue().compareTo(e1.getValue());
+			}
+		});
+		for (int i = 0; i < 10; i++){
+			SpaceSavingTopK.Entry entry = top.get(i);
+			System.out.println("exact "+exactTop.get(i).getValue()+" "+exactTop.get(i).getKey()
+					+"  estimated "+entry.getCount()+" (error "+entry.getError()+") "+entry.getKey());
+		}
+
+		System.out.println("end of test:testEstimatesMatchExactCounts()");
+	}
+}
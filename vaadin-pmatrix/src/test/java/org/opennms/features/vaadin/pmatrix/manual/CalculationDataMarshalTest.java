@@ -106,6 +106,7 @@ public class CalculationDataMarshalTest extends TestCase {
 		pmatrixDpdCalculatorRepository.setArchiveFileName(archiveFileName);
 		pmatrixDpdCalculatorRepository.setArchiveFileMaxNumber(2);
 		pmatrixDpdCalculatorRepository.setPersistHistoricData(true);
+		pmatrixDpdCalculatorRepository.setArchiveFileFormat(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_XML);
 
 		boolean success = pmatrixDpdCalculatorRepository.persist();
 
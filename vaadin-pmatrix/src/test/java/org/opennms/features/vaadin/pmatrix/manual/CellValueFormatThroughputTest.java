@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.manual;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import org.opennms.features.vaadin.pmatrix.engine.CellValueFormat;
+
+import junit.framework.TestCase;
+
+/**
+ * Prints the time taken by CellValueFormat and by the DecimalFormat("####.##") previously 
+ * used to render cell values. The formatted strings are checked by engine.CellValueFormatTest
+ */
+public class CellValueFormatThroughputTest extends TestCase {
+
+	private static int numberOfRandomValues=1000000;
+
+	public void testFormatTime(){
+		System.out.println("start of testFormatTime");
+		double[] values = new double[1024];
+		Random random = new Random(1);
+		for (int i = 0; i < values.length; i++){
+			values[i] = random.nextDouble()*1000;
+		}
+
+		DecimalFormat decimalFormat = new DecimalFormat("####.##");
+		long length=0;
+		for (int j = 0; j < 2; j++){ // first pass is warm up
+			long start = System.nanoTime();
+			for (int i = 0; i < numberOfRandomValues; i++){
+				length=length+decimalFormat.format(values[i & 1023]).length();
+			}
+			long decimalFormatTime = System.nanoTime()-start;
+
+			start = System.nanoTime();
+			StringBuilder sb = new StringBuilder(32);
+			for (int i = 0; i < numberOfRandomValues; i++){
+				sb.setLength(0);
+				CellValueFormat.append(sb, values[i & 1023]);
+				length=length+sb.length();
+			}
+			long cellValueFormatTime = System.nanoTime()-start;
+
+			System.out.println("time per value DecimalFormat: "+(decimalFormatTime/numberOfRandomValues)+" ns"
+					+ " CellValueFormat: "+(cellValueFormatTime/numberOfRandomValues)+" ns");
+		}
+		assertTrue(length>0);
+		System.out.println("end of testFormatTime");
+	}
+}
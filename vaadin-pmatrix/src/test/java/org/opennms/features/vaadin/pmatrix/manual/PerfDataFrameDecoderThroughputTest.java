@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.manual;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.features.vaadin.pmatrix.engine.PathDictionary;
+import org.opennms.features.vaadin.pmatrix.engine.PerfDataFrameDecoder;
+import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos.PerformanceDataReading;
+import org.opennms.netmgt.rrd.tcp.PerformanceDataProtos.PerformanceDataReadings;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the decode rates of PerfDataFrameDecoder and PerformanceDataReadings.parseFrom() for a batch 
+ * in which only some paths are in the dictionary. The decoded readings are checked by engine.PerfDataFrameDecoderTest
+ */
+public class PerfDataFrameDecoderThroughputTest extends TestCase {
+
+	private static int numberOfReadings=20000;
+
+	private static int numberOfRepeats=50;
+
+	public void testDecodeRate() throws Exception {
+		System.out.println("start of test:testDecodeRate()");
+
+		// one path in four is displayed
+		List<String> dictionaryPaths = new ArrayList<String>();
+		PerformanceDataReadings.Builder builder = PerformanceDataReadings.newBuilder();
+		for (int i = 0; i < numberOfReadings; i++){
+			String path = "/opt/opennms/share/rrd/snmp/"+i+"/ifHCInOctets";
+			if (i%4==0) dictionaryPaths.add(path);
+			builder.addMessage(PerformanceDataReading.newBuilder()
+					.setPath(path)
+					.setOwner("127.0.0.1")
+					.setTimestamp(1380000000000L+i)
+					.addValue(i*1.5)
+					.addValue(-i));
+		}
+		byte[] frame = builder.build().toByteArray();
+		PathDictionary pathDictionary = new PathDictionary(dictionaryPaths);
+		PerfDataFrameDecoder decoder = new PerfDataFrameDecoder(pathDictionary);
+
+		PerfDataFrameDecoder.ReadingHandler nullHandler = new PerfDataFrameDecoder.ReadingHandler() {
+			@Override
+			public void handleReading(int pathId, long timestamp, double[] values, int valueCount) {
+			}
+
+			@Override
+			public void handleUnknownPath(byte[] buffer, int pathOffset, int pathLength, int ownerOffset, int ownerLength) {
+			}
+		};
+		long start=System.currentTimeMillis();
+		for (int i = 0; i < numberOfRepeats; i++){
+			decoder.decode(frame, nullHandler);
+		}
+		long decodeDuration=System.currentTimeMillis()-start;
+
+		start=System.currentTimeMillis();
+		for (int i = 0; i < numberOfRepeats; i++){
+			for (PerformanceDataReading message : PerformanceDataReadings.parseFrom(frame).getMessageList()){
+				pathDictionary.getId(message.getPath());
+			}
+		}
+		long parseDuration=System.currentTimeMillis()-start;
+
+		System.out.println("decoded "+numberOfRepeats+" buffers of "+numberOfReadings+" readings ("+frame.length+" bytes) in "
+				+ decodeDuration+" ms with PerfDataFrameDecoder and "+parseDuration+" ms with parseFrom()");
+
+		System.out.println("end of test:testDecodeRate()");
+	}
+}
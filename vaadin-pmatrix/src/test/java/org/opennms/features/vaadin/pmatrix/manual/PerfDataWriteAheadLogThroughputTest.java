@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.manual;
+
+
+import java.io.File;
+import java.io.IOException;
+
+import org.opennms.features.vaadin.pmatrix.engine.PerfDataWriteAheadLog;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the append rate of the performance data write ahead log. 
+ * Replay and checkpoints are checked by engine.PerfDataWriteAheadLogTest
+ */
+public class PerfDataWriteAheadLogThroughputTest extends TestCase {
+
+	private static String directoryLocation="file:./target/PmatrixWriteAheadLog";
+
+	private static String fileName="throughputIngest.wal";
+
+	private static int numberOfFrames=200000;
+
+	private static int frameSize=2000;
+
+	public void testAppendRate(){
+		System.out.println("start of test:testAppendRate()");
+		deleteSegments();
+
+		PerfDataWriteAheadLog writeAheadLog = new PerfDataWriteAheadLog();
+		writeAheadLog.setResourceLoader(new DefaultResourceLoader());
+		writeAheadLog.setDirectoryLocation(directoryLocation);
+		writeAheadLog.setFileName(fileName);
+		writeAheadLog.setEnabled(true);
+		writeAheadLog.open();
+
+		byte[] frame = new byte[frameSize];
+		long start=System.currentTimeMillis();
+		for (int i = 0; i < numberOfFrames; i++){
+			frame[0]=(byte) i;
+			writeAheadLog.append(frame);
+		}
+		long duration=System.currentTimeMillis()-start;
+		writeAheadLog.close();
+		System.out.println("appended "+numberOfFrames+" frames of "+frameSize+" bytes in "+duration+" ms ("
+				+ (duration==0 ? "-" : Long.toString(numberOfFrames*1000L/duration))+" frames/s) to "+writeAheadLog.getNumberSegments()+" segments");
+
+		deleteSegments();
+		System.out.println("end of test:testAppendRate()");
+	}
+
+	private void deleteSegments(){
+		File directory;
+		try {
+			directory = new File(new DefaultResourceLoader().getResource(directoryLocation).getURL().getFile());
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot find directory "+directoryLocation, e);
+		}
+		File[] files = directory.listFiles();
+		if (files==null) return;
+		for (File file : files){
+			if (file.getName().startsWith(fileName)) file.delete();
+		}
+	}
+}
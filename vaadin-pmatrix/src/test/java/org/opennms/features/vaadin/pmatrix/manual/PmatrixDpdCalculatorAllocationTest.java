@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.manual;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorEmaImpl;
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorImpl;
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorSimpleMovingAvgImpl;
+import org.opennms.features.vaadin.pmatrix.model.NameValuePair;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the bytes allocated and the time taken by updateCalculation(double, long) for each of the built in calculators.
+ * Allocation is measured with com.sun.management.ThreadMXBean so the test is skipped on JVMs which do not support it.
+ * Debug logging must be disabled for the calculators.
+ * The deterministic checks that the moving average window is reused are in 
+ * calculator.PmatrixDpdCalculatorSimpleMovingAvgWindowTest which runs with the build.
+ */
+public class PmatrixDpdCalculatorAllocationTest extends TestCase {
+
+	private static int numberOfWarmupUpdates=200000;
+
+	private static int numberOfUpdates=1000000;
+
+	public void testImplAllocation(){
+		assertNoAllocation(new PmatrixDpdCalculatorImpl());
+	}
+
+	public void testEmaAllocation(){
+		assertNoAllocation(new PmatrixDpdCalculatorEmaImpl());
+	}
+
+	public void testSimpleMovingAvgAllocation(){
+		PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+		List<NameValuePair> configuration = new ArrayList<NameValuePair>();
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.MAX_SAMPLE_NO_PROPERTY_NAME, "1000"));
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_PROPERTY_NAME, PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_STANDARD_DEVIATION));
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_PROPERTY_NAME, PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_AVERAGE));
+		calculator.setConfiguration(configuration);
+		assertNoAllocation(calculator);
+	}
+
+	private void assertNoAllocation(PmatrixDpdCalculator calculator){
+		String name = calculator.getClass().getSimpleName();
+		System.out.println("start of allocation test for "+name);
+
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)){
+			System.out.println("thread allocation measurement not supported by this JVM");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+		long threadId = Thread.currentThread().getId();
+
+		double[] values = new double[1024];
+		for (int i = 0; i < values.length; i++){
+			values[i] = Math.random()*1000;
+		}
+
+		// warm up so that the measured updates run compiled code
+		long timestamp = 0;
+		for (int i = 0; i < numberOfWarmupUpdates; i++){
+			calculator.updateCalculation(values[i & 1023], timestamp);
+			timestamp=timestamp+300000L;
+		}
+
+		long start = System.nanoTime();
+		long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < numberOfUpdates; i++){
+			calculator.updateCalculation(values[i & 1023], timestamp);
+			timestamp=timestamp+300000L;
+		}
+		long allocated = allocationBean.getThreadAllocatedBytes(threadId)-allocatedBefore;
+		long duration = System.nanoTime()-start;
+
+		System.out.println(name+" bytes allocated by "+numberOfUpdates+" updates: "+allocated
+				+ " time per update: "+(duration/numberOfUpdates)+" ns");
+
+		// allow for the measurement itself allocating a few bytes
+		assertTrue(name+" allocated "+allocated+" bytes in "+numberOfUpdates+" updates", allocated<numberOfUpdates/100);
+
+		System.out.println("end of allocation test for "+name);
+	}
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.features.vaadin.pmatrix.manual;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorRepository;
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorSimpleMovingAvgImpl;
+import org.opennms.features.vaadin.pmatrix.model.NameValuePair;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the save and load time and file size of the XML and binary history archive formats
+ * for a repository of simple moving average calculators.
+ * Increase numberOfCalculators and maxSampleNo to model a large installation
+ */
+public class PmatrixDpdCalculatorRepositoryFormatThroughputTest extends TestCase {
+
+	private static String archiveFileDirectoryLocation="file:./target/PmatrixHistoryThroughput";
+
+	private static int numberOfCalculators=2000;
+
+	private static int maxSampleNo=1000;
+
+	public void testFormatThroughput(){
+		System.out.println("start of test:testFormatThroughput()");
+
+		Map<String, PmatrixDpdCalculator> dataPointMap = createDataPointMap();
+		System.out.println("created "+numberOfCalculators+" calculators with "+maxSampleNo+" samples each");
+
+		long[] xmlResult = persistAndLoad(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_XML, "throughputHistory.xml", dataPointMap);
+		long[] binaryResult = persistAndLoad(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_BINARY, "throughputHistory.bin", dataPointMap);
+
+		System.out.println("format   save(ms)  load(ms)  size(bytes)");
+		System.out.println("xml      "+xmlResult[0]+"  "+xmlResult[1]+"  "+xmlResult[2]);
+		System.out.println("binary   "+binaryResult[0]+"  "+binaryResult[1]+"  "+binaryResult[2]);
+		if (binaryResult[0]>0 && binaryResult[1]>0 && binaryResult[2]>0){
+			System.out.println("binary speedup save:"+((double)xmlResult[0]/binaryResult[0])
+					+ " load:"+((double)xmlResult[1]/binaryResult[1])
+					+ " size reduction:"+((double)xmlResult[2]/binaryResult[2]));
+		}
+
+		System.out.println("end of test:testFormatThroughput()");
+	}
+
+	/**
+	 * checks that an XML archive is imported when the repository is configured for binary archives
+	 */
+	public void testImportXmlArchive(){
+		System.out.println("start of test:testImportXmlArchive()");
+
+		Map<String, PmatrixDpdCalculator> dataPointMap = createDataPointMap();
+		String xmlArchiveFileName="importHistory.xml";
+		String binaryArchiveFileName="importHistory.pmx";
+		deleteArchives(xmlArchiveFileName);
+		deleteArchives(binaryArchiveFileName);
+
+		PmatrixDpdCalculatorRepository xmlRepository = createRepository(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_XML, xmlArchiveFileName);
+		xmlRepository.setDataPointMap(dataPointMap);
+		assertTrue(xmlRepository.persist());
+
+		// binary format is never written to a .xml archive
+		PmatrixDpdCalculatorRepository binaryXmlNameRepository = createRepository(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_BINARY, xmlArchiveFileName);
+		assertTrue(binaryXmlNameRepository.load());
+		assertTrue(binaryXmlNameRepository.persist());
+		assertFalse(isBinaryArchive(archiveFile(xmlArchiveFileName)));
+
+		// migration: the xml archive is copied to the binary archive name
+		copyFile(archiveFile(xmlArchiveFileName), archiveFile(binaryArchiveFileName));
+		PmatrixDpdCalculatorRepository binaryRepository = createRepository(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_BINARY, binaryArchiveFileName);
+		assertTrue(binaryRepository.load());
+		assertSameData(dataPointMap, binaryRepository.getDataPointMap());
+
+		// next persist converts the copy to binary
+		assertTrue(binaryRepository.persist());
+		assertTrue(isBinaryArchive(archiveFile(binaryArchiveFileName)));
+		PmatrixDpdCalculatorRepository reloadedRepository = createRepository(PmatrixDpdCalculatorRepository.ARCHIVE_FORMAT_BINARY, binaryArchiveFileName);
+		assertTrue(reloadedRepository.load());
+		assertSameData(dataPointMap, reloadedRepository.getDataPointMap());
+
+		System.out.println("end of test:testImportXmlArchive()");
+	}
+
+	/**
+	 * @return save time, load time and file size
+	 */
+	private long[] persistAndLoad(String format, String archiveFileName, Map<String, PmatrixDpdCalculator> dataPointMap){
+		deleteArchives(archiveFileName);
+
+		PmatrixDpdCalculatorRepository repository = createRepository(format, archiveFileName);
+		repository.setDataPointMap(dataPointMap);
+
+		long start=System.currentTimeMillis();
+		assertTrue(repository.persist());
+		long saveTime=System.currentTimeMillis()-start;
+
+		PmatrixDpdCalculatorRepository loadRepository = createRepository(format, archiveFileName);
+		start=System.currentTimeMillis();
+		assertTrue(loadRepository.load());
+		long loadTime=System.currentTimeMillis()-start;
+
+		assertSameData(dataPointMap, loadRepository.getDataPointMap());
+
+		return new long[]{saveTime, loadTime, repository.getLastPersistBytesWritten()};
+	}
+
+	private PmatrixDpdCalculatorRepository createRepository(String format, String archiveFileName){
+		PmatrixDpdCalculatorRepository repository = new PmatrixDpdCalculatorRepository();
+		repository.setResourceLoader(new DefaultResourceLoader());
+		repository.setArchiveFileDirectoryLocation(archiveFileDirectoryLocation);
+		repository.setArchiveFileName(archiveFileName);
+		repository.setArchiveFileMaxNumber(1);
+		repository.setPersistHistoricData(true);
+		repository.setArchiveFileFormat(format);
+		return repository;
+	}
+
+	private File archiveDirectory(){
+		try {
+			return new File(new DefaultResourceLoader().getResource(archiveFileDirectoryLocation).getURL().getFile());
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot find archive directory "+archiveFileDirectoryLocation, e);
+		}
+	}
+
+	private File archiveFile(String archiveFileName){
+		return new File(archiveDirectory(), archiveFileName);
+	}
+
+	/**
+	 * @return true if the file starts with the "PMXH" magic number of a binary archive
+	 */
+	private boolean isBinaryArchive(File file){
+		byte[] magic = new byte[4];
+		FileInputStream in=null;
+		try {
+			in = new FileInputStream(file);
+			if (in.read(magic)<4) return false;
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read "+file, e);
+		} finally {
+			try {
+				if (in!=null) in.close();
+			} catch (IOException e) {
+				throw new IllegalStateException("cannot close "+file, e);
+			}
+		}
+		return magic[0]=='P' && magic[1]=='M' && magic[2]=='X' && magic[3]=='H';
+	}
+
+	private void copyFile(File from, File to){
+		FileInputStream in=null;
+		FileOutputStream out=null;
+		try {
+			in = new FileInputStream(from);
+			out = new FileOutputStream(to);
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read=in.read(buffer))>0) out.write(buffer, 0, read);
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot copy "+from+" to "+to, e);
+		} finally {
+			try {
+				if (in!=null) in.close();
+				if (out!=null) out.close();
+			} catch (IOException e) {
+				throw new IllegalStateException("cannot close "+from+" or "+to, e);
+			}
+		}
+	}
+
+	private void deleteArchives(String archiveFileName){
+		File directory = archiveDirectory();
+		File[] files = directory.listFiles();
+		if (files==null) return;
+		for (File file : files){
+			if (file.getName().startsWith(archiveFileName)) file.delete();
+		}
+	}
+
+	private Map<String, PmatrixDpdCalculator> createDataPointMap(){
+		Map<String, PmatrixDpdCalculator> dataPointMap = new ConcurrentHashMap<String, PmatrixDpdCalculator>();
+		for (int i = 0; i < numberOfCalculators; i++){
+			PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+			List<NameValuePair> configuration = new ArrayList<NameValuePair>();
+			configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.MAX_SAMPLE_NO_PROPERTY_NAME, Integer.toString(maxSampleNo)));
+			configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_PROPERTY_NAME, PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_STANDARD_DEVIATION));
+			calculator.setConfiguration(configuration);
+			long timestamp=System.currentTimeMillis();
+			for (int j = 0; j < maxSampleNo; j++){
+				calculator.updateCalculation(Double.valueOf(Math.random()*1000), Long.valueOf(timestamp+j*300000L));
+			}
+			dataPointMap.put("/opt/opennms/share/rrd/snmp/"+i+"/mib2-interfaces/ifInOctets", calculator);
+		}
+		return dataPointMap;
+	}
+
+	private void assertSameData(Map<String, PmatrixDpdCalculator> expected, Map<String, PmatrixDpdCalculator> actual){
+		assertEquals(expected.size(), actual.size());
+		for (String path : expected.keySet()){
+			PmatrixDpdCalculatorSimpleMovingAvgImpl e = (PmatrixDpdCalculatorSimpleMovingAvgImpl) expected.get(path);
+			PmatrixDpdCalculatorSimpleMovingAvgImpl a = (PmatrixDpdCalculatorSimpleMovingAvgImpl) actual.get(path);
+			assertNotNull("missing calculator for "+path, a);
+			assertEquals(e.getLatestDataValue(), a.getLatestDataValue());
+			assertEquals(e.getLatestTimestamp(), a.getLatestTimestamp());
+			assertEquals(e.getMouseOverText(), a.getMouseOverText());
+			assertEquals(e.getConfiguration().size(), a.getConfiguration().size());
+			assertEquals(e.getPersistwindow().size(), a.getPersistwindow().size());
+			Iterator<Double> ei = e.getPersistwindow().iterator();
+			Iterator<Double> ai = a.getPersistwindow().iterator();
+			while (ei.hasNext()) assertEquals(ei.next(), ai.next());
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2010-2012 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2012 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.features.vaadin.pmatrix.manual;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculator;
+import org.opennms.features.vaadin.pmatrix.calculator.PmatrixDpdCalculatorSimpleMovingAvgImpl;
+import org.opennms.features.vaadin.pmatrix.model.NameValuePair;
+
+import junit.framework.TestCase;
+
+/**
+ * Reports the heap used by each simple moving average calculator with a full sample window
+ * and the bytes allocated by each call to updateCalculation().
+ * Allocation is measured with com.sun.management.ThreadMXBean so is only reported on JVMs which support it.
+ * Run with a fixed heap (e.g. -Xms1g -Xmx1g) for repeatable results.
+ */
+public class PmatrixDpdCalculatorSimpleMovingAvgMemoryTest extends TestCase {
+
+	private static int numberOfCalculators=2000;
+
+	private static int maxSampleNo=1000;
+
+	private static int numberOfUpdates=100000;
+
+	public void testHeapPerCalculator(){
+		System.out.println("start of test:testHeapPerCalculator()");
+
+		long before = usedHeap();
+		List<PmatrixDpdCalculator> calculators = new ArrayList<PmatrixDpdCalculator>(numberOfCalculators);
+		for (int i = 0; i < numberOfCalculators; i++){
+			PmatrixDpdCalculator calculator = createCalculator();
+			for (int j = 0; j < maxSampleNo; j++){
+				calculator.updateCalculation(Double.valueOf(j), Long.valueOf(j*300000L));
+			}
+			calculators.add(calculator);
+		}
+		long after = usedHeap();
+
+		System.out.println("heap per calculator with "+maxSampleNo+" samples: "+((after-before)/numberOfCalculators)+" bytes");
+		assertEquals(numberOfCalculators, calculators.size());
+
+		System.out.println("end of test:testHeapPerCalculator()");
+	}
+
+	public void testAllocationPerUpdate(){
+		System.out.println("start of test:testAllocationPerUpdate()");
+
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)){
+			System.out.println("thread allocation measurement not supported by this JVM");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+		long threadId = Thread.currentThread().getId();
+
+		PmatrixDpdCalculator calculator = createCalculator();
+		// fill the window so that every measured update also removes a sample
+		for (int j = 0; j < maxSampleNo; j++){
+			calculator.updateCalculation(Double.valueOf(j), Long.valueOf(j*300000L));
+		}
+
+		Double[] values = new Double[1024];
+		Long[] timestamps = new Long[1024];
+		for (int i = 0; i < values.length; i++){
+			values[i] = Double.valueOf(Math.random()*1000);
+			timestamps[i] = Long.valueOf(i*300000L);
+		}
+
+		long start = System.nanoTime();
+		long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < numberOfUpdates; i++){
+			calculator.updateCalculation(values[i & 1023], timestamps[i & 1023]);
+		}
+		long allocated = allocationBean.getThreadAllocatedBytes(threadId)-allocatedBefore;
+		long duration = System.nanoTime()-start;
+
+		System.out.println("bytes allocated per updateCalculation(): "+(allocated/numberOfUpdates)
+				+ " time per update: "+(duration/numberOfUpdates)+" ns");
+
+		System.out.println("end of test:testAllocationPerUpdate()");
+	}
+
+	/**
+	 * a steadily increasing series evicts the lowest value on every update once the window is full.
+	 * The time per update should not grow with the window size
+	 */
+	public void testTrendingSeries(){
+		System.out.println("start of test:testTrendingSeries()");
+
+		int[] windowSizes = new int[]{100, 1000, 10000, 100000};
+		for (int windowSize : windowSizes){
+			PmatrixDpdCalculator calculator = createCalculator(windowSize);
+			for (int j = 0; j < windowSize; j++){
+				calculator.updateCalculation(Double.valueOf(j), Long.valueOf(j*300000L));
+			}
+			long start = System.nanoTime();
+			for (int i = windowSize; i < windowSize+numberOfUpdates/10; i++){
+				calculator.updateCalculation(Double.valueOf(i), Long.valueOf(i*300000L));
+			}
+			long duration = System.nanoTime()-start;
+			System.out.println("increasing series window size "+windowSize+" time per update: "+(duration/(numberOfUpdates/10))+" ns");
+		}
+
+		System.out.println("end of test:testTrendingSeries()");
+	}
+
+	private PmatrixDpdCalculator createCalculator(){
+		return createCalculator(maxSampleNo);
+	}
+
+	private PmatrixDpdCalculator createCalculator(int maxSampleNo){
+		PmatrixDpdCalculatorSimpleMovingAvgImpl calculator = new PmatrixDpdCalculatorSimpleMovingAvgImpl();
+		List<NameValuePair> configuration = new ArrayList<NameValuePair>();
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.MAX_SAMPLE_NO_PROPERTY_NAME, Integer.toString(maxSampleNo)));
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_PROPERTY_NAME, PmatrixDpdCalculatorSimpleMovingAvgImpl.THRESHOLD_TYPE_STANDARD_DEVIATION));
+		configuration.add(new NameValuePair(PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_PROPERTY_NAME, PmatrixDpdCalculatorSimpleMovingAvgImpl.SECOND_VALUE_AVERAGE));
+		calculator.setConfiguration(configuration);
+		return calculator;
+	}
+
+	private long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++){
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+}